@@ -123,12 +123,53 @@ task<Exec>("generateSymbolData") {
   )
 }
 
+val genKeyboardLayoutsScript = "scripts/gen_keyboard_layouts.py"
+val keyboardLayoutResDir = "src/main/res"
+val generatedKeyboardLayoutsDir = "$generatedAssetsDir/keyboard_layouts"
+val generatedKeyboardLayoutResourcesFile =
+  "$generatedSrcDir/sh/eliza/japaneseinput/keyboard/KeyboardLayoutResources.java"
+
+task<Exec>("generateKeyboardLayouts") {
+  inputs.files(
+    genKeyboardLayoutsScript,
+    fileTree(keyboardLayoutResDir) { include("xml/kbd_*.xml", "values*/*.xml") },
+  )
+  outputs.dirs(generatedKeyboardLayoutsDir)
+  outputs.files(generatedKeyboardLayoutResourcesFile)
+
+  commandLine(
+    "python",
+    genKeyboardLayoutsScript,
+    "--res_dir=$keyboardLayoutResDir",
+    "--output_dir=$generatedKeyboardLayoutsDir",
+    "--output_java=$generatedKeyboardLayoutResourcesFile",
+  )
+}
+
+val genTouchStatsScript = "scripts/gen_touch_stats.py"
+val touchStatsDir = "scripts/touch_stats"
+val generatedTouchStatsFile = "$generatedAssetsDir/touch_stats.pack"
+
+task<Exec>("generateTouchStats") {
+  inputs.files(genTouchStatsScript, fileTree(touchStatsDir) { include("*.touch_stats") })
+  outputs.files(generatedTouchStatsFile)
+
+  commandLine(
+    "python",
+    genTouchStatsScript,
+    "--input_dir=$touchStatsDir",
+    "--output=$generatedTouchStatsFile",
+  )
+}
+
 tasks.preBuild {
   dependsOn("copyCredits")
   dependsOn("generateMozcDrawable")
   dependsOn("generateEmojiData")
   dependsOn("generateEmoticonData")
   dependsOn("generateSymbolData")
+  dependsOn("generateKeyboardLayouts")
+  dependsOn("generateTouchStats")
 }
 
 tasks {
@@ -169,6 +210,12 @@ android {
     }
   }
 
+  androidResources {
+    // Keep mozc.data uncompressed so that it is copied out without inflation, and touch_stats.pack
+    // so that it can be mapped directly from the APK.
+    noCompress += listOf("data", "pack")
+  }
+
   buildTypes {
     release {
       isMinifyEnabled = false
@@ -0,0 +1,463 @@
+# -*- coding: utf-8 -*-
+"""Compiles keyboard layout xml files into binary layout assets.
+
+Each res/xml/kbd_*.xml is compiled into <output_dir>/<name>.bin, which
+KeyboardLayoutLoader turns into a Keyboard without XmlPullParser or
+TypedArray.
+
+Attribute values are stored as Android's TypedValue would hold them: literal
+dimensions and fractions are encoded into the same complex format as aapt,
+and enums, flags, booleans and unqualified integer resources are resolved
+here. References which may depend on the configuration (strings, dimensions,
+fractions and drawables) are stored as indices into a table of R fields,
+which is generated as KeyboardLayoutResources.java.
+
+The binary layout is (big endian, as DataInputStream reads):
+  Header: MAGIC(int) FORMAT_VERSION(int) TABLE_HASH(int)
+  Keyboard: values[KEYBOARD] row_count(short) Row*
+  Row: values[ROW] child_count(short) (CHILD_KEY Key | CHILD_SPACER Spacer)*
+  Key: values[KEY] key_state_count(short) KeyState*
+  Spacer: values[SPACER]
+  KeyState: values[KEY_STATE] flick_count(byte) Flick*
+  Flick: values[FLICK] KeyEntity
+  KeyEntity: values[KEY_ENTITY] has_pop_up(byte) [values[POP_UP]]
+  value: type(byte) followed by
+    TYPE_NULL: nothing (absent attribute)
+    TYPE_REFERENCE: the index in the table(short)
+    TYPE_STRING: the string in modified UTF-8, as DataOutput#writeUTF
+    otherwise: data(int)
+
+The attribute orders below must be kept in sync with KeyboardLayoutLoader.
+"""
+
+import glob
+import optparse
+import os
+import re
+import struct
+import sys
+import zlib
+from xml.etree import ElementTree
+
+
+MAGIC = 0x4D5A4B42  # "MZKB"
+FORMAT_VERSION = 1
+
+NAMESPACE = '{http://schemas.android.com/apk/res-auto}'
+
+KEYBOARD = ['keyboardContentDescription', 'flickThreshold', 'keyWidth',
+            'keyHeight', 'keyHorizontalLayoutWeight', 'horizontalGap',
+            'verticalGap', 'defaultIconWidth', 'defaultIconHeight',
+            'defaultHorizontalPadding', 'defaultVerticalPadding',
+            'keyBackground', 'popUpHeight', 'popUpXOffset', 'popUpYOffset',
+            'popUpIconWidth', 'popUpIconHeight']
+ROW = ['verticalGap', 'keyHeight', 'rowEdgeFlags']
+KEY = ['keyWidth', 'keyHeight', 'keyHorizontalLayoutWeight', 'horizontalGap',
+       'defaultIconWidth', 'defaultIconHeight', 'defaultHorizontalPadding',
+       'defaultVerticalPadding', 'keyBackground', 'keyEdgeFlags',
+       'isRepeatable', 'isModifier']
+SPACER = ['keyWidth', 'keyHeight', 'keyHorizontalLayoutWeight', 'keyEdgeFlags',
+          'stick', 'keyBackground']
+KEY_STATE = ['contentDescription', 'metaState', 'nextMetaState',
+             'nextRemovedMetaStates']
+FLICK = ['direction']
+KEY_ENTITY = ['sourceId', 'keyCode', 'longPressKeyCode',
+              'longPressTimeoutTrigger', 'keyIcon', 'keyCharacter',
+              'flickHighlight', 'horizontalPadding', 'verticalPadding',
+              'iconWidth', 'iconHeight']
+POP_UP = ['popUpIcon', 'popUpLongPressIcon', 'popUpHeight', 'popUpXOffset',
+          'popUpYOffset', 'popUpIconWidth', 'popUpIconHeight']
+
+CHILD_KEY = 0
+CHILD_SPACER = 1
+
+# android.util.TypedValue.
+TYPE_NULL = 0
+TYPE_REFERENCE = 1
+TYPE_STRING = 3
+TYPE_DIMENSION = 5
+TYPE_FRACTION = 6
+TYPE_INT_DEC = 16
+TYPE_INT_HEX = 17
+TYPE_INT_BOOLEAN = 18
+
+COMPLEX_UNITS = {
+    'px': 0, 'dip': 1, 'dp': 1, 'sp': 2, 'pt': 3, 'in': 4, 'mm': 5,
+    '%': 0, '%p': 1,
+}
+COMPLEX_RADIX_SHIFT = 4
+COMPLEX_MANTISSA_SHIFT = 8
+COMPLEX_MANTISSA_MASK = 0xffffff
+
+FLICK_DIRECTION_CENTER = 0
+META_STATE_FALLBACK = 1 << 30
+INVALID_KEY_CODE = -0x80000000
+
+REFERENCE_PATTERN = re.compile(r'^@([a-z]+)/([A-Za-z0-9_.]+)$')
+COMPLEX_PATTERN = re.compile(r'^(-?[0-9]*\.?[0-9]+)(px|dip|dp|sp|pt|in|mm|%p|%)$')
+INTEGER_PATTERN = re.compile(r'^-?(0x[0-9a-fA-F]+|[0-9]+)$')
+
+# Reference types resolved at runtime, as they may depend on the configuration.
+RUNTIME_REFERENCE_TYPES = frozenset(['string', 'dimen', 'fraction', 'integer',
+                                     'raw', 'drawable'])
+
+
+class Attr(object):
+  """The format of an attribute declared in attrs.xml."""
+
+  def __init__(self):
+    self.formats = set()
+    self.enums = {}
+    self.flags = {}
+
+
+def ParseAttrs(attrs_file):
+  """Returns attribute name -> Attr."""
+  attrs = {}
+  for element in ElementTree.parse(attrs_file).getroot().iter('attr'):
+    attr = attrs.setdefault(element.get('name'), Attr())
+    if element.get('format'):
+      attr.formats.update(element.get('format').split('|'))
+    for enum in element.findall('enum'):
+      attr.enums[enum.get('name')] = int(enum.get('value'), 0)
+    for flag in element.findall('flag'):
+      attr.flags[flag.get('name')] = int(flag.get('value'), 0)
+  return attrs
+
+
+def ParseUnqualifiedIntegers(res_dir):
+  """Returns integer resources which don't depend on the configuration."""
+  integers = {}
+  for path in glob.glob(os.path.join(res_dir, 'values', '*.xml')):
+    for element in ElementTree.parse(path).getroot().iter('integer'):
+      integers[element.get('name')] = int(element.text.strip(), 0)
+  for path in glob.glob(os.path.join(res_dir, 'values-*', '*.xml')):
+    for element in ElementTree.parse(path).getroot().iter('integer'):
+      integers.pop(element.get('name'), None)
+  return integers
+
+
+def ToFloat32(value):
+  return struct.unpack('>f', struct.pack('>f', value))[0]
+
+
+def ToComplex(value, unit):
+  """Encodes the value in the complex format, as aapt does."""
+  f = ToFloat32(value)
+  negative = f < 0
+  if negative:
+    f = -f
+  bits = int(ToFloat32(ToFloat32(f * (1 << 23)) + 0.5))
+  if (bits & 0x7fffff) == 0:
+    radix, shift = 0, 23  # COMPLEX_RADIX_23p0
+  elif (bits & ~0x7fffff) == 0:
+    radix, shift = 3, 0  # COMPLEX_RADIX_0p23
+  elif (bits & ~0x7fffffff) == 0:
+    radix, shift = 2, 8  # COMPLEX_RADIX_8p15
+  elif (bits & ~0x7fffffffff) == 0:
+    radix, shift = 1, 16  # COMPLEX_RADIX_16p7
+  else:
+    radix, shift = 0, 23  # COMPLEX_RADIX_23p0
+  mantissa = (bits >> shift) & COMPLEX_MANTISSA_MASK
+  if negative:
+    mantissa = (-mantissa) & COMPLEX_MANTISSA_MASK
+  return ((radix << COMPLEX_RADIX_SHIFT)
+          | (mantissa << COMPLEX_MANTISSA_SHIFT)
+          | COMPLEX_UNITS[unit])
+
+
+def EncodeModifiedUtf8(text):
+  """Encodes the text as DataOutput#writeUTF does."""
+  utf16 = text.encode('utf-16-be')
+  result = bytearray()
+  for i in range(0, len(utf16), 2):
+    c = (utf16[i] << 8) | utf16[i + 1]
+    if 0x0001 <= c <= 0x007f:
+      result.append(c)
+    elif c <= 0x07ff:
+      result.extend([0xc0 | (c >> 6), 0x80 | (c & 0x3f)])
+    else:
+      result.extend([0xe0 | (c >> 12), 0x80 | ((c >> 6) & 0x3f),
+                     0x80 | (c & 0x3f)])
+  return struct.pack('>H', len(result)) + bytes(result)
+
+
+class LayoutError(Exception):
+  pass
+
+
+class Compiler(object):
+  """Compiles layout xml files sharing a table of resource references."""
+
+  def __init__(self, attrs, integers):
+    self._attrs = attrs
+    self._integers = integers
+    self._table = []
+    self._table_index = {}
+
+  def GetTable(self):
+    return self._table
+
+  def Compile(self, path):
+    self._path = path
+    self._source_ids = set()
+    root = ElementTree.parse(path).getroot()
+    self._CheckTag(root, 'Keyboard')
+    out = bytearray()
+    self._WriteValues(out, root, KEYBOARD)
+    rows = list(root)
+    out += struct.pack('>H', len(rows))
+    for row in rows:
+      self._WriteRow(out, row)
+    return bytes(out)
+
+  def _Error(self, message):
+    raise LayoutError('%s: %s' % (self._path, message))
+
+  def _CheckTag(self, element, tag):
+    if element.tag != tag:
+      self._Error('<%s> is expected, but found <%s>' % (tag, element.tag))
+
+  def _WriteRow(self, out, row):
+    self._CheckTag(row, 'Row')
+    self._WriteValues(out, row, ROW)
+    children = list(row)
+    out += struct.pack('>H', len(children))
+    for child in children:
+      if child.tag == 'Key':
+        out.append(CHILD_KEY)
+        self._WriteKey(out, child)
+      elif child.tag == 'Spacer':
+        out.append(CHILD_SPACER)
+        self._WriteValues(out, child, SPACER)
+      else:
+        self._Error('Unexpected <%s> in <Row>' % child.tag)
+
+  def _WriteKey(self, out, key):
+    self._WriteValues(out, key, KEY)
+    key_states = list(key)
+    out += struct.pack('>H', len(key_states))
+    default_entity = None
+    for key_state in key_states:
+      center_entity = self._WriteKeyState(out, key_state)
+      meta_state = self._GetInt(key_state, 'metaState', 0)
+      if default_entity is None and (
+          meta_state == 0 or meta_state & META_STATE_FALLBACK):
+        default_entity = center_entity
+    if default_entity is None:
+      self._Error('No default KeyState element is found.')
+    if (self._GetInt(key, 'isRepeatable', 0)
+        and self._GetInt(default_entity, 'longPressKeyCode',
+                         INVALID_KEY_CODE) != INVALID_KEY_CODE):
+      self._Error('The key has both isRepeatable attribute and '
+                  'longPressKeyCode.')
+
+  def _WriteKeyState(self, out, key_state):
+    """Writes the KeyState, and returns the KeyEntity of CENTER flick."""
+    self._CheckTag(key_state, 'KeyState')
+    self._WriteValues(out, key_state, KEY_STATE)
+    flicks = list(key_state)
+    out.append(len(flicks))
+    center_entity = None
+    for flick in flicks:
+      self._CheckTag(flick, 'Flick')
+      self._WriteValues(out, flick, FLICK)
+      direction = self._GetInt(flick, 'direction', FLICK_DIRECTION_CENTER)
+      entities = list(flick)
+      if len(entities) != 1:
+        self._Error('<Flick> must have exactly one <KeyEntity>.')
+      entity = entities[0]
+      self._WriteKeyEntity(out, entity)
+      if direction == FLICK_DIRECTION_CENTER:
+        center_entity = entity
+      elif (self._GetInt(entity, 'longPressKeyCode', INVALID_KEY_CODE)
+            != INVALID_KEY_CODE):
+        self._Error('longPressKeyCode can be set to only a KeyEntity for '
+                    'CENTER direction.')
+    if center_entity is None:
+      self._Error('No CENTER flick element is found.')
+    return center_entity
+
+  def _WriteKeyEntity(self, out, entity):
+    self._CheckTag(entity, 'KeyEntity')
+    source_id = self._GetInt(entity, 'sourceId', None)
+    if source_id is None:
+      self._Error('sourceId is mandatory for KeyEntity.')
+    if source_id in self._source_ids:
+      self._Error('Duplicated sourceId (%d) is found.' % source_id)
+    self._source_ids.add(source_id)
+    self._WriteValues(out, entity, KEY_ENTITY)
+    pop_ups = list(entity)
+    if len(pop_ups) > 1:
+      self._Error('<KeyEntity> can have at most one <PopUp>.')
+    out.append(len(pop_ups))
+    for pop_up in pop_ups:
+      self._CheckTag(pop_up, 'PopUp')
+      self._WriteValues(out, pop_up, POP_UP)
+
+  def _GetInt(self, element, name, default):
+    raw = element.get(NAMESPACE + name)
+    if raw is None:
+      return default
+    value_type, data = self._Encode(name, raw)
+    if value_type not in (TYPE_INT_DEC, TYPE_INT_HEX, TYPE_INT_BOOLEAN):
+      self._Error('%s must be an integer: %s' % (name, raw))
+    return data
+
+  def _WriteValues(self, out, element, names):
+    for key in element.keys():
+      if key.startswith(NAMESPACE) and key[len(NAMESPACE):] not in names:
+        self._Error('Unsupported attribute %s in <%s>'
+                    % (key[len(NAMESPACE):], element.tag))
+    for name in names:
+      raw = element.get(NAMESPACE + name)
+      if raw is None:
+        out.append(TYPE_NULL)
+        continue
+      value_type, data = self._Encode(name, raw)
+      out.append(value_type)
+      if value_type == TYPE_NULL:
+        continue
+      elif value_type == TYPE_REFERENCE:
+        out += struct.pack('>H', data)
+      elif value_type == TYPE_STRING:
+        out += EncodeModifiedUtf8(data)
+      else:
+        out += struct.pack('>I', data & 0xffffffff)
+
+  def _Encode(self, name, raw):
+    """Returns (type, data) of the attribute value."""
+    attr = self._attrs.get(name)
+    if attr is None:
+      self._Error('Unknown attribute: %s' % name)
+
+    if raw == '@null':
+      # Same as absent, e.g. TypedArray#getResourceId returns the default.
+      return TYPE_NULL, 0
+    match = REFERENCE_PATTERN.match(raw)
+    if match:
+      resource_type, resource_name = match.groups()
+      if resource_type == 'integer' and resource_name in self._integers:
+        return TYPE_INT_DEC, self._integers[resource_name]
+      if resource_type not in RUNTIME_REFERENCE_TYPES:
+        self._Error('Unsupported reference: %s' % raw)
+      return TYPE_REFERENCE, self._GetTableIndex(resource_type, resource_name)
+
+    if attr.enums or attr.flags:
+      data = 0
+      for part in raw.split('|'):
+        if part in attr.enums:
+          data |= attr.enums[part]
+        elif part in attr.flags:
+          data |= attr.flags[part]
+        else:
+          self._Error('Unknown value %s for %s' % (part, name))
+      return (TYPE_INT_DEC if attr.enums else TYPE_INT_HEX), data
+    if 'boolean' in attr.formats and raw in ('true', 'false'):
+      return TYPE_INT_BOOLEAN, -1 if raw == 'true' else 0
+    match = COMPLEX_PATTERN.match(raw)
+    if match and ('dimension' in attr.formats or 'fraction' in attr.formats):
+      value, unit = match.groups()
+      if unit.startswith('%'):
+        return TYPE_FRACTION, ToComplex(float(value) / 100, unit)
+      return TYPE_DIMENSION, ToComplex(float(value), unit)
+    match = INTEGER_PATTERN.match(raw)
+    if match and 'integer' in attr.formats:
+      if match.group(1).startswith('0x'):
+        return TYPE_INT_HEX, int(raw, 16)
+      return TYPE_INT_DEC, int(raw)
+    if 'string' in attr.formats:
+      return TYPE_STRING, raw
+    self._Error('Invalid value %s for %s' % (raw, name))
+
+  def _GetTableIndex(self, resource_type, resource_name):
+    key = (resource_type, resource_name.replace('.', '_'))
+    index = self._table_index.get(key)
+    if index is None:
+      index = len(self._table)
+      self._table.append(key)
+      self._table_index[key] = index
+    return index
+
+
+def GetTableHash(table):
+  joined = '\n'.join('%s/%s' % entry for entry in table)
+  return zlib.crc32(joined.encode('utf-8')) & 0xffffffff
+
+
+def GenerateJava(table, table_hash):
+  lines = [
+      '// Generated by gen_keyboard_layouts.py. Do not edit.',
+      'package sh.eliza.japaneseinput.keyboard;',
+      '',
+      'import sh.eliza.japaneseinput.R;',
+      '',
+      '/** Resources referred from the binary keyboard layouts by index. */',
+      'final class KeyboardLayoutResources {',
+      '  static final int FORMAT_VERSION = %d;' % FORMAT_VERSION,
+      '  static final int TABLE_HASH = 0x%08x;' % table_hash,
+      '',
+      '  static final int[] IDS = {',
+  ]
+  for resource_type, resource_name in table:
+    lines.append('    R.%s.%s,' % (resource_type, resource_name))
+  lines.extend([
+      '  };',
+      '',
+      '  private KeyboardLayoutResources() {}',
+      '}',
+      '',
+  ])
+  return '\n'.join(lines)
+
+
+def WriteIfChanged(path, content):
+  """Writes the file unless it has the same content, to keep incremental
+  builds incremental."""
+  if os.path.exists(path):
+    with open(path, 'rb') as f:
+      if f.read() == content:
+        return
+  directory = os.path.dirname(path)
+  if directory and not os.path.exists(directory):
+    os.makedirs(directory)
+  with open(path, 'wb') as f:
+    f.write(content)
+
+
+def ParseOptions():
+  parser = optparse.OptionParser()
+  parser.add_option('--res_dir', dest='res_dir',
+                    help='The res directory with xml/kbd_*.xml.')
+  parser.add_option('--output_dir', dest='output_dir',
+                    help='The directory of the binary layout assets.')
+  parser.add_option('--output_java', dest='output_java',
+                    help='The path of KeyboardLayoutResources.java.')
+  return parser.parse_args()[0]
+
+
+def main():
+  options = ParseOptions()
+  attrs = ParseAttrs(os.path.join(options.res_dir, 'values', 'attrs.xml'))
+  compiler = Compiler(attrs, ParseUnqualifiedIntegers(options.res_dir))
+  layouts = {}
+  for path in sorted(glob.glob(os.path.join(options.res_dir, 'xml',
+                                            'kbd_*.xml'))):
+    name = os.path.splitext(os.path.basename(path))[0]
+    try:
+      layouts[name] = compiler.Compile(path)
+    except LayoutError as e:
+      sys.exit(str(e))
+
+  table = compiler.GetTable()
+  table_hash = GetTableHash(table)
+  header = struct.pack('>III', MAGIC, FORMAT_VERSION, table_hash)
+  for name, body in layouts.items():
+    WriteIfChanged(os.path.join(options.output_dir, name + '.bin'),
+                   header + body)
+  WriteIfChanged(options.output_java,
+                 GenerateJava(table, table_hash).encode('utf-8'))
+
+
+if __name__ == '__main__':
+  main()
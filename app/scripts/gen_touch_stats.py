@@ -0,0 +1,130 @@
+# -*- coding: utf-8 -*-
+"""Packs touch event statistics files into a single indexed asset.
+
+Each <input_dir>/<name>.touch_stats, where <name> is
+<keyboard base name>_<orientation>, is in the format ProbableKeyEventGuesser
+used to read (big endian, as DataInputStream reads):
+  size(int) (source_id(int) values(float[8]))*
+
+They are packed into one asset, which TouchStatisticsStore maps into memory
+and reads in place (little endian, the native order of the devices):
+  Header: MAGIC(int) FORMAT_VERSION(int) entry_count(int)
+  Index: (name_offset(int) name_length(int) data_offset(int) key_count(int))*
+  Names: UTF-8 names, padded to a multiple of 4 bytes
+  Data: for each entry,
+    source_ids(int[key_count]) sorted in ascending order
+    values(float[8 * key_count]), where the i-th value of the key at slot s
+        is at i * key_count + s
+Offsets are from the beginning of the asset. If a source id appears more than
+once in a file, the last one wins.
+"""
+
+import glob
+import optparse
+import os
+import struct
+import sys
+
+
+MAGIC = 0x4D5A5453  # "MZTS"
+FORMAT_VERSION = 1
+VALUE_COUNT = 8
+INDEX_ENTRY_SIZE = 16
+SUFFIX = '.touch_stats'
+
+
+class StatsError(Exception):
+  pass
+
+
+def ReadStats(path):
+  """Returns a dict, source_id -> values."""
+  with open(path, 'rb') as f:
+    content = f.read()
+  entry_size = 4 + 4 * VALUE_COUNT
+  if len(content) < 4:
+    raise StatsError('%s: too short.' % path)
+  (size,) = struct.unpack_from('>i', content, 0)
+  if size < 0 or len(content) != 4 + size * entry_size:
+    raise StatsError('%s: %d entries don\'t match the size %d.'
+                     % (path, size, len(content)))
+  stats = {}
+  for i in range(size):
+    offset = 4 + i * entry_size
+    (source_id,) = struct.unpack_from('>i', content, offset)
+    stats[source_id] = struct.unpack_from('>%df' % VALUE_COUNT, content,
+                                          offset + 4)
+  return stats
+
+
+def Pad(data):
+  return data + b'\0' * (-len(data) % 4)
+
+
+def Pack(named_stats):
+  """Returns the packed asset of (name, stats) pairs."""
+  names = b''
+  name_ranges = []
+  for name, _ in named_stats:
+    encoded = name.encode('utf-8')
+    name_ranges.append((len(names), len(encoded)))
+    names += encoded
+  names = Pad(names)
+
+  names_offset = 12 + INDEX_ENTRY_SIZE * len(named_stats)
+  data_offset = names_offset + len(names)
+  index = b''
+  data = b''
+  for (name_offset, name_length), (_, stats) in zip(name_ranges,
+                                                     named_stats):
+    source_ids = sorted(stats)
+    index += struct.pack('<iiii', names_offset + name_offset, name_length,
+                         data_offset + len(data), len(source_ids))
+    data += struct.pack('<%di' % len(source_ids), *source_ids)
+    for i in range(VALUE_COUNT):
+      data += struct.pack('<%df' % len(source_ids),
+                          *[stats[source_id][i] for source_id in source_ids])
+  header = struct.pack('<iii', MAGIC, FORMAT_VERSION, len(named_stats))
+  return header + index + names + data
+
+
+def WriteIfChanged(path, content):
+  """Writes the file unless it has the same content, to keep incremental
+  builds incremental."""
+  if os.path.exists(path):
+    with open(path, 'rb') as f:
+      if f.read() == content:
+        return
+  directory = os.path.dirname(path)
+  if directory and not os.path.exists(directory):
+    os.makedirs(directory)
+  with open(path, 'wb') as f:
+    f.write(content)
+
+
+def ParseOptions():
+  parser = optparse.OptionParser()
+  parser.add_option('--input_dir', dest='input_dir',
+                    help='The directory with *.touch_stats files.')
+  parser.add_option('--output', dest='output',
+                    help='The path of the packed asset.')
+  return parser.parse_args()[0]
+
+
+def main():
+  options = ParseOptions()
+  named_stats = []
+  # A missing directory results in an empty pack, so that the guesser simply
+  # finds no statistics.
+  for path in sorted(glob.glob(os.path.join(options.input_dir,
+                                            '*' + SUFFIX))):
+    name = os.path.basename(path)[:-len(SUFFIX)]
+    try:
+      named_stats.append((name, ReadStats(path)))
+    except StatsError as e:
+      sys.exit(str(e))
+  WriteIfChanged(options.output, Pack(named_stats))
+
+
+if __name__ == '__main__':
+  main()
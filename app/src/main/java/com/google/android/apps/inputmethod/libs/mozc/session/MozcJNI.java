@@ -72,6 +72,11 @@ public class MozcJNI {
     }
   }
 
+  /** @return {@code true} if the library has been loaded and initialized in this process. */
+  public static boolean isLoaded() {
+    return isLoaded;
+  }
+
   /** Loads the below functions. */
   private static synchronized native void initialize();
 
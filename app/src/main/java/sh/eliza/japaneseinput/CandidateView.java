@@ -218,6 +218,17 @@ public class CandidateView extends InOutAnimatedFrameLayout implements MemoryMan
       updateScrollGuide();
     }
 
+    @Override
+    boolean updateFocusedIndex(CandidateList candidateList) {
+      if (!super.updateFocusedIndex(candidateList)) {
+        return false;
+      }
+      // Unlike update, the suggestion stays expanded as the candidates are the same.
+      updateScrollPositionBasedOnFocusedIndex();
+      updateScrollGuide();
+      return true;
+    }
+
     @Override
     protected Drawable getViewBackgroundDrawable(Skin skin) {
       return skin.conversionCandidateViewBackgroundDrawable;
@@ -301,6 +312,18 @@ public class CandidateView extends InOutAnimatedFrameLayout implements MemoryMan
     getConversionCandidateWordView().update(allCandidateWords);
   }
 
+  /**
+   * Updates only the focused candidate, without re-laying out the candidates.
+   *
+   * @return false if this view is not showing the same candidates as {@code outCommand}, in which
+   *     case {@link #update(Command)} is needed
+   */
+  boolean updateFocusedIndex(Command outCommand) {
+    return isShownWithoutOutAnimation()
+        && getConversionCandidateWordView()
+            .updateFocusedIndex(outCommand.getOutput().getAllCandidateWords());
+  }
+
   /** Register callback object. */
   void setViewEventListener(ViewEventListener listener) {
     Preconditions.checkNotNull(listener);
@@ -43,6 +43,7 @@ import com.google.common.base.Preconditions;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Command;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.CompositionMode;
 import sh.eliza.japaneseinput.InOutAnimatedFrameLayout.VisibilityChangeListener;
+import sh.eliza.japaneseinput.model.OutputDiffer;
 import sh.eliza.japaneseinput.view.Skin;
 
 /** Manages candidate views (floating, on-keyboard). */
@@ -118,6 +119,9 @@ class CandidateViewManager implements MemoryManageable {
   private Animation numberCandidateViewInAnimation = NO_ANIMATION;
   private Animation numberCandidateViewOutAnimation = NO_ANIMATION;
 
+  /** The outputs passed to {@link #update(Command)}, to detect focus-only changes. */
+  private final OutputDiffer outputDiffer = new OutputDiffer();
+
   public CandidateViewManager(
       CandidateView keyboardCandidateView, FloatingCandidateView floatingCandidateView) {
     this.keyboardCandidateView = Preconditions.checkNotNull(keyboardCandidateView);
@@ -145,9 +149,34 @@ class CandidateViewManager implements MemoryManageable {
    * <p>On-keyboard candidate view may animate and the animation listener may be invoked.
    */
   public void update(Command outCommand) {
+    Preconditions.checkNotNull(outCommand);
+    boolean isCandidatesChanged =
+        outputDiffer.diff(outCommand.getOutput()).contains(OutputDiffer.Part.CANDIDATES);
+    if (!isCandidatesChanged && maybeUpdateFocusedIndex(outCommand)) {
+      return;
+    }
     // Disable the animation in some situation to avoid ugly UI.
     boolean withAnimation = !(isExtractedMode && candidateMode == CandidateMode.KEYBOARD);
-    updateInternal(Preconditions.checkNotNull(outCommand), withAnimation);
+    updateInternal(outCommand, withAnimation);
+  }
+
+  /**
+   * Updates only the focused candidate if the candidate view is already showing the candidates of
+   * {@code outCommand}, which skips the layout, the in-animation and the height listener.
+   *
+   * @return false if a full update is needed
+   */
+  private boolean maybeUpdateFocusedIndex(Command outCommand) {
+    if (candidateMode == CandidateMode.FLOATING
+        || (candidateMode == CandidateMode.NUMBER && !numberCandidateView.isPresent())
+        || !hasCandidates(outCommand)) {
+      return false;
+    }
+    CandidateView candidateView =
+        (candidateMode == CandidateMode.KEYBOARD)
+            ? keyboardCandidateView
+            : numberCandidateView.get();
+    return candidateView.updateFocusedIndex(outCommand);
   }
 
   private void updateWithoutAnimation(Command outCommand) {
@@ -321,6 +350,7 @@ class CandidateViewManager implements MemoryManageable {
   }
 
   public void reset() {
+    outputDiffer.reset();
     keyboardCandidateView.clearAnimation();
     keyboardCandidateView.setVisibility(View.GONE);
     keyboardCandidateView.reset();
@@ -46,6 +46,7 @@ import com.google.common.base.Preconditions;
 import javax.annotation.Nullable;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCandidates.CandidateList;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCandidates.CandidateWord;
+import sh.eliza.japaneseinput.InputViewFrameMetrics.DrawSite;
 import sh.eliza.japaneseinput.accessibility.CandidateWindowAccessibilityDelegate;
 import sh.eliza.japaneseinput.keyboard.BackgroundDrawableFactory;
 import sh.eliza.japaneseinput.keyboard.BackgroundDrawableFactory.DrawableType;
@@ -474,6 +475,7 @@ abstract class CandidateWordView extends View implements MemoryManageable {
     }
 
     // Paint the candidates.
+    long startTime = System.nanoTime();
     int saveCount = canvas.save();
     try {
       canvas.translate(0, 0);
@@ -486,6 +488,8 @@ abstract class CandidateWordView extends View implements MemoryManageable {
     } finally {
       canvas.restoreToCount(saveCount);
     }
+    InputViewFrameMetrics.getInstance()
+        .recordDraw(DrawSite.CANDIDATE_WORD_VIEW, System.nanoTime() - startTime);
   }
 
   @Override
@@ -574,6 +578,24 @@ abstract class CandidateWordView extends View implements MemoryManageable {
     invalidate();
   }
 
+  /**
+   * Updates only the focused candidate, which is possible iff {@code candidateList} has the same
+   * candidates as the current one.
+   *
+   * @return false if the candidates differ, in which case nothing is updated
+   */
+  boolean updateFocusedIndex(CandidateList candidateList) {
+    if (candidateList == null
+        || calculatedLayout == null
+        || !equals(candidateList, currentCandidateList)) {
+      return false;
+    }
+    currentCandidateList = candidateList;
+    candidateLayoutRenderer.setCandidateList(Optional.of(candidateList));
+    invalidate();
+    return true;
+  }
+
   private static boolean equals(CandidateList list1, CandidateList list2) {
     if (list1 == list2) {
       return true;
@@ -114,6 +114,12 @@ public abstract class InOutAnimatedFrameLayout extends FrameLayout {
     }
   }
 
+  /** @return true if this view is visible and is not being hidden by the out animation. */
+  boolean isShownWithoutOutAnimation() {
+    return getVisibility() == View.VISIBLE
+        && (outAnimation == null || getAnimation() != outAnimation);
+  }
+
   /**
    * Starts animation to hide this view. This method also controls the view's visibility. In more
    * precise, the visibility will be set to {@code GONE}, when the animation is finished.
@@ -0,0 +1,313 @@
+package sh.eliza.japaneseinput;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Display;
+import android.view.FrameMetrics;
+import android.view.Window;
+import android.view.Window.OnFrameMetricsAvailableListener;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import java.io.PrintWriter;
+import java.util.Locale;
+import sh.eliza.japaneseinput.util.RollingLatencyWindow;
+
+/**
+ * Frame times of the window hosting {@link MozcView}, attributed to the operation which caused
+ * them.
+ *
+ * <p>The {@link FrameMetrics} of the window are delivered on a background thread while it is
+ * shown. Each frame is attributed to the operation marked last by {@link #markOperation} within
+ * {@value #ATTRIBUTION_WINDOW_MILLIS} ms before the end of the frame, or to {@link Operation#IDLE}
+ * if none. Per operation, the durations of the last {@value #ROLLING_WINDOW_SIZE} frames are kept
+ * for rolling percentiles, and the slow frames, i.e., the ones longer than the refresh interval of
+ * the display, are broken down into the stages of the frame. So a stutter in layout, e.g., of
+ * {@link LayoutParamsAnimator}, can be told from one in drawing, whose cost is recorded per view by
+ * {@link #recordDraw}.
+ */
+public class InputViewFrameMetrics {
+
+  /** The operations to which frames are attributed. */
+  public enum Operation {
+    KEY_PRESS("key press"),
+    CANDIDATE_UPDATE("candidate update"),
+    SYMBOL_PAGE_SWIPE("symbol page swipe"),
+    KEYBOARD_SWITCH("keyboard switch"),
+    LAYOUT_ANIMATION("layout animation"),
+    /** No operation has been marked recently. */
+    IDLE("idle");
+
+    final String label;
+
+    Operation(String label) {
+      this.label = label;
+    }
+  }
+
+  /** The views whose {@code onDraw} is timed. */
+  public enum DrawSite {
+    KEYBOARD_VIEW("KeyboardView"),
+    CANDIDATE_WORD_VIEW("CandidateWordView");
+
+    final String label;
+
+    DrawSite(String label) {
+      this.label = label;
+    }
+  }
+
+  /** The stages of a frame, into which the slow frames are broken down. */
+  private enum Stage {
+    DELAY(FrameMetrics.UNKNOWN_DELAY_DURATION, "delay"),
+    INPUT(FrameMetrics.INPUT_HANDLING_DURATION, "input"),
+    ANIMATION(FrameMetrics.ANIMATION_DURATION, "animation"),
+    LAYOUT(FrameMetrics.LAYOUT_MEASURE_DURATION, "layout"),
+    DRAW(FrameMetrics.DRAW_DURATION, "draw"),
+    SYNC(FrameMetrics.SYNC_DURATION, "sync"),
+    COMMAND_ISSUE(FrameMetrics.COMMAND_ISSUE_DURATION, "commands"),
+    SWAP_BUFFERS(FrameMetrics.SWAP_BUFFERS_DURATION, "swap");
+
+    final int metric;
+    final String label;
+
+    Stage(int metric, String label) {
+      this.metric = metric;
+      this.label = label;
+    }
+  }
+
+  private static final long ATTRIBUTION_WINDOW_MILLIS = 250;
+  private static final long ATTRIBUTION_WINDOW_NANOS = ATTRIBUTION_WINDOW_MILLIS * 1000 * 1000;
+  private static final int ROLLING_WINDOW_SIZE = 256;
+  // The number of the recent marks which a frame can be attributed to.
+  private static final int MARK_COUNT = 8;
+  private static final long DEFAULT_FRAME_INTERVAL_NANOS = 1000L * 1000 * 1000 / 60;
+  // Frames longer than this are counted as frozen.
+  private static final long FROZEN_FRAME_NANOS = 700L * 1000 * 1000;
+
+  private static final InputViewFrameMetrics INSTANCE = new InputViewFrameMetrics();
+
+  // Guarded by marks.
+  private final long[] marks = new long[MARK_COUNT];
+  private final Operation[] markOperations = new Operation[MARK_COUNT];
+  private int nextMarkIndex = 0;
+
+  // Indexed by operation.
+  private final RollingLatencyWindow[] frameWindows = newWindows(Operation.values().length);
+  // Indexed by draw site.
+  private final RollingLatencyWindow[] drawWindows = newWindows(DrawSite.values().length);
+
+  // Guarded by this.
+  // Indexed by operation.
+  private final long[] frameCounts = new long[Operation.values().length];
+  private final long[] slowFrameCounts = new long[Operation.values().length];
+  private final long[] frozenFrameCounts = new long[Operation.values().length];
+  // Indexed by [operation][stage].
+  private final long[][] slowFrameStageNanos =
+      new long[Operation.values().length][Stage.values().length];
+  private long firstDrawFrameCount = 0;
+  private long droppedReportCount = 0;
+
+  private volatile long frameIntervalNanos = DEFAULT_FRAME_INTERVAL_NANOS;
+
+  // Accessed on the main thread only.
+  private Optional<Window> attachedWindow = Optional.absent();
+  private Optional<Handler> listenerHandler = Optional.absent();
+
+  private final OnFrameMetricsAvailableListener listener =
+      new OnFrameMetricsAvailableListener() {
+        @Override
+        public void onFrameMetricsAvailable(
+            Window window, FrameMetrics frameMetrics, int dropCountSinceLastInvocation) {
+          recordFrame(frameMetrics, dropCountSinceLastInvocation);
+        }
+      };
+
+  private InputViewFrameMetrics() {}
+
+  public static InputViewFrameMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  private static RollingLatencyWindow[] newWindows(int count) {
+    RollingLatencyWindow[] windows = new RollingLatencyWindow[count];
+    for (int i = 0; i < count; ++i) {
+      windows[i] = new RollingLatencyWindow(ROLLING_WINDOW_SIZE);
+    }
+    return windows;
+  }
+
+  /**
+   * Starts receiving the frame metrics of {@code window}, replacing the window attached before, if
+   * any. Must be called on the main thread.
+   */
+  public void attach(Window window) {
+    Preconditions.checkNotNull(window);
+    if (attachedWindow.isPresent()) {
+      if (attachedWindow.get() == window) {
+        return;
+      }
+      detach();
+    }
+    Display display = window.getDecorView().getDisplay();
+    if (display != null && display.getRefreshRate() > 0) {
+      frameIntervalNanos = (long) (1e9 / display.getRefreshRate());
+    }
+    if (!listenerHandler.isPresent()) {
+      HandlerThread thread =
+          new HandlerThread("Frame metrics thread", Process.THREAD_PRIORITY_BACKGROUND);
+      thread.start();
+      listenerHandler = Optional.of(new Handler(thread.getLooper()));
+    }
+    window.addOnFrameMetricsAvailableListener(listener, listenerHandler.get());
+    attachedWindow = Optional.of(window);
+  }
+
+  /** Stops receiving the frame metrics. Must be called on the main thread. */
+  public void detach() {
+    if (attachedWindow.isPresent()) {
+      attachedWindow.get().removeOnFrameMetricsAvailableListener(listener);
+      attachedWindow = Optional.absent();
+    }
+  }
+
+  /** Marks the start of {@code operation}, to which the following frames are attributed. */
+  public void markOperation(Operation operation) {
+    Preconditions.checkNotNull(operation);
+    long now = System.nanoTime();
+    synchronized (marks) {
+      marks[nextMarkIndex] = now;
+      markOperations[nextMarkIndex] = operation;
+      nextMarkIndex = (nextMarkIndex + 1) % MARK_COUNT;
+    }
+  }
+
+  /** Records the duration of an {@code onDraw} of the view. */
+  public void recordDraw(DrawSite site, long nanos) {
+    drawWindows[site.ordinal()].record(nanos);
+  }
+
+  /** Returns the operation marked last at or before {@code nanos} within the attribution window. */
+  private Operation getOperationAt(long nanos) {
+    Operation operation = Operation.IDLE;
+    long markNanos = Long.MIN_VALUE;
+    synchronized (marks) {
+      for (int i = 0; i < MARK_COUNT; ++i) {
+        if (markOperations[i] != null
+            && marks[i] <= nanos
+            && nanos - marks[i] <= ATTRIBUTION_WINDOW_NANOS
+            && marks[i] > markNanos) {
+          operation = markOperations[i];
+          markNanos = marks[i];
+        }
+      }
+    }
+    return operation;
+  }
+
+  private void recordFrame(FrameMetrics frameMetrics, int dropCount) {
+    if (frameMetrics.getMetric(FrameMetrics.FIRST_DRAW_FRAME) == 1) {
+      // Includes the inflation and the first layout of the window, which are not stutters.
+      synchronized (this) {
+        ++firstDrawFrameCount;
+        droppedReportCount += dropCount;
+      }
+      return;
+    }
+    long totalNanos = frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION);
+    Operation operation =
+        getOperationAt(frameMetrics.getMetric(FrameMetrics.INTENDED_VSYNC_TIMESTAMP) + totalNanos);
+    int index = operation.ordinal();
+    frameWindows[index].record(totalNanos);
+    synchronized (this) {
+      droppedReportCount += dropCount;
+      ++frameCounts[index];
+      if (totalNanos > frameIntervalNanos) {
+        ++slowFrameCounts[index];
+        for (Stage stage : Stage.values()) {
+          slowFrameStageNanos[index][stage.ordinal()] += frameMetrics.getMetric(stage.metric);
+        }
+      }
+      if (totalNanos > FROZEN_FRAME_NANOS) {
+        ++frozenFrameCounts[index];
+      }
+    }
+  }
+
+  public void reset() {
+    synchronized (this) {
+      for (int i = 0; i < frameCounts.length; ++i) {
+        frameCounts[i] = 0;
+        slowFrameCounts[i] = 0;
+        frozenFrameCounts[i] = 0;
+        for (int j = 0; j < slowFrameStageNanos[i].length; ++j) {
+          slowFrameStageNanos[i][j] = 0;
+        }
+      }
+      firstDrawFrameCount = 0;
+      droppedReportCount = 0;
+    }
+    for (RollingLatencyWindow window : frameWindows) {
+      window.reset();
+    }
+    for (RollingLatencyWindow window : drawWindows) {
+      window.reset();
+    }
+  }
+
+  /**
+   * Writes the frames per operation, and the onDraw durations per view. Percentiles are of the last
+   * frames in microseconds, while the stages are the averages over the slow frames in milliseconds.
+   */
+  public void dump(PrintWriter writer) {
+    synchronized (this) {
+      writer.println(
+          String.format(
+              Locale.US,
+              "Input view frames: interval=%.1fms first draws=%d dropped reports=%d",
+              frameIntervalNanos / 1e6,
+              firstDrawFrameCount,
+              droppedReportCount));
+    }
+    for (Operation operation : Operation.values()) {
+      int index = operation.ordinal();
+      synchronized (this) {
+        if (frameCounts[index] == 0) {
+          continue;
+        }
+        writer.println(
+            String.format(
+                Locale.US,
+                "  %s: frames=%d slow=%d frozen=%d",
+                operation.label,
+                frameCounts[index],
+                slowFrameCounts[index],
+                frozenFrameCounts[index]));
+        if (slowFrameCounts[index] > 0) {
+          writer.print("    slow stages (ms):");
+          for (Stage stage : Stage.values()) {
+            writer.print(
+                String.format(
+                    Locale.US,
+                    " %s=%.1f",
+                    stage.label,
+                    slowFrameStageNanos[index][stage.ordinal()] / 1e6 / slowFrameCounts[index]));
+          }
+          writer.println();
+        }
+      }
+      writer.print("    recent: ");
+      frameWindows[index].dump(writer);
+      writer.println();
+    }
+    for (DrawSite site : DrawSite.values()) {
+      if (drawWindows[site.ordinal()].getSize() == 0) {
+        continue;
+      }
+      writer.print("  " + site.label + ".onDraw recent: ");
+      drawWindows[site.ordinal()].dump(writer);
+      writer.println();
+    }
+  }
+}
@@ -33,6 +33,7 @@ import android.os.Handler;
 import android.view.View;
 import android.view.ViewGroup.LayoutParams;
 import android.view.animation.Interpolator;
+import sh.eliza.japaneseinput.InputViewFrameMetrics.Operation;
 
 /**
  * This class manages layout animation. <code>Animation</code> and related classes of Android's
@@ -91,6 +92,7 @@ public class LayoutParamsAnimator {
         new Runnable() {
           @Override
           public void run() {
+            InputViewFrameMetrics.getInstance().markOperation(Operation.LAYOUT_ANIMATION);
             float input =
                 Math.min(1.0f, (System.currentTimeMillis() - startTime) / (float) duration);
             LayoutParams newLayoutParams =
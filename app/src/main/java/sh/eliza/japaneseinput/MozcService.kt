@@ -29,6 +29,7 @@
 package sh.eliza.japaneseinput
 
 import android.annotation.SuppressLint
+import android.app.ActivityManager
 import android.content.SharedPreferences
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener
 import android.content.res.Configuration
@@ -53,6 +54,8 @@ import android.view.inputmethod.InputBinding
 import android.view.inputmethod.InputConnection
 import androidx.preference.PreferenceManager
 import com.google.common.base.Optional
+import java.io.FileDescriptor
+import java.io.PrintWriter
 import java.util.Locale
 import java.util.Objects
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCandidates
@@ -75,6 +78,7 @@ import sh.eliza.japaneseinput.ViewManagerInterface.LayoutAdjustment
 import sh.eliza.japaneseinput.hardwarekeyboard.HardwareKeyboard.CompositionSwitchMode
 import sh.eliza.japaneseinput.hardwarekeyboard.HardwareKeyboardSpecification
 import sh.eliza.japaneseinput.keyboard.Keyboard.KeyboardSpecification
+import sh.eliza.japaneseinput.model.OutputDiffer
 import sh.eliza.japaneseinput.model.SelectionTracker
 import sh.eliza.japaneseinput.model.SymbolCandidateStorage.SymbolHistoryStorage
 import sh.eliza.japaneseinput.model.SymbolMajorCategory
@@ -86,8 +90,13 @@ import sh.eliza.japaneseinput.preference.PreferenceUtil.defaultPreferenceManager
 import sh.eliza.japaneseinput.preference.PreferenceUtil.isLandscapeKeyboardSettingActive
 import sh.eliza.japaneseinput.session.SessionExecutor
 import sh.eliza.japaneseinput.session.SessionExecutor.EvaluationCallback
+import sh.eliza.japaneseinput.session.SyncDataScheduler
 import sh.eliza.japaneseinput.util.ImeSwitcher
 import sh.eliza.japaneseinput.util.LauncherIconManagerFactory
+import sh.eliza.japaneseinput.util.PerformanceDump
+import sh.eliza.japaneseinput.vectorgraphic.BitmapCache
+import sh.eliza.japaneseinput.view.DecodedDrawableCache
+import sh.eliza.japaneseinput.view.IconAtlas
 
 /**
  * Implementation of the input method service.
@@ -340,6 +349,7 @@ open class MozcService : InputMethodService() {
     ) {
       require(checkNotNull(command).isPresent)
       checkNotNull(triggeringKeyEvent)
+      syncDataScheduler.onUserActivity()
       // TODO(exv): fix this expand suggestion usage
       // if (command.get().getInput().getCommand().getType()
       //     != SessionCommand.CommandType.EXPAND_SUGGESTION) {
@@ -388,15 +398,6 @@ open class MozcService : InputMethodService() {
     }
   }
 
-  /** We need to send SYNC_DATA command periodically. This class handles it. */
-  @SuppressLint("HandlerLeak")
-  private inner class SendSyncDataCommandHandler : Handler(Looper.getMainLooper()) {
-    override fun handleMessage(msg: Message) {
-      sessionExecutor.syncData()
-      sendEmptyMessageDelayed(0, SYNC_DATA_COMMAND_PERIOD)
-    }
-  }
-
   /**
    * To trim memory, a message is handled to invoke trimMemory method 10 seconds after hiding
    * window.
@@ -437,11 +438,14 @@ open class MozcService : InputMethodService() {
   // Track the selection.
   private val selectionTracker = SelectionTracker()
 
+  // The outputs rendered into the InputConnection, to skip re-rendering an unchanged preedit.
+  private val inputConnectionOutputDiffer = OutputDiffer()
+
   // A receiver to accept a notification via intents.
   private lateinit var configurationChangedHandler: Handler
 
-  // Handler to process SYNC_DATA command for storing history data.
-  private lateinit var sendSyncDataCommandHandler: SendSyncDataCommandHandler
+  // Scheduler of SYNC_DATA command for storing history data.
+  private lateinit var syncDataScheduler: SyncDataScheduler
 
   // Handler to process SYNC_DATA command for storing history data.
   private lateinit var memoryTrimmingHandler: MemoryTrimmingHandler
@@ -497,6 +501,9 @@ open class MozcService : InputMethodService() {
     ApplicationInitializer(this)
       .initialize(LauncherIconManagerFactory.getDefaultInstance(), defaultPreferenceManagerStatic)
 
+    // Before any skin draws its pictures.
+    IconAtlas.initialize(cacheDir, MozcUtil.getLastUpdateTime(this))
+
     // Create a ViewManager.
     val imeSwitcher = ImeSwitcher(this)
     viewManager =
@@ -508,6 +515,9 @@ open class MozcService : InputMethodService() {
         MozcMenuDialogListenerImpl(this, viewEventListener),
       )
 
+    BitmapCache.getInstance()
+      .setMemoryClass((getSystemService(ACTIVITY_SERVICE) as ActivityManager).memoryClass)
+
     // Setup FeedbackManager.
     feedbackManager =
       FeedbackManager(RealFeedbackListener(getSystemService(AUDIO_SERVICE) as AudioManager))
@@ -516,6 +526,8 @@ open class MozcService : InputMethodService() {
     sharedPreferences.registerOnSharedPreferenceChangeListener(sharedPreferenceChangeListener)
 
     prepareEveryTime(sharedPreferences, resources.configuration)
+    // Keys typed meanwhile are just queued behind the warm-up.
+    sessionExecutor.warmUp()
 
     val propagatedClientSidePreference = propagatedClientSidePreference
     if (propagatedClientSidePreference?.hardwareKeyMap == null) {
@@ -529,21 +541,25 @@ open class MozcService : InputMethodService() {
     configurationChangedHandler = Handler(Looper.getMainLooper(), ConfigurationChangeCallback())
     memoryTrimmingHandler = MemoryTrimmingHandler()
 
-    // Start sending SYNC_DATA message to mozc server periodically.
-    sendSyncDataCommandHandler = SendSyncDataCommandHandler()
-    sendSyncDataCommandHandler.sendEmptyMessageDelayed(WHAT, SYNC_DATA_COMMAND_PERIOD)
+    // SYNC_DATA is sent when the user stops typing, rather than periodically.
+    syncDataScheduler = SyncDataScheduler(sessionExecutor, getSyncDataIdleMillis(sharedPreferences))
+    // User dictionary edits and history clears from the preferences are written by SYNC_DATA too.
+    sessionExecutor.setUserDataWriteListener(
+      Optional.of(Runnable { syncDataScheduler.onUserActivity() })
+    )
     MozcLog.d("end MozcService#onCreate " + System.nanoTime())
   }
 
   override fun onDestroy() {
     feedbackManager.release()
-    sessionExecutor.syncData()
+    sessionExecutor.setUserDataWriteListener(Optional.absent())
+    syncDataScheduler.flush()
 
     // Following listeners/handlers have reference to the service.
     // To free the service instance, remove the listeners/handlers.
     sharedPreferences.unregisterOnSharedPreferenceChangeListener(sharedPreferenceChangeListener)
-    sendSyncDataCommandHandler.removeMessages(WHAT)
     memoryTrimmingHandler.removeMessages(WHAT)
+    InputViewFrameMetrics.getInstance().detach()
     super.onDestroy()
   }
 
@@ -555,9 +571,13 @@ open class MozcService : InputMethodService() {
     val isLogging =
       (sharedPreferences != null &&
         sharedPreferences.getBoolean(PREF_TWEAK_LOGGING_PROTOCOL_BUFFERS, false))
+    val isRecording =
+      (sharedPreferences != null &&
+        sharedPreferences.getBoolean(PREF_TWEAK_RECORD_COMMANDS, false))
     // Force to initialize here.
     sessionExecutor.reset(this)
     sessionExecutor.setLogging(isLogging)
+    sessionExecutor.setRecording(isRecording)
     updateImposedConfig()
     viewManager.onConfigurationChanged(resources.configuration)
     // Make sure that the server and the client have the same keyboard specification.
@@ -595,6 +615,7 @@ open class MozcService : InputMethodService() {
 
   private fun resetContext() {
     sessionExecutor.resetContext()
+    inputConnectionOutputDiffer.reset()
     viewManager.reset()
   }
 
@@ -645,7 +666,7 @@ open class MozcService : InputMethodService() {
     }
 
     // Send the connected field's attributes to the mozc server.
-    sessionExecutor.switchInputFieldType(getInputFieldType(attribute))
+    sessionExecutor.switchEditor(attribute.packageName ?: "", getInputFieldType(attribute))
     // TODO(exv): replace this
     // sessionExecutor.updateRequest(
     //     EmojiUtil.createEmojiRequest(
@@ -951,6 +972,7 @@ open class MozcService : InputMethodService() {
 
   override fun onWindowShown() {
     showStatusIcon()
+    window.window?.let { InputViewFrameMetrics.getInstance().attach(it) }
     // Remove memory trimming message.
     memoryTrimmingHandler.removeMessages(WHAT)
     // Ensure keyboard's request.
@@ -979,6 +1001,9 @@ open class MozcService : InputMethodService() {
     selectionTracker.onWindowHidden()
     viewManager.reset()
     hideStatusIcon()
+    InputViewFrameMetrics.getInstance().detach()
+    // Behind the commit by resetContext above.
+    syncDataScheduler.flush()
     // MemoryTrimmingHandler.DURATION_MS from now, memory trimming will be done.
     // If the window is shown before MemoryTrimmingHandler.DURATION_MS,
     // the message posted here will be removed.
@@ -999,6 +1024,7 @@ open class MozcService : InputMethodService() {
     val inputConnection = currentInputConnection ?: return
     val output = command.output
     if (!output.hasConsumed() || !output.consumed) {
+      inputConnectionOutputDiffer.reset()
       maybeCommitText(output, inputConnection)
       sendKeyEvent(keyEvent)
       return
@@ -1017,6 +1043,16 @@ open class MozcService : InputMethodService() {
     }
 
     // Here the key is consumed by the Mozc server.
+    // If neither the surrounding text nor the preedit changes, e.g. only the focused candidate
+    // moves, the InputConnection is left untouched as each call is an IPC to the application.
+    val changedParts = inputConnectionOutputDiffer.diff(output)
+    if (
+      !changedParts.contains(OutputDiffer.Part.PREEDIT) &&
+        !changedParts.contains(OutputDiffer.Part.DELETION_RANGE) &&
+        !changedParts.contains(OutputDiffer.Part.RESULT)
+    ) {
+      return
+    }
     inputConnection.beginBatchEdit()
     try {
       maybeDeleteSurroundingText(output, inputConnection)
@@ -1342,6 +1378,10 @@ open class MozcService : InputMethodService() {
   /** A call-back to catch all the change on any preferences. */
   private inner class SharedPreferenceChangeAdapter : OnSharedPreferenceChangeListener {
     override fun onSharedPreferenceChanged(sharedPreferences: SharedPreferences, key: String?) {
+      if (key == PREF_SYNC_DATA_IDLE_SECONDS) {
+        syncDataScheduler.setIdleMillis(getSyncDataIdleMillis(sharedPreferences))
+        return
+      }
       if (key != null && key.startsWith(PREF_TWEAK_PREFIX)) {
         // If the key belongs to PREF_TWEAK group, re-create SessionHandler and view.
         prepareEveryTime(sharedPreferences, resources.configuration)
@@ -1434,6 +1474,7 @@ open class MozcService : InputMethodService() {
       SelectionTracker.DO_NOTHING -> {}
       SelectionTracker.RESET_CONTEXT -> {
         sessionExecutor.resetContext()
+        inputConnectionOutputDiffer.reset()
 
         // Commit the current composing text (preedit text), in case we hit an unknown state.
         // Keeping the composing text sometimes makes it impossible for users to input characters,
@@ -1454,6 +1495,8 @@ open class MozcService : InputMethodService() {
         if (updateStatus < 0) {
           throw AssertionError("Unknown update status: $updateStatus")
         }
+        // The application has moved the caret by itself.
+        inputConnectionOutputDiffer.reset()
         sessionExecutor.moveCursor(updateStatus, renderResultCallback)
       }
     }
@@ -1486,6 +1529,25 @@ open class MozcService : InputMethodService() {
     )
   }
 
+  override fun dump(fd: FileDescriptor, writer: PrintWriter, args: Array<String>) {
+    super.dump(fd, writer, args)
+    PerformanceDump.dump(writer)
+  }
+
+  override fun onTrimMemory(level: Int) {
+    super.onTrimMemory(level)
+    BitmapCache.getInstance().trimMemory(level)
+    DecodedDrawableCache.getInstance().trimMemory(level)
+    IconAtlas.trimMemory(level)
+    // The process may be killed soon. The worker skips SYNC_DATA if there is nothing to write.
+    syncDataScheduler.flush()
+  }
+
+  override fun onLowMemory() {
+    super.onLowMemory()
+    syncDataScheduler.flush()
+  }
+
   private fun trimMemory() {
     // We must guarantee the contract of MemoryManageable#trimMemory.
     if (!isInputViewShown) {
@@ -1499,8 +1561,8 @@ open class MozcService : InputMethodService() {
 /** "what" value of message. Always use this. */
 private const val WHAT = 0
 
-/** The current period of sending SYNC_DATA is 15 mins (as same as desktop version). */
-private const val SYNC_DATA_COMMAND_PERIOD = 15L * 60L * 1000L
+/** Key of the idle period in seconds before sending SYNC_DATA. */
+private const val PREF_SYNC_DATA_IDLE_SECONDS = "pref_sync_data_idle_seconds"
 
 /** Duration after hiding window in milliseconds. */
 private const val DURATION_MS = 10L * 1000L
@@ -1508,6 +1570,7 @@ private const val DURATION_MS = 10L * 1000L
 // Keys for tweak preferences.
 private const val PREF_TWEAK_PREFIX = "pref_tweak_"
 private const val PREF_TWEAK_LOGGING_PROTOCOL_BUFFERS = "pref_tweak_logging_protocol_buffers"
+private const val PREF_TWEAK_RECORD_COMMANDS = "pref_tweak_record_commands"
 
 // Focused segment's attribute.
 private val SPAN_CONVERT_HIGHLIGHT = BackgroundColorSpan(0x66EF3566)
@@ -1568,6 +1631,14 @@ private fun enableCursorAnchorInfo(connection: InputConnection): Boolean {
   )
 }
 
+private fun getSyncDataIdleMillis(sharedPreferences: SharedPreferences): Long =
+  sharedPreferences
+    .getInt(
+      PREF_SYNC_DATA_IDLE_SECONDS,
+      (SyncDataScheduler.DEFAULT_IDLE_MILLIS / 1000L).toInt(),
+    )
+    .coerceAtLeast(1) * 1000L
+
 private fun getInputFieldType(attribute: EditorInfo): InputFieldType {
   val inputType = attribute.inputType
   if (MozcUtil.isPasswordField(inputType)) {
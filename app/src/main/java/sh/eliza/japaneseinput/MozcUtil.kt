@@ -120,6 +120,19 @@ object MozcUtil {
     return 0
   }
 
+  /**
+   * Gets the time at which the package was last updated, which changes on every install unlike the
+   * version code.
+   */
+  fun getLastUpdateTime(context: Context): Long {
+    try {
+      return context.packageManager.getPackageInfo(context.packageName, 0).lastUpdateTime
+    } catch (e: NameNotFoundException) {
+      MozcLog.e("Package info error", e)
+    }
+    return 0
+  }
+
   // /**
   //  * Gets ABI independent version code.
   //  *
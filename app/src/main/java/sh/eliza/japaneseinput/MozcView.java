@@ -61,6 +61,7 @@ import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.CompositionM
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Output;
 import sh.eliza.japaneseinput.CandidateViewManager.KeyboardCandidateViewHeightListener;
 import sh.eliza.japaneseinput.FeedbackManager.FeedbackEvent;
+import sh.eliza.japaneseinput.InputViewFrameMetrics.Operation;
 import sh.eliza.japaneseinput.LayoutParamsAnimator.InterpolationListener;
 import sh.eliza.japaneseinput.ViewManagerInterface.LayoutAdjustment;
 import sh.eliza.japaneseinput.keyboard.BackgroundDrawableFactory;
@@ -323,6 +324,7 @@ public class MozcView extends FrameLayout implements MemoryManageable {
 
   public void setKeyboard(Keyboard keyboard) {
     checkInflated();
+    InputViewFrameMetrics.getInstance().markOperation(Operation.KEYBOARD_SWITCH);
     getKeyboardView().setKeyboard(keyboard);
     CompositionMode compositionMode = keyboard.getSpecification().getCompositionMode();
     getNarrowFrame().setHardwareCompositionButtonImage(compositionMode);
@@ -394,6 +396,7 @@ public class MozcView extends FrameLayout implements MemoryManageable {
 
   public void setCommand(Command outCommand) {
     checkInflated();
+    InputViewFrameMetrics.getInstance().markOperation(Operation.CANDIDATE_UPDATE);
     candidateViewManager.update(outCommand);
     updateMetaStatesBasedOnOutput(outCommand.getOutput());
   }
@@ -493,6 +496,7 @@ public class MozcView extends FrameLayout implements MemoryManageable {
     if (view.getVisibility() == View.VISIBLE) {
       return false;
     }
+    InputViewFrameMetrics.getInstance().markOperation(Operation.KEYBOARD_SWITCH);
 
     if (!view.isInflated()) {
       view.inflateSelf();
@@ -516,6 +520,7 @@ public class MozcView extends FrameLayout implements MemoryManageable {
     if (view.getVisibility() != View.VISIBLE) {
       return false;
     }
+    InputViewFrameMetrics.getInstance().markOperation(Operation.KEYBOARD_SWITCH);
 
     candidateViewManager.setNumberMode(false);
     startSymbolInputViewOutAnimation();
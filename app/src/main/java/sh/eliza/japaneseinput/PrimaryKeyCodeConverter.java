@@ -81,6 +81,11 @@ public class PrimaryKeyCodeConverter {
     guesser.setConfiguration(Optional.of(newConfig));
   }
 
+  /** Writes the touch statistics learned from the user, if changed. */
+  public void saveLearnedStatistics() {
+    guesser.saveLearnedStatistics();
+  }
+
   public Optional<ProtoCommands.KeyEvent> createMozcKeyEvent(
       int primaryCode, List<TouchEvent> touchEventList) {
     Preconditions.checkNotNull(touchEventList);
@@ -97,6 +102,8 @@ public class PrimaryKeyCodeConverter {
 
     // Backspace
     if (primaryCode == keyCodeBackspace) {
+      // The previous key is likely to have been mistyped.
+      guesser.cancelLearning();
       return Optional.of(KeycodeConverter.SPECIALKEY_BACKSPACE);
     }
 
@@ -126,6 +133,7 @@ public class PrimaryKeyCodeConverter {
       if (!touchEventList.isEmpty()) {
         List<ProbableKeyEvent> probableKeyEvents = guesser.getProbableKeyEvents(touchEventList);
         builder.addAllProbableKeyEvent(probableKeyEvents);
+        guesser.learn(touchEventList);
       }
       return Optional.of(builder.build());
     }
@@ -61,6 +61,7 @@ import org.mozc.android.inputmethod.japanese.protobuf.ProtoCandidates.CandidateL
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCandidates.CandidateWord;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.TouchEvent;
 import sh.eliza.japaneseinput.FeedbackManager.FeedbackEvent;
+import sh.eliza.japaneseinput.InputViewFrameMetrics.Operation;
 import sh.eliza.japaneseinput.keyboard.BackgroundDrawableFactory;
 import sh.eliza.japaneseinput.keyboard.BackgroundDrawableFactory.DrawableType;
 import sh.eliza.japaneseinput.keyboard.KeyEventHandler;
@@ -223,7 +224,8 @@ public class SymbolInputView extends InOutAnimatedFrameLayout implements MemoryM
 
     @Override
     public void onPageScrolled(int position, float positionOffset, int positionOffsetPixels) {
-      // Do nothing.
+      // Called on every frame while the pages are moving.
+      InputViewFrameMetrics.getInstance().markOperation(Operation.SYMBOL_PAGE_SWIPE);
     }
 
     @Override
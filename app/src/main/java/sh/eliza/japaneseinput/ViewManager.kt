@@ -44,6 +44,7 @@ import android.view.Window
 import android.view.inputmethod.CursorAnchorInfo
 import android.view.inputmethod.EditorInfo
 import com.google.common.base.Optional
+import java.io.File
 import java.util.Locale
 import kotlin.math.max
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Command
@@ -68,6 +69,7 @@ import sh.eliza.japaneseinput.model.SymbolMajorCategory
 import sh.eliza.japaneseinput.preference.ClientSidePreference.HardwareKeyMap
 import sh.eliza.japaneseinput.preference.ClientSidePreference.InputStyle
 import sh.eliza.japaneseinput.preference.ClientSidePreference.KeyboardLayout
+import sh.eliza.japaneseinput.session.USER_PROFILE_DIRECTORY_NAME
 import sh.eliza.japaneseinput.ui.MenuDialog
 import sh.eliza.japaneseinput.ui.MenuDialog.MenuDialogListener
 import sh.eliza.japaneseinput.util.ImeSwitcher
@@ -396,7 +398,7 @@ private constructor(
     symbolHistoryStorage,
     imeSwitcher,
     menuDialogListener,
-    ProbableKeyEventGuesser(context.assets),
+    ProbableKeyEventGuesser(context.assets, File(context.filesDir, USER_PROFILE_DIRECTORY_NAME)),
     HardwareKeyboard()
   )
 
@@ -598,6 +600,14 @@ private constructor(
     // TODO(hsumita): Set input type on Hardware keyboard, too. Otherwise, Hiragana input can be
     //                enabled unexpectedly. (e.g. Number text field.)
     propagateSoftwareKeyboardChange(emptyList())
+    // The current keyboard has just been loaded. Load the others it can switch to in background,
+    // so that the first switch to each of them doesn't stall.
+    mozcView?.let {
+      keyboardFactory.warmUp(
+        it.resources,
+        japaneseSoftwareKeyboardModel.reachableKeyboardSpecifications,
+      )
+    }
   }
 
   private fun shouldVoiceImeBeEnabled(): Boolean {
@@ -868,6 +878,7 @@ private constructor(
   override fun reset() {
     mozcView?.reset()
     viewLayerKeyEventHandler.reset()
+    primaryKeyCodeConverter.saveLearnedStatistics()
 
     // Reset menu dialog.
     maybeDismissMenuDialog()
@@ -0,0 +1,381 @@
+package sh.eliza.japaneseinput.keyboard;
+
+import android.util.AtomicFile;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import sh.eliza.japaneseinput.MozcLog;
+import sh.eliza.japaneseinput.util.LeastRecentlyUsedCacheMap;
+
+/**
+ * Touch event statistics learned on the device from the keys the user has actually typed.
+ *
+ * <p>For each keyboard (named as {@link TouchStatisticsStore#getName}), the weighted mean and
+ * variance of the start position and the delta of the touches are tracked per source id, using
+ * Welford's online algorithm so that no touches are kept. Memory is bounded: each keyboard holds
+ * at most {@link #MAX_KEY_COUNT} keys in preallocated arrays, and at most {@link
+ * #MAX_KEYBOARD_COUNT} keyboards are kept. Every {@link #COMPACTION_INTERVAL} observations of a
+ * keyboard, its weights are decayed so that recent touches dominate, and rarely typed keys are
+ * dropped.
+ *
+ * <p>The model is read from the user profile directory on the first access, and written back by
+ * {@link #save()} on a background thread. {@link #clear(File)} deletes it. Not thread-safe; all the
+ * other methods must be called on the same thread.
+ */
+final class AdaptiveTouchModel {
+
+  /** The learned statistics of a keyboard. */
+  static final class KeyboardModel {
+
+    private int size;
+    // Sorted in ascending order.
+    private final int[] sourceIds = new int[MAX_KEY_COUNT];
+    private final float[] weights = new float[MAX_KEY_COUNT];
+    // The mean of the d-th dimension of the key at index i is at d * MAX_KEY_COUNT + i.
+    private final float[] means = new float[DIMENSION_COUNT * MAX_KEY_COUNT];
+    // The sum of the weighted squared differences from the mean, laid out as means.
+    private final float[] m2s = new float[DIMENSION_COUNT * MAX_KEY_COUNT];
+    private int observationCount;
+
+    // Incremented whenever any statistics are changed.
+    int version;
+    // Incremented whenever keys are inserted or removed, or all the statistics are changed.
+    int layoutVersion;
+
+    /** Returns the index of {@code sourceId}, or a negative value if it has not been learned. */
+    int indexOf(int sourceId) {
+      return Arrays.binarySearch(sourceIds, 0, size, sourceId);
+    }
+
+    int size() {
+      return size;
+    }
+
+    int getSourceId(int index) {
+      return sourceIds[index];
+    }
+
+    float getWeight(int index) {
+      return weights[index];
+    }
+
+    float getMean(int dimension, int index) {
+      return means[dimension * MAX_KEY_COUNT + index];
+    }
+
+    float getVariance(int dimension, int index) {
+      return m2s[dimension * MAX_KEY_COUNT + index] / weights[index];
+    }
+
+    private void observe(int sourceId, float[] observation) {
+      int index = indexOf(sourceId);
+      if (index < 0) {
+        index = insert(sourceId, -index - 1);
+      }
+      float weight = weights[index] + 1;
+      weights[index] = weight;
+      for (int dimension = 0; dimension < DIMENSION_COUNT; ++dimension) {
+        int i = dimension * MAX_KEY_COUNT + index;
+        float delta = observation[dimension] - means[i];
+        means[i] += delta / weight;
+        m2s[i] += delta * (observation[dimension] - means[i]);
+      }
+      ++version;
+      if (++observationCount % COMPACTION_INTERVAL == 0) {
+        compact();
+      }
+    }
+
+    /** Inserts an empty key at {@code index}, evicting the least typed key if full. */
+    private int insert(int sourceId, int index) {
+      if (size == MAX_KEY_COUNT) {
+        int evicted = 0;
+        for (int i = 1; i < size; ++i) {
+          if (weights[i] < weights[evicted]) {
+            evicted = i;
+          }
+        }
+        remove(evicted);
+        if (evicted < index) {
+          --index;
+        }
+      }
+      move(index, index + 1, size - index);
+      sourceIds[index] = sourceId;
+      weights[index] = 0;
+      for (int dimension = 0; dimension < DIMENSION_COUNT; ++dimension) {
+        means[dimension * MAX_KEY_COUNT + index] = 0;
+        m2s[dimension * MAX_KEY_COUNT + index] = 0;
+      }
+      ++size;
+      ++layoutVersion;
+      return index;
+    }
+
+    private void remove(int index) {
+      move(index + 1, index, size - index - 1);
+      --size;
+      ++layoutVersion;
+    }
+
+    private void move(int from, int to, int length) {
+      System.arraycopy(sourceIds, from, sourceIds, to, length);
+      System.arraycopy(weights, from, weights, to, length);
+      for (int dimension = 0; dimension < DIMENSION_COUNT; ++dimension) {
+        int offset = dimension * MAX_KEY_COUNT;
+        System.arraycopy(means, offset + from, means, offset + to, length);
+        System.arraycopy(m2s, offset + from, m2s, offset + to, length);
+      }
+    }
+
+    /** Decays all the weights, keeping the variances, and drops the keys which became too light. */
+    private void compact() {
+      for (int index = size - 1; index >= 0; --index) {
+        weights[index] *= DECAY;
+        if (weights[index] < MIN_WEIGHT) {
+          remove(index);
+          continue;
+        }
+        for (int dimension = 0; dimension < DIMENSION_COUNT; ++dimension) {
+          m2s[dimension * MAX_KEY_COUNT + index] *= DECAY;
+        }
+      }
+      ++layoutVersion;
+    }
+
+    private void write(DataOutputStream stream) throws IOException {
+      stream.writeInt(observationCount);
+      stream.writeInt(size);
+      for (int index = 0; index < size; ++index) {
+        stream.writeInt(sourceIds[index]);
+        stream.writeFloat(weights[index]);
+        for (int dimension = 0; dimension < DIMENSION_COUNT; ++dimension) {
+          stream.writeFloat(means[dimension * MAX_KEY_COUNT + index]);
+          stream.writeFloat(m2s[dimension * MAX_KEY_COUNT + index]);
+        }
+      }
+    }
+
+    private static KeyboardModel read(DataInputStream stream) throws IOException {
+      KeyboardModel model = new KeyboardModel();
+      model.observationCount = stream.readInt();
+      int size = stream.readInt();
+      if (size < 0 || size > MAX_KEY_COUNT) {
+        throw new IOException("Invalid key count: " + size);
+      }
+      for (int index = 0; index < size; ++index) {
+        int sourceId = stream.readInt();
+        float weight = stream.readFloat();
+        if ((index > 0 && sourceId <= model.sourceIds[index - 1]) || !(weight >= MIN_WEIGHT)) {
+          throw new IOException("Invalid key: " + sourceId);
+        }
+        model.sourceIds[index] = sourceId;
+        model.weights[index] = weight;
+        for (int dimension = 0; dimension < DIMENSION_COUNT; ++dimension) {
+          model.means[dimension * MAX_KEY_COUNT + index] = stream.readFloat();
+          model.m2s[dimension * MAX_KEY_COUNT + index] = stream.readFloat();
+        }
+      }
+      model.size = size;
+      return model;
+    }
+  }
+
+  // Dimensions of an observation.
+  static final int START_X = 0;
+  static final int START_Y = 1;
+  static final int DELTA_X = 2;
+  static final int DELTA_Y = 3;
+  static final int DIMENSION_COUNT = 4;
+
+  static final String FILE_NAME = "touch_model.data";
+
+  private static final int MAGIC = 0x4D5A544D; // "MZTM"
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int MAX_KEY_COUNT = 128;
+  private static final int MAX_KEYBOARD_COUNT = 16;
+  // With the decay, a key typed n times per interval weighs about n / (1 - DECAY) at most.
+  private static final int COMPACTION_INTERVAL = 512;
+  private static final float DECAY = 0.5f;
+  private static final float MIN_WEIGHT = 1;
+
+  private static final ExecutorService writerExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "Touch model writer thread");
+              thread.setDaemon(true);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            }
+          });
+
+  // Incremented by clear(). Each instance drops its models when it sees a new value.
+  private static final AtomicInteger clearCount = new AtomicInteger();
+
+  private final AtomicFile file;
+  private int seenClearCount = clearCount.get();
+  private final float[] observation = new float[DIMENSION_COUNT];
+  private Optional<Map<String, KeyboardModel>> models = Optional.absent();
+  private boolean dirty = false;
+
+  /**
+   * @param directory the user profile directory, in which the model is stored.
+   */
+  AdaptiveTouchModel(File directory) {
+    this.file = new AtomicFile(new File(Preconditions.checkNotNull(directory), FILE_NAME));
+  }
+
+  /**
+   * Deletes the model stored in {@code directory}, e.g. when the user clears the history. The
+   * instances in memory drop their models on the next access rather than writing them back.
+   */
+  static void clear(File directory) {
+    clearCount.incrementAndGet();
+    final AtomicFile file =
+        new AtomicFile(new File(Preconditions.checkNotNull(directory), FILE_NAME));
+    // Queued behind the pending writes, if any.
+    writerExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            file.delete();
+          }
+        });
+  }
+
+  /**
+   * Drops the models in memory if {@link #clear(File)} has been called since they were read.
+   *
+   * @return {@code true} if dropped, in which case the statistics got so far are stale.
+   */
+  boolean resetIfCleared() {
+    int count = clearCount.get();
+    if (count == seenClearCount) {
+      return false;
+    }
+    seenClearCount = count;
+    Map<String, KeyboardModel> result = new LeastRecentlyUsedCacheMap<>(MAX_KEYBOARD_COUNT);
+    models = Optional.of(result);
+    dirty = false;
+    return true;
+  }
+
+  /** Returns the statistics learned for the keyboard {@code name}, if any. */
+  Optional<KeyboardModel> get(String name) {
+    return Optional.fromNullable(getModels().get(Preconditions.checkNotNull(name)));
+  }
+
+  /** Learns a touch on {@code sourceId}, and returns the updated statistics of the keyboard. */
+  KeyboardModel observe(
+      String name, int sourceId, float firstX, float firstY, float deltaX, float deltaY) {
+    Map<String, KeyboardModel> models = getModels();
+    KeyboardModel model = models.get(Preconditions.checkNotNull(name));
+    if (model == null) {
+      model = new KeyboardModel();
+      models.put(name, model);
+    }
+    observation[START_X] = firstX;
+    observation[START_Y] = firstY;
+    observation[DELTA_X] = deltaX;
+    observation[DELTA_Y] = deltaY;
+    model.observe(sourceId, observation);
+    dirty = true;
+    return model;
+  }
+
+  /** Writes the model to the file in background, unless nothing has been learned since. */
+  void save() {
+    if (!dirty) {
+      return;
+    }
+    dirty = false;
+    final byte[] content;
+    try {
+      content = serialize(getModels());
+    } catch (IOException e) {
+      // Never happens as written to memory.
+      throw new AssertionError(e);
+    }
+    writerExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            write(content);
+          }
+        });
+  }
+
+  private Map<String, KeyboardModel> getModels() {
+    resetIfCleared();
+    if (!models.isPresent()) {
+      Map<String, KeyboardModel> result = new LeastRecentlyUsedCacheMap<>(MAX_KEYBOARD_COUNT);
+      try {
+        deserialize(file.readFully(), result);
+      } catch (FileNotFoundException e) {
+        // Nothing has been learned yet.
+      } catch (IOException e) {
+        MozcLog.w("Discarding the broken touch model: " + e.getMessage());
+        result.clear();
+      }
+      models = Optional.of(result);
+    }
+    return models.get();
+  }
+
+  private static byte[] serialize(Map<String, KeyboardModel> models) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream stream = new DataOutputStream(bytes);
+    stream.writeInt(MAGIC);
+    stream.writeInt(FORMAT_VERSION);
+    stream.writeInt(models.size());
+    for (Map.Entry<String, KeyboardModel> entry : models.entrySet()) {
+      stream.writeUTF(entry.getKey());
+      entry.getValue().write(stream);
+    }
+    stream.flush();
+    return bytes.toByteArray();
+  }
+
+  private static void deserialize(byte[] content, Map<String, KeyboardModel> models)
+      throws IOException {
+    DataInputStream stream = new DataInputStream(new ByteArrayInputStream(content));
+    if (stream.readInt() != MAGIC || stream.readInt() != FORMAT_VERSION) {
+      throw new IOException("Unknown format.");
+    }
+    int count = stream.readInt();
+    for (int i = 0; i < count; ++i) {
+      String name = stream.readUTF();
+      models.put(name, KeyboardModel.read(stream));
+    }
+  }
+
+  private void write(byte[] content) {
+    FileOutputStream stream = null;
+    try {
+      stream = file.startWrite();
+      stream.write(content);
+      file.finishWrite(stream);
+    } catch (IOException e) {
+      MozcLog.e("Failed to write the touch model.", e);
+      if (stream != null) {
+        file.failWrite(stream);
+      }
+    }
+  }
+}
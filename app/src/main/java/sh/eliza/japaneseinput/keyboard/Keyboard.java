@@ -32,8 +32,15 @@ package sh.eliza.japaneseinput.keyboard;
 import android.util.SparseIntArray;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.primitives.Floats;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.CompositionMode;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Request.CrossingEdgeBehavior;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Request.SpaceOnAlphanumeric;
@@ -41,6 +48,7 @@ import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Request.Spec
 import sh.eliza.japaneseinput.KeyboardSpecificationName;
 import sh.eliza.japaneseinput.R;
 import sh.eliza.japaneseinput.keyboard.Flick.Direction;
+import sh.eliza.japaneseinput.keyboard.Key.Stick;
 
 /** A simple model class of a keyboard. A keyboard can contain a sequence of {@code Row}s. */
 public class Keyboard {
@@ -273,9 +281,28 @@ public class Keyboard {
   private final float flickThreshold;
   private final List<Row> rowList;
 
+  /**
+   * Source ids up to this are looked up from a flat array. The layouts use small sequential ids,
+   * so others are only expected in hand-made keyboards.
+   */
+  private static final int MAX_DENSE_SOURCE_ID = 1023;
+
   public final int contentBottom;
   protected final KeyboardSpecification specification;
-  private Optional<SparseIntArray> sourceIdToKeyCode = Optional.absent();
+
+  // Key codes indexed by source id, or Integer.MIN_VALUE if no flick has the id.
+  private final int[] denseKeyCodes;
+  // Key codes of the source ids out of denseKeyCodes.
+  private final SparseIntArray sparseKeyCodes;
+
+  // The result of the hit test only changes at the key edges. Hence the keyboard is divided into
+  // cells by the sorted distinct x and y coordinates where any comparison in findKeyByScan flips,
+  // and the key hit in each cell is precomputed. hitCellKeyIndices is row-major, and each element
+  // is an index of hitKeys, or -1 if no key is hit.
+  private final float[] hitCellXs;
+  private final float[] hitCellYs;
+  private final int[] hitCellKeyIndices;
+  private final List<Optional<Key>> hitKeys;
 
   public Keyboard(
       Optional<String> contentDescription,
@@ -294,6 +321,104 @@ public class Keyboard {
     }
     this.contentBottom = bottom;
     this.specification = Preconditions.checkNotNull(specification);
+
+    SparseIntArray keyCodes = new SparseIntArray();
+    int maxSourceId = -1;
+    for (Row row : this.rowList) {
+      for (Key key : row.getKeyList()) {
+        for (KeyState keyState : key.getKeyStates()) {
+          for (Direction direction : Direction.values()) {
+            Optional<Flick> flick = keyState.getFlick(direction);
+            if (flick.isPresent()) {
+              KeyEntity keyEntity = flick.get().getKeyEntity();
+              keyCodes.put(keyEntity.getSourceId(), keyEntity.getKeyCode());
+              if (keyEntity.getSourceId() <= MAX_DENSE_SOURCE_ID) {
+                maxSourceId = Math.max(maxSourceId, keyEntity.getSourceId());
+              }
+            }
+          }
+        }
+      }
+    }
+    this.denseKeyCodes = new int[maxSourceId + 1];
+    Arrays.fill(denseKeyCodes, Integer.MIN_VALUE);
+    this.sparseKeyCodes = new SparseIntArray();
+    for (int i = 0; i < keyCodes.size(); ++i) {
+      int sourceId = keyCodes.keyAt(i);
+      if (0 <= sourceId && sourceId < denseKeyCodes.length) {
+        denseKeyCodes[sourceId] = keyCodes.valueAt(i);
+      } else {
+        sparseKeyCodes.put(sourceId, keyCodes.valueAt(i));
+      }
+    }
+
+    this.hitCellXs = getHitCellXs(this.rowList);
+    this.hitCellYs = getHitCellYs(this.rowList);
+    this.hitCellKeyIndices = new int[(hitCellXs.length + 1) * (hitCellYs.length + 1)];
+    List<Optional<Key>> hitKeys = new ArrayList<>();
+    Map<Key, Integer> hitKeyIndexMap = new IdentityHashMap<>();
+    for (int yIndex = 0; yIndex <= hitCellYs.length; ++yIndex) {
+      for (int xIndex = 0; xIndex <= hitCellXs.length; ++xIndex) {
+        Optional<Key> key =
+            findKeyByScan(getCellOrigin(hitCellXs, xIndex), getCellOrigin(hitCellYs, yIndex));
+        int keyIndex = -1;
+        if (key.isPresent()) {
+          Integer index = hitKeyIndexMap.get(key.get());
+          if (index == null) {
+            index = hitKeys.size();
+            hitKeys.add(key);
+            hitKeyIndexMap.put(key.get(), index);
+          }
+          keyIndex = index;
+        }
+        hitCellKeyIndices[yIndex * (hitCellXs.length + 1) + xIndex] = keyIndex;
+      }
+    }
+    this.hitKeys = Collections.unmodifiableList(hitKeys);
+  }
+
+  private static float[] getHitCellXs(List<Row> rowList) {
+    SortedSet<Float> result = new TreeSet<>();
+    for (Row row : rowList) {
+      for (Key key : row.getKeyList()) {
+        result.add((float) key.getX());
+        result.add((float) (key.getX() + key.getWidth()));
+        if (key.isSpacer() && key.getStick() == Stick.EVEN) {
+          result.add(key.getX() + (float) key.getWidth() / 2);
+        }
+      }
+    }
+    return Floats.toArray(result);
+  }
+
+  private static float[] getHitCellYs(List<Row> rowList) {
+    SortedSet<Float> result = new TreeSet<>();
+    // findKeyByScan is never called for negative y.
+    result.add(0f);
+    int rowBottom = 0;
+    for (Row row : rowList) {
+      rowBottom += row.getHeight() + row.getVerticalGap();
+      result.add((float) rowBottom);
+      for (Key key : row.getKeyList()) {
+        result.add((float) (key.getY() + key.getHeight()));
+        result.add((float) (key.getY() + key.getHeight() + row.getVerticalGap()));
+      }
+    }
+    return Floats.toArray(result);
+  }
+
+  /** Returns a coordinate in the {@code index}-th cell, [cells[index - 1], cells[index]). */
+  private static float getCellOrigin(float[] cells, int index) {
+    if (index == 0) {
+      return cells.length == 0 ? 0 : cells[0] - 1;
+    }
+    return cells[index - 1];
+  }
+
+  /** Returns the index of the cell containing {@code value}. See {@link #getCellOrigin}. */
+  private static int getCellIndex(float[] cells, float value) {
+    int index = Arrays.binarySearch(cells, value);
+    return index >= 0 ? index + 1 : -index - 1;
   }
 
   public Optional<String> getContentDescription() {
@@ -318,28 +443,96 @@ public class Keyboard {
    * <p>If not found, {@code Integer.MIN_VALUE} is returned.
    */
   public int getKeyCode(int sourceId) {
-    ensureSourceIdToKeyCode();
-    return sourceIdToKeyCode.get().get(sourceId, Integer.MIN_VALUE);
+    if (0 <= sourceId && sourceId < denseKeyCodes.length) {
+      return denseKeyCodes[sourceId];
+    }
+    return sparseKeyCodes.get(sourceId, Integer.MIN_VALUE);
   }
 
-  private void ensureSourceIdToKeyCode() {
-    if (sourceIdToKeyCode.isPresent()) {
-      return;
+  /**
+   * Finds a key containing the given coordinate.
+   *
+   * <p>This is a lookup of the cells precomputed by the constructor, so it doesn't allocate.
+   *
+   * @param x {@code x}-coordinate.
+   * @param y {@code y}-coordinate.
+   * @return A corresponding {@code Key} instance, or {@code Optional.<Key>absent()} if not found.
+   */
+  public Optional<Key> getKeyByCoord(float x, float y) {
+    if (y < 0 || rowList.isEmpty()) {
+      return Optional.absent();
     }
-    SparseIntArray result = new SparseIntArray();
-    for (Row row : getRowList()) {
+    int keyIndex =
+        hitCellKeyIndices[
+            getCellIndex(hitCellYs, y) * (hitCellXs.length + 1) + getCellIndex(hitCellXs, x)];
+    return keyIndex < 0 ? Optional.<Key>absent() : hitKeys.get(keyIndex);
+  }
+
+  /** Finds a key containing the given coordinate by scanning all the keys. */
+  private Optional<Key> findKeyByScan(float x, float y) {
+    if (y < 0 || rowList.isEmpty()) {
+      return Optional.absent();
+    }
+
+    int rowBottom = 0;
+    Row lastRow = rowList.get(rowList.size() - 1);
+    for (Row row : rowList) {
+      rowBottom += row.getHeight() + row.getVerticalGap();
+      Key prevKey = null;
       for (Key key : row.getKeyList()) {
-        for (KeyState keyState : key.getKeyStates()) {
-          for (Direction direction : Direction.values()) {
-            Optional<Flick> flick = keyState.getFlick(direction);
-            if (flick.isPresent()) {
-              KeyEntity keyEntity = flick.get().getKeyEntity();
-              result.put(keyEntity.getSourceId(), keyEntity.getKeyCode());
-            }
+        if (( // Stick vertical gaps to the keys above.
+            y < key.getY() + key.getHeight() + row.getVerticalGap()
+                // Or the key is at the bottom of the keyboard.
+                // Note: Some devices sense touch events of out-side of screen.
+                //   So, for better user experiences, we return the bottom row
+                //   if a user touches below the screen bottom boundary.
+                || row == lastRow
+                || key.getY() + key.getHeight() >= contentBottom)
+            // Horizontal gap is included in the width,
+            // so we don't need to calculate horizontal gap in addition to width.
+            && x < key.getX() + key.getWidth()
+            // The following condition selects a key hit in A, C, or D
+            // (C and D are on the same key), and excludes a key hit in B.
+            //                +---+---+
+            // current row -> | A | C |
+            //                +---+   |
+            // next row    -> | B | D |
+            //                +---+---+
+            // The condition y < rowBottom allows hits on A and C, and the other
+            // condition key.getX() <= x allows hits on C and D but not B.
+            // Hence, the hits on B are excluded.
+            && (y < rowBottom || key.getX() <= x)) {
+          if (!key.isSpacer()) {
+            return Optional.of(key); // Found a key.
           }
+
+          switch (key.getStick()) {
+            case LEFT:
+              if (prevKey != null) {
+                return Optional.of(prevKey);
+              }
+              break;
+            case EVEN:
+              // Split the spacer evenly, assuming we don't have any consecutive spacers.
+              if (x < key.getX() + (float) key.getWidth() / 2 && prevKey != null) {
+                return Optional.of(prevKey);
+              }
+              break;
+            case RIGHT:
+              // Do nothing to delegate the target to the next one.
+          }
+        }
+
+        if (!key.isSpacer()) {
+          prevKey = key;
         }
       }
+
+      if ((y < rowBottom || row == lastRow) && prevKey != null) {
+        return Optional.of(prevKey);
+      }
     }
-    sourceIdToKeyCode = Optional.of(result);
+
+    return Optional.absent(); // Not found.
   }
 }
@@ -30,49 +30,41 @@
 package sh.eliza.japaneseinput.keyboard;
 
 import android.content.res.Resources;
-import android.content.res.Resources.NotFoundException;
 import com.google.common.base.Optional;
-import java.io.IOException;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Map;
-import org.xmlpull.v1.XmlPullParserException;
-import sh.eliza.japaneseinput.MozcLog;
 import sh.eliza.japaneseinput.keyboard.Keyboard.KeyboardSpecification;
 import sh.eliza.japaneseinput.util.LeastRecentlyUsedCacheMap;
 
-/** Factory of the keyboard data based on xml. */
+/**
+ * Factory of the keyboard data based on the layout resources.
+ *
+ * <p>Layouts are loaded once per specification as {@link KeyboardTemplate}s, which don't depend on
+ * the keyboard size, so resizing the keyboard, e.g. by rotation or the keyboard height
+ * preference, only builds a new {@link Keyboard} from the cached template. Templates are kept in
+ * the process-wide {@link KeyboardTemplateCache}, and can be loaded ahead of time by {@link
+ * #warmUp}.
+ */
 public class KeyboardFactory {
 
-  /**
-   * Key for the cache map of keyboard.
-   *
-   * <p>Currently the keyboard is depending on its specification and display's size.
-   */
-  private static class CacheKey {
-    private final KeyboardSpecification specification;
-    private final int width;
-    private final int height;
+  /** A cached template, and the keyboard most recently built from it. */
+  private static class CacheEntry {
+    private final KeyboardTemplate template;
+    private Optional<Keyboard> keyboard = Optional.absent();
+    private int width;
+    private int height;
 
-    CacheKey(KeyboardSpecification specification, int width, int height) {
-      this.specification = specification;
-      this.width = width;
-      this.height = height;
+    CacheEntry(KeyboardTemplate template) {
+      this.template = template;
     }
 
-    @Override
-    public boolean equals(Object obj) {
-      if (obj instanceof CacheKey) {
-        CacheKey other = (CacheKey) obj;
-        return specification == other.specification
-            && width == other.width
-            && height == other.height;
+    Keyboard getKeyboard(int width, int height) {
+      if (!keyboard.isPresent() || this.width != width || this.height != height) {
+        keyboard = Optional.of(template.build(width, height));
+        this.width = width;
+        this.height = height;
       }
-      return false;
-    }
-
-    @Override
-    public int hashCode() {
-      return (specification.hashCode() * 31 ^ width) * 31 ^ height;
+      return keyboard.get();
     }
   }
 
@@ -82,13 +74,15 @@ public class KeyboardFactory {
    */
   private static final int CACHE_SIZE = 6;
 
-  private final Map<CacheKey, Keyboard> cache =
-      new LeastRecentlyUsedCacheMap<CacheKey, Keyboard>(CACHE_SIZE);
+  private final KeyboardTemplateCache templateCache = KeyboardTemplateCache.getInstance();
+  private final Map<KeyboardSpecification, CacheEntry> cache =
+      new LeastRecentlyUsedCacheMap<KeyboardSpecification, CacheEntry>(CACHE_SIZE);
 
   /**
-   * @return JapaneseKeyboard instance based on given resources and specification. If it is already
-   *     parsed, just returns cached one. Otherwise, tries to parse corresponding xml data, then
-   *     caches and returns it. Returns {@code null} if parsing is failed.
+   * @return JapaneseKeyboard instance based on given resources and specification. The layout is
+   *     loaded unless it is cached for the current configuration, and the keyboard is built for the
+   *     given size unless the last one has the same size. Returns a dummy keyboard if loading is
+   *     failed.
    * @throws NullPointerException if given {@code resources} or {@code specification} is {@code
    *     null}.
    */
@@ -104,39 +98,23 @@ public class KeyboardFactory {
       throw new NullPointerException("specification is null.");
     }
 
-    CacheKey cacheKey = new CacheKey(specification, keyboardWidth, keyboardHeight);
-
     // First, look up from the cache.
-    Keyboard keyboard = cache.get(cacheKey);
-    if (keyboard == null) {
-      // If not found, parse keyboard from a xml resource file. The result will be cached in
-      // the cache map.
-      keyboard = parseKeyboard(resources, specification, keyboardWidth, keyboardHeight);
-      if (keyboard != null) {
-        cache.put(cacheKey, keyboard);
-      }
+    CacheEntry entry = cache.get(specification);
+    if (entry == null || !entry.template.isValidFor(resources.getConfiguration())) {
+      // If not found, or the resources it refers have been changed, get the layout from the
+      // shared cache, which loads it unless warmed up. The result will be cached in the cache map.
+      entry = new CacheEntry(templateCache.get(resources, specification));
+      cache.put(specification, entry);
     }
-    return keyboard;
+    return entry.getKeyboard(keyboardWidth, keyboardHeight);
   }
 
-  private static Keyboard parseKeyboard(
-      Resources resources,
-      KeyboardSpecification specification,
-      int keyboardWidth,
-      int keyboardHeight) {
-    KeyboardParser parser =
-        new KeyboardParser(resources, keyboardWidth, keyboardHeight, specification);
-    try {
-      return parser.parseKeyboard();
-    } catch (NotFoundException | IOException | XmlPullParserException e) {
-      MozcLog.e(e.getMessage());
-    }
-    // Returns dummy keyboard to avoid crash.
-    return new Keyboard(
-        Optional.absent(),
-        Collections.emptyList(),
-        0,
-        KeyboardSpecification.TWELVE_KEY_TOGGLE_FLICK_KANA);
+  /**
+   * Loads the layouts of {@code specifications} on a background thread, so that the first switch
+   * to each of them doesn't have to. The templates are shared with the other factories.
+   */
+  public void warmUp(Resources resources, Collection<KeyboardSpecification> specifications) {
+    templateCache.warmUp(resources, specifications);
   }
 
   /** Clears cached keyboards. */
@@ -0,0 +1,535 @@
+package sh.eliza.japaneseinput.keyboard;
+
+import android.content.pm.ActivityInfo;
+import android.content.res.Resources;
+import android.util.DisplayMetrics;
+import android.util.TypedValue;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+import sh.eliza.japaneseinput.R;
+import sh.eliza.japaneseinput.keyboard.Key.Stick;
+import sh.eliza.japaneseinput.keyboard.Keyboard.KeyboardSpecification;
+import sh.eliza.japaneseinput.keyboard.KeyboardParser.AttributeValues;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.FlickTemplate;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.KeyAttributes;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.KeyEntityTemplate;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.KeyStateTemplate;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.Length;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.Length.Base;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.PopUpAttributes;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.PopUpTemplate;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.RowTemplate;
+
+/**
+ * Loads a {@link KeyboardTemplate} from the binary layout compiled from its xml file by
+ * gen_keyboard_layouts.py at build time.
+ *
+ * <p>The xml files are parsed, validated and resolved into {@link TypedValue}s at build time, so
+ * this only reads a short stream of values and resolves the configuration dependent references.
+ * The geometry is computed by the same code as {@link KeyboardParser}, so both produce the same
+ * keyboard. See gen_keyboard_layouts.py for the format, whose attribute orders are mirrored below.
+ */
+class KeyboardLayoutLoader {
+
+  private static final String ASSET_DIRECTORY = "keyboard_layouts/";
+  private static final String ASSET_EXTENSION = ".bin";
+  private static final int MAGIC = 0x4D5A4B42; // "MZKB"
+
+  private static final int CHILD_KEY = 0;
+  private static final int CHILD_SPACER = 1;
+
+  private static final int KEYBOARD_CONTENT_DESCRIPTION_INDEX = 0;
+  private static final int KEYBOARD_FLICK_THRESHOLD_INDEX = 1;
+  private static final int KEYBOARD_KEY_WIDTH_INDEX = 2;
+  private static final int KEYBOARD_KEY_HEIGHT_INDEX = 3;
+  private static final int KEYBOARD_KEY_HORIZONTAL_LAYOUT_WEIGHT_INDEX = 4;
+  private static final int KEYBOARD_HORIZONTAL_GAP_INDEX = 5;
+  private static final int KEYBOARD_VERTICAL_GAP_INDEX = 6;
+  private static final int KEYBOARD_DEFAULT_ICON_WIDTH_INDEX = 7;
+  private static final int KEYBOARD_DEFAULT_ICON_HEIGHT_INDEX = 8;
+  private static final int KEYBOARD_DEFAULT_HORIZONTAL_PADDING_INDEX = 9;
+  private static final int KEYBOARD_DEFAULT_VERTICAL_PADDING_INDEX = 10;
+  private static final int KEYBOARD_KEY_BACKGROUND_INDEX = 11;
+  private static final int KEYBOARD_POPUP_HEIGHT_INDEX = 12;
+  private static final int KEYBOARD_POPUP_X_OFFSET_INDEX = 13;
+  private static final int KEYBOARD_POPUP_Y_OFFSET_INDEX = 14;
+  private static final int KEYBOARD_POPUP_ICON_WIDTH_INDEX = 15;
+  private static final int KEYBOARD_POPUP_ICON_HEIGHT_INDEX = 16;
+  private static final int KEYBOARD_ATTRIBUTE_COUNT = 17;
+
+  private static final int ROW_VERTICAL_GAP_INDEX = 0;
+  private static final int ROW_KEY_HEIGHT_INDEX = 1;
+  private static final int ROW_ROW_EDGE_FLAGS_INDEX = 2;
+  private static final int ROW_ATTRIBUTE_COUNT = 3;
+
+  private static final int KEY_KEY_WIDTH_INDEX = 0;
+  private static final int KEY_KEY_HEIGHT_INDEX = 1;
+  private static final int KEY_KEY_HORIZONTAL_LAYOUT_WEIGHT_INDEX = 2;
+  private static final int KEY_HORIZONTAL_GAP_INDEX = 3;
+  private static final int KEY_DEFAULT_ICON_WIDTH_INDEX = 4;
+  private static final int KEY_DEFAULT_ICON_HEIGHT_INDEX = 5;
+  private static final int KEY_DEFAULT_HORIZONTAL_PADDING_INDEX = 6;
+  private static final int KEY_DEFAULT_VERTICAL_PADDING_INDEX = 7;
+  private static final int KEY_KEY_BACKGROUND_INDEX = 8;
+  private static final int KEY_KEY_EDGE_FLAGS_INDEX = 9;
+  private static final int KEY_IS_REPEATABLE_INDEX = 10;
+  private static final int KEY_IS_MODIFIER_INDEX = 11;
+  private static final int KEY_ATTRIBUTE_COUNT = 12;
+
+  private static final int SPACER_KEY_WIDTH_INDEX = 0;
+  private static final int SPACER_KEY_HEIGHT_INDEX = 1;
+  private static final int SPACER_KEY_HORIZONTAL_LAYOUT_WEIGHT_INDEX = 2;
+  private static final int SPACER_KEY_EDGE_FLAGS_INDEX = 3;
+  private static final int SPACER_STICK_INDEX = 4;
+  private static final int SPACER_KEY_BACKGROUND_INDEX = 5;
+  private static final int SPACER_ATTRIBUTE_COUNT = 6;
+
+  private static final int KEY_STATE_CONTENT_DESCRIPTION_INDEX = 0;
+  private static final int KEY_STATE_META_STATE_INDEX = 1;
+  private static final int KEY_STATE_NEXT_META_STATE_INDEX = 2;
+  private static final int KEY_STATE_NEXT_REMOVED_META_STATES_INDEX = 3;
+  private static final int KEY_STATE_ATTRIBUTE_COUNT = 4;
+
+  private static final int FLICK_DIRECTION_INDEX = 0;
+  private static final int FLICK_ATTRIBUTE_COUNT = 1;
+
+  private static final int KEY_ENTITY_SOURCE_ID_INDEX = 0;
+  private static final int KEY_ENTITY_KEY_CODE_INDEX = 1;
+  private static final int KEY_ENTITY_LONG_PRESS_KEY_CODE_INDEX = 2;
+  private static final int KEY_ENTITY_LONG_PRESS_TIMEOUT_TRIGGER_INDEX = 3;
+  private static final int KEY_ENTITY_KEY_ICON_INDEX = 4;
+  private static final int KEY_ENTITY_KEY_CHAR_INDEX = 5;
+  private static final int KEY_ENTITY_FLICK_HIGHLIGHT_INDEX = 6;
+  private static final int KEY_ENTITY_HORIZONTAL_PADDING_INDEX = 7;
+  private static final int KEY_ENTITY_VERTICAL_PADDING_INDEX = 8;
+  private static final int KEY_ENTITY_ICON_WIDTH_INDEX = 9;
+  private static final int KEY_ENTITY_ICON_HEIGHT_INDEX = 10;
+  private static final int KEY_ENTITY_ATTRIBUTE_COUNT = 11;
+
+  private static final int POPUP_KEY_ICON_INDEX = 0;
+  private static final int POPUP_KEY_LONG_PRESS_ICON_INDEX = 1;
+  private static final int POPUP_KEY_HEIGHT_INDEX = 2;
+  private static final int POPUP_KEY_X_OFFSET_INDEX = 3;
+  private static final int POPUP_KEY_Y_OFFSET_INDEX = 4;
+  private static final int POPUP_KEY_ICON_WIDTH_INDEX = 5;
+  private static final int POPUP_KEY_ICON_HEIGHT_INDEX = 6;
+  private static final int POPUP_ATTRIBUTE_COUNT = 7;
+
+  /** Attribute values of an element read from the stream. */
+  private static class Values implements AttributeValues {
+    private final TypedValue[] values;
+
+    Values(int size) {
+      this.values = new TypedValue[size];
+    }
+
+    @Override
+    @Nullable
+    public TypedValue peekValue(int index) {
+      return values[index];
+    }
+  }
+
+  private final Resources resources;
+  private final DisplayMetrics metrics;
+  private final KeyboardSpecification specification;
+
+  /** References resolved in this load, indexed as {@link KeyboardLayoutResources#IDS}. */
+  private final TypedValue[] resolvedReferences =
+      new TypedValue[KeyboardLayoutResources.IDS.length];
+
+  /**
+   * The configuration changes which may change the loaded values. Literal dimensions depend on the
+   * density and the font scale, and references add their own.
+   */
+  private int changingConfigurations =
+      ActivityInfo.CONFIG_DENSITY | ActivityInfo.CONFIG_FONT_SCALE;
+
+  KeyboardLayoutLoader(Resources resources, KeyboardSpecification specification) {
+    this.resources = Preconditions.checkNotNull(resources);
+    this.metrics = resources.getDisplayMetrics();
+    this.specification = Preconditions.checkNotNull(specification);
+  }
+
+  /**
+   * Loads the binary layout of the specification.
+   *
+   * @throws IOException if the layout is not found, or is not compiled with this build.
+   */
+  KeyboardTemplate loadKeyboard() throws IOException {
+    String assetName =
+        ASSET_DIRECTORY
+            + resources.getResourceEntryName(specification.getXmlLayoutResourceId())
+            + ASSET_EXTENSION;
+    DataInputStream stream =
+        new DataInputStream(new BufferedInputStream(resources.getAssets().open(assetName)));
+    try {
+      if (stream.readInt() != MAGIC
+          || stream.readInt() != KeyboardLayoutResources.FORMAT_VERSION
+          || stream.readInt() != KeyboardLayoutResources.TABLE_HASH) {
+        throw new IOException("Incompatible keyboard layout: " + assetName);
+      }
+      KeyboardTemplate template = readKeyboard(stream);
+      if (stream.read() != -1) {
+        throw new IOException("Unexpected trailing data: " + assetName);
+      }
+      return template;
+    } finally {
+      stream.close();
+    }
+  }
+
+  private KeyboardTemplate readKeyboard(DataInputStream stream) throws IOException {
+    Values values = readValues(stream, KEYBOARD_ATTRIBUTE_COUNT);
+    KeyAttributes keyAttributes =
+        KeyboardParser.parseKeyAttributes(
+            values,
+            KeyboardParser.getDefaultKeyboardKeyAttributes(),
+            metrics,
+            KEYBOARD_KEY_WIDTH_INDEX,
+            KEYBOARD_KEY_HEIGHT_INDEX,
+            KEYBOARD_KEY_HORIZONTAL_LAYOUT_WEIGHT_INDEX,
+            KEYBOARD_HORIZONTAL_GAP_INDEX,
+            KEYBOARD_VERTICAL_GAP_INDEX,
+            KEYBOARD_DEFAULT_ICON_WIDTH_INDEX,
+            KEYBOARD_DEFAULT_ICON_HEIGHT_INDEX,
+            KEYBOARD_DEFAULT_HORIZONTAL_PADDING_INDEX,
+            KEYBOARD_DEFAULT_VERTICAL_PADDING_INDEX,
+            KEYBOARD_KEY_BACKGROUND_INDEX);
+    PopUpAttributes popUpAttributes =
+        KeyboardParser.parsePopUpAttributes(
+            values,
+            PopUpAttributes.ZERO,
+            metrics,
+            KEYBOARD_POPUP_HEIGHT_INDEX,
+            KEYBOARD_POPUP_X_OFFSET_INDEX,
+            KEYBOARD_POPUP_Y_OFFSET_INDEX,
+            KEYBOARD_POPUP_ICON_WIDTH_INDEX,
+            KEYBOARD_POPUP_ICON_HEIGHT_INDEX);
+    float flickThreshold = getFlickThreshold(values.peekValue(KEYBOARD_FLICK_THRESHOLD_INDEX));
+    Optional<String> contentDescription =
+        Optional.fromNullable(getString(values.peekValue(KEYBOARD_CONTENT_DESCRIPTION_INDEX)));
+
+    int rowCount = stream.readUnsignedShort();
+    List<RowTemplate> rowList = new ArrayList<RowTemplate>(rowCount);
+    for (int i = 0; i < rowCount; ++i) {
+      rowList.add(readRow(stream, keyAttributes, popUpAttributes));
+    }
+    return new KeyboardTemplate(
+        contentDescription,
+        rowList,
+        flickThreshold,
+        specification,
+        resources.getConfiguration(),
+        changingConfigurations);
+  }
+
+  private RowTemplate readRow(
+      DataInputStream stream, KeyAttributes defaultKeyAttributes, PopUpAttributes popUpAttributes)
+      throws IOException {
+    Values values = readValues(stream, ROW_ATTRIBUTE_COUNT);
+    Length verticalGap =
+        KeyboardParser.getLength(
+            Optional.fromNullable(values.peekValue(ROW_VERTICAL_GAP_INDEX)),
+            Base.HEIGHT,
+            defaultKeyAttributes.verticalGap,
+            metrics);
+    Length rowHeight =
+        KeyboardParser.getLength(
+            Optional.fromNullable(values.peekValue(ROW_KEY_HEIGHT_INDEX)),
+            Base.HEIGHT,
+            defaultKeyAttributes.height,
+            metrics);
+    int edgeFlags = KeyboardParser.getInt(values, ROW_ROW_EDGE_FLAGS_INDEX, 0);
+
+    int childCount = stream.readUnsignedShort();
+    List<KeyAttributes> keyAttributesList = new ArrayList<KeyAttributes>(childCount);
+    for (int i = 0; i < childCount; ++i) {
+      int child = stream.readUnsignedByte();
+      switch (child) {
+        case CHILD_KEY:
+          keyAttributesList.add(readKey(stream, edgeFlags, defaultKeyAttributes, popUpAttributes));
+          break;
+        case CHILD_SPACER:
+          keyAttributesList.add(readSpacer(stream, edgeFlags, defaultKeyAttributes));
+          break;
+        default:
+          throw new IOException("Unknown child of Row: " + child);
+      }
+    }
+    return new RowTemplate(keyAttributesList, rowHeight, verticalGap);
+  }
+
+  private KeyAttributes readKey(
+      DataInputStream stream,
+      int edgeFlags,
+      KeyAttributes defaultKeyAttributes,
+      PopUpAttributes popUpAttributes)
+      throws IOException {
+    Values values = readValues(stream, KEY_ATTRIBUTE_COUNT);
+    KeyAttributes keyAttributes =
+        KeyboardParser.parseKeyAttributes(
+            values,
+            defaultKeyAttributes,
+            metrics,
+            KEY_KEY_WIDTH_INDEX,
+            KEY_KEY_HEIGHT_INDEX,
+            KEY_KEY_HORIZONTAL_LAYOUT_WEIGHT_INDEX,
+            KEY_HORIZONTAL_GAP_INDEX,
+            -1,
+            KEY_DEFAULT_ICON_WIDTH_INDEX,
+            KEY_DEFAULT_ICON_HEIGHT_INDEX,
+            KEY_DEFAULT_HORIZONTAL_PADDING_INDEX,
+            KEY_DEFAULT_VERTICAL_PADDING_INDEX,
+            KEY_KEY_BACKGROUND_INDEX);
+    edgeFlags |= KeyboardParser.getInt(values, KEY_KEY_EDGE_FLAGS_INDEX, 0);
+    boolean isRepeatable = KeyboardParser.getBoolean(values, KEY_IS_REPEATABLE_INDEX, false);
+    boolean isModifier = KeyboardParser.getBoolean(values, KEY_IS_MODIFIER_INDEX, false);
+
+    int keyStateCount = stream.readUnsignedShort();
+    List<KeyStateTemplate> keyStateList = new ArrayList<KeyStateTemplate>(keyStateCount);
+    for (int i = 0; i < keyStateCount; ++i) {
+      keyStateList.add(readKeyState(stream, keyAttributes, popUpAttributes));
+    }
+
+    // The default KeyState and isRepeatable are validated at build time.
+    return keyAttributes.toBuilder()
+        .setEdgeFlags(edgeFlags)
+        .setRepeatable(isRepeatable)
+        .setModifier(isModifier)
+        .setStick(Stick.EVEN)
+        .setKeyStateList(keyStateList)
+        .build();
+  }
+
+  private KeyAttributes readSpacer(
+      DataInputStream stream, int edgeFlags, KeyAttributes defaultKeyAttributes)
+      throws IOException {
+    Values values = readValues(stream, SPACER_ATTRIBUTE_COUNT);
+    KeyAttributes keyAttributes =
+        KeyboardParser.parseKeyAttributes(
+            values,
+            defaultKeyAttributes,
+            metrics,
+            SPACER_KEY_WIDTH_INDEX,
+            SPACER_KEY_HEIGHT_INDEX,
+            SPACER_KEY_HORIZONTAL_LAYOUT_WEIGHT_INDEX,
+            -1,
+            -1,
+            -1,
+            -1,
+            -1,
+            -1,
+            SPACER_KEY_BACKGROUND_INDEX);
+    edgeFlags |= KeyboardParser.getInt(values, SPACER_KEY_EDGE_FLAGS_INDEX, 0);
+    Stick stick = Stick.values()[KeyboardParser.getInt(values, SPACER_STICK_INDEX, 0)];
+
+    // Returns a dummy key object.
+    return keyAttributes.toBuilder()
+        .setRepeatable(false)
+        .setModifier(false)
+        .setEdgeFlags(edgeFlags)
+        .setStick(stick)
+        .build();
+  }
+
+  private KeyStateTemplate readKeyState(
+      DataInputStream stream, KeyAttributes defaultKeyAttributes, PopUpAttributes popUpAttributes)
+      throws IOException {
+    Values values = readValues(stream, KEY_STATE_ATTRIBUTE_COUNT);
+    String contentDescription =
+        Optional.fromNullable(getString(values.peekValue(KEY_STATE_CONTENT_DESCRIPTION_INDEX)))
+            .or("");
+    Set<KeyState.MetaState> metaStateSet =
+        KeyboardParser.parseMetaState(values, KEY_STATE_META_STATE_INDEX);
+    Set<KeyState.MetaState> nextAddMetaState =
+        KeyboardParser.parseMetaState(values, KEY_STATE_NEXT_META_STATE_INDEX);
+    Set<KeyState.MetaState> nextRemoveMetaState =
+        KeyboardParser.parseMetaState(values, KEY_STATE_NEXT_REMOVED_META_STATES_INDEX);
+
+    int flickCount = stream.readUnsignedByte();
+    List<FlickTemplate> flickList = new ArrayList<FlickTemplate>(flickCount);
+    for (int i = 0; i < flickCount; ++i) {
+      Flick.Direction direction =
+          KeyboardParser.parseFlickDirection(
+              readValues(stream, FLICK_ATTRIBUTE_COUNT), FLICK_DIRECTION_INDEX);
+      flickList.add(
+          new FlickTemplate(
+              direction, readKeyEntity(stream, defaultKeyAttributes, popUpAttributes)));
+    }
+    return new KeyStateTemplate(
+        contentDescription, metaStateSet, nextAddMetaState, nextRemoveMetaState, flickList);
+  }
+
+  private KeyEntityTemplate readKeyEntity(
+      DataInputStream stream, KeyAttributes defaultKeyAttributes, PopUpAttributes popUpAttributes)
+      throws IOException {
+    Values values = readValues(stream, KEY_ENTITY_ATTRIBUTE_COUNT);
+    int sourceId = KeyboardParser.getSourceId(values.peekValue(KEY_ENTITY_SOURCE_ID_INDEX), 0);
+    int keyCode =
+        KeyboardParser.getCode(
+            Optional.fromNullable(values.peekValue(KEY_ENTITY_KEY_CODE_INDEX)),
+            KeyEntity.INVALID_KEY_CODE);
+    int longPressKeyCode =
+        KeyboardParser.getCode(
+            Optional.fromNullable(values.peekValue(KEY_ENTITY_LONG_PRESS_KEY_CODE_INDEX)),
+            KeyEntity.INVALID_KEY_CODE);
+    boolean longPressTimeoutTrigger =
+        KeyboardParser.getBoolean(values, KEY_ENTITY_LONG_PRESS_TIMEOUT_TRIGGER_INDEX, true);
+    int keyIconResourceId = getResourceId(values.peekValue(KEY_ENTITY_KEY_ICON_INDEX));
+    Optional<String> keyCharacter =
+        Optional.fromNullable(getString(values.peekValue(KEY_ENTITY_KEY_CHAR_INDEX)));
+    boolean flickHighlight =
+        KeyboardParser.getBoolean(values, KEY_ENTITY_FLICK_HIGHLIGHT_INDEX, false);
+    Length horizontalPadding =
+        KeyboardParser.getLength(
+            Optional.fromNullable(values.peekValue(KEY_ENTITY_HORIZONTAL_PADDING_INDEX)),
+            Base.WIDTH,
+            defaultKeyAttributes.defaultHorizontalPadding,
+            metrics);
+    Length verticalPadding =
+        KeyboardParser.getLength(
+            Optional.fromNullable(values.peekValue(KEY_ENTITY_VERTICAL_PADDING_INDEX)),
+            Base.HEIGHT,
+            defaultKeyAttributes.defaultVerticalPadding,
+            metrics);
+    Length iconWidth =
+        KeyboardParser.getLength(
+            Optional.fromNullable(values.peekValue(KEY_ENTITY_ICON_WIDTH_INDEX)),
+            Base.WIDTH,
+            defaultKeyAttributes.defaultIconWidth,
+            metrics);
+    Length iconHeight =
+        KeyboardParser.getLength(
+            Optional.fromNullable(values.peekValue(KEY_ENTITY_ICON_HEIGHT_INDEX)),
+            Base.HEIGHT,
+            defaultKeyAttributes.defaultIconHeight,
+            metrics);
+
+    Optional<PopUpTemplate> popUp = Optional.absent();
+    if (stream.readUnsignedByte() != 0) {
+      popUp = Optional.of(readPopUp(stream, popUpAttributes));
+    }
+
+    return new KeyEntityTemplate(
+        sourceId,
+        keyCode,
+        longPressKeyCode,
+        longPressTimeoutTrigger,
+        keyIconResourceId,
+        keyCharacter,
+        flickHighlight,
+        popUp,
+        horizontalPadding,
+        verticalPadding,
+        iconWidth,
+        iconHeight);
+  }
+
+  private PopUpTemplate readPopUp(DataInputStream stream, PopUpAttributes defaultValue)
+      throws IOException {
+    Values values = readValues(stream, POPUP_ATTRIBUTE_COUNT);
+    PopUpAttributes popUpAttributes =
+        KeyboardParser.parsePopUpAttributes(
+            values,
+            defaultValue,
+            metrics,
+            POPUP_KEY_HEIGHT_INDEX,
+            POPUP_KEY_X_OFFSET_INDEX,
+            POPUP_KEY_Y_OFFSET_INDEX,
+            POPUP_KEY_ICON_WIDTH_INDEX,
+            POPUP_KEY_ICON_HEIGHT_INDEX);
+    return new PopUpTemplate(
+        getResourceId(values.peekValue(POPUP_KEY_ICON_INDEX)),
+        getResourceId(values.peekValue(POPUP_KEY_LONG_PRESS_ICON_INDEX)),
+        popUpAttributes);
+  }
+
+  private Values readValues(DataInputStream stream, int size) throws IOException {
+    Values result = new Values(size);
+    for (int i = 0; i < size; ++i) {
+      result.values[i] = readValue(stream);
+    }
+    return result;
+  }
+
+  @Nullable
+  private TypedValue readValue(DataInputStream stream) throws IOException {
+    int type = stream.readUnsignedByte();
+    switch (type) {
+      case TypedValue.TYPE_NULL:
+        return null;
+      case TypedValue.TYPE_REFERENCE:
+        return resolveReference(stream.readUnsignedShort());
+      case TypedValue.TYPE_STRING:
+        {
+          TypedValue value = new TypedValue();
+          value.type = type;
+          value.string = stream.readUTF();
+          return value;
+        }
+      default:
+        {
+          TypedValue value = new TypedValue();
+          value.type = type;
+          value.data = stream.readInt();
+          return value;
+        }
+    }
+  }
+
+  /** Resolves the reference as {@link android.content.res.TypedArray} does. */
+  private TypedValue resolveReference(int index) throws IOException {
+    if (index >= resolvedReferences.length) {
+      throw new IOException("Invalid reference: " + index);
+    }
+    TypedValue value = resolvedReferences[index];
+    if (value == null) {
+      value = new TypedValue();
+      resources.getValue(KeyboardLayoutResources.IDS[index], value, true);
+      changingConfigurations |= value.changingConfigurations;
+      resolvedReferences[index] = value;
+    }
+    return value;
+  }
+
+  private float getFlickThreshold(@Nullable TypedValue value) {
+    if (value == null) {
+      value = resolveDefaultFlickThreshold();
+    }
+    Preconditions.checkArgument(
+        value.type == TypedValue.TYPE_DIMENSION,
+        "The type dimension is required.  value = " + value);
+    float flickThreshold = TypedValue.complexToDimension(value.data, metrics);
+    Preconditions.checkArgument(
+        flickThreshold > 0, "flickThreshold must be greater than 0.  value = " + flickThreshold);
+    return flickThreshold;
+  }
+
+  private TypedValue resolveDefaultFlickThreshold() {
+    TypedValue value = new TypedValue();
+    resources.getValue(R.dimen.default_flick_threshold, value, true);
+    changingConfigurations |= value.changingConfigurations;
+    return value;
+  }
+
+  @Nullable
+  private static String getString(@Nullable TypedValue value) {
+    if (value == null) {
+      return null;
+    }
+    CharSequence string = value.coerceToString();
+    return string == null ? null : string.toString();
+  }
+
+  private static int getResourceId(@Nullable TypedValue value) {
+    return value == null ? 0 : value.resourceId;
+  }
+}
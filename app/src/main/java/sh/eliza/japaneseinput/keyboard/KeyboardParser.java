@@ -45,213 +45,33 @@ import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import javax.annotation.Nullable;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import sh.eliza.japaneseinput.R;
 import sh.eliza.japaneseinput.keyboard.BackgroundDrawableFactory.DrawableType;
 import sh.eliza.japaneseinput.keyboard.Key.Stick;
 import sh.eliza.japaneseinput.keyboard.Keyboard.KeyboardSpecification;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.FlickTemplate;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.KeyAttributes;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.KeyEntityTemplate;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.KeyStateTemplate;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.Length;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.Length.Base;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.PopUpAttributes;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.PopUpTemplate;
+import sh.eliza.japaneseinput.keyboard.KeyboardTemplate.RowTemplate;
 
 /** */
 public class KeyboardParser {
 
-  /** Attributes for the key dimensions. */
-  private static class KeyAttributes {
-
-    private static class Builder {
-
-      private int width;
-      private int height;
-      private int horizontalLayoutWeight;
-      private int horizontalGap;
-      private int verticalGap;
-      private int defaultIconWidth;
-      private int defaultIconHeight;
-      private int defaultHorizontalPadding;
-      private int defaultVerticalPadding;
-      private DrawableType keyBackgroundDrawableType =
-          DrawableType.TWELVEKEYS_REGULAR_KEY_BACKGROUND;
-      private int edgeFlags;
-      private boolean isRepeatable;
-      private boolean isModifier;
-      private Stick stick = Stick.EVEN;
-      private List<KeyState> keyStateList = Collections.emptyList();
-
-      Builder setWidth(int width) {
-        this.width = width;
-        return this;
-      }
-
-      Builder setHeight(int height) {
-        this.height = height;
-        return this;
-      }
-
-      Builder setHorizontalLayoutWeight(int horizontalLayoutWeight) {
-        this.horizontalLayoutWeight = horizontalLayoutWeight;
-        return this;
-      }
-
-      Builder setHorizontalGap(int horizontalGap) {
-        this.horizontalGap = horizontalGap;
-        return this;
-      }
-
-      Builder setVerticalGap(int verticalGap) {
-        this.verticalGap = verticalGap;
-        return this;
-      }
-
-      Builder setDefaultIconWidth(int defaultIconWidth) {
-        this.defaultIconWidth = defaultIconWidth;
-        return this;
-      }
-
-      Builder setDefaultIconHeight(int defaultIconHeight) {
-        this.defaultIconHeight = defaultIconHeight;
-        return this;
-      }
-
-      Builder setDefaultHorizontalPadding(int defaultHorizontalPadding) {
-        this.defaultHorizontalPadding = defaultHorizontalPadding;
-        return this;
-      }
-
-      Builder setDefaultVerticalPadding(int defaultVerticalPadding) {
-        this.defaultVerticalPadding = defaultVerticalPadding;
-        return this;
-      }
-
-      Builder setKeybackgroundDrawableType(DrawableType type) {
-        this.keyBackgroundDrawableType = Preconditions.checkNotNull(type);
-        return this;
-      }
-
-      Builder setEdgeFlags(int edgeFlags) {
-        this.edgeFlags = edgeFlags;
-        return this;
-      }
-
-      Builder setRepeatable(boolean isRepeatable) {
-        this.isRepeatable = isRepeatable;
-        return this;
-      }
-
-      Builder setModifier(boolean isModifier) {
-        this.isModifier = isModifier;
-        return this;
-      }
-
-      Builder setStick(Stick stick) {
-        this.stick = Preconditions.checkNotNull(stick);
-        return this;
-      }
-
-      Builder setKeyStateList(List<KeyState> keyStateList) {
-        this.keyStateList = Preconditions.checkNotNull(keyStateList);
-        return this;
-      }
-
-      KeyAttributes build() {
-        return new KeyAttributes(this);
-      }
-    }
-
-    final int width;
-    final int height;
-    final int horizontalLayoutWeight;
-    final int horizontalGap;
-    final int verticalGap;
-    final int defaultIconWidth;
-    final int defaultIconHeight;
-    final int defaultHorizontalPadding;
-    final int defaultVerticalPadding;
-    final DrawableType keyBackgroundDrawableType;
-    final int edgeFlags;
-    final boolean isRepeatable;
-    final boolean isModifier;
-    final Stick stick;
-    final List<KeyState> keyStateList;
-
-    private KeyAttributes(Builder builder) {
-      this.width = builder.width;
-      this.height = builder.height;
-      this.horizontalLayoutWeight = builder.horizontalLayoutWeight;
-      this.horizontalGap = builder.horizontalGap;
-      this.verticalGap = builder.verticalGap;
-      this.defaultIconWidth = builder.defaultIconWidth;
-      this.defaultIconHeight = builder.defaultIconHeight;
-      this.defaultHorizontalPadding = builder.defaultHorizontalPadding;
-      this.defaultVerticalPadding = builder.defaultVerticalPadding;
-      this.keyBackgroundDrawableType =
-          Preconditions.checkNotNull(builder.keyBackgroundDrawableType);
-      this.edgeFlags = builder.edgeFlags;
-      this.isRepeatable = builder.isRepeatable;
-      this.isModifier = builder.isModifier;
-      this.stick = builder.stick;
-      this.keyStateList = builder.keyStateList;
-    }
-
-    static Builder newBuilder() {
-      return new Builder();
-    }
-
-    Builder toBuilder() {
-      return newBuilder()
-          .setWidth(width)
-          .setHeight(height)
-          .setHorizontalLayoutWeight(horizontalLayoutWeight)
-          .setHorizontalGap(horizontalGap)
-          .setVerticalGap(verticalGap)
-          .setDefaultHorizontalPadding(defaultHorizontalPadding)
-          .setDefaultVerticalPadding(defaultVerticalPadding)
-          .setDefaultIconWidth(defaultIconWidth)
-          .setDefaultIconHeight(defaultIconHeight)
-          .setKeybackgroundDrawableType(keyBackgroundDrawableType)
-          .setEdgeFlags(edgeFlags)
-          .setRepeatable(isRepeatable)
-          .setModifier(isModifier)
-          .setStick(stick)
-          .setKeyStateList(keyStateList);
-    }
-
-    Key buildKey(int x, int y, int width) {
-      return new Key(
-          x,
-          y,
-          width,
-          height,
-          horizontalGap,
-          edgeFlags,
-          isRepeatable,
-          isModifier,
-          stick,
-          keyBackgroundDrawableType,
-          keyStateList);
-    }
-  }
-
-  /** Attributes for the popup dimensions. */
-  private static class PopUpAttributes {
-
-    final int popUpHeight;
-    final int popUpXOffset;
-    final int popUpYOffset;
-    final int popUpIconWidth;
-    final int popUpIconHeight;
-
-    PopUpAttributes(
-        int popUpHeight,
-        int popUpXOffset,
-        int popUpYOffset,
-        int popUpIconWidth,
-        int popUpIconHeight) {
-      this.popUpHeight = popUpHeight;
-      this.popUpXOffset = popUpXOffset;
-      this.popUpYOffset = popUpYOffset;
-      this.popUpIconWidth = popUpIconWidth;
-      this.popUpIconHeight = popUpIconHeight;
-    }
+  /**
+   * Attribute values of an element, indexed in the same way as {@link TypedArray#peekValue(int)}.
+   * This lets {@link KeyboardLayoutLoader} share the attribute semantics with this parser.
+   */
+  interface AttributeValues {
+    @Nullable
+    TypedValue peekValue(int index);
   }
 
   /*
@@ -440,7 +260,7 @@ public class KeyboardParser {
       Arrays.binarySearch(KEY_ENTITY_ATTRIBUTES, R.attr.iconHeight);
 
   /** Mapping table from enum value in xml to DrawableType by using the enum value as index. */
-  private static final DrawableType[] KEY_BACKGROUND_DRAWABLE_TYPE_MAP = {
+  static final DrawableType[] KEY_BACKGROUND_DRAWABLE_TYPE_MAP = {
     DrawableType.TWELVEKEYS_REGULAR_KEY_BACKGROUND,
     DrawableType.TWELVEKEYS_FUNCTION_KEY_BACKGROUND,
     DrawableType.TWELVEKEYS_FUNCTION_KEY_BACKGROUND_WITH_THREEDOTS,
@@ -457,7 +277,7 @@ public class KeyboardParser {
   /**
    * @return "sourceId" assigned to {@code value}.
    */
-  private static int getSourceId(TypedValue value, @SuppressWarnings("unused") int defaultValue) {
+  static int getSourceId(TypedValue value, @SuppressWarnings("unused") int defaultValue) {
     Preconditions.checkNotNull(value);
     Preconditions.checkArgument(
         value.type == TypedValue.TYPE_INT_DEC || value.type == TypedValue.TYPE_INT_HEX,
@@ -466,10 +286,11 @@ public class KeyboardParser {
   }
 
   /**
-   * @return the pixel offsets based on metrics and base
+   * @return the pixel offsets based on metrics, or the fraction of the keyboard dimension {@code
+   *     base}
    */
-  private static int getDimensionOrFraction(
-      Optional<TypedValue> optionalValue, int base, int defaultValue, DisplayMetrics metrics) {
+  static Length getLength(
+      Optional<TypedValue> optionalValue, Base base, Length defaultValue, DisplayMetrics metrics) {
     if (!optionalValue.isPresent()) {
       return defaultValue;
     }
@@ -477,9 +298,9 @@ public class KeyboardParser {
 
     switch (value.type) {
       case TypedValue.TYPE_DIMENSION:
-        return TypedValue.complexToDimensionPixelOffset(value.data, metrics);
+        return Length.pixels(TypedValue.complexToDimensionPixelOffset(value.data, metrics));
       case TypedValue.TYPE_FRACTION:
-        return Math.round(TypedValue.complexToFraction(value.data, base, base));
+        return Length.fraction(TypedValue.complexToFloat(value.data), base);
     }
 
     throw new IllegalArgumentException(
@@ -489,7 +310,7 @@ public class KeyboardParser {
   /**
    * @return "codes" assigned to {@code value}
    */
-  private static int getCode(Optional<TypedValue> optionalValue, int defaultValue) {
+  static int getCode(Optional<TypedValue> optionalValue, int defaultValue) {
     if (!optionalValue.isPresent()) {
       return defaultValue;
     }
@@ -505,6 +326,52 @@ public class KeyboardParser {
     return defaultValue;
   }
 
+  /**
+   * @return the integer value at {@code index}, as {@link TypedArray#getInt(int, int)} returns for
+   *     integer, enum and flag attributes.
+   */
+  static int getInt(AttributeValues attributes, int index, int defaultValue) {
+    TypedValue value = attributes.peekValue(index);
+    if (value == null) {
+      return defaultValue;
+    }
+    Preconditions.checkArgument(
+        value.type >= TypedValue.TYPE_FIRST_INT && value.type <= TypedValue.TYPE_LAST_INT,
+        "The type integer is required.  value = " + value);
+    return value.data;
+  }
+
+  /**
+   * @return the boolean value at {@code index}, as {@link TypedArray#getBoolean(int, boolean)}
+   *     returns for boolean attributes.
+   */
+  static boolean getBoolean(AttributeValues attributes, int index, boolean defaultValue) {
+    return getInt(attributes, index, defaultValue ? 1 : 0) != 0;
+  }
+
+  private static AttributeValues asAttributeValues(final TypedArray attributes) {
+    return new AttributeValues() {
+      @Override
+      public TypedValue peekValue(int index) {
+        return attributes.peekValue(index);
+      }
+    };
+  }
+
+  /** @return the attributes used if a {@code <Keyboard>} element doesn't specify them. */
+  static KeyAttributes getDefaultKeyboardKeyAttributes() {
+    // The default keyWidth is 10% of the display for width, and 50px for height.
+    return KeyAttributes.newBuilder()
+        .setWidth(Length.fraction(0.1f, Base.WIDTH))
+        .setHeight(Length.pixels(50))
+        .setKeybackgroundDrawableType(DrawableType.TWELVEKEYS_REGULAR_KEY_BACKGROUND)
+        .setDefaultIconWidth(Length.fraction(1, Base.WIDTH))
+        .setDefaultIconHeight(Length.fraction(1, Base.HEIGHT))
+        .setDefaultHorizontalPadding(Length.ZERO)
+        .setDefaultVerticalPadding(Length.ZERO)
+        .build();
+  }
+
   private static void ignoreWhiteSpaceAndComment(XmlPullParser parser)
       throws XmlPullParserException, IOException {
     int event = parser.getEventType();
@@ -569,24 +436,16 @@ public class KeyboardParser {
   private final Resources resources;
   private final XmlResourceParser xmlResourceParser;
   private final Set<Integer> sourceIdSet = new HashSet<Integer>();
-  private final int keyboardWidth;
-  private final int keyboardHeight;
   private final KeyboardSpecification specification;
 
-  public KeyboardParser(
-      Resources resources,
-      int keyboardWidth,
-      int keyboardHeight,
-      KeyboardSpecification specification) {
+  public KeyboardParser(Resources resources, KeyboardSpecification specification) {
     this.resources = Preconditions.checkNotNull(resources);
-    this.keyboardWidth = keyboardWidth;
-    this.keyboardHeight = keyboardHeight;
     this.specification = Preconditions.checkNotNull(specification);
     this.xmlResourceParser = resources.getXml(specification.getXmlLayoutResourceId());
   }
 
-  /** Parses a XML resource and returns a Keyboard instance. */
-  public Keyboard parseKeyboard() throws XmlPullParserException, IOException {
+  /** Parses a XML resource and returns a template of the keyboard. */
+  KeyboardTemplate parseKeyboard() throws XmlPullParserException, IOException {
     // TODO(hidehiko): Refactor by spliting this method into two layers,
     //                 one is parse Keyboard element, and another is parsing a full xml file.
     XmlResourceParser parser = this.xmlResourceParser;
@@ -638,22 +497,12 @@ public class KeyboardParser {
       TypedArray attributes = resources.obtainAttributes(parser, R.styleable.Keyboard);
       try {
         DisplayMetrics metrics = resources.getDisplayMetrics();
-        // The default keyWidth is 10% of the display for width, and 50px for height.
+        AttributeValues values = asAttributeValues(attributes);
         keyAttributes =
             parseKeyAttributes(
-                attributes,
-                KeyAttributes.newBuilder()
-                    .setWidth(keyboardWidth / 10)
-                    .setHeight(50)
-                    .setKeybackgroundDrawableType(DrawableType.TWELVEKEYS_REGULAR_KEY_BACKGROUND)
-                    .setDefaultIconWidth(keyboardWidth)
-                    .setDefaultIconHeight(keyboardHeight)
-                    .setDefaultHorizontalPadding(0)
-                    .setDefaultVerticalPadding(0)
-                    .build(),
+                values,
+                getDefaultKeyboardKeyAttributes(),
                 metrics,
-                this.keyboardWidth,
-                this.keyboardHeight,
                 R.styleable.Keyboard_keyWidth,
                 R.styleable.Keyboard_keyHeight,
                 R.styleable.Keyboard_keyHorizontalLayoutWeight,
@@ -666,10 +515,9 @@ public class KeyboardParser {
                 R.styleable.Keyboard_keyBackground);
         popUpAttributes =
             parsePopUpAttributes(
-                attributes,
-                new PopUpAttributes(0, 0, 0, 0, 0),
+                values,
+                PopUpAttributes.ZERO,
                 metrics,
-                this.keyboardWidth,
                 R.styleable.Keyboard_popUpHeight,
                 R.styleable.Keyboard_popUpXOffset,
                 R.styleable.Keyboard_popUpYOffset,
@@ -684,8 +532,7 @@ public class KeyboardParser {
       }
     }
 
-    List<Row> rowList = new ArrayList<Row>();
-    int y = 0;
+    List<RowTemplate> rowList = new ArrayList<RowTemplate>();
     while (true) {
       parser.next();
       ignoreWhiteSpaceAndComment(parser);
@@ -693,9 +540,7 @@ public class KeyboardParser {
       if (parser.getEventType() == XmlResourceParser.END_TAG) {
         break;
       }
-      Row row = parseRow(y, keyAttributes, popUpAttributes);
-      rowList.add(row);
-      y += row.getHeight() + row.getVerticalGap();
+      rowList.add(parseRow(keyAttributes, popUpAttributes));
     }
     assertEndTag(parser, "Keyboard");
 
@@ -704,66 +549,43 @@ public class KeyboardParser {
     ignoreWhiteSpaceAndComment(parser);
     assertEndDocument(parser);
 
-    return new Keyboard(
+    // This parser is only the fallback of KeyboardLayoutLoader, so it doesn't track which
+    // configuration changes affect the values. The template is invalidated by any change.
+    return new KeyboardTemplate(
         Preconditions.checkNotNull(contentDescription),
         Preconditions.checkNotNull(rowList),
         flickThreshold,
-        specification);
-  }
-
-  private static List<Key> buildKeyList(
-      List<KeyAttributes> keyAttributesList, int y, int rowWidth) {
-    float remainingWidthByWeight = rowWidth;
-    int remainingWeight = 0;
-    for (KeyAttributes attributes : keyAttributesList) {
-      remainingWidthByWeight -= attributes.width;
-      remainingWeight += attributes.horizontalLayoutWeight;
-    }
-
-    List<Key> keyList = new ArrayList<Key>(keyAttributesList.size());
-    float exactX = 0;
-    for (KeyAttributes attributes : keyAttributesList) {
-      int weight = attributes.horizontalLayoutWeight;
-      Preconditions.checkState(remainingWeight >= weight);
-      float widthByWeight = weight > 0 ? remainingWidthByWeight * weight / remainingWeight : 0;
-      remainingWidthByWeight -= widthByWeight;
-      remainingWeight -= weight;
-      int x = Math.round(exactX);
-      Key key =
-          attributes.buildKey(x, y, Math.round(exactX + widthByWeight + attributes.width) - x);
-      keyList.add(key);
-      exactX += widthByWeight + attributes.width;
-    }
-    Preconditions.checkState(remainingWeight == 0);
-    return keyList;
+        specification,
+        resources.getConfiguration(),
+        ~0);
   }
 
   /**
    * Parses a {@code Row} element, and returns a {@code Row} instance containing a list of {@code
    * Key}s.
    */
-  private Row parseRow(int y, KeyAttributes defaultKeyAttributes, PopUpAttributes popUpAttributes)
+  private RowTemplate parseRow(KeyAttributes defaultKeyAttributes, PopUpAttributes popUpAttributes)
       throws XmlPullParserException, IOException {
     XmlResourceParser parser = this.xmlResourceParser;
     assertStartTag(parser, "Row");
 
-    int verticalGap;
-    int rowHeight;
+    Length verticalGap;
+    Length rowHeight;
     int edgeFlags;
     {
       DisplayMetrics metrics = resources.getDisplayMetrics();
       TypedArray attributes = resources.obtainAttributes(parser, ROW_ATTRIBUTES);
       try {
         verticalGap =
-            getDimensionOrFraction(
+            getLength(
                 Optional.fromNullable(attributes.peekValue(ROW_VERTICAL_GAP_INDEX)),
-                keyboardHeight,
+                Base.HEIGHT,
                 defaultKeyAttributes.verticalGap,
                 metrics);
         rowHeight =
-            getDimensionOrFraction(
+            getLength(
                 Optional.fromNullable(attributes.peekValue(ROW_KEY_HEIGHT_INDEX)),
-                keyboardHeight,
+                Base.HEIGHT,
                 defaultKeyAttributes.height,
                 metrics);
         edgeFlags = attributes.getInt(ROW_ROW_EDGE_FLAGS_INDEX, 0);
@@ -788,8 +610,7 @@ public class KeyboardParser {
     }
 
     assertEndTag(parser, "Row");
-    List<Key> keyList = buildKeyList(keyAttributesList, y, keyboardWidth);
-    return buildRow(keyList, rowHeight, verticalGap);
+    return new RowTemplate(keyAttributesList, rowHeight, verticalGap);
   }
 
   /** Parses a {@code Key} element, and returns an instance. */
@@ -808,11 +629,9 @@ public class KeyboardParser {
       try {
         keyAttributes =
             parseKeyAttributes(
-                attributes,
+                asAttributeValues(attributes),
                 defaultKeyAttributes,
                 metrics,
-                keyboardWidth,
-                keyboardHeight,
                 KEY_KEY_WIDTH_INDEX,
                 KEY_KEY_HEIGHT_INDEX,
                 KEY_KEY_HORIZONTAL_LAYOUT_WEIGHT_INDEX,
@@ -831,7 +650,7 @@ public class KeyboardParser {
       }
     }
 
-    List<KeyState> keyStateList = new ArrayList<KeyState>();
+    List<KeyStateTemplate> keyStateList = new ArrayList<KeyStateTemplate>();
     while (true) {
       parser.next();
       ignoreWhiteSpaceAndComment(parser);
@@ -846,13 +665,13 @@ public class KeyboardParser {
     // At the moment, we just accept keys which has default state.
     boolean hasDefault = false;
     boolean hasLongPressKeyCode = false;
-    for (KeyState keyState : keyStateList) {
+    for (KeyStateTemplate keyState : keyStateList) {
       if (keyState.getMetaStateSet().isEmpty()
           || keyState.getMetaStateSet().contains(KeyState.MetaState.FALLBACK)) {
         hasDefault = true;
-        Optional<Flick> flick = keyState.getFlick(Flick.Direction.CENTER);
+        Optional<FlickTemplate> flick = keyState.getFlick(Flick.Direction.CENTER);
         Preconditions.checkState(flick.isPresent());
-        if (flick.get().getKeyEntity().getLongPressKeyCode() != KeyEntity.INVALID_KEY_CODE) {
+        if (flick.get().keyEntity.getLongPressKeyCode() != KeyEntity.INVALID_KEY_CODE) {
           hasLongPressKeyCode = true;
         }
         break;
@@ -892,11 +711,9 @@ public class KeyboardParser {
       try {
         keyAttributes =
             parseKeyAttributes(
-                attributes,
+                asAttributeValues(attributes),
                 defaultKeyAttributes,
                 metrics,
-                keyboardWidth,
-                keyboardHeight,
                 SPACER_KEY_WIDTH_INDEX,
                 SPACER_KEY_HEIGHT_INDEX,
                 SPACER_KEY_HORIZONTAL_LAYOUT_WEIGHT_INDEX,
@@ -926,7 +743,7 @@ public class KeyboardParser {
         .build();
   }
 
-  private KeyState parseKeyState(
+  private KeyStateTemplate parseKeyState(
       KeyAttributes defaultKeyAttributes, PopUpAttributes popUpAttributes, DisplayMetrics metrics)
       throws XmlPullParserException, IOException {
     XmlResourceParser parser = this.xmlResourceParser;
@@ -942,15 +759,16 @@ public class KeyboardParser {
         contentDescription =
             MoreObjects.firstNonNull(attributes.getText(KEY_STATE_CONTENT_DESCRIPTION_INDEX), "")
                 .toString();
-        metaStateSet = parseMetaState(attributes, KEY_STATE_META_STATE_INDEX);
-        nextAddMetaState = parseMetaState(attributes, KEY_STATE_NEXT_META_STATE_INDEX);
-        nextRemoveMetaState = parseMetaState(attributes, KEY_STATE_NEXT_REMOVED_META_STATES_INDEX);
+        AttributeValues values = asAttributeValues(attributes);
+        metaStateSet = parseMetaState(values, KEY_STATE_META_STATE_INDEX);
+        nextAddMetaState = parseMetaState(values, KEY_STATE_NEXT_META_STATE_INDEX);
+        nextRemoveMetaState = parseMetaState(values, KEY_STATE_NEXT_REMOVED_META_STATES_INDEX);
       } finally {
         attributes.recycle();
       }
     }
 
-    List<Flick> flickList = new ArrayList<Flick>();
+    List<FlickTemplate> flickList = new ArrayList<FlickTemplate>();
     while (true) {
       parser.next();
       ignoreWhiteSpaceAndComment(parser);
@@ -963,8 +781,8 @@ public class KeyboardParser {
 
     // At the moment, we support only keys which has flick data to the CENTER direction.
     boolean isCenterFound = false;
-    for (Flick flick : flickList) {
-      if (flick.getDirection() == Flick.Direction.CENTER) {
+    for (FlickTemplate flick : flickList) {
+      if (flick.direction == Flick.Direction.CENTER) {
         isCenterFound = true;
         break;
       }
@@ -975,11 +793,11 @@ public class KeyboardParser {
     }
 
     assertEndTag(parser, "KeyState");
-    return new KeyState(
+    return new KeyStateTemplate(
         contentDescription, metaStateSet, nextAddMetaState, nextRemoveMetaState, flickList);
   }
 
-  private Flick parseFlick(
+  private FlickTemplate parseFlick(
       KeyAttributes defaultKeyAttributes, PopUpAttributes popUpAttributes, DisplayMetrics metrics)
       throws XmlPullParserException, IOException {
     XmlResourceParser parser = this.xmlResourceParser;
@@ -989,14 +807,14 @@ public class KeyboardParser {
     {
       TypedArray attributes = resources.obtainAttributes(parser, R.styleable.Flick);
       try {
-        direction = parseFlickDirection(attributes, R.styleable.Flick_direction);
+        direction = parseFlickDirection(asAttributeValues(attributes), R.styleable.Flick_direction);
       } finally {
         attributes.recycle();
       }
     }
 
     parser.next();
-    KeyEntity entity = parseKeyEntity(defaultKeyAttributes, popUpAttributes, metrics);
+    KeyEntityTemplate entity = parseKeyEntity(defaultKeyAttributes, popUpAttributes, metrics);
 
     if (entity.getLongPressKeyCode() != KeyEntity.INVALID_KEY_CODE
         && direction != Flick.Direction.CENTER) {
@@ -1008,10 +826,10 @@ public class KeyboardParser {
     parser.next();
     assertEndTag(parser, "Flick");
 
-    return new Flick(direction, entity);
+    return new FlickTemplate(direction, entity);
   }
 
-  private KeyEntity parseKeyEntity(
+  private KeyEntityTemplate parseKeyEntity(
       KeyAttributes defaultKeyAttributes, PopUpAttributes popUpAttributes, DisplayMetrics metrics)
       throws XmlPullParserException, IOException {
     XmlResourceParser parser = this.xmlResourceParser;
@@ -1024,10 +842,10 @@ public class KeyboardParser {
     int keyIconResourceId;
     Optional<String> keyCharacter = Optional.absent();
     boolean flickHighlight;
-    int horizontalPadding;
-    int verticalPadding;
-    int iconWidth;
-    int iconHeight;
+    Length horizontalPadding;
+    Length verticalPadding;
+    Length iconWidth;
+    Length iconHeight;
     {
       TypedArray attributes = resources.obtainAttributes(parser, KEY_ENTITY_ATTRIBUTES);
       try {
@@ -1055,27 +873,27 @@ public class KeyboardParser {
         flickHighlight = attributes.getBoolean(KEY_ENTITY_FLICK_HIGHLIGHT_INDEX, false);
 
         horizontalPadding =
-            getDimensionOrFraction(
+            getLength(
                 Optional.fromNullable(attributes.peekValue(KEY_ENTITY_HORIZONTAL_PADDING_INDEX)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultKeyAttributes.defaultHorizontalPadding,
                 metrics);
         verticalPadding =
-            getDimensionOrFraction(
+            getLength(
                 Optional.fromNullable(attributes.peekValue(KEY_ENTITY_VERTICAL_PADDING_INDEX)),
-                keyboardHeight,
+                Base.HEIGHT,
                 defaultKeyAttributes.defaultVerticalPadding,
                 metrics);
         iconWidth =
-            getDimensionOrFraction(
+            getLength(
                 Optional.fromNullable(attributes.peekValue(KEY_ENTITY_ICON_WIDTH_INDEX)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultKeyAttributes.defaultIconWidth,
                 metrics);
         iconHeight =
-            getDimensionOrFraction(
+            getLength(
                 Optional.fromNullable(attributes.peekValue(KEY_ENTITY_ICON_HEIGHT_INDEX)),
-                keyboardHeight,
+                Base.HEIGHT,
                 defaultKeyAttributes.defaultIconHeight,
                 metrics);
       } finally {
@@ -1086,7 +904,7 @@ public class KeyboardParser {
     parser.next();
     ignoreWhiteSpaceAndComment(parser);
 
-    Optional<PopUp> popUp = Optional.absent();
+    Optional<PopUpTemplate> popUp = Optional.absent();
     if (parser.getEventType() == XmlResourceParser.START_TAG) {
       popUp = Optional.of(parsePopUp(popUpAttributes));
       parser.next();
@@ -1095,7 +913,7 @@ public class KeyboardParser {
 
     assertEndTag(parser, "KeyEntity");
 
-    return new KeyEntity(
+    return new KeyEntityTemplate(
         sourceId,
         keyCode,
         longPressKeyCode,
@@ -1110,7 +928,7 @@ public class KeyboardParser {
         iconHeight);
   }
 
-  private PopUp parsePopUp(PopUpAttributes defaultValue)
+  private PopUpTemplate parsePopUp(PopUpAttributes defaultValue)
       throws XmlPullParserException, IOException {
     XmlResourceParser parser = this.xmlResourceParser;
     assertStartTag(parser, "PopUp");
@@ -1122,10 +940,9 @@ public class KeyboardParser {
     try {
       popUpAttributes =
           parsePopUpAttributes(
-              attributes,
+              asAttributeValues(attributes),
               defaultValue,
               resources.getDisplayMetrics(),
-              keyboardWidth,
               POPUP_KEY_HEIGHT_INDEX,
               POPUP_KEY_X_OFFSET_INDEX,
               POPUP_KEY_Y_OFFSET_INDEX,
@@ -1139,14 +956,8 @@ public class KeyboardParser {
     parser.next();
     assertEndTag(parser, "PopUp");
 
-    return new PopUp(
-        popUpIconResourceId,
-        popUpLongPressIconResourceId,
-        popUpAttributes.popUpHeight,
-        popUpAttributes.popUpXOffset,
-        popUpAttributes.popUpYOffset,
-        popUpAttributes.popUpIconWidth,
-        popUpAttributes.popUpIconHeight);
+    return new PopUpTemplate(
+        popUpIconResourceId, popUpLongPressIconResourceId, popUpAttributes);
   }
 
   private float parseFlickThreshold(TypedArray attributes, int index) {
@@ -1157,12 +968,10 @@ public class KeyboardParser {
     return flickThreshold;
   }
 
-  private static KeyAttributes parseKeyAttributes(
-      TypedArray attributes,
+  static KeyAttributes parseKeyAttributes(
+      AttributeValues attributes,
       KeyAttributes defaultValue,
       DisplayMetrics metrics,
-      int keyboardWidth,
-      int keyboardHeight,
       int keyWidthIndex,
       int keyHeightIndex,
       int keyHorizontalLayoutWeightIndex,
@@ -1174,72 +983,73 @@ public class KeyboardParser {
       int defaultVerticalPaddingIndex,
       int keyBackgroundIndex) {
 
-    int keyWidth =
+    Length keyWidth =
         (keyWidthIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(keyWidthIndex)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultValue.width,
                 metrics)
             : defaultValue.width;
-    int keyHeight =
+    Length keyHeight =
         (keyHeightIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(keyHeightIndex)),
-                keyboardHeight,
+                Base.HEIGHT,
                 defaultValue.height,
                 metrics)
             : defaultValue.height;
     int keyHorizontalLayoutWeight =
         (keyHorizontalLayoutWeightIndex >= 0)
-            ? attributes.getInt(keyHorizontalLayoutWeightIndex, defaultValue.horizontalLayoutWeight)
+            ? getInt(
+                attributes, keyHorizontalLayoutWeightIndex, defaultValue.horizontalLayoutWeight)
             : defaultValue.horizontalLayoutWeight;
 
-    int horizontalGap =
+    Length horizontalGap =
         (horizontalGapIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(horizontalGapIndex)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultValue.horizontalGap,
                 metrics)
             : defaultValue.horizontalGap;
-    int verticalGap =
+    Length verticalGap =
         (verticalGapIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(verticalGapIndex)),
-                keyboardHeight,
+                Base.HEIGHT,
                 defaultValue.verticalGap,
                 metrics)
             : defaultValue.verticalGap;
-    int defaultIconWidth =
+    Length defaultIconWidth =
         (defaultIconWidthIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(defaultIconWidthIndex)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultValue.defaultIconWidth,
                 metrics)
             : defaultValue.defaultIconWidth;
-    int defaultIconHeight =
+    Length defaultIconHeight =
         (defaultIconHeightIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(defaultIconHeightIndex)),
-                keyboardHeight,
+                Base.HEIGHT,
                 defaultValue.defaultIconHeight,
                 metrics)
             : defaultValue.defaultIconHeight;
-    int defaultHorizontalPadding =
+    Length defaultHorizontalPadding =
         (defaultHorizontalPaddingIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(defaultHorizontalPaddingIndex)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultValue.defaultHorizontalPadding,
                 metrics)
             : defaultValue.defaultHorizontalPadding;
-    int defaultVerticalPadding =
+    Length defaultVerticalPadding =
         (defaultVerticalPaddingIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(defaultVerticalPaddingIndex)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultValue.defaultVerticalPadding,
                 metrics)
             : defaultValue.defaultVerticalPadding;
@@ -1262,61 +1072,60 @@ public class KeyboardParser {
   }
 
   private static DrawableType parseKeyBackgroundDrawableType(
-      TypedArray attributes, int index, DrawableType defaultValue) {
+      AttributeValues attributes, int index, DrawableType defaultValue) {
     if (index < 0) {
       return defaultValue;
     }
-    int value = attributes.getInt(index, -1);
+    int value = getInt(attributes, index, -1);
     return (value < 0) ? defaultValue : KEY_BACKGROUND_DRAWABLE_TYPE_MAP[value];
   }
 
-  private static PopUpAttributes parsePopUpAttributes(
-      TypedArray attributes,
+  static PopUpAttributes parsePopUpAttributes(
+      AttributeValues attributes,
       PopUpAttributes defaultValue,
       DisplayMetrics metrics,
-      int keyboardWidth,
       int popUpHeightIndex,
       int popUpXOffsetIndex,
       int popUpYOffsetIndex,
       int popUpIconWidthIndex,
       int popUpIconHeightIndex) {
-    int popUpHeight =
+    Length popUpHeight =
         (popUpHeightIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(popUpHeightIndex)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultValue.popUpHeight,
                 metrics)
             : defaultValue.popUpHeight;
-    int popUpXOffset =
+    Length popUpXOffset =
         (popUpXOffsetIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(popUpXOffsetIndex)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultValue.popUpXOffset,
                 metrics)
             : defaultValue.popUpXOffset;
-    int popUpYOffset =
+    Length popUpYOffset =
         (popUpYOffsetIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(popUpYOffsetIndex)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultValue.popUpYOffset,
                 metrics)
             : defaultValue.popUpYOffset;
-    int popUpIconWidth =
+    Length popUpIconWidth =
         (popUpIconWidthIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(popUpIconWidthIndex)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultValue.popUpIconWidth,
                 metrics)
             : defaultValue.popUpIconWidth;
-    int popUpIconHeight =
+    Length popUpIconHeight =
         (popUpIconHeightIndex >= 0)
-            ? getDimensionOrFraction(
+            ? getLength(
                 Optional.fromNullable(attributes.peekValue(popUpIconHeightIndex)),
-                keyboardWidth,
+                Base.WIDTH,
                 defaultValue.popUpIconHeight,
                 metrics)
             : defaultValue.popUpIconHeight;
@@ -1330,8 +1139,8 @@ public class KeyboardParser {
    * <p>Empty set is returned if corresponding attribute is not found. This is used for default
    * KeyState.
    */
-  private Set<KeyState.MetaState> parseMetaState(TypedArray attributes, int index) {
-    int metaStateFlags = attributes.getInt(index, 0);
+  static Set<KeyState.MetaState> parseMetaState(AttributeValues attributes, int index) {
+    int metaStateFlags = getInt(attributes, index, 0);
     if (metaStateFlags == 0) {
       return Collections.emptySet();
     }
@@ -1346,11 +1155,8 @@ public class KeyboardParser {
     return result;
   }
 
-  private Flick.Direction parseFlickDirection(TypedArray attributes, int index) {
-    return Flick.Direction.valueOf(attributes.getInt(index, Flick.Direction.CENTER.index));
+  static Flick.Direction parseFlickDirection(AttributeValues attributes, int index) {
+    return Flick.Direction.valueOf(getInt(attributes, index, Flick.Direction.CENTER.index));
   }
 
-  private Row buildRow(List<Key> keyList, int height, int verticalGap) {
-    return new Row(keyList, height, verticalGap);
-  }
 }
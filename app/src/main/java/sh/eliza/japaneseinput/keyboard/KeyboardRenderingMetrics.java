@@ -0,0 +1,124 @@
+package sh.eliza.japaneseinput.keyboard;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import sh.eliza.japaneseinput.util.LatencyHistogram;
+
+/**
+ * Rendering costs of the keyboards, recorded by {@link KeyboardViewBackgroundSurface}.
+ *
+ * <p>The static content of a keyboard, i.e., all the keys idle, is recorded once per meta states
+ * into a {@link StaticContent} and replayed on each frame. The pixels redrawn in a frame are those
+ * of the static content if it is recorded in the frame, and those of the pressed keys drawn over
+ * it. A frame which just replays the static content redraws no pixels but the pressed keys'.
+ *
+ * <p>The replay is timed on the UI thread, where it is only issued to the canvas, e.g., a
+ * reference to a display list, so it is reported as the issue cost. The cost of actually replaying
+ * it on the render thread is a part of the draw, sync and commands stages of the frames in {@link
+ * sh.eliza.japaneseinput.InputViewFrameMetrics}.
+ */
+public class KeyboardRenderingMetrics {
+
+  /** The kinds of the static content. */
+  public enum StaticContent {
+    /** Display lists of the rows, on hardware accelerated canvases on API 29+. */
+    DISPLAY_LISTS("display lists"),
+    /** A software bitmap of the whole keyboard. */
+    BITMAP_LAYER("bitmap layer");
+
+    final String label;
+
+    StaticContent(String label) {
+      this.label = label;
+    }
+  }
+
+  private static final KeyboardRenderingMetrics INSTANCE = new KeyboardRenderingMetrics();
+
+  // Indexed by static content.
+  private final LatencyHistogram[] recordHistograms = newHistograms();
+  private final LatencyHistogram[] issueHistograms = newHistograms();
+  private final long[] reuseCounts = new long[StaticContent.values().length];
+
+  private long frameCount = 0;
+  private long redrawnPixelCount = 0;
+  private long maxRedrawnPixelCount = 0;
+
+  public static KeyboardRenderingMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  private static LatencyHistogram[] newHistograms() {
+    LatencyHistogram[] histograms = new LatencyHistogram[StaticContent.values().length];
+    for (int i = 0; i < histograms.length; ++i) {
+      histograms[i] = new LatencyHistogram();
+    }
+    return histograms;
+  }
+
+  public synchronized void recordFrame(long redrawnPixelCount) {
+    ++frameCount;
+    this.redrawnPixelCount += redrawnPixelCount;
+    maxRedrawnPixelCount = Math.max(maxRedrawnPixelCount, redrawnPixelCount);
+  }
+
+  /** Records the duration of recording the static content of a keyboard. */
+  public void recordStaticContentRecord(StaticContent content, long nanos) {
+    recordHistograms[content.ordinal()].record(nanos);
+  }
+
+  /** Records the duration of issuing the replay of the static content on the UI thread. */
+  public void recordStaticContentIssue(StaticContent content, long nanos) {
+    issueHistograms[content.ordinal()].record(nanos);
+  }
+
+  /** Records that the static content cached for other meta states is reused. */
+  public synchronized void recordStaticContentReuse(StaticContent content) {
+    ++reuseCounts[content.ordinal()];
+  }
+
+  public void reset() {
+    synchronized (this) {
+      frameCount = 0;
+      redrawnPixelCount = 0;
+      maxRedrawnPixelCount = 0;
+      for (int i = 0; i < reuseCounts.length; ++i) {
+        reuseCounts[i] = 0;
+      }
+    }
+    for (int i = 0; i < recordHistograms.length; ++i) {
+      recordHistograms[i].reset();
+      issueHistograms[i].reset();
+    }
+  }
+
+  /** Writes the redrawn pixels, and the record and UI-thread issue histograms in microseconds. */
+  public void dump(PrintWriter writer) {
+    writer.println("Keyboard rendering:");
+    synchronized (this) {
+      writer.println(
+          String.format(
+              Locale.US,
+              "  frames=%d redrawn pixels: avg=%d max=%d",
+              frameCount,
+              frameCount == 0 ? 0 : redrawnPixelCount / frameCount,
+              maxRedrawnPixelCount));
+    }
+    for (StaticContent content : StaticContent.values()) {
+      int index = content.ordinal();
+      if (recordHistograms[index].getCount() == 0 && issueHistograms[index].getCount() == 0) {
+        continue;
+      }
+      synchronized (this) {
+        writer.println(
+            String.format(Locale.US, "  %s: reused=%d", content.label, reuseCounts[index]));
+      }
+      writer.print("    record: ");
+      recordHistograms[index].dump(writer);
+      writer.println();
+      writer.print("    UI-thread replay issue: ");
+      issueHistograms[index].dump(writer);
+      writer.println();
+    }
+  }
+}
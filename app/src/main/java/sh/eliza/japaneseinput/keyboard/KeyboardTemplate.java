@@ -0,0 +1,522 @@
+package sh.eliza.japaneseinput.keyboard;
+
+import android.content.res.Configuration;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import sh.eliza.japaneseinput.keyboard.BackgroundDrawableFactory.DrawableType;
+import sh.eliza.japaneseinput.keyboard.Key.Stick;
+import sh.eliza.japaneseinput.keyboard.Keyboard.KeyboardSpecification;
+
+/**
+ * A keyboard layout whose geometry is relative to the keyboard size, loaded once by {@link
+ * KeyboardLayoutLoader} or {@link KeyboardParser}. A {@link Keyboard} of any size is built from
+ * it by a linear pass, without parsing the layout or accessing the resources.
+ *
+ * <p>Dimensions are resolved to pixels on loading, and fractions are kept relative to the keyboard
+ * width or height. As the resolved values may depend on the configuration, e.g. the dimensions
+ * qualified by the screen height, the template remembers the configuration and which changes of
+ * it affect the values. See {@link #isValidFor(Configuration)}.
+ */
+class KeyboardTemplate {
+
+  /** A length in pixels, or a fraction of the keyboard width or height. */
+  static final class Length {
+
+    /** The dimension a fraction is relative to. */
+    enum Base {
+      WIDTH,
+      HEIGHT,
+    }
+
+    static final Length ZERO = pixels(0);
+
+    private final int pixels;
+    private final float fraction;
+    private final Optional<Base> base;
+
+    private Length(int pixels, float fraction, Optional<Base> base) {
+      this.pixels = pixels;
+      this.fraction = fraction;
+      this.base = base;
+    }
+
+    static Length pixels(int pixels) {
+      return new Length(pixels, 0, Optional.absent());
+    }
+
+    static Length fraction(float fraction, Base base) {
+      return new Length(0, fraction, Optional.of(base));
+    }
+
+    /** @return the length in pixels, rounded as {@code TypedValue#complexToFraction} is. */
+    int resolve(int keyboardWidth, int keyboardHeight) {
+      if (!base.isPresent()) {
+        return pixels;
+      }
+      return Math.round(fraction * (base.get() == Base.WIDTH ? keyboardWidth : keyboardHeight));
+    }
+  }
+
+  /** Attributes for the key dimensions. */
+  static class KeyAttributes {
+
+    static class Builder {
+
+      private Length width = Length.ZERO;
+      private Length height = Length.ZERO;
+      private int horizontalLayoutWeight;
+      private Length horizontalGap = Length.ZERO;
+      private Length verticalGap = Length.ZERO;
+      private Length defaultIconWidth = Length.ZERO;
+      private Length defaultIconHeight = Length.ZERO;
+      private Length defaultHorizontalPadding = Length.ZERO;
+      private Length defaultVerticalPadding = Length.ZERO;
+      private DrawableType keyBackgroundDrawableType =
+          DrawableType.TWELVEKEYS_REGULAR_KEY_BACKGROUND;
+      private int edgeFlags;
+      private boolean isRepeatable;
+      private boolean isModifier;
+      private Stick stick = Stick.EVEN;
+      private List<KeyStateTemplate> keyStateList = Collections.emptyList();
+
+      Builder setWidth(Length width) {
+        this.width = Preconditions.checkNotNull(width);
+        return this;
+      }
+
+      Builder setHeight(Length height) {
+        this.height = Preconditions.checkNotNull(height);
+        return this;
+      }
+
+      Builder setHorizontalLayoutWeight(int horizontalLayoutWeight) {
+        this.horizontalLayoutWeight = horizontalLayoutWeight;
+        return this;
+      }
+
+      Builder setHorizontalGap(Length horizontalGap) {
+        this.horizontalGap = Preconditions.checkNotNull(horizontalGap);
+        return this;
+      }
+
+      Builder setVerticalGap(Length verticalGap) {
+        this.verticalGap = Preconditions.checkNotNull(verticalGap);
+        return this;
+      }
+
+      Builder setDefaultIconWidth(Length defaultIconWidth) {
+        this.defaultIconWidth = Preconditions.checkNotNull(defaultIconWidth);
+        return this;
+      }
+
+      Builder setDefaultIconHeight(Length defaultIconHeight) {
+        this.defaultIconHeight = Preconditions.checkNotNull(defaultIconHeight);
+        return this;
+      }
+
+      Builder setDefaultHorizontalPadding(Length defaultHorizontalPadding) {
+        this.defaultHorizontalPadding = Preconditions.checkNotNull(defaultHorizontalPadding);
+        return this;
+      }
+
+      Builder setDefaultVerticalPadding(Length defaultVerticalPadding) {
+        this.defaultVerticalPadding = Preconditions.checkNotNull(defaultVerticalPadding);
+        return this;
+      }
+
+      Builder setKeybackgroundDrawableType(DrawableType type) {
+        this.keyBackgroundDrawableType = Preconditions.checkNotNull(type);
+        return this;
+      }
+
+      Builder setEdgeFlags(int edgeFlags) {
+        this.edgeFlags = edgeFlags;
+        return this;
+      }
+
+      Builder setRepeatable(boolean isRepeatable) {
+        this.isRepeatable = isRepeatable;
+        return this;
+      }
+
+      Builder setModifier(boolean isModifier) {
+        this.isModifier = isModifier;
+        return this;
+      }
+
+      Builder setStick(Stick stick) {
+        this.stick = Preconditions.checkNotNull(stick);
+        return this;
+      }
+
+      Builder setKeyStateList(List<KeyStateTemplate> keyStateList) {
+        this.keyStateList = Preconditions.checkNotNull(keyStateList);
+        return this;
+      }
+
+      KeyAttributes build() {
+        return new KeyAttributes(this);
+      }
+    }
+
+    final Length width;
+    final Length height;
+    final int horizontalLayoutWeight;
+    final Length horizontalGap;
+    final Length verticalGap;
+    final Length defaultIconWidth;
+    final Length defaultIconHeight;
+    final Length defaultHorizontalPadding;
+    final Length defaultVerticalPadding;
+    final DrawableType keyBackgroundDrawableType;
+    final int edgeFlags;
+    final boolean isRepeatable;
+    final boolean isModifier;
+    final Stick stick;
+    final List<KeyStateTemplate> keyStateList;
+
+    private KeyAttributes(Builder builder) {
+      this.width = builder.width;
+      this.height = builder.height;
+      this.horizontalLayoutWeight = builder.horizontalLayoutWeight;
+      this.horizontalGap = builder.horizontalGap;
+      this.verticalGap = builder.verticalGap;
+      this.defaultIconWidth = builder.defaultIconWidth;
+      this.defaultIconHeight = builder.defaultIconHeight;
+      this.defaultHorizontalPadding = builder.defaultHorizontalPadding;
+      this.defaultVerticalPadding = builder.defaultVerticalPadding;
+      this.keyBackgroundDrawableType =
+          Preconditions.checkNotNull(builder.keyBackgroundDrawableType);
+      this.edgeFlags = builder.edgeFlags;
+      this.isRepeatable = builder.isRepeatable;
+      this.isModifier = builder.isModifier;
+      this.stick = builder.stick;
+      this.keyStateList = builder.keyStateList;
+    }
+
+    static Builder newBuilder() {
+      return new Builder();
+    }
+
+    Builder toBuilder() {
+      return newBuilder()
+          .setWidth(width)
+          .setHeight(height)
+          .setHorizontalLayoutWeight(horizontalLayoutWeight)
+          .setHorizontalGap(horizontalGap)
+          .setVerticalGap(verticalGap)
+          .setDefaultHorizontalPadding(defaultHorizontalPadding)
+          .setDefaultVerticalPadding(defaultVerticalPadding)
+          .setDefaultIconWidth(defaultIconWidth)
+          .setDefaultIconHeight(defaultIconHeight)
+          .setKeybackgroundDrawableType(keyBackgroundDrawableType)
+          .setEdgeFlags(edgeFlags)
+          .setRepeatable(isRepeatable)
+          .setModifier(isModifier)
+          .setStick(stick)
+          .setKeyStateList(keyStateList);
+    }
+
+    Key buildKey(int x, int y, int width, int keyboardWidth, int keyboardHeight) {
+      List<KeyState> keyStates = new ArrayList<KeyState>(keyStateList.size());
+      for (KeyStateTemplate keyState : keyStateList) {
+        keyStates.add(keyState.build(keyboardWidth, keyboardHeight));
+      }
+      return new Key(
+          x,
+          y,
+          width,
+          height.resolve(keyboardWidth, keyboardHeight),
+          horizontalGap.resolve(keyboardWidth, keyboardHeight),
+          edgeFlags,
+          isRepeatable,
+          isModifier,
+          stick,
+          keyBackgroundDrawableType,
+          keyStates);
+    }
+  }
+
+  /** Attributes for the popup dimensions. */
+  static class PopUpAttributes {
+
+    static final PopUpAttributes ZERO =
+        new PopUpAttributes(Length.ZERO, Length.ZERO, Length.ZERO, Length.ZERO, Length.ZERO);
+
+    final Length popUpHeight;
+    final Length popUpXOffset;
+    final Length popUpYOffset;
+    final Length popUpIconWidth;
+    final Length popUpIconHeight;
+
+    PopUpAttributes(
+        Length popUpHeight,
+        Length popUpXOffset,
+        Length popUpYOffset,
+        Length popUpIconWidth,
+        Length popUpIconHeight) {
+      this.popUpHeight = Preconditions.checkNotNull(popUpHeight);
+      this.popUpXOffset = Preconditions.checkNotNull(popUpXOffset);
+      this.popUpYOffset = Preconditions.checkNotNull(popUpYOffset);
+      this.popUpIconWidth = Preconditions.checkNotNull(popUpIconWidth);
+      this.popUpIconHeight = Preconditions.checkNotNull(popUpIconHeight);
+    }
+  }
+
+  /** The template of a {@link PopUp}. */
+  static class PopUpTemplate {
+    private final int popUpIconResourceId;
+    private final int popUpLongPressIconResourceId;
+    private final PopUpAttributes attributes;
+
+    PopUpTemplate(
+        int popUpIconResourceId, int popUpLongPressIconResourceId, PopUpAttributes attributes) {
+      this.popUpIconResourceId = popUpIconResourceId;
+      this.popUpLongPressIconResourceId = popUpLongPressIconResourceId;
+      this.attributes = Preconditions.checkNotNull(attributes);
+    }
+
+    PopUp build(int keyboardWidth, int keyboardHeight) {
+      return new PopUp(
+          popUpIconResourceId,
+          popUpLongPressIconResourceId,
+          attributes.popUpHeight.resolve(keyboardWidth, keyboardHeight),
+          attributes.popUpXOffset.resolve(keyboardWidth, keyboardHeight),
+          attributes.popUpYOffset.resolve(keyboardWidth, keyboardHeight),
+          attributes.popUpIconWidth.resolve(keyboardWidth, keyboardHeight),
+          attributes.popUpIconHeight.resolve(keyboardWidth, keyboardHeight));
+    }
+  }
+
+  /** The template of a {@link KeyEntity}. */
+  static class KeyEntityTemplate {
+    private final int sourceId;
+    private final int keyCode;
+    private final int longPressKeyCode;
+    private final boolean longPressTimeoutTrigger;
+    private final int keyIconResourceId;
+    private final Optional<String> keyCharacter;
+    private final boolean flickHighlightEnabled;
+    private final Optional<PopUpTemplate> popUp;
+    private final Length horizontalPadding;
+    private final Length verticalPadding;
+    private final Length iconWidth;
+    private final Length iconHeight;
+
+    KeyEntityTemplate(
+        int sourceId,
+        int keyCode,
+        int longPressKeyCode,
+        boolean longPressTimeoutTrigger,
+        int keyIconResourceId,
+        Optional<String> keyCharacter,
+        boolean flickHighlightEnabled,
+        Optional<PopUpTemplate> popUp,
+        Length horizontalPadding,
+        Length verticalPadding,
+        Length iconWidth,
+        Length iconHeight) {
+      this.sourceId = sourceId;
+      this.keyCode = keyCode;
+      this.longPressKeyCode = longPressKeyCode;
+      this.longPressTimeoutTrigger = longPressTimeoutTrigger;
+      this.keyIconResourceId = keyIconResourceId;
+      this.keyCharacter = Preconditions.checkNotNull(keyCharacter);
+      this.flickHighlightEnabled = flickHighlightEnabled;
+      this.popUp = Preconditions.checkNotNull(popUp);
+      this.horizontalPadding = Preconditions.checkNotNull(horizontalPadding);
+      this.verticalPadding = Preconditions.checkNotNull(verticalPadding);
+      this.iconWidth = Preconditions.checkNotNull(iconWidth);
+      this.iconHeight = Preconditions.checkNotNull(iconHeight);
+    }
+
+    int getLongPressKeyCode() {
+      return longPressKeyCode;
+    }
+
+    KeyEntity build(int keyboardWidth, int keyboardHeight) {
+      Optional<PopUp> builtPopUp = Optional.absent();
+      if (popUp.isPresent()) {
+        builtPopUp = Optional.of(popUp.get().build(keyboardWidth, keyboardHeight));
+      }
+      return new KeyEntity(
+          sourceId,
+          keyCode,
+          longPressKeyCode,
+          longPressTimeoutTrigger,
+          keyIconResourceId,
+          keyCharacter,
+          flickHighlightEnabled,
+          builtPopUp,
+          horizontalPadding.resolve(keyboardWidth, keyboardHeight),
+          verticalPadding.resolve(keyboardWidth, keyboardHeight),
+          iconWidth.resolve(keyboardWidth, keyboardHeight),
+          iconHeight.resolve(keyboardWidth, keyboardHeight));
+    }
+  }
+
+  /** The template of a {@link Flick}. */
+  static class FlickTemplate {
+    final Flick.Direction direction;
+    final KeyEntityTemplate keyEntity;
+
+    FlickTemplate(Flick.Direction direction, KeyEntityTemplate keyEntity) {
+      this.direction = Preconditions.checkNotNull(direction);
+      this.keyEntity = Preconditions.checkNotNull(keyEntity);
+    }
+  }
+
+  /** The template of a {@link KeyState}. */
+  static class KeyStateTemplate {
+    private final String contentDescription;
+    private final Set<KeyState.MetaState> metaStates;
+    private final Set<KeyState.MetaState> nextAddMetaStates;
+    private final Set<KeyState.MetaState> nextRemoveMetaStates;
+    private final List<FlickTemplate> flickList;
+
+    KeyStateTemplate(
+        String contentDescription,
+        Set<KeyState.MetaState> metaStates,
+        Set<KeyState.MetaState> nextAddMetaStates,
+        Set<KeyState.MetaState> nextRemoveMetaStates,
+        List<FlickTemplate> flickList) {
+      this.contentDescription = Preconditions.checkNotNull(contentDescription);
+      this.metaStates = Preconditions.checkNotNull(metaStates);
+      this.nextAddMetaStates = Preconditions.checkNotNull(nextAddMetaStates);
+      this.nextRemoveMetaStates = Preconditions.checkNotNull(nextRemoveMetaStates);
+      this.flickList = Preconditions.checkNotNull(flickList);
+    }
+
+    Set<KeyState.MetaState> getMetaStateSet() {
+      return metaStates;
+    }
+
+    Optional<FlickTemplate> getFlick(Flick.Direction direction) {
+      for (FlickTemplate flick : flickList) {
+        if (flick.direction == direction) {
+          return Optional.of(flick);
+        }
+      }
+      return Optional.absent();
+    }
+
+    KeyState build(int keyboardWidth, int keyboardHeight) {
+      List<Flick> flicks = new ArrayList<Flick>(flickList.size());
+      for (FlickTemplate flick : flickList) {
+        flicks.add(
+            new Flick(flick.direction, flick.keyEntity.build(keyboardWidth, keyboardHeight)));
+      }
+      return new KeyState(
+          contentDescription, metaStates, nextAddMetaStates, nextRemoveMetaStates, flicks);
+    }
+  }
+
+  /** The template of a {@link Row}. */
+  static class RowTemplate {
+    private final List<KeyAttributes> keyAttributesList;
+    private final Length height;
+    private final Length verticalGap;
+
+    RowTemplate(List<KeyAttributes> keyAttributesList, Length height, Length verticalGap) {
+      this.keyAttributesList = Preconditions.checkNotNull(keyAttributesList);
+      this.height = Preconditions.checkNotNull(height);
+      this.verticalGap = Preconditions.checkNotNull(verticalGap);
+    }
+
+    Row build(int y, int keyboardWidth, int keyboardHeight) {
+      return new Row(
+          buildKeyList(y, keyboardWidth, keyboardHeight),
+          height.resolve(keyboardWidth, keyboardHeight),
+          verticalGap.resolve(keyboardWidth, keyboardHeight));
+    }
+
+    private List<Key> buildKeyList(int y, int keyboardWidth, int keyboardHeight) {
+      float remainingWidthByWeight = keyboardWidth;
+      int remainingWeight = 0;
+      int[] widths = new int[keyAttributesList.size()];
+      for (int i = 0; i < widths.length; ++i) {
+        KeyAttributes attributes = keyAttributesList.get(i);
+        widths[i] = attributes.width.resolve(keyboardWidth, keyboardHeight);
+        remainingWidthByWeight -= widths[i];
+        remainingWeight += attributes.horizontalLayoutWeight;
+      }
+
+      List<Key> keyList = new ArrayList<Key>(widths.length);
+      float exactX = 0;
+      for (int i = 0; i < widths.length; ++i) {
+        KeyAttributes attributes = keyAttributesList.get(i);
+        int weight = attributes.horizontalLayoutWeight;
+        Preconditions.checkState(remainingWeight >= weight);
+        float widthByWeight = weight > 0 ? remainingWidthByWeight * weight / remainingWeight : 0;
+        remainingWidthByWeight -= widthByWeight;
+        remainingWeight -= weight;
+        int x = Math.round(exactX);
+        keyList.add(
+            attributes.buildKey(
+                x,
+                y,
+                Math.round(exactX + widthByWeight + widths[i]) - x,
+                keyboardWidth,
+                keyboardHeight));
+        exactX += widthByWeight + widths[i];
+      }
+      Preconditions.checkState(remainingWeight == 0);
+      return keyList;
+    }
+  }
+
+  private final Optional<String> contentDescription;
+  private final List<RowTemplate> rowList;
+  private final float flickThreshold;
+  private final KeyboardSpecification specification;
+  private final Configuration configuration;
+  private final int changingConfigurations;
+
+  /**
+   * @param configuration the configuration the template has been loaded with
+   * @param changingConfigurations the {@code ActivityInfo.CONFIG_*} flags of the configuration
+   *     changes which may change the loaded values
+   */
+  KeyboardTemplate(
+      Optional<String> contentDescription,
+      List<RowTemplate> rowList,
+      float flickThreshold,
+      KeyboardSpecification specification,
+      Configuration configuration,
+      int changingConfigurations) {
+    this.contentDescription = Preconditions.checkNotNull(contentDescription);
+    this.rowList = Collections.unmodifiableList(Preconditions.checkNotNull(rowList));
+    this.flickThreshold = flickThreshold;
+    this.specification = Preconditions.checkNotNull(specification);
+    this.configuration = new Configuration(configuration);
+    this.changingConfigurations = changingConfigurations;
+  }
+
+  KeyboardSpecification getSpecification() {
+    return specification;
+  }
+
+  /**
+   * @return {@code true} if the values in this template are the same as the ones which would be
+   *     loaded with {@code configuration}
+   */
+  boolean isValidFor(Configuration configuration) {
+    return (this.configuration.diff(configuration) & changingConfigurations) == 0;
+  }
+
+  /** Builds a keyboard of the given size. This doesn't access any resources. */
+  Keyboard build(int keyboardWidth, int keyboardHeight) {
+    List<Row> rows = new ArrayList<Row>(rowList.size());
+    int y = 0;
+    for (RowTemplate rowTemplate : rowList) {
+      Row row = rowTemplate.build(y, keyboardWidth, keyboardHeight);
+      rows.add(row);
+      y += row.getHeight() + row.getVerticalGap();
+    }
+    return new Keyboard(contentDescription, rows, flickThreshold, specification);
+  }
+}
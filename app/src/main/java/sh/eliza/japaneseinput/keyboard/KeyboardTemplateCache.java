@@ -0,0 +1,149 @@
+package sh.eliza.japaneseinput.keyboard;
+
+import android.content.res.Resources;
+import android.content.res.Resources.NotFoundException;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import org.xmlpull.v1.XmlPullParserException;
+import sh.eliza.japaneseinput.MozcLog;
+import sh.eliza.japaneseinput.keyboard.Keyboard.KeyboardSpecification;
+
+/**
+ * Process-wide cache of {@link KeyboardTemplate}s, shared by all {@link KeyboardFactory} instances.
+ *
+ * <p>Templates can be loaded ahead of time on a background thread by {@link #warmUp}. Each load is
+ * a {@link FutureTask}, so a template requested while its warm-up is queued is loaded on the
+ * calling thread, and one requested while it is being loaded is waited for rather than loaded
+ * twice.
+ */
+final class KeyboardTemplateCache {
+
+  private static final KeyboardTemplateCache INSTANCE = new KeyboardTemplateCache();
+
+  private final ExecutorService warmUpExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "Keyboard warm-up thread");
+              thread.setDaemon(true);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            }
+          });
+
+  // Guarded by this.
+  private final Map<KeyboardSpecification, FutureTask<KeyboardTemplate>> templates =
+      new EnumMap<>(KeyboardSpecification.class);
+
+  private KeyboardTemplateCache() {}
+
+  static KeyboardTemplateCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the template of {@code specification}, loading it on the calling thread unless it is
+   * cached for the current configuration of {@code resources} or being loaded in background.
+   */
+  KeyboardTemplate get(Resources resources, KeyboardSpecification specification) {
+    FutureTask<KeyboardTemplate> task = getTask(resources, specification);
+    // No-op if the task has already been started by the warm-up thread.
+    task.run();
+    KeyboardTemplate template = Futures.getUnchecked(task);
+    if (template.isValidFor(resources.getConfiguration())) {
+      return template;
+    }
+    // The task was queued by a warm-up under an older configuration. Now that it is done,
+    // getTask replaces it with one for the current configuration.
+    task = getTask(resources, specification);
+    task.run();
+    return Futures.getUnchecked(task);
+  }
+
+  /**
+   * Loads the templates of {@code specifications} on the warm-up thread unless they are already
+   * cached. Each load is logged with its elapsed time.
+   */
+  void warmUp(Resources resources, Collection<KeyboardSpecification> specifications) {
+    Preconditions.checkNotNull(resources);
+    for (KeyboardSpecification specification : specifications) {
+      FutureTask<KeyboardTemplate> task = getTask(resources, specification);
+      // A task queued twice, e.g. by consecutive onStartInputView calls, only runs once.
+      if (!task.isDone()) {
+        warmUpExecutor.execute(task);
+      }
+    }
+  }
+
+  private synchronized FutureTask<KeyboardTemplate> getTask(
+      final Resources resources, final KeyboardSpecification specification) {
+    FutureTask<KeyboardTemplate> task = templates.get(specification);
+    if (task == null
+        || (task.isDone()
+            && !Futures.getUnchecked(task).isValidFor(resources.getConfiguration()))) {
+      // Not loaded yet, or the resources it refers to have been changed.
+      task =
+          new FutureTask<>(
+              new Callable<KeyboardTemplate>() {
+                @Override
+                public KeyboardTemplate call() {
+                  return load(resources, specification);
+                }
+              });
+      templates.put(specification, task);
+    }
+    return task;
+  }
+
+  private static KeyboardTemplate load(Resources resources, KeyboardSpecification specification) {
+    long startTime = System.nanoTime();
+    KeyboardTemplate template = loadTemplate(resources, specification);
+    MozcLog.d(
+        String.format(
+            Locale.US,
+            "Loaded keyboard %s in %.2f ms on %s",
+            specification.name(),
+            (System.nanoTime() - startTime) / 1e6,
+            Thread.currentThread().getName()));
+    return template;
+  }
+
+  private static KeyboardTemplate loadTemplate(
+      Resources resources, KeyboardSpecification specification) {
+    // The binary layout compiled at build time is much faster to load. The xml is still
+    // available in case the layout is missing or stale, e.g. in incremental builds.
+    try {
+      return new KeyboardLayoutLoader(resources, specification).loadKeyboard();
+    } catch (NotFoundException | IOException e) {
+      MozcLog.w("Falling back to the xml layout: " + e.getMessage());
+    }
+
+    KeyboardParser parser = new KeyboardParser(resources, specification);
+    try {
+      return parser.parseKeyboard();
+    } catch (NotFoundException | IOException | XmlPullParserException e) {
+      MozcLog.e(e.getMessage());
+    }
+    // Returns dummy keyboard to avoid crash.
+    return new KeyboardTemplate(
+        Optional.absent(),
+        Collections.emptyList(),
+        0,
+        KeyboardSpecification.TWELVE_KEY_TOGGLE_FLICK_KANA,
+        resources.getConfiguration(),
+        ~0);
+  }
+}
@@ -49,11 +49,15 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.TouchAction;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.TouchEvent;
+import sh.eliza.japaneseinput.InputViewFrameMetrics;
+import sh.eliza.japaneseinput.InputViewFrameMetrics.DrawSite;
+import sh.eliza.japaneseinput.InputViewFrameMetrics.Operation;
 import sh.eliza.japaneseinput.MemoryManageable;
 import sh.eliza.japaneseinput.R;
 import sh.eliza.japaneseinput.accessibility.KeyboardAccessibilityDelegate;
@@ -338,6 +342,7 @@ public class KeyboardView extends View implements MemoryManageable {
     updateMetaStates(Collections.emptySet(), MetaState.CHAR_TYPE_EXCLUSIVE_GROUP);
     accessibilityDelegate.setKeyboard(keyboard);
     this.drawableCache.clear();
+    prefetchIcons();
     backgroundSurface.reset(this.keyboard, Collections.emptySet());
     invalidateIfRequired();
   }
@@ -366,12 +371,45 @@ public class KeyboardView extends View implements MemoryManageable {
     drawableCache.setSkin(skin);
     popupPreviewPool.setSkin(skin);
     backgroundDrawableFactory.setSkin(skin);
+    backgroundSurface.invalidateLayers();
     if (keyboard.isPresent()) {
+      prefetchIcons();
       backgroundSurface.reset(this.keyboard, Collections.emptySet());
     }
     setBackground(skin.windowBackgroundDrawable.getConstantState().newDrawable());
   }
 
+  /**
+   * Decodes the icons of all the keys and their pop-ups of the keyboard in background, so that
+   * drawing the keyboard doesn't parse them.
+   */
+  private void prefetchIcons() {
+    if (!keyboard.isPresent()) {
+      return;
+    }
+    Set<Integer> resourceIds = new LinkedHashSet<>();
+    for (Row row : keyboard.get().getRowList()) {
+      for (Key key : row.getKeyList()) {
+        for (KeyState keyState : key.getKeyStates()) {
+          for (Flick.Direction direction : Flick.Direction.values()) {
+            Optional<Flick> flick = keyState.getFlick(direction);
+            if (!flick.isPresent()) {
+              continue;
+            }
+            KeyEntity keyEntity = flick.get().getKeyEntity();
+            resourceIds.add(keyEntity.getKeyIconResourceId());
+            Optional<PopUp> popUp = keyEntity.getPopUp();
+            if (popUp.isPresent()) {
+              resourceIds.add(popUp.get().getPopUpIconResourceId());
+              resourceIds.add(popUp.get().getPopUpLongPressIconResourceId());
+            }
+          }
+        }
+      }
+    }
+    drawableCache.prefetch(resourceIds);
+  }
+
   public void setKeyEventHandler(KeyEventHandler keyEventHandler) {
     // This method needs to be invoked from a thread which the looper held by older keyEventHandler
     // points. Otherwise, there can be inconsistent state.
@@ -394,7 +432,10 @@ public class KeyboardView extends View implements MemoryManageable {
       return;
     }
     // Draw keyboard.
+    long startTime = System.nanoTime();
     backgroundSurface.draw(canvas);
+    InputViewFrameMetrics.getInstance()
+        .recordDraw(DrawSite.KEYBOARD_VIEW, System.nanoTime() - startTime);
   }
 
   private static int getPointerIndex(int action) {
@@ -621,6 +662,7 @@ public class KeyboardView extends View implements MemoryManageable {
         // The event is not handled by this class.
         return false;
     }
+    InputViewFrameMetrics.getInstance().markOperation(Operation.KEY_PRESS);
 
     // The keyboard's state might be changed. Update the view if required.
     invalidateIfRequired();
@@ -635,76 +677,16 @@ public class KeyboardView extends View implements MemoryManageable {
    * @return A corresponding {@code Key} instance, or {@code Optional.<Key>absent()} if not found.
    */
   private Optional<Key> getKeyByCoord(float x, float y) {
-    if (y < 0 || !keyboard.isPresent() || keyboard.get().getRowList().isEmpty()) {
+    if (!keyboard.isPresent()) {
       return Optional.absent();
     }
-
-    List<Row> rowList = keyboard.get().getRowList();
-    int rowBottom = 0;
-    Row lastRow = rowList.get(rowList.size() - 1);
-    for (Row row : rowList) {
-      rowBottom += row.getHeight() + row.getVerticalGap();
-      Key prevKey = null;
-      for (Key key : row.getKeyList()) {
-        if (( // Stick vertical gaps to the keys above.
-            y < key.getY() + key.getHeight() + row.getVerticalGap()
-                // Or the key is at the bottom of the keyboard.
-                // Note: Some devices sense touch events of out-side of screen.
-                //   So, for better user experiences, we return the bottom row
-                //   if a user touches below the screen bottom boundary.
-                || row == lastRow
-                || key.getY() + key.getHeight() >= keyboard.get().contentBottom)
-            // Horizontal gap is included in the width,
-            // so we don't need to calculate horizontal gap in addition to width.
-            && x < key.getX() + key.getWidth()
-            // The following condition selects a key hit in A, C, or D
-            // (C and D are on the same key), and excludes a key hit in B.
-            //                +---+---+
-            // current row -> | A | C |
-            //                +---+   |
-            // next row    -> | B | D |
-            //                +---+---+
-            // The condition y < rowBottom allows hits on A and C, and the other
-            // condition key.getX() <= x allows hits on C and D but not B.
-            // Hence, the hits on B are excluded.
-            && (y < rowBottom || key.getX() <= x)) {
-          if (!key.isSpacer()) {
-            return Optional.of(key); // Found a key.
-          }
-
-          switch (key.getStick()) {
-            case LEFT:
-              if (prevKey != null) {
-                return Optional.of(prevKey);
-              }
-              break;
-            case EVEN:
-              // Split the spacer evenly, assuming we don't have any consecutive spacers.
-              if (x < key.getX() + (float) key.getWidth() / 2 && prevKey != null) {
-                return Optional.of(prevKey);
-              }
-              break;
-            case RIGHT:
-              // Do nothing to delegate the target to the next one.
-          }
-        }
-
-        if (!key.isSpacer()) {
-          prevKey = key;
-        }
-      }
-
-      if ((y < rowBottom || row == lastRow) && prevKey != null) {
-        return Optional.of(prevKey);
-      }
-    }
-
-    return Optional.absent(); // Not found.
+    return keyboard.get().getKeyByCoord(x, y);
   }
 
   @Override
   public void trimMemory() {
     drawableCache.clear();
+    backgroundSurface.invalidateLayers();
     popupPreviewPool.releaseAll();
   }
 
@@ -29,20 +29,30 @@
 
 package sh.eliza.japaneseinput.keyboard;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.RecordingCanvas;
+import android.graphics.Rect;
+import android.graphics.RenderNode;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
+import androidx.annotation.RequiresApi;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import javax.annotation.Nullable;
 import sh.eliza.japaneseinput.keyboard.BackgroundDrawableFactory.DrawableType;
 import sh.eliza.japaneseinput.keyboard.Flick.Direction;
 import sh.eliza.japaneseinput.keyboard.KeyState.MetaState;
+import sh.eliza.japaneseinput.keyboard.KeyboardRenderingMetrics.StaticContent;
+import sh.eliza.japaneseinput.util.LeastRecentlyUsedCacheMap;
 import sh.eliza.japaneseinput.view.DrawableCache;
 
 /**
@@ -52,6 +62,13 @@ import sh.eliza.japaneseinput.view.DrawableCache;
  * be registered. {@code #isDirty()} should be useful to check if the keyboard requires rendering
  * again.
  *
+ * <p>The keyboard with all the keys idle is recorded once per meta states, and each frame replays
+ * it except the regions of the pressed keys, and then draws only the pressed keys over it. So
+ * pressing a key redraws its region alone, and toggling a modifier key back and forth reuses the
+ * cached recordings. On hardware accelerated canvases on API 29+, each row is recorded into a
+ * {@link RenderNode}, whose display list is replayed by the render thread without touching the
+ * drawables. Otherwise the keyboard is rendered into a layer bitmap.
+ *
  * <p>TODO(matsuzakit): Rename this class. This class doesn't have any background surface any more.
  *
  * <p>An example usage of this class is as follows:
@@ -151,9 +168,41 @@ public class KeyboardViewBackgroundSurface {
     }
   }
 
+  // A keyboard larger than this in either dimension is drawn without the layer.
+  private static final int MAX_LAYER_SIZE = 4096;
+  // The recordings of an unmodified keyboard and a modified one, e.g., shifted, can be cached at
+  // once.
+  private static final int MAX_LAYER_COUNT = 2;
+
   /** True if this instance requires to be redrawn. */
   private boolean isDirty = true;
 
+  /**
+   * The layers of the keyboard in which every key is idle, per meta states.
+   *
+   * <p>Evicted layers are left to the garbage collector rather than recycled, as display lists
+   * recorded before the eviction may still refer to them.
+   */
+  private final Map<Set<MetaState>, Bitmap> layers =
+      new LeastRecentlyUsedCacheMap<>(MAX_LAYER_COUNT);
+
+  /**
+   * The display lists of the rows of the keyboard in which every key is idle, per meta states. Used
+   * instead of {@link #layers} on hardware accelerated canvases on API 29+.
+   *
+   * <p>As well as the layers, evicted nodes are left to the garbage collector rather than
+   * discarded, as the display list of the view may still refer to them.
+   */
+  private final Map<Set<MetaState>, List<RenderNode>> displayLists =
+      new LeastRecentlyUsedCacheMap<>(MAX_LAYER_COUNT);
+
+  // True if the meta states have been changed since the last draw.
+  private boolean isLayerSwitched = false;
+  // Accumulated during a draw.
+  private long lastRedrawnPixelCount = 0;
+  private final Rect keyRect = new Rect();
+  private final Rect rowRect = new Rect();
+
   private Optional<Keyboard> keyboard = Optional.absent();
   private Set<MetaState> metaStates = Collections.emptySet();
 
@@ -188,23 +237,194 @@ public class KeyboardViewBackgroundSurface {
     this.drawableCache = Preconditions.checkNotNull(drawableCache);
   }
 
-  private void draw(SurfaceCanvas surfaceCanvas) {
+  /**
+   * Draws the keyboard, i.e., the idle keys replayed except the pressed keys, and the pressed keys
+   * over them.
+   */
+  public void draw(Canvas canvas) {
+    Preconditions.checkNotNull(canvas);
     if (!keyboard.isPresent()) {
       return;
     }
     Keyboard keyboard = this.keyboard.get();
+    lastRedrawnPixelCount = 0;
+    boolean isStaticContentDrawn;
+    int saveCount = canvas.save();
+    try {
+      for (Key key : pressedKeys.keySet()) {
+        canvas.clipOutRect(getKeyRect(key, keyRect));
+      }
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && canvas.isHardwareAccelerated()) {
+        isStaticContentDrawn = drawDisplayLists(canvas, keyboard);
+      } else {
+        isStaticContentDrawn = drawLayer(canvas, keyboard);
+      }
+    } finally {
+      canvas.restoreToCount(saveCount);
+    }
+    isLayerSwitched = false;
+
+    SurfaceCanvas surfaceCanvas = new SurfaceCanvasImpl(canvas);
+    if (isStaticContentDrawn) {
+      for (Map.Entry<Key, Direction> entry : pressedKeys.entrySet()) {
+        Key key = entry.getKey();
+        renderKey(surfaceCanvas, keyboard, metaStates, key, Optional.of(entry.getValue()));
+        lastRedrawnPixelCount += (long) getKeyRect(key, keyRect).width() * keyRect.height();
+      }
+    } else {
+      // Too large or empty for a layer, so every key is drawn directly.
+      for (Row row : keyboard.getRowList()) {
+        for (Key key : row.getKeyList()) {
+          renderKey(
+              surfaceCanvas,
+              keyboard,
+              metaStates,
+              key,
+              Optional.fromNullable(pressedKeys.get(key)));
+          lastRedrawnPixelCount += (long) getKeyRect(key, keyRect).width() * keyRect.height();
+        }
+      }
+    }
+    KeyboardRenderingMetrics.getInstance().recordFrame(lastRedrawnPixelCount);
+    isDirty = false;
+  }
+
+  /**
+   * Replays the display lists of the rows of the meta states, recording them first if needed.
+   *
+   * @return always true, as the display lists have no size limit
+   */
+  @RequiresApi(Build.VERSION_CODES.Q)
+  private boolean drawDisplayLists(Canvas canvas, Keyboard keyboard) {
+    KeyboardRenderingMetrics metrics = KeyboardRenderingMetrics.getInstance();
+    List<RenderNode> nodes = displayLists.get(metaStates);
+    if (nodes == null || !hasDisplayLists(nodes)) {
+      nodes = recordDisplayLists(keyboard);
+      displayLists.put(Sets.newEnumSet(metaStates, MetaState.class), nodes);
+    } else if (isLayerSwitched) {
+      metrics.recordStaticContentReuse(StaticContent.DISPLAY_LISTS);
+    }
+
+    long startTime = System.nanoTime();
+    for (RenderNode node : nodes) {
+      canvas.drawRenderNode(node);
+    }
+    metrics.recordStaticContentIssue(StaticContent.DISPLAY_LISTS, System.nanoTime() - startTime);
+    return true;
+  }
+
+  @RequiresApi(Build.VERSION_CODES.Q)
+  private static boolean hasDisplayLists(List<RenderNode> nodes) {
+    for (RenderNode node : nodes) {
+      if (!node.hasDisplayList()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records the keys of {@code keyboard} in their idle state into a node per row, which is placed
+   * at the bounds of the keys in the row.
+   */
+  @RequiresApi(Build.VERSION_CODES.Q)
+  private List<RenderNode> recordDisplayLists(Keyboard keyboard) {
+    long startTime = System.nanoTime();
+    List<RenderNode> nodes = new ArrayList<>(keyboard.getRowList().size());
+    Optional<Flick.Direction> released = Optional.absent();
+    for (Row row : keyboard.getRowList()) {
+      rowRect.setEmpty();
+      for (Key key : row.getKeyList()) {
+        rowRect.union(getKeyRect(key, keyRect));
+      }
+      if (rowRect.isEmpty()) {
+        continue;
+      }
+
+      RenderNode node = new RenderNode("KeyboardRow");
+      node.setPosition(rowRect);
+      RecordingCanvas recordingCanvas = node.beginRecording(rowRect.width(), rowRect.height());
+      try {
+        recordingCanvas.translate(-rowRect.left, -rowRect.top);
+        SurfaceCanvas surfaceCanvas = new SurfaceCanvasImpl(recordingCanvas);
+        for (Key key : row.getKeyList()) {
+          renderKey(surfaceCanvas, keyboard, metaStates, key, released);
+        }
+      } finally {
+        node.endRecording();
+      }
+      nodes.add(node);
+      lastRedrawnPixelCount += (long) rowRect.width() * rowRect.height();
+    }
+    KeyboardRenderingMetrics.getInstance()
+        .recordStaticContentRecord(StaticContent.DISPLAY_LISTS, System.nanoTime() - startTime);
+    return nodes;
+  }
+
+  /**
+   * Draws the layer of the meta states, rendering it first if needed.
+   *
+   * @return false if the keyboard is too large or empty for a layer
+   */
+  private boolean drawLayer(Canvas canvas, Keyboard keyboard) {
+    KeyboardRenderingMetrics metrics = KeyboardRenderingMetrics.getInstance();
+    Optional<Bitmap> layer = Optional.fromNullable(layers.get(metaStates));
+    if (!layer.isPresent()) {
+      layer = renderLayer(keyboard);
+      if (!layer.isPresent()) {
+        return false;
+      }
+      lastRedrawnPixelCount += (long) layer.get().getWidth() * layer.get().getHeight();
+    } else if (isLayerSwitched) {
+      metrics.recordStaticContentReuse(StaticContent.BITMAP_LAYER);
+    }
+
+    long startTime = System.nanoTime();
+    canvas.drawBitmap(layer.get(), 0, 0, null);
+    metrics.recordStaticContentIssue(StaticContent.BITMAP_LAYER, System.nanoTime() - startTime);
+    return true;
+  }
+
+  /** Renders the keys of {@code keyboard} in their idle state into the layer of the meta states. */
+  private Optional<Bitmap> renderLayer(Keyboard keyboard) {
+    int width = 0;
+    int height = 0;
     for (Row row : keyboard.getRowList()) {
       for (Key key : row.getKeyList()) {
-        renderKey(
-            surfaceCanvas, keyboard, metaStates, key, Optional.fromNullable(pressedKeys.get(key)));
+        width = Math.max(width, key.getX() + key.getWidth());
+        height = Math.max(height, key.getY() + key.getHeight());
       }
     }
-    isDirty = false;
+    if (width <= 0 || height <= 0 || width > MAX_LAYER_SIZE || height > MAX_LAYER_SIZE) {
+      return Optional.absent();
+    }
+
+    long startTime = System.nanoTime();
+    Bitmap layer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    SurfaceCanvas surfaceCanvas = new SurfaceCanvasImpl(new Canvas(layer));
+    Optional<Flick.Direction> released = Optional.absent();
+    for (Row row : keyboard.getRowList()) {
+      for (Key key : row.getKeyList()) {
+        renderKey(surfaceCanvas, keyboard, metaStates, key, released);
+      }
+    }
+    layers.put(Sets.newEnumSet(metaStates, MetaState.class), layer);
+    KeyboardRenderingMetrics.getInstance()
+        .recordStaticContentRecord(StaticContent.BITMAP_LAYER, System.nanoTime() - startTime);
+    return Optional.of(layer);
   }
 
-  public void draw(Canvas canvas) {
-    Preconditions.checkNotNull(canvas);
-    draw(new SurfaceCanvasImpl(canvas));
+  /** Returns the region of {@code key} on the keyboard, which is set to {@code rect}. */
+  private static Rect getKeyRect(Key key, Rect rect) {
+    int horizontalGap = key.getHorizontalGap();
+    int x = key.getX() + horizontalGap / 2;
+    rect.set(x, key.getY(), x + key.getWidth() - horizontalGap, key.getY() + key.getHeight());
+    return rect;
+  }
+
+  /** Returns the number of the pixels redrawn in the last {@link #draw(Canvas)}. */
+  public long getLastRedrawnPixelCount() {
+    return lastRedrawnPixelCount;
   }
 
   private void renderKey(
@@ -329,6 +549,7 @@ public class KeyboardViewBackgroundSurface {
     if (!this.metaStates.equals(metaStates)) {
       this.metaStates = Sets.newEnumSet(metaStates, MetaState.class);
       isDirty = true;
+      isLayerSwitched = true;
     }
   }
 
@@ -340,8 +561,23 @@ public class KeyboardViewBackgroundSurface {
     Preconditions.checkNotNull(keyboard);
     Preconditions.checkNotNull(metaStates);
     clearPressedKey();
+    if (!this.keyboard.equals(keyboard)) {
+      // Layers are kept as long as the keyboard is, so that switching meta states reuses them.
+      layers.clear();
+      displayLists.clear();
+    }
     this.keyboard = keyboard;
     setMetaStates(metaStates);
     isDirty = true;
   }
+
+  /**
+   * Discards the layers and the display lists, which need to be recorded again, e.g., as the skin
+   * has been changed. Also called to release their memory.
+   */
+  public void invalidateLayers() {
+    layers.clear();
+    displayLists.clear();
+    isDirty = true;
+  }
 }
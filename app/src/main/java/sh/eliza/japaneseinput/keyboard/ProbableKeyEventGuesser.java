@@ -31,37 +31,26 @@ package sh.eliza.japaneseinput.keyboard;
 
 import android.content.res.AssetManager;
 import android.content.res.Configuration;
-import android.os.Handler;
-import android.os.Looper;
-import android.util.SparseArray;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.TouchAction;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.TouchEvent;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.TouchPosition;
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.KeyEvent.ProbableKeyEvent;
-import sh.eliza.japaneseinput.KeyboardSpecificationName;
-import sh.eliza.japaneseinput.MozcLog;
-import sh.eliza.japaneseinput.MozcUtil;
-import sh.eliza.japaneseinput.util.LeastRecentlyUsedCacheMap;
+import sh.eliza.japaneseinput.keyboard.AdaptiveTouchModel.KeyboardModel;
+import sh.eliza.japaneseinput.keyboard.TouchStatisticsStore.EventStatistics;
 
 /**
  * An object which guesses probable key events for typing correction feature.
  *
- * <p>We can use following values as touch event statistics, which are store in the file system.
+ * <p>We can use following values as touch event statistics, which are stored in {@link
+ * TouchStatisticsStore}.
  *
  * <ul>
  *   <li>Average of start position (X and Y).
@@ -72,58 +61,12 @@ import sh.eliza.japaneseinput.util.LeastRecentlyUsedCacheMap;
  *
  * We use probability distribution of 4-dimentional Gaussian distribution as likelihood function. We
  * cannot use covariance so we assume that each elements are orthogonal (covariance is 0).
+ *
+ * <p>If a user profile directory is given, the statistics are adapted to the user by {@link
+ * AdaptiveTouchModel}, learning from the key events which are not corrected by backspace.
  */
 public class ProbableKeyEventGuesser {
 
-  /**
-   * Accessor for stats files.
-   *
-   * <p>Extracted as an interface for testing.
-   */
-  private interface StatsFileAccessor {
-    InputStream openStream(Keyboard keyboard, Configuration configuration) throws IOException;
-  }
-
-  /** Concrete implementation of StatsFileAccessor, using AssetManager. */
-  private static final class StatsFileAccessorImpl implements StatsFileAccessor {
-
-    private final AssetManager assetManager;
-    private final List<String> assetFileNames;
-
-    StatsFileAccessorImpl(AssetManager assetManager) {
-      this.assetManager = Preconditions.checkNotNull(assetManager);
-      this.assetFileNames = Preconditions.checkNotNull(getAssetFileNameList(assetManager));
-    }
-
-    private static List<String> getAssetFileNameList(AssetManager assetManager) {
-      try {
-        return Collections.unmodifiableList(Arrays.asList(assetManager.list("")));
-      } catch (IOException e) {
-        MozcLog.e("Accessing asset is failed.");
-      }
-      return Collections.emptyList();
-    }
-
-    @Override
-    public InputStream openStream(Keyboard keyboard, Configuration configuration)
-        throws IOException {
-      Preconditions.checkNotNull(keyboard);
-      Preconditions.checkNotNull(configuration);
-
-      String baseName = keyboard.getSpecification().getKeyboardSpecificationName().baseName;
-      String orientation = KeyboardSpecificationName.getDeviceOrientationString(configuration);
-      String fileName = String.format("%s_%s.touch_stats", baseName, orientation);
-      Preconditions.checkArgument(
-          !fileName.contains(File.separator), "fileName shouldn't include separator.");
-      for (String file : assetFileNames) {
-        if (file.equals(fileName)) {
-          return assetManager.open(fileName);
-        }
-      }
-      throw new IOException(String.format("%s is not found.", fileName));
-    }
-  }
-
   /**
    * Calculator of likelihood.
    *
@@ -131,173 +74,205 @@ public class ProbableKeyEventGuesser {
    */
   private interface LikelihoodCalculator {
 
+    /**
+     * Returns the likelihood of the key at {@code slot}, whose values are laid out as described in
+     * {@link KeyboardEventStatistics}.
+     */
     double getLikelihood(
-        float firstX, float firstY, float deltaX, float deltaY, float[] probableEvent);
+        float firstX, float firstY, float deltaX, float deltaY, float[] values, int size, int slot);
   }
 
   /** Concrete implementation of LikelihoodCalculator. */
   private static final class LikelihoodCalculatorImpl implements LikelihoodCalculator {
 
+    private final double startPositionThreshold;
+
+    LikelihoodCalculatorImpl(double startPositionThreshold) {
+      this.startPositionThreshold = startPositionThreshold;
+    }
+
     @Override
     public double getLikelihood(
-        float firstX, float firstY, float deltaX, float deltaY, float[] probableEvent) {
-      Preconditions.checkNotNull(probableEvent);
-
-      float sdx = firstX - probableEvent[START_X_AVG];
-      float sdy = firstY - probableEvent[START_Y_AVG];
+        float firstX,
+        float firstY,
+        float deltaX,
+        float deltaY,
+        float[] values,
+        int size,
+        int slot) {
+      float sdx = firstX - values[START_X_AVG * size + slot];
+      float sdy = firstY - values[START_Y_AVG * size + slot];
       // Keys that are too far away from user's touch-down position
       // are not considered as possibilities
-      if (Math.abs(sdx) > START_POSITION_THRESHOLD || Math.abs(sdy) > START_POSITION_THRESHOLD) {
+      if (Math.abs(sdx) > startPositionThreshold || Math.abs(sdy) > startPositionThreshold) {
         return 0;
       }
       double sdx2 = sdx * sdx;
       double sdy2 = sdy * sdy;
 
-      float ddx = deltaX - probableEvent[DELTA_X_AVG];
-      float ddy = deltaY - probableEvent[DELTA_Y_AVG];
+      float ddx = deltaX - values[DELTA_X_AVG * size + slot];
+      float ddy = deltaY - values[DELTA_Y_AVG * size + slot];
       double ddx2 = ddx * ddx;
       double ddy2 = ddy * ddy;
       return Math.exp(
-              -(sdx2 / (probableEvent[START_X_VAR])
-                      + sdy2 / (probableEvent[START_Y_VAR])
-                      + ddx2 / (probableEvent[DELTA_X_VAR])
-                      + ddy2 / (probableEvent[DELTA_X_VAR]))
+              -(sdx2 / (values[START_X_VAR * size + slot])
+                      + sdy2 / (values[START_Y_VAR * size + slot])
+                      + ddx2 / (values[DELTA_X_VAR * size + slot])
+                      + ddy2 / (values[DELTA_X_VAR * size + slot]))
                   / 2d)
-          / probableEvent[PRECALCULATED_DENOMINATOR];
+          / values[PRECALCULATED_DENOMINATOR * size + slot];
     }
   }
 
   /**
-   * A Runnable to load a stats file and calls back a {@link UpdateStatsListener} with loaded stats.
+   * Touch event statistics bound to the key codes of a {@link Keyboard}, copied into a flat array
+   * in structure-of-arrays form.
    *
-   * <p>File access itself and updating the stats (via UpdateStatsListener) are done on the caller's
-   * thread (so worker thread can be applicable). So if you want to run the process asyncnously,
+   * <p>The {@code i}-th value (see the tags below) of the key at {@code slot} is {@code values[i *
+   * size + slot]}, so that the likelihood calculation reads a few contiguous runs of floats instead
+   * of chasing an array per key.
    *
-   * <ul>
-   *   <li>Run this on a worker thread.
-   *   <li>Make UpdateStatsListener thread safe or make it run on the UI thread.
-   * </ul>
+   * <p>The statistics shipped in {@link EventStatistics} are blended with the ones learned on the
+   * device, if any. Only the keys with shipped statistics are guessed, so that the learned ones
+   * never enable guessing by themselves. Keys without a key code, i.e. special keys and ones
+   * missing in the keyboard, are dropped. The others are sorted by key code, then by source id, so
+   * that probable key events are ordered by key code, and the largest source id above the
+   * threshold wins when several of them share a key code.
    */
-  private static final class StatisticsLoader implements Runnable {
-
-    private interface UpdateStatsListener {
-      void updateStats(String formattedKeyboardName, SparseArray<float[]> stats);
-    }
-
-    private final Keyboard keyboard;
-    private final Configuration configuration;
-    private final StatsFileAccessor statsFileAccessor;
-    private final UpdateStatsListener updateStatsListener;
-
-    /**
-     * @param statsFileAccessor an accessor for stats files. Must be non-null.
-     * @param keyboard a {@link Keyboard} to specify the file to be loaded.
-     * @param configuration a {@link Configuration} to specify the file to be loaded
-     * @param formattedKeyboardNameToStats a {@link Map} to be updated. Must be non-null.
-     * @param updateStatsExecutor an Executor on which the result is propagated
-     */
-    private StatisticsLoader(
-        StatsFileAccessor statsFileAccessor,
-        Keyboard keyboard,
-        Configuration configuration,
-        final Map<String, SparseArray<float[]>> formattedKeyboardNameToStats,
-        final Executor updateStatsExecutor) {
-      this(
-          statsFileAccessor,
-          keyboard,
-          configuration,
-          new UpdateStatsListener() {
-            @Override
-            public void updateStats(
-                final String formattedKeyboardName, final SparseArray<float[]> stats) {
-              Preconditions.checkNotNull(formattedKeyboardName);
-              Preconditions.checkNotNull(stats);
-              updateStatsExecutor.execute(
-                  new Runnable() {
-                    @Override
-                    public void run() {
-                      formattedKeyboardNameToStats.put(formattedKeyboardName, stats);
-                    }
-                  });
-            }
-          });
+  static final class KeyboardEventStatistics {
+
+    final Keyboard keyboard;
+    final EventStatistics source;
+    final Optional<KeyboardModel> learned;
+    final int size;
+    final float[] values;
+    // Source id of each slot.
+    final int[] sourceIds;
+    // Slot in source of each slot.
+    final int[] sourceSlots;
+    // Index of keyCodes for each slot.
+    final int[] keyCodeIndices;
+    // Distinct key codes in ascending order.
+    final int[] keyCodes;
+    // Scratch space for the likelihood of each key code, reused by every calculation.
+    final double[] likelihoods;
+    // The versions of learned reflected in values.
+    int learnedVersion;
+    final int learnedLayoutVersion;
+
+    KeyboardEventStatistics(
+        Keyboard keyboard, EventStatistics source, Optional<KeyboardModel> learned) {
+      this.keyboard = Preconditions.checkNotNull(keyboard);
+      this.source = Preconditions.checkNotNull(source);
+      this.learned = Preconditions.checkNotNull(learned);
+
+      // Sort the slots having a key code as (keyCode << 32 | source slot). The source slots are
+      // already sorted by source id.
+      long[] sortKeys = new long[source.size];
+      int size = 0;
+      for (int i = 0; i < source.size; ++i) {
+        int keyCode = keyboard.getKeyCode(source.sourceIds.get(i));
+        // Special key or non-existent-key.
+        // Don't produce probable key events.
+        if (keyCode <= 0) {
+          continue;
+        }
+        sortKeys[size++] = ((long) keyCode << 32) | i;
+      }
+      Arrays.sort(sortKeys, 0, size);
+
+      this.size = size;
+      this.values = new float[VALUE_COUNT * size];
+      this.sourceIds = new int[size];
+      this.sourceSlots = new int[size];
+      this.keyCodeIndices = new int[size];
+      int[] keyCodes = new int[size];
+      int keyCodeCount = 0;
+      for (int slot = 0; slot < size; ++slot) {
+        int keyCode = (int) (sortKeys[slot] >>> 32);
+        int i = (int) sortKeys[slot];
+        sourceIds[slot] = source.sourceIds.get(i);
+        sourceSlots[slot] = i;
+        updateSlot(slot);
+        if (keyCodeCount == 0 || keyCodes[keyCodeCount - 1] != keyCode) {
+          keyCodes[keyCodeCount++] = keyCode;
+        }
+        keyCodeIndices[slot] = keyCodeCount - 1;
+      }
+      this.keyCodes = Arrays.copyOf(keyCodes, keyCodeCount);
+      this.likelihoods = new double[keyCodeCount];
+      this.learnedVersion = learned.isPresent() ? learned.get().version : 0;
+      this.learnedLayoutVersion = learned.isPresent() ? learned.get().layoutVersion : 0;
     }
 
-    private StatisticsLoader(
-        StatsFileAccessor statsFileAccessor,
-        Keyboard keyboard,
-        Configuration configuration,
-        UpdateStatsListener updateStatsListener) {
-      this.statsFileAccessor = Preconditions.checkNotNull(statsFileAccessor);
-      this.keyboard = Preconditions.checkNotNull(keyboard);
-      this.configuration = Preconditions.checkNotNull(configuration);
-      this.updateStatsListener = Preconditions.checkNotNull(updateStatsListener);
+    /** Returns {@code true} if values reflect the latest learned statistics. */
+    boolean isUpToDate() {
+      return !learned.isPresent() || learned.get().version == learnedVersion;
     }
 
     /**
-     * Reads an {@link InputStream} and updates given {@link SparseArray}.
-     *
-     * @param stream an {@link InputStream} to be read
-     * @param statsToUpdate a {@link SparseArray} which maps source_id to the values. Expected to be
-     *     empty.
-     * @throws IOException when stream access fails
+     * Reflects the learned statistics of {@code sourceId}, which are the only ones changed since
+     * the last update, in place.
      */
-    private void readStream(DataInputStream stream, SparseArray<float[]> statsToUpdate)
-        throws IOException {
-      int length = stream.readInt();
-      for (int i = 0; i < length; ++i) {
-        int sourceId = stream.readInt();
-        float[] stats = new float[9];
-        for (int j = 0; j < 8; ++j) {
-          stats[j] = stream.readFloat();
+    void onLearned(int sourceId) {
+      Preconditions.checkState(learned.isPresent());
+      if (learned.get().layoutVersion != learnedLayoutVersion
+          || learned.get().version != learnedVersion + 1) {
+        // Keys have been inserted or removed. Leave it out of date to be rebuilt.
+        return;
+      }
+      for (int slot = 0; slot < size; ++slot) {
+        if (sourceIds[slot] == sourceId) {
+          updateSlot(slot);
         }
-        stats[PRECALCULATED_DENOMINATOR] =
-            (float)
-                Math.sqrt(
-                    stats[START_X_VAR]
-                        * stats[START_Y_VAR]
-                        * stats[DELTA_X_VAR]
-                        * stats[DELTA_Y_VAR]);
-        statsToUpdate.put(sourceId, stats);
       }
+      learnedVersion = learned.get().version;
     }
 
-    @Override
-    public void run() {
-      SparseArray<float[]> result = new SparseArray<float[]>(MAX_KEY_NUMBER_IN_KEYBOARD);
-      InputStream inputStream = null;
-      try {
-        inputStream = statsFileAccessor.openStream(keyboard, configuration);
-        readStream(new DataInputStream(inputStream), result);
-      } catch (IOException e) {
-        MozcLog.d("Stream access fails.", e);
-        return;
-      } finally {
-        try {
-          if (inputStream != null) {
-            MozcUtil.close(inputStream, true);
-          }
-        } catch (IOException e) {
-          // Never reach here.
+    /** Fills the values of {@code slot}, blending the shipped and the learned statistics. */
+    private void updateSlot(int slot) {
+      int sourceSlot = sourceSlots[slot];
+      int learnedIndex = learned.isPresent() ? learned.get().indexOf(sourceIds[slot]) : -1;
+      float weight = learnedIndex >= 0 ? learned.get().getWeight(learnedIndex) : 0;
+      // The ratio of the learned statistics in the mixture. The shipped ones weigh as much as
+      // SOURCE_WEIGHT touches.
+      float ratio = weight / (SOURCE_WEIGHT + weight);
+      for (int dimension = 0; dimension < AdaptiveTouchModel.DIMENSION_COUNT; ++dimension) {
+        int averageIndex = AVERAGE_TAGS[dimension] * size + slot;
+        int varianceIndex = VARIANCE_TAGS[dimension] * size + slot;
+        FloatBuffer sourceValues = source.values;
+        float sourceAverage = sourceValues.get(AVERAGE_TAGS[dimension] * source.size + sourceSlot);
+        float sourceVariance =
+            sourceValues.get(VARIANCE_TAGS[dimension] * source.size + sourceSlot);
+        if (ratio == 0) {
+          values[averageIndex] = sourceAverage;
+          values[varianceIndex] = sourceVariance;
+          continue;
         }
+        float learnedAverage = learned.get().getMean(dimension, learnedIndex);
+        float learnedVariance = learned.get().getVariance(dimension, learnedIndex);
+        // The mean and the variance of the mixture of both.
+        float average = (1 - ratio) * sourceAverage + ratio * learnedAverage;
+        float sourceDistance = sourceAverage - average;
+        float learnedDistance = learnedAverage - average;
+        float variance =
+            (1 - ratio) * (sourceVariance + sourceDistance * sourceDistance)
+                + ratio * (learnedVariance + learnedDistance * learnedDistance);
+        values[averageIndex] = average;
+        values[varianceIndex] = Math.max(variance, MIN_LEARNED_VARIANCE);
       }
-      // Successfully loaded the file so call back updateStatsListener.
-      String formattedKeyboardName =
-          keyboard
-              .getSpecification()
-              .getKeyboardSpecificationName()
-              .formattedKeyboardName(configuration);
-      updateStatsListener.updateStats(formattedKeyboardName, result);
+      values[PRECALCULATED_DENOMINATOR * size + slot] =
+          (float)
+              Math.sqrt(
+                  values[START_X_VAR * size + slot]
+                      * values[START_Y_VAR * size + slot]
+                      * values[DELTA_X_VAR * size + slot]
+                      * values[DELTA_Y_VAR * size + slot]);
     }
   }
 
   // Tags for stats data.
-  // The file format is
-  // size : int
-  // repeat for #size {
-  //   source_id : int
-  //   values : float[8]
-  // }
+  // The first TouchStatisticsStore.STORED_VALUE_COUNT values are stored in the asset.
   // The values should be accessed via below tags.
   private static final int START_X_AVG = 0;
   private static final int START_Y_AVG = 1;
@@ -309,48 +284,55 @@ public class ProbableKeyEventGuesser {
   private static final int DELTA_Y_VAR = 7;
   // Pre-calculated value for the probability calculation.
   private static final int PRECALCULATED_DENOMINATOR = 8;
+  // The number of the values per key.
+  private static final int VALUE_COUNT = 9;
+  // Tags of the average and the variance of each dimension of AdaptiveTouchModel.
+  private static final int[] AVERAGE_TAGS = {START_X_AVG, START_Y_AVG, DELTA_X_AVG, DELTA_Y_AVG};
+  private static final int[] VARIANCE_TAGS = {START_X_VAR, START_Y_VAR, DELTA_X_VAR, DELTA_Y_VAR};
+
+  // The number of touches the shipped stats weigh as, when blended with the learned ones.
+  private static final float SOURCE_WEIGHT = 32;
+  // Lower bound of the blended variances, as few touches can have almost no variance.
+  private static final float MIN_LEARNED_VARIANCE = 1e-5f;
 
   // Threshold of likelihood. Such probable events of which likelihood is under the threshold
   // are not sent to the server.
-  private static final double LIKELIHOOD_THRESHOLD = 1E-30;
+  static final double LIKELIHOOD_THRESHOLD = 1E-30;
 
   // Threshold of start position. Far probable events than the threshold are not sent.
-  private static final double START_POSITION_THRESHOLD = 0.25;
+  static final double START_POSITION_THRESHOLD = 0.25;
 
-  // Loaded stats are cached. This value is the size of the LRU cache.
-  private static final int MAX_LRU_CACHE_CAPACITY = 6;
+  // The store of the stats of all the keyboards.
+  private final TouchStatisticsStore store;
 
-  // Estimated maximum number of keys in a keyboard.
-  // Currently 64 is enough because even in mobile-qwerty keyboard has less than 40 keys.
-  // Even if there are more keys than this, nothing will happen except for (very) small
-  // performance change.
-  private static final int MAX_KEY_NUMBER_IN_KEYBOARD = 64;
+  // Current Keyboard.
+  private Optional<Keyboard> keyboard = Optional.absent();
 
-  // LRU cache of the stats.
-  // formattedKeyboardName -> souce_id -> statistic values.
-  private final Map<String, SparseArray<float[]>> formattedKeyboardNameToStats =
-      new LeastRecentlyUsedCacheMap<String, SparseArray<float[]>>(MAX_LRU_CACHE_CAPACITY);
+  // Current Configuration.
+  private Optional<Configuration> configuration = Optional.absent();
 
-  // StatsFileAccessor to access the files under assets/ directory.
-  private final StatsFileAccessor statsFileAccessor;
+  // The stats bound to the current keyboard, which are rebuilt when either of them is changed.
+  private Optional<KeyboardEventStatistics> keyboardEventStatistics = Optional.absent();
 
-  // An Executor to load the statistic files asynchronously.
-  private final ThreadPoolExecutor dataLoadExecutor;
+  // The stats for the current keyboard and configuration.
+  private Optional<EventStatistics> eventStatistics = Optional.absent();
 
-  // An Executor to propagate loaded statistics data.
-  // Invoked from the thread which dataLoadExecutor uses.
-  private final Executor dataPropagationExecutor;
+  // The model learning the stats of the user, if enabled.
+  private final Optional<AdaptiveTouchModel> adaptiveTouchModel;
 
-  // Current Keyboard.
-  private Optional<Keyboard> keyboard = Optional.absent();
+  // The name of the stats for the current keyboard and configuration.
+  private Optional<String> eventStatisticsName = Optional.absent();
 
-  // Current Configuration.
-  private Optional<Configuration> configuration = Optional.absent();
+  // The learned stats for the current keyboard and configuration.
+  private Optional<KeyboardModel> learnedStatistics = Optional.absent();
 
-  // Formatted keyboard name.
-  // This can be calculated from keyboard and configuration so is derivative variable.
-  // Just for cache.
-  private Optional<String> formattedKeyboardName = Optional.absent();
+  // The touch to be learned unless it is corrected by the next key event.
+  private Optional<String> pendingName = Optional.absent();
+  private int pendingSourceId;
+  private float pendingFirstX;
+  private float pendingFirstY;
+  private float pendingDeltaX;
+  private float pendingDeltaY;
 
   // Threshold of very small likelihood.
   private final double likelihoodThreshold;
@@ -361,46 +343,64 @@ public class ProbableKeyEventGuesser {
   /**
    * @param assetManager an AssertManager to access the stats files. Must be non-null.
    */
-  public ProbableKeyEventGuesser(final AssetManager assetManager) {
-    Preconditions.checkNotNull(assetManager);
-    this.statsFileAccessor = new StatsFileAccessorImpl(assetManager);
-    this.likelihoodThreshold = LIKELIHOOD_THRESHOLD;
-
-    // Execute file loading on another thread.
-    // Typically once commonly used keyboard's stats are loaded,
-    // file access will not be done any more typically.
-    // Thus corePoolSize = 0.
-    this.dataLoadExecutor =
-        new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1));
-
-    // Execute propagation of read stats data on current thread.
-    // By this we can avoid from synchronized keywords.
-    this.dataPropagationExecutor =
-        new Executor() {
-          private final Handler mainloopHandler = new Handler(Looper.getMainLooper());
-
-          @Override
-          public void execute(Runnable command) {
-            mainloopHandler.post(command);
-          }
-        };
-
-    this.likelihoodCalculator = new LikelihoodCalculatorImpl();
+  public ProbableKeyEventGuesser(AssetManager assetManager) {
+    this(
+        assetManager,
+        Optional.<AdaptiveTouchModel>absent(),
+        LIKELIHOOD_THRESHOLD,
+        START_POSITION_THRESHOLD);
+  }
+
+  /**
+   * @param assetManager an AssertManager to access the stats files. Must be non-null.
+   * @param userProfileDirectory a directory to store the stats learned from the user.
+   */
+  public ProbableKeyEventGuesser(AssetManager assetManager, File userProfileDirectory) {
+    this(
+        assetManager,
+        Optional.of(new AdaptiveTouchModel(userProfileDirectory)),
+        LIKELIHOOD_THRESHOLD,
+        START_POSITION_THRESHOLD);
+  }
+
+  /** Creates a guesser with the given thresholds, to evaluate them offline. Never learns. */
+  ProbableKeyEventGuesser(
+      AssetManager assetManager, double likelihoodThreshold, double startPositionThreshold) {
+    this(
+        assetManager,
+        Optional.<AdaptiveTouchModel>absent(),
+        likelihoodThreshold,
+        startPositionThreshold);
+  }
+
+  private ProbableKeyEventGuesser(
+      AssetManager assetManager,
+      Optional<AdaptiveTouchModel> adaptiveTouchModel,
+      double likelihoodThreshold,
+      double startPositionThreshold) {
+    this.store = TouchStatisticsStore.getInstance(Preconditions.checkNotNull(assetManager));
+    this.adaptiveTouchModel = Preconditions.checkNotNull(adaptiveTouchModel);
+    this.likelihoodThreshold = likelihoodThreshold;
+    this.likelihoodCalculator = new LikelihoodCalculatorImpl(startPositionThreshold);
+  }
+
+  /**
+   * Deletes the stats learned from the user in {@code userProfileDirectory}, e.g. when the user
+   * clears the conversion history. The guessers in use stop using them on their next key event.
+   */
+  public static void clearLearnedStatistics(File userProfileDirectory) {
+    AdaptiveTouchModel.clear(userProfileDirectory);
   }
 
   /**
    * Sets a {@link Keyboard}.
    *
-   * <p>This invocation might load a stats data file (typically) asynchronously. Before the loading
-   * has finished {@link #getProbableKeyEvents(List)} cannot return any probable key events.
-   *
    * @see #getProbableKeyEvents(List)
    * @param keyboard a {@link Keyboard} to be set.
    */
   public void setKeyboard(Keyboard keyboard) {
     this.keyboard = Optional.of(keyboard);
-    updateFormattedKeyboardName();
-    maybeUpdateEventStatistics();
+    updateEventStatistics();
   }
 
   /**
@@ -412,97 +412,91 @@ public class ProbableKeyEventGuesser {
    */
   public void setConfiguration(Optional<Configuration> configuration) {
     this.configuration = Preconditions.checkNotNull(configuration);
-    updateFormattedKeyboardName();
-    maybeUpdateEventStatistics();
+    updateEventStatistics();
   }
 
-  /** Updates (cached) {@link #formattedKeyboardName}. */
-  private void updateFormattedKeyboardName() {
+  /** Looks up the stats for the current {@code Keyboard} and {@code Configuration}. */
+  private void updateEventStatistics() {
     if (!keyboard.isPresent() || !configuration.isPresent()) {
-      formattedKeyboardName = Optional.absent();
+      eventStatisticsName = Optional.absent();
+      eventStatistics = Optional.absent();
+      learnedStatistics = Optional.absent();
       return;
     }
-    formattedKeyboardName =
-        Optional.of(
-            keyboard
-                .get()
-                .getSpecification()
-                .getKeyboardSpecificationName()
-                .formattedKeyboardName(configuration.get()));
+    String name =
+        TouchStatisticsStore.getName(
+            keyboard.get().getSpecification().getKeyboardSpecificationName(),
+            configuration.get());
+    eventStatisticsName = Optional.of(name);
+    eventStatistics = store.get(name);
+    learnedStatistics =
+        adaptiveTouchModel.isPresent()
+            ? adaptiveTouchModel.get().get(name)
+            : Optional.<KeyboardModel>absent();
   }
 
-  /**
-   * If stats for current {@code Keyboard} and {@code Configuration} has not been loaded, load and
-   * update it asynchronously.
-   *
-   * <p>Loading queue contains only the latest task. Older ones are discarded.
-   */
-  private void maybeUpdateEventStatistics() {
-    if (!formattedKeyboardName.isPresent() || !keyboard.isPresent() || !configuration.isPresent()) {
-      return;
-    }
-    if (!formattedKeyboardNameToStats.containsKey(formattedKeyboardName.get())) {
-      for (Runnable runnable : dataLoadExecutor.getQueue()) {
-        dataLoadExecutor.remove(runnable);
-      }
-      dataLoadExecutor.execute(
-          new StatisticsLoader(
-              statsFileAccessor,
-              keyboard.get(),
-              configuration.get(),
-              formattedKeyboardNameToStats,
-              dataPropagationExecutor));
-    }
+  /** Returns {@code true} if the stats for the current keyboard and configuration are available. */
+  boolean hasEventStatistics() {
+    return eventStatistics.isPresent();
   }
 
   /**
    * Calculates probable key events for given {@code touchEventList}.
    *
-   * <p>If corresponding stats data has not been loaded yet (file access is done asynchronously),
-   * empty list is returned.
+   * <p>The last touch event is the one of the key event. The preceding ones, if any, are touches of
+   * the other pointers which overlap it, e.g. the modifier key which flushed the key event while
+   * it was still held (see {@code KeyboardView#flushPendingKeyEvent}). Each key event is guessed
+   * independently from its own touch by {@link #getProbableKeyEvents(TouchEvent)}, so the other
+   * touches are not mixed in.
    *
-   * <p>TODO(matsuzakit): Change the caller side which expects null-return-value, before submitting
-   * this CL.
+   * <p>If no stats data is available for the current keyboard, empty list is returned.
    *
    * @param touchEventList a List of TouchEvents.
    */
   public List<ProbableKeyEvent> getProbableKeyEvents(List<TouchEvent> touchEventList) {
     Preconditions.checkNotNull(touchEventList);
+    if (touchEventList.isEmpty()) {
+      return Collections.emptyList();
+    }
+    TouchEvent event = touchEventList.get(touchEventList.size() - 1);
+    if (event == null) {
+      // KeyboardView sends null if the key has no entity for the touch.
+      return Collections.emptyList();
+    }
+    return getProbableKeyEvents(event);
+  }
+
+  /**
+   * Calculates probable key events for a single touch.
+   *
+   * <p>The touch must start with TOUCH_DOWN. It usually ends with TOUCH_UP, but it may end with
+   * TOUCH_DOWN or TOUCH_MOVE if the key is still held by a rolled over pointer, in which case the
+   * last position is regarded as the touch-up one.
+   *
+   * <p>If no stats data is available for the current keyboard, empty list is returned.
+   */
+  public List<ProbableKeyEvent> getProbableKeyEvents(TouchEvent event) {
+    Preconditions.checkNotNull(event);
+    maybeResetLearnedStatistics();
 
     // This method's responsibility is to pre-check the condition.
-    // Calculation itself is done in getProbableKeyEventsInternal method.
+    // Calculation itself is done in calculateLikelihoods method.
     if (!keyboard.isPresent() || !configuration.isPresent()) {
       // Keyboard has not been set up.
       return Collections.emptyList();
     }
-    if (touchEventList.size() != 1) {
-      // If size == 0 , we can do nothing.
-      // If size >= 2, this is special situation (saturating touch event) so do nothing.
-      return Collections.emptyList();
-    }
-    SparseArray<float[]> eventStatistics =
-        formattedKeyboardNameToStats.get(formattedKeyboardName.get());
-    if (eventStatistics == null) {
-      // No corresponding stats is available. Returning null.
-      // The stats we need might be pushed out from the LRU cache because of bulk-updates of
-      // Keyboard or Configuration.
-      // For such case we invoke maybeUpdateEventStatistics method to load the stats.
-      // This is very rare (and usually not happen) but just in case.
-      maybeUpdateEventStatistics();
+    if (!eventStatistics.isPresent()) {
+      // No corresponding stats is available. The learned ones only adjust the shipped ones.
       return Collections.emptyList();
     }
-    TouchEvent event = touchEventList.get(0);
-    if (event.getStrokeCount() < 2) {
-      // TOUCH_DOWN and TOUCH_UP should be included so at least two strokes should be in the event.
+    if (event.getStrokeCount() == 0) {
       return Collections.emptyList();
     }
     TouchPosition firstPosition = event.getStroke(0);
     TouchPosition lastPosition = event.getStroke(event.getStrokeCount() - 1);
-    // The sequence of TouchPositions must start with TOUCH_DOWN action and
-    // end with TOUCH_UP action.
+    // The sequence of TouchPositions must start with TOUCH_DOWN action.
     // Otherwise the sequence is special case so we do nothing.
-    if (firstPosition.getAction() != TouchAction.TOUCH_DOWN
-        || lastPosition.getAction() != TouchAction.TOUCH_UP) {
+    if (firstPosition.getAction() != TouchAction.TOUCH_DOWN) {
       return Collections.emptyList();
     }
     float firstX = firstPosition.getX();
@@ -510,12 +504,17 @@ public class ProbableKeyEventGuesser {
     float deltaX = lastPosition.getX() - firstX;
     float deltaY = lastPosition.getY() - firstY;
 
-    // Calculates a map, keyCode -> likelihood.
-    SparseArray<Double> likelihoodArray =
-        getLikelihoodArray(eventStatistics, firstX, firstY, deltaX, deltaY);
+    // Calculates keyCode -> likelihood into the scratch array.
+    KeyboardEventStatistics statistics = getKeyboardEventStatistics();
+    double[] likelihoods = statistics.likelihoods;
+    calculateLikelihoods(statistics, firstX, firstY, deltaX, deltaY);
     double sumLikelihood = 0;
-    for (int i = 0; i < likelihoodArray.size(); ++i) {
-      sumLikelihood += likelihoodArray.valueAt(i);
+    int count = 0;
+    for (double likelihood : likelihoods) {
+      if (likelihood > 0) {
+        sumLikelihood += likelihood;
+        ++count;
+      }
     }
     // If no probable events are available or something wrong happened on the calculation,
     // return empty list.
@@ -523,53 +522,148 @@ public class ProbableKeyEventGuesser {
       return Collections.emptyList();
     }
     // Construct the result list, converting from likelihood to probability.
-    List<ProbableKeyEvent> result = new ArrayList<ProbableKeyEvent>(likelihoodArray.size());
-    for (int i = 0; i < likelihoodArray.size(); ++i) {
-      int keyCode = likelihoodArray.keyAt(i);
-      double likelihood = likelihoodArray.valueAt(i);
+    List<ProbableKeyEvent> result = new ArrayList<ProbableKeyEvent>(count);
+    for (int i = 0; i < likelihoods.length; ++i) {
+      if (likelihoods[i] <= 0) {
+        continue;
+      }
       ProbableKeyEvent probableKeyEvent =
           ProbableKeyEvent.newBuilder()
-              .setProbability(likelihood / sumLikelihood)
-              .setKeyCode(keyCode)
+              .setProbability(likelihoods[i] / sumLikelihood)
+              .setKeyCode(statistics.keyCodes[i])
               .build();
       result.add(probableKeyEvent);
     }
     return result;
   }
 
+  /** Returns the stats bound to the current keyboard, reusing the last one if up to date. */
+  private KeyboardEventStatistics getKeyboardEventStatistics() {
+    Preconditions.checkState(keyboard.isPresent());
+    if (!isCurrent(keyboardEventStatistics) || !keyboardEventStatistics.get().isUpToDate()) {
+      keyboardEventStatistics =
+          Optional.of(
+              new KeyboardEventStatistics(
+                  keyboard.get(), eventStatistics.get(), learnedStatistics));
+    }
+    return keyboardEventStatistics.get();
+  }
+
+  /** Returns {@code true} if {@code statistics} are built from the current stats. */
+  private boolean isCurrent(Optional<KeyboardEventStatistics> statistics) {
+    return statistics.isPresent()
+        && keyboard.isPresent()
+        && statistics.get().keyboard == keyboard.get()
+        && statistics.get().source == eventStatistics.orNull()
+        && statistics.get().learned.orNull() == learnedStatistics.orNull();
+  }
+
   /**
-   * Returns a SparseArray which maps from keyCode to likelihood.
+   * Learns the touch of {@code touchEventList}, which has produced a key event.
    *
-   * @return a SparseArray (non-null). The size might be 0. Its values are not NaN.
+   * <p>The touch is held until the next key event, and dropped if it is backspace (see {@link
+   * #cancelLearning()}), so that mistyped keys aren't learned. As in {@link
+   * #getProbableKeyEvents(List)}, the touch of the key event is the last one, and it is learned
+   * only if it has been released, as held ones don't represent the whole stroke. Does nothing
+   * unless a user profile directory is given.
    */
-  private SparseArray<Double> getLikelihoodArray(
-      SparseArray<float[]> eventStatistics,
+  public void learn(List<TouchEvent> touchEventList) {
+    Preconditions.checkNotNull(touchEventList);
+    if (!adaptiveTouchModel.isPresent()) {
+      return;
+    }
+    maybeResetLearnedStatistics();
+    commitPendingTouch();
+    if (!eventStatisticsName.isPresent() || touchEventList.isEmpty()) {
+      return;
+    }
+    TouchEvent event = touchEventList.get(touchEventList.size() - 1);
+    if (event == null || !event.hasSourceId() || event.getStrokeCount() < 2) {
+      return;
+    }
+    TouchPosition firstPosition = event.getStroke(0);
+    TouchPosition lastPosition = event.getStroke(event.getStrokeCount() - 1);
+    if (firstPosition.getAction() != TouchAction.TOUCH_DOWN
+        || lastPosition.getAction() != TouchAction.TOUCH_UP) {
+      return;
+    }
+    pendingName = eventStatisticsName;
+    pendingSourceId = event.getSourceId();
+    pendingFirstX = firstPosition.getX();
+    pendingFirstY = firstPosition.getY();
+    pendingDeltaX = lastPosition.getX() - pendingFirstX;
+    pendingDeltaY = lastPosition.getY() - pendingFirstY;
+  }
+
+  /** Drops the touch given to the last {@link #learn(List)}, as its key event is corrected. */
+  public void cancelLearning() {
+    pendingName = Optional.absent();
+  }
+
+  /** Writes the learned stats to the user profile directory in background, if changed. */
+  public void saveLearnedStatistics() {
+    if (!adaptiveTouchModel.isPresent()) {
+      return;
+    }
+    maybeResetLearnedStatistics();
+    commitPendingTouch();
+    adaptiveTouchModel.get().save();
+  }
+
+  /** Stops using the learned stats, including the pending touch, if they have been cleared. */
+  private void maybeResetLearnedStatistics() {
+    if (adaptiveTouchModel.isPresent() && adaptiveTouchModel.get().resetIfCleared()) {
+      pendingName = Optional.absent();
+      updateEventStatistics();
+    }
+  }
+
+  private void commitPendingTouch() {
+    if (!pendingName.isPresent()) {
+      return;
+    }
+    String name = pendingName.get();
+    pendingName = Optional.absent();
+    KeyboardModel model =
+        adaptiveTouchModel
+            .get()
+            .observe(
+                name, pendingSourceId, pendingFirstX, pendingFirstY, pendingDeltaX, pendingDeltaY);
+    if (!eventStatisticsName.isPresent() || !eventStatisticsName.get().equals(name)) {
+      return;
+    }
+    // The model may have just been created by the first touch on the current keyboard.
+    learnedStatistics = Optional.of(model);
+    // Reflect the touch in place, rather than rebuilding the bound stats every key event.
+    if (isCurrent(keyboardEventStatistics)) {
+      keyboardEventStatistics.get().onLearned(pendingSourceId);
+    }
+  }
+
+  /**
+   * Fills {@code statistics.likelihoods}, which maps from the index of a key code to its
+   * likelihood.
+   *
+   * <p>Likelihoods which are too small or invalid are 0. Never allocates.
+   */
+  private void calculateLikelihoods(
+      KeyboardEventStatistics statistics,
       float firstX,
       float firstY,
       float deltaX,
       float deltaY) {
-    Preconditions.checkNotNull(eventStatistics);
-    Preconditions.checkState(keyboard.isPresent());
-
-    SparseArray<Double> result = new SparseArray<Double>(eventStatistics.size());
-    Keyboard keyboard = this.keyboard.get();
-    for (int i = 0; i < eventStatistics.size(); ++i) {
-      int sourceId = eventStatistics.keyAt(i);
-      int keyCode = keyboard.getKeyCode(sourceId);
-      // Special key or non-existent-key.
-      // Don't produce probable key events.
-      if (keyCode <= 0) {
-        continue;
-      }
+    double[] likelihoods = statistics.likelihoods;
+    Arrays.fill(likelihoods, 0);
+    float[] values = statistics.values;
+    int size = statistics.size;
+    for (int slot = 0; slot < size; ++slot) {
       double likelihood =
-          likelihoodCalculator.getLikelihood(
-              firstX, firstY, deltaX, deltaY, eventStatistics.get(sourceId));
+          likelihoodCalculator.getLikelihood(firstX, firstY, deltaX, deltaY, values, size, slot);
       // Filter out too small likelihood and invalid value.
       if (likelihood <= likelihoodThreshold || Double.isNaN(likelihood)) {
         continue;
       }
-      result.put(keyCode, likelihood);
+      likelihoods[statistics.keyCodeIndices[slot]] = likelihood;
     }
-    return result;
   }
 }
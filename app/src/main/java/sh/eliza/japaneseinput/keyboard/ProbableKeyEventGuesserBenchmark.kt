@@ -0,0 +1,187 @@
+package sh.eliza.japaneseinput.keyboard
+
+import android.content.Context
+import android.os.Debug
+import com.google.common.base.Optional
+import java.util.Locale
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.TouchAction
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.TouchEvent
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.TouchPosition
+import sh.eliza.japaneseinput.keyboard.Keyboard.KeyboardSpecification
+
+private const val DEFAULT_ITERATIONS = 200
+private const val WARM_UP_ITERATIONS = 20
+
+// Offsets of the touch-down position from the key center, and of the touch-up position from the
+// touch-down position, as fractions of the key size.
+private val TOUCH_OFFSETS = floatArrayOf(-0.4f, 0f, 0.4f)
+
+private val SPECIFICATIONS =
+  listOf(
+    KeyboardSpecification.TWELVE_KEY_TOGGLE_FLICK_KANA,
+    KeyboardSpecification.QWERTY_KANA,
+    KeyboardSpecification.GODAN_KANA,
+  )
+
+/**
+ * Measures the latency and allocations of [ProbableKeyEventGuesser.getProbableKeyEvents].
+ *
+ * Taps around the center of every key of a few keyboards, with and without a small drag. Each
+ * keyboard is also run with rolled over touches, where the key is still held when its key event is
+ * flushed by the touch of another pointer, as KeyboardView sends them. The coverage is the ratio of
+ * the calls which have any probable key events. Keyboards whose touch statistics aren't bundled are
+ * skipped. This must not be run on the UI thread.
+ */
+object ProbableKeyEventGuesserBenchmark {
+  /** Result of a single keyboard's run. */
+  class Result(
+    val name: String,
+    val callCount: Int,
+    val nanosPerCall: Double,
+    val objectsPerCall: Double,
+    val bytesPerCall: Double,
+    val eventsPerCall: Double,
+    val coverage: Double,
+  ) {
+    override fun toString(): String =
+      String.format(
+        Locale.US,
+        "%s: %d calls, %.2f us/call, %.1f objects/call, %.1f bytes/call, %.1f events/call, " +
+          "%.1f%% coverage",
+        name,
+        callCount,
+        nanosPerCall / 1000.0,
+        objectsPerCall,
+        bytesPerCall,
+        eventsPerCall,
+        coverage * 100,
+      )
+  }
+
+  @JvmStatic
+  @JvmOverloads
+  fun run(context: Context, iterations: Int = DEFAULT_ITERATIONS): List<Result> {
+    val resources = context.resources
+    val width = resources.displayMetrics.widthPixels
+    val height = width * 2 / 3
+    val factory = KeyboardFactory()
+    val results = mutableListOf<Result>()
+    for (specification in SPECIFICATIONS) {
+      val keyboard = factory[resources, specification, width, height]
+      val guesser = ProbableKeyEventGuesser(context.assets)
+      guesser.setConfiguration(Optional.of(resources.configuration))
+      guesser.setKeyboard(keyboard)
+      if (!guesser.hasEventStatistics()) {
+        continue
+      }
+      val touchEvents = createTouchEvents(keyboard, width, height)
+      results.add(run(specification.name, guesser, touchEvents, iterations))
+      results.add(
+        run(
+          "${specification.name} rollover",
+          guesser,
+          createRolloverTouchEvents(touchEvents),
+          iterations,
+        )
+      )
+    }
+    return results
+  }
+
+  private fun run(
+    name: String,
+    guesser: ProbableKeyEventGuesser,
+    touchEvents: List<List<TouchEvent>>,
+    iterations: Int,
+  ): Result {
+    repeat(WARM_UP_ITERATIONS) { touchEvents.forEach { guesser.getProbableKeyEvents(it) } }
+
+    var eventCount = 0L
+    var coveredCount = 0L
+    Debug.resetThreadAllocCount()
+    Debug.startAllocCounting()
+    val start = System.nanoTime()
+    repeat(iterations) {
+      touchEvents.forEach {
+        val size = guesser.getProbableKeyEvents(it).size
+        eventCount += size
+        if (size > 0) {
+          ++coveredCount
+        }
+      }
+    }
+    val elapsed = System.nanoTime() - start
+    Debug.stopAllocCounting()
+
+    val callCount = iterations * touchEvents.size
+    return Result(
+      name,
+      callCount,
+      elapsed.toDouble() / callCount,
+      Debug.getThreadAllocCount().toDouble() / callCount,
+      Debug.getThreadAllocSize().toDouble() / callCount,
+      eventCount.toDouble() / callCount,
+      coveredCount.toDouble() / callCount,
+    )
+  }
+
+  private fun createTouchEvents(
+    keyboard: Keyboard,
+    width: Int,
+    height: Int,
+  ): List<List<TouchEvent>> {
+    val result = mutableListOf<List<TouchEvent>>()
+    for (row in keyboard.rowList) {
+      for (key in row.keyList) {
+        if (key.isSpacer) {
+          continue
+        }
+        for (offset in TOUCH_OFFSETS) {
+          val x = key.x + key.width * (0.5f + offset)
+          val y = key.y + key.height * (0.5f - offset)
+          for (drag in TOUCH_OFFSETS) {
+            result.add(
+              listOf(
+                TouchEvent.newBuilder()
+                  .addStroke(createTouchPosition(TouchAction.TOUCH_DOWN, x / width, y / height, 0))
+                  .addStroke(
+                    createTouchPosition(
+                      TouchAction.TOUCH_UP,
+                      (x + key.width * drag) / width,
+                      y / height,
+                      100,
+                    )
+                  )
+                  .build()
+              )
+            )
+          }
+        }
+      }
+    }
+    return result
+  }
+
+  /**
+   * Returns the touches of [touchEvents] still held, each preceded by the previous touch as the one
+   * of the other pointer.
+   */
+  private fun createRolloverTouchEvents(
+    touchEvents: List<List<TouchEvent>>
+  ): List<List<TouchEvent>> =
+    touchEvents.indices.map { i ->
+      val touchEvent = touchEvents[i].last()
+      val heldTouchEvent =
+        touchEvent
+          .toBuilder()
+          .setStroke(
+            1,
+            touchEvent.getStroke(1).toBuilder().setAction(TouchAction.TOUCH_MOVE).build(),
+          )
+          .build()
+      listOf(touchEvents[(i + touchEvents.size - 1) % touchEvents.size].last(), heldTouchEvent)
+    }
+
+  private fun createTouchPosition(action: TouchAction, x: Float, y: Float, timestamp: Long) =
+    TouchPosition.newBuilder().setAction(action).setX(x).setY(y).setTimestamp(timestamp).build()
+}
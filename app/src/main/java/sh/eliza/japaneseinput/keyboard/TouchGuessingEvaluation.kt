@@ -0,0 +1,233 @@
+package sh.eliza.japaneseinput.keyboard
+
+import android.content.Context
+import android.content.res.Configuration
+import com.google.common.base.Optional
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.util.Locale
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Command
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.CommandType
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.TouchEvent
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.KeyEvent.SpecialKey
+import sh.eliza.japaneseinput.keyboard.Keyboard.KeyboardSpecification
+
+private const val TOP_K = 3
+
+private const val DEFAULT_LIKELIHOOD_THRESHOLD = ProbableKeyEventGuesser.LIKELIHOOD_THRESHOLD
+private const val DEFAULT_START_POSITION_THRESHOLD =
+  ProbableKeyEventGuesser.START_POSITION_THRESHOLD
+
+// Pairs of the likelihood threshold and the start position threshold to evaluate, the defaults
+// first.
+private val THRESHOLDS =
+  listOf(
+    DEFAULT_LIKELIHOOD_THRESHOLD to DEFAULT_START_POSITION_THRESHOLD,
+    1e-20 to DEFAULT_START_POSITION_THRESHOLD,
+    1e-10 to DEFAULT_START_POSITION_THRESHOLD,
+    DEFAULT_LIKELIHOOD_THRESHOLD to 0.15,
+    DEFAULT_LIKELIHOOD_THRESHOLD to 0.35,
+  )
+
+/**
+ * Measures the accuracy and the latency of [ProbableKeyEventGuesser] against the touches of a
+ * recording made by [sh.eliza.japaneseinput.session.CommandRecorder].
+ *
+ * Every SEND_KEY command with touch events is a sample, whose intended key is the key code which
+ * was sent. If the next key was a single backspace, the key was mistyped, and its intended key is
+ * the one typed after the backspace instead. Its keyboard is the one named by the last request in
+ * the recording. The samples are guessed with several thresholds, and the top-1 and top-3 accuracy
+ * (over all the samples, so samples without any probable key event are misses), the coverage and
+ * the time per event are reported, following the accuracy of the plain hit testing, i.e. of the
+ * key codes which were sent. This must not be run on the UI thread.
+ */
+object TouchGuessingEvaluation {
+  /**
+   * A recorded touch and the key code it was intended for. [typedKeyCode] is the one which was
+   * sent, i.e. hit by the touch.
+   */
+  class Sample(
+    val specification: KeyboardSpecification,
+    val orientation: Int,
+    val touchEvents: List<TouchEvent>,
+    val keyCode: Int,
+    val typedKeyCode: Int = keyCode,
+  )
+
+  /** Result of the evaluation of a guesser. */
+  class Result(
+    val name: String,
+    val sampleCount: Int,
+    val coveredCount: Int,
+    val top1Count: Int,
+    val top3Count: Int,
+    val nanosPerEvent: Double,
+  ) {
+    override fun toString(): String =
+      String.format(
+        Locale.US,
+        "%s: %d samples, %.1f%% coverage, %.1f%% top-1, %.1f%% top-%d, %.2f us/event",
+        name,
+        sampleCount,
+        percentage(coveredCount),
+        percentage(top1Count),
+        percentage(top3Count),
+        TOP_K,
+        nanosPerEvent / 1000.0,
+      )
+
+    private fun percentage(count: Int) =
+      if (sampleCount == 0) 0.0 else count * 100.0 / sampleCount
+  }
+
+  /**
+   * Evaluates the plain hit testing, and then the guesser with each of the thresholds, against
+   * [recording].
+   */
+  @JvmStatic
+  @Throws(IOException::class)
+  fun run(context: Context, recording: File): List<Result> {
+    val samples = loadSamples(recording)
+    return listOf(evaluateHitTest(samples)) +
+      THRESHOLDS.map { (likelihoodThreshold, startPositionThreshold) ->
+        evaluate(
+          context,
+          String.format(
+            Locale.US,
+            "likelihood > %.0e, start position < %.2f",
+            likelihoodThreshold,
+            startPositionThreshold,
+          ),
+          samples,
+          ProbableKeyEventGuesser(context.assets, likelihoodThreshold, startPositionThreshold),
+        )
+      }
+  }
+
+  /** Returns the samples in [recording]. */
+  @Throws(IOException::class)
+  fun loadSamples(recording: File): List<Sample> {
+    val samples = mutableListOf<Sample>()
+    var specification: KeyboardSpecification? = null
+    var orientation = Configuration.ORIENTATION_UNDEFINED
+    // The last sample, which is relabeled if the next key is backspace.
+    var pendingSample: Sample? = null
+    // The sample followed by a backspace, which is labeled by the next key.
+    var mistypedSample: Sample? = null
+    BufferedInputStream(FileInputStream(recording)).use { stream ->
+      while (true) {
+        val input = Command.parseDelimitedFrom(stream)?.input ?: break
+        if (input.hasRequest() && input.request.hasKeyboardName()) {
+          // <base name>-<version>-<orientation>, see KeyboardSpecificationName.
+          val keyboardName = input.request.keyboardName
+          specification = findSpecification(keyboardName.substringBefore('-'))
+          orientation = getOrientation(keyboardName.substringAfterLast('-'))
+        }
+        if (input.type != CommandType.SEND_KEY || !input.hasKey()) {
+          continue
+        }
+        val key = input.key
+        if (key.hasSpecialKey() && key.specialKey == SpecialKey.BACKSPACE) {
+          // After more than one backspace, the key typed next may replace any of the deleted ones.
+          mistypedSample = if (mistypedSample == null) pendingSample else null
+          pendingSample = null
+          continue
+        }
+        pendingSample?.let { samples.add(it) }
+        mistypedSample?.let {
+          if (key.hasKeyCode()) {
+            samples.add(
+              Sample(it.specification, it.orientation, it.touchEvents, key.keyCode, it.keyCode)
+            )
+          }
+        }
+        mistypedSample = null
+        val currentSpecification = specification
+        pendingSample =
+          if (currentSpecification != null && key.hasKeyCode() && input.touchEventsCount > 0) {
+            Sample(currentSpecification, orientation, input.touchEventsList, key.keyCode)
+          } else {
+            null
+          }
+      }
+    }
+    pendingSample?.let { samples.add(it) }
+    return samples
+  }
+
+  /** Evaluates the plain hit testing, which is always covered and has only one candidate. */
+  fun evaluateHitTest(samples: List<Sample>): Result {
+    val hitCount = samples.count { it.typedKeyCode == it.keyCode }
+    return Result("hit test", samples.size, samples.size, hitCount, hitCount, 0.0)
+  }
+
+  /** Evaluates [guesser] against [samples]. */
+  fun evaluate(
+    context: Context,
+    name: String,
+    samples: List<Sample>,
+    guesser: ProbableKeyEventGuesser,
+  ): Result {
+    val resources = context.resources
+    val width = resources.displayMetrics.widthPixels
+    val height = width * 2 / 3
+    val factory = KeyboardFactory()
+    var specification: KeyboardSpecification? = null
+    var orientation = Configuration.ORIENTATION_UNDEFINED
+    var coveredCount = 0
+    var top1Count = 0
+    var top3Count = 0
+    var elapsed = 0L
+    for (sample in samples) {
+      if (sample.specification != specification || sample.orientation != orientation) {
+        specification = sample.specification
+        orientation = sample.orientation
+        val configuration = Configuration(resources.configuration)
+        configuration.orientation = orientation
+        guesser.setConfiguration(Optional.of(configuration))
+        guesser.setKeyboard(factory[resources, sample.specification, width, height])
+      }
+
+      val start = System.nanoTime()
+      val probableKeyEvents = guesser.getProbableKeyEvents(sample.touchEvents)
+      elapsed += System.nanoTime() - start
+
+      if (probableKeyEvents.isEmpty()) {
+        continue
+      }
+      ++coveredCount
+      val rank =
+        probableKeyEvents
+          .sortedByDescending { it.probability }
+          .indexOfFirst { it.keyCode == sample.keyCode }
+      if (rank == 0) {
+        ++top1Count
+      }
+      if (rank in 0 until TOP_K) {
+        ++top3Count
+      }
+    }
+    return Result(
+      name,
+      samples.size,
+      coveredCount,
+      top1Count,
+      top3Count,
+      if (samples.isEmpty()) 0.0 else elapsed.toDouble() / samples.size,
+    )
+  }
+
+  private fun findSpecification(baseName: String) =
+    KeyboardSpecification.values().firstOrNull {
+      it.keyboardSpecificationName.baseName == baseName && it.xmlLayoutResourceId != 0
+    }
+
+  private fun getOrientation(orientation: String) =
+    when (orientation) {
+      "PORTRAIT" -> Configuration.ORIENTATION_PORTRAIT
+      "LANDSCAPE" -> Configuration.ORIENTATION_LANDSCAPE
+      else -> Configuration.ORIENTATION_UNDEFINED
+    }
+}
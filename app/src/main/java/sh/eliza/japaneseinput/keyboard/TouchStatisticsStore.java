@@ -0,0 +1,176 @@
+package sh.eliza.japaneseinput.keyboard;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.content.res.Configuration;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import sh.eliza.japaneseinput.KeyboardSpecificationName;
+import sh.eliza.japaneseinput.MozcLog;
+
+/**
+ * Touch event statistics of all the keyboards, packed into a single asset by
+ * scripts/gen_touch_stats.py.
+ *
+ * <p>The asset is stored uncompressed in the APK (see {@code noCompress} in build.gradle.kts), and
+ * is mapped into memory once per process. Only its index is read eagerly, and the statistics are
+ * returned as views over the mapped region, so looking them up never parses nor evicts anything.
+ */
+final class TouchStatisticsStore {
+
+  /** Touch event statistics of the keys of a keyboard, as views over the asset. */
+  static final class EventStatistics {
+
+    final int size;
+    // Sorted in ascending order.
+    final IntBuffer sourceIds;
+    // The i-th value (see STORED_VALUE_COUNT) of the key at slot s is at i * size + s.
+    final FloatBuffer values;
+
+    EventStatistics(int size, IntBuffer sourceIds, FloatBuffer values) {
+      Preconditions.checkArgument(sourceIds.remaining() == size);
+      Preconditions.checkArgument(values.remaining() == STORED_VALUE_COUNT * size);
+      this.size = size;
+      this.sourceIds = sourceIds;
+      this.values = values;
+    }
+  }
+
+  static final String ASSET_NAME = "touch_stats.pack";
+
+  /** The number of the values stored per key, i.e., averages and variances of the touches. */
+  static final int STORED_VALUE_COUNT = 8;
+
+  private static final int MAGIC = 0x4D5A5453; // "MZTS"
+  private static final int FORMAT_VERSION = 1;
+
+  private static Optional<TouchStatisticsStore> instance = Optional.absent();
+
+  private final Map<String, EventStatistics> entries;
+
+  private TouchStatisticsStore(Map<String, EventStatistics> entries) {
+    this.entries = Preconditions.checkNotNull(entries);
+  }
+
+  /** Returns the store, mapping the asset on the first call. */
+  static synchronized TouchStatisticsStore getInstance(AssetManager assetManager) {
+    if (!instance.isPresent()) {
+      instance = Optional.of(new TouchStatisticsStore(load(assetManager)));
+    }
+    return instance.get();
+  }
+
+  /** Returns the name of the statistics of the given keyboard. */
+  static String getName(KeyboardSpecificationName name, Configuration configuration) {
+    return name.baseName
+        + '_'
+        + KeyboardSpecificationName.getDeviceOrientationString(configuration);
+  }
+
+  Optional<EventStatistics> get(String name) {
+    return Optional.fromNullable(entries.get(name));
+  }
+
+  private static Map<String, EventStatistics> load(AssetManager assetManager) {
+    long startTime = System.nanoTime();
+    Map<String, EventStatistics> result;
+    try {
+      result = parse(map(assetManager));
+    } catch (IOException
+        | BufferUnderflowException
+        | IllegalArgumentException
+        | NegativeArraySizeException e) {
+      MozcLog.e("Failed to load " + ASSET_NAME, e);
+      return Collections.emptyMap();
+    }
+    MozcLog.d(
+        String.format(
+            Locale.US,
+            "Loaded %d touch statistics in %d us",
+            result.size(),
+            (System.nanoTime() - startTime) / 1000));
+    return result;
+  }
+
+  private static ByteBuffer map(AssetManager assetManager) throws IOException {
+    AssetFileDescriptor assetFileDescriptor;
+    try {
+      assetFileDescriptor = assetManager.openFd(ASSET_NAME);
+    } catch (FileNotFoundException e) {
+      // Compressed, or missing. Read it into memory instead, which throws if it is missing.
+      MozcLog.w(ASSET_NAME + " is compressed in the APK and cannot be mapped.");
+      InputStream stream = assetManager.open(ASSET_NAME);
+      try {
+        byte[] bytes = ByteStreams.toByteArray(stream);
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes);
+      } finally {
+        stream.close();
+      }
+    }
+    try {
+      FileInputStream stream = assetFileDescriptor.createInputStream();
+      try {
+        // The mapping stays valid after the channel is closed.
+        return stream
+            .getChannel()
+            .map(
+                FileChannel.MapMode.READ_ONLY,
+                assetFileDescriptor.getStartOffset(),
+                assetFileDescriptor.getLength());
+      } finally {
+        stream.close();
+      }
+    } finally {
+      assetFileDescriptor.close();
+    }
+  }
+
+  private static Map<String, EventStatistics> parse(ByteBuffer buffer) throws IOException {
+    buffer.clear();
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+      throw new IOException("Unknown format.");
+    }
+    int count = buffer.getInt();
+    Map<String, EventStatistics> result = new HashMap<>(count * 2);
+    for (int i = 0; i < count; ++i) {
+      int nameOffset = buffer.getInt();
+      int nameLength = buffer.getInt();
+      int dataOffset = buffer.getInt();
+      int size = buffer.getInt();
+      byte[] name = new byte[nameLength];
+      slice(buffer, nameOffset, nameLength).get(name);
+      IntBuffer sourceIds = slice(buffer, dataOffset, 4 * size).asIntBuffer();
+      FloatBuffer values =
+          slice(buffer, dataOffset + 4 * size, 4 * STORED_VALUE_COUNT * size).asFloatBuffer();
+      result.put(
+          new String(name, StandardCharsets.UTF_8), new EventStatistics(size, sourceIds, values));
+    }
+    return result;
+  }
+
+  /** Returns a little endian view of {@code length} bytes from {@code offset}. */
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(offset);
+    duplicate.limit(offset + length);
+    // slice() resets the byte order.
+    return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
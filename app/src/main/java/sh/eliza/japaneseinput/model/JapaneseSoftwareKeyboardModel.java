@@ -200,6 +200,22 @@ public class JapaneseSoftwareKeyboardModel {
         keyboardLayout, keyboardMode, inputStyle, qwertyLayoutForAlphabet);
   }
 
+  /**
+   * Returns the {@link KeyboardSpecification}s reachable without changing the layout preferences,
+   * i.e., those of all the {@link KeyboardMode}s for the current layout, input style and {@code
+   * qwertyLayoutForAlphabet}. Switching the composition mode of a hardware keyboard also switches
+   * between these, and {@code SYMBOL_NUMBER} is the one used by {@code SymbolInputView}.
+   */
+  public Set<KeyboardSpecification> getReachableKeyboardSpecifications() {
+    Set<KeyboardSpecification> result = EnumSet.noneOf(KeyboardSpecification.class);
+    for (KeyboardMode mode : KeyboardMode.values()) {
+      result.add(
+          getKeyboardSpecificationInternal(
+              keyboardLayout, mode, inputStyle, qwertyLayoutForAlphabet));
+    }
+    return result;
+  }
+
   /** Returns {@link KeyboardSpecification} instance based on the given parameters. */
   private static KeyboardSpecification getKeyboardSpecificationInternal(
       KeyboardLayout keyboardLayout,
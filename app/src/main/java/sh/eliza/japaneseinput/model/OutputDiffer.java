@@ -0,0 +1,77 @@
+package sh.eliza.japaneseinput.model;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import java.util.EnumSet;
+import java.util.Set;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCandidates.CandidateList;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Output;
+
+/**
+ * Classifies which parts of an {@link Output} differ from the previous one, so that each renderer
+ * can apply only its own part.
+ *
+ * <p>Each renderer should have its own instance, fed with exactly the outputs it has rendered, and
+ * reset it whenever its rendering is changed by something else.
+ */
+public class OutputDiffer {
+
+  /** The parts of an output which are rendered separately. */
+  public enum Part {
+    /** The preedit, including the cursor and the candidate category its style depends on. */
+    PREEDIT,
+    /** The candidates, except for the focused index. */
+    CANDIDATES,
+    /** The focused index of the candidates. */
+    FOCUSED_INDEX,
+    /** The deletion range, which is applied every time it is present. */
+    DELETION_RANGE,
+    /** The result, which is committed every time it is present. */
+    RESULT,
+  }
+
+  private Optional<Output> previousOutput = Optional.absent();
+
+  /**
+   * @return the parts of {@code output} which differ from the previous output, or all the parts if
+   *     there is no previous output. {@code output} becomes the previous output.
+   */
+  public Set<Part> diff(Output output) {
+    Preconditions.checkNotNull(output);
+    Set<Part> result = EnumSet.noneOf(Part.class);
+    if (output.hasDeletionRange()) {
+      result.add(Part.DELETION_RANGE);
+    }
+    if (output.hasResult()) {
+      result.add(Part.RESULT);
+    }
+    if (!previousOutput.isPresent()) {
+      result.add(Part.PREEDIT);
+      result.add(Part.CANDIDATES);
+      result.add(Part.FOCUSED_INDEX);
+    } else {
+      Output previous = previousOutput.get();
+      CandidateList previousCandidates = previous.getAllCandidateWords();
+      CandidateList candidates = output.getAllCandidateWords();
+      if (output.hasPreedit() != previous.hasPreedit()
+          || !output.getPreedit().equals(previous.getPreedit())
+          || candidates.getCategory() != previousCandidates.getCategory()) {
+        result.add(Part.PREEDIT);
+      }
+      if (candidates.getCategory() != previousCandidates.getCategory()
+          || !candidates.getCandidatesList().equals(previousCandidates.getCandidatesList())) {
+        result.add(Part.CANDIDATES);
+      }
+      if (candidates.getFocusedIndex() != previousCandidates.getFocusedIndex()) {
+        result.add(Part.FOCUSED_INDEX);
+      }
+    }
+    previousOutput = Optional.of(output);
+    return result;
+  }
+
+  /** Forgets the previous output, so that the next diff reports all the parts. */
+  public void reset() {
+    previousOutput = Optional.absent();
+  }
+}
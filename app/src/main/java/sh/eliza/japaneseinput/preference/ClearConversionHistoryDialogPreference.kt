@@ -32,12 +32,16 @@ import android.content.Context
 import android.util.AttributeSet
 import androidx.preference.Preference
 import com.google.android.material.dialog.MaterialAlertDialogBuilder
+import java.io.File
 import sh.eliza.japaneseinput.R
+import sh.eliza.japaneseinput.keyboard.ProbableKeyEventGuesser
 import sh.eliza.japaneseinput.session.SessionExecutor
+import sh.eliza.japaneseinput.session.USER_PROFILE_DIRECTORY_NAME
 
 /**
  * A DialogPreference to clear entire history of conversions. This preference command clears all the
- * kind of conversion histories including predictions and suggestions.
+ * kind of conversion histories including predictions and suggestions, and the touch statistics
+ * learned from the keys typed.
  */
 class ClearConversionHistoryDialogPreference
 @JvmOverloads
@@ -54,6 +58,9 @@ constructor(
           val sessionExecutor = SessionExecutor.getInstanceInitializedIfNecessary(context)
           sessionExecutor.clearUserHistory()
           sessionExecutor.clearUserPrediction()
+          ProbableKeyEventGuesser.clearLearnedStatistics(
+            File(context.filesDir, USER_PROFILE_DIRECTORY_NAME)
+          )
         }
           .setNegativeButton(R.string.no) { _, _ -> }
       }
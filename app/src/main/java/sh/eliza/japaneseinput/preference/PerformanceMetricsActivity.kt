@@ -0,0 +1,83 @@
+package sh.eliza.japaneseinput.preference
+
+import android.os.Bundle
+import android.widget.Button
+import android.widget.TextView
+import androidx.appcompat.app.AppCompatActivity
+import com.google.android.material.appbar.MaterialToolbar
+import java.io.IOException
+import sh.eliza.japaneseinput.R
+import sh.eliza.japaneseinput.keyboard.ProbableKeyEventGuesserBenchmark
+import sh.eliza.japaneseinput.keyboard.TouchGuessingEvaluation
+import sh.eliza.japaneseinput.session.CommandRecorder
+import sh.eliza.japaneseinput.session.CommandReplayService
+import sh.eliza.japaneseinput.session.SessionHandlerBenchmark
+import sh.eliza.japaneseinput.util.PerformanceDump
+
+/** Developer screen showing the in-memory performance metrics of the IME. */
+class PerformanceMetricsActivity : AppCompatActivity() {
+  private lateinit var textView: TextView
+
+  // Text appended by the benchmark and the replay, which run on background threads.
+  private var extraText = ""
+
+  override fun onCreate(savedInstanceState: Bundle?) {
+    super.onCreate(savedInstanceState)
+    setContentView(R.layout.performance_metrics_activity)
+
+    findViewById<MaterialToolbar>(R.id.topAppBar).setNavigationOnClickListener { finish() }
+    textView = findViewById(R.id.performance_metrics_text)
+    findViewById<Button>(R.id.performance_metrics_refresh).setOnClickListener { refresh() }
+    findViewById<Button>(R.id.performance_metrics_reset).setOnClickListener {
+      PerformanceDump.reset()
+      extraText = ""
+      refresh()
+    }
+    findViewById<Button>(R.id.performance_metrics_benchmark).setOnClickListener {
+      runInBackground("Benchmark") {
+        (SessionHandlerBenchmark.run(this) + ProbableKeyEventGuesserBenchmark.run(this))
+          .joinToString("\n")
+      }
+    }
+    findViewById<Button>(R.id.performance_metrics_replay).setOnClickListener {
+      val recording = CommandRecorder.getLatestRecording(this)
+      if (!recording.isPresent) {
+        appendExtraText("Replay:\nNo recording.")
+        return@setOnClickListener
+      }
+      // The replay runs in its own process, so that it never touches the user's profile.
+      appendExtraText("Replay: running...")
+      CommandReplayService.start(this, recording.get()) { appendExtraText("Replay:\n$it") }
+      runInBackground("Touch guessing") {
+        try {
+          TouchGuessingEvaluation.run(this, recording.get()).joinToString("\n")
+        } catch (e: IOException) {
+          "Failed to read ${recording.get().name}: $e"
+        }
+      }
+    }
+  }
+
+  override fun onResume() {
+    super.onResume()
+    refresh()
+  }
+
+  private fun refresh() {
+    textView.text = PerformanceDump.dumpToString() + extraText
+  }
+
+  private fun runInBackground(name: String, task: () -> String) {
+    appendExtraText("$name: running...")
+    Thread({
+        val result = task()
+        runOnUiThread { appendExtraText("$name:\n$result") }
+      }, "$name thread")
+      .start()
+  }
+
+  private fun appendExtraText(text: String) {
+    extraText += "\n$text\n"
+    refresh()
+  }
+}
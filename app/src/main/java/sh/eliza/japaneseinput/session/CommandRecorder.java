@@ -0,0 +1,172 @@
+package sh.eliza.japaneseinput.session;
+
+import android.content.Context;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Command;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Output;
+import sh.eliza.japaneseinput.MozcLog;
+
+/**
+ * Records evaluated commands into a file of varint length-delimited {@link Command}s, each of
+ * which holds both the input and the output.
+ *
+ * <p>Writing is done on a dedicated background thread, so the session worker thread only pays for
+ * building the message. Recordings can be replayed by {@link CommandReplayer}.
+ *
+ * <p>Only the latest {@value #MAX_RECORDING_COUNT} recordings are kept, within
+ * {@value #MAX_RECORDING_BYTES} bytes in total, as older ones are deleted when a new one is
+ * created.
+ */
+public class CommandRecorder {
+
+  private static final String RECORDING_DIRECTORY_NAME = "command_recordings";
+  private static final String RECORDING_FILE_SUFFIX = ".pb";
+  private static final int MAX_RECORDING_COUNT = 5;
+  private static final long MAX_RECORDING_BYTES = 32L * 1024 * 1024;
+
+  private final ExecutorService writerExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "Command recorder thread");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+  private final File file;
+  private final OutputStream stream;
+
+  private CommandRecorder(File file) throws IOException {
+    this.file = Preconditions.checkNotNull(file);
+    this.stream = new BufferedOutputStream(new FileOutputStream(file));
+  }
+
+  private static File getRecordingDirectory(Context context) {
+    return new File(context.getFilesDir(), RECORDING_DIRECTORY_NAME);
+  }
+
+  /** Creates a recorder writing to a new file. */
+  static Optional<CommandRecorder> create(Context context) {
+    File directory = getRecordingDirectory(context);
+    if (!directory.exists() && !directory.mkdirs()) {
+      MozcLog.e("Failed to create recording directory: " + directory.getAbsolutePath());
+      return Optional.absent();
+    }
+    // Make room for the new one.
+    deleteOldRecordings(directory, MAX_RECORDING_COUNT - 1);
+    String name =
+        new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+            + RECORDING_FILE_SUFFIX;
+    try {
+      CommandRecorder recorder = new CommandRecorder(new File(directory, name));
+      MozcLog.i("Recording commands to " + recorder.file.getAbsolutePath());
+      return Optional.of(recorder);
+    } catch (IOException e) {
+      MozcLog.e("Failed to open recording file.", e);
+      return Optional.absent();
+    }
+  }
+
+  /** @return the recording files, the most recent first. */
+  private static List<File> listRecordings(File directory) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return Collections.emptyList();
+    }
+    List<File> recordings = new ArrayList<>();
+    for (File file : files) {
+      if (file.getName().endsWith(RECORDING_FILE_SUFFIX)) {
+        recordings.add(file);
+      }
+    }
+    // The names are timestamps.
+    Collections.sort(
+        recordings,
+        new Comparator<File>() {
+          @Override
+          public int compare(File lhs, File rhs) {
+            return rhs.getName().compareTo(lhs.getName());
+          }
+        });
+    return recordings;
+  }
+
+  /**
+   * Deletes the recordings but the latest {@code keepCount} ones, and the ones beyond {@link
+   * #MAX_RECORDING_BYTES} in total.
+   */
+  private static void deleteOldRecordings(File directory, int keepCount) {
+    int count = 0;
+    long totalBytes = 0;
+    for (File file : listRecordings(directory)) {
+      ++count;
+      totalBytes += file.length();
+      if ((count > keepCount || totalBytes > MAX_RECORDING_BYTES) && !file.delete()) {
+        MozcLog.w("Failed to delete recording file: " + file.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * Deletes all the recordings. A recording still being closed by its recorder is unlinked, and
+   * its contents are discarded once the file is closed.
+   */
+  static void deleteRecordings(Context context) {
+    deleteOldRecordings(getRecordingDirectory(context), 0);
+  }
+
+  /** @return the most recent recording file, if any. */
+  public static Optional<File> getLatestRecording(Context context) {
+    List<File> recordings = listRecordings(getRecordingDirectory(context));
+    return recordings.isEmpty() ? Optional.<File>absent() : Optional.of(recordings.get(0));
+  }
+
+  void record(Input input, Output output) {
+    final Command command = Command.newBuilder().setInput(input).setOutput(output).build();
+    writerExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              command.writeDelimitedTo(stream);
+            } catch (IOException e) {
+              MozcLog.e("Failed to write a command.", e);
+            }
+          }
+        });
+  }
+
+  /** Flushes pending writes and closes the file asynchronously. */
+  void close() {
+    writerExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              stream.close();
+            } catch (IOException e) {
+              MozcLog.e("Failed to close recording file.", e);
+            }
+          }
+        });
+    writerExecutor.shutdown();
+  }
+}
@@ -0,0 +1,104 @@
+package sh.eliza.japaneseinput.session
+
+import android.app.Service
+import android.content.Context
+import android.content.Intent
+import android.os.Bundle
+import android.os.Handler
+import android.os.IBinder
+import android.os.Looper
+import android.os.Process
+import android.os.ResultReceiver
+import com.google.android.apps.inputmethod.libs.mozc.session.MozcJNI
+import java.io.File
+import java.io.IOException
+import sh.eliza.japaneseinput.MozcLog
+
+private const val EXTRA_RECORDING_PATH = "recording_path"
+private const val EXTRA_RESULT_RECEIVER = "result_receiver"
+private const val EXTRA_REPORT = "report"
+private const val REPLAY_PROFILE_DIRECTORY_NAME = "replay_profile"
+
+/**
+ * Replays a recording made by [CommandRecorder] in the dedicated `:replay` process.
+ *
+ * The engine is process-wide and loaded once per process, so a replay in the IME process would
+ * evaluate the recorded commands, e.g. clearing the user history, editing the user dictionary and
+ * learning the committed words, against the user's real profile. Here the engine is loaded with a
+ * throwaway copy of the profile instead, so the replay starts from the same user data but never
+ * writes to it. The copy is deleted and the process exits after each replay, as the engine cannot
+ * be reloaded with a fresh copy.
+ */
+class CommandReplayService : Service() {
+  companion object {
+    /** Replays [recording] and passes the report, or the reason of the failure, to [callback]. */
+    @JvmStatic
+    fun start(context: Context, recording: File, callback: (String) -> Unit) {
+      val receiver =
+        object : ResultReceiver(Handler(Looper.getMainLooper())) {
+          override fun onReceiveResult(resultCode: Int, resultData: Bundle?) {
+            callback(resultData?.getString(EXTRA_REPORT) ?: "No report.")
+          }
+        }
+      context.startService(
+        Intent(context, CommandReplayService::class.java)
+          .putExtra(EXTRA_RECORDING_PATH, recording.absolutePath)
+          .putExtra(EXTRA_RESULT_RECEIVER, receiver)
+      )
+    }
+  }
+
+  override fun onBind(intent: Intent?): IBinder? = null
+
+  @Suppress("DEPRECATION")
+  override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+    val path = intent?.getStringExtra(EXTRA_RECORDING_PATH)
+    val receiver = intent?.getParcelableExtra<ResultReceiver>(EXTRA_RESULT_RECEIVER)
+    if (path == null || receiver == null) {
+      stopSelf(startId)
+      return START_NOT_STICKY
+    }
+    Thread(
+        {
+          val report = replay(File(path))
+          receiver.send(0, Bundle().apply { putString(EXTRA_REPORT, report) })
+          stopSelf(startId)
+          // The engine keeps the throwaway profile loaded. Start the next replay from scratch.
+          Process.killProcess(Process.myPid())
+        },
+        "Replay thread"
+      )
+      .start()
+    return START_NOT_STICKY
+  }
+
+  private fun replay(recording: File): String {
+    if (MozcJNI.isLoaded()) {
+      // Never happens in the dedicated process, unless it is misconfigured in the manifest.
+      return "Refused to replay, as the engine is already loaded in this process."
+    }
+    val profileDirectory = File(cacheDir, REPLAY_PROFILE_DIRECTORY_NAME)
+    try {
+      profileDirectory.deleteRecursively()
+      val userProfileDirectory = File(filesDir, USER_PROFILE_DIRECTORY_NAME)
+      if (userProfileDirectory.exists()) {
+        userProfileDirectory.copyRecursively(profileDirectory, overwrite = true)
+      } else if (!profileDirectory.mkdirs()) {
+        return "Failed to create ${profileDirectory.absolutePath}"
+      }
+
+      MozcDataLoader.load(this, profileDirectory.absolutePath)
+      if (!MozcJNI.isLoaded()) {
+        return "Failed to load the engine."
+      }
+      // Not initialized, as that would load the engine with the real profile.
+      val report = CommandReplayer.replay(recording, LocalSessionHandler())
+      return recording.name + "\n" + report
+    } catch (e: IOException) {
+      MozcLog.e("Failed to replay ${recording.name}", e)
+      return "Failed to replay ${recording.name}: $e"
+    } finally {
+      profileDirectory.deleteRecursively()
+    }
+  }
+}
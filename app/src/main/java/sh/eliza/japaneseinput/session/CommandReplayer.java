@@ -0,0 +1,169 @@
+package sh.eliza.japaneseinput.session;
+
+import com.google.common.base.Preconditions;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Command;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.CommandType;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Output;
+import sh.eliza.japaneseinput.util.LatencyHistogram;
+
+/**
+ * Replays a recording made by {@link CommandRecorder} through a {@link SessionHandler}, and
+ * reports throughput, per-command latency and output divergence.
+ *
+ * <p>Session ids in the recording are mapped to the ones created during the replay. Note that the
+ * replay writes to the user profile loaded by the engine as the original typing did, e.g. it
+ * learns the committed words and re-runs the commands clearing the history, so it must be run by
+ * {@link CommandReplayService} against a throwaway profile. This blocks for a while, so it must not
+ * be run on the UI thread.
+ */
+public class CommandReplayer {
+
+  /** The max number of divergences described in the report. */
+  private static final int MAX_DESCRIBED_DIVERGENCES = 5;
+
+  /** The result of a replay. */
+  public static class Report {
+    public final int commandCount;
+    public final long totalNanos;
+    public final int divergenceCount;
+    final LatencyHistogram latency;
+    final List<String> divergences;
+
+    Report(
+        int commandCount,
+        long totalNanos,
+        int divergenceCount,
+        LatencyHistogram latency,
+        List<String> divergences) {
+      this.commandCount = commandCount;
+      this.totalNanos = totalNanos;
+      this.divergenceCount = divergenceCount;
+      this.latency = Preconditions.checkNotNull(latency);
+      this.divergences = Preconditions.checkNotNull(divergences);
+    }
+
+    @Override
+    public String toString() {
+      StringWriter stringWriter = new StringWriter();
+      PrintWriter writer = new PrintWriter(stringWriter);
+      writer.println(
+          String.format(
+              Locale.US,
+              "Replayed %d commands in %.1f ms (%.0f commands/s)",
+              commandCount,
+              totalNanos / 1e6,
+              totalNanos == 0 ? 0.0 : commandCount * 1e9 / totalNanos));
+      writer.print("  latency (us): ");
+      latency.dump(writer);
+      writer.println();
+      writer.println("  divergences: " + divergenceCount);
+      for (String divergence : divergences) {
+        writer.print("    ");
+        writer.println(divergence);
+      }
+      writer.flush();
+      return stringWriter.toString();
+    }
+  }
+
+  private CommandReplayer() {}
+
+  /** Replays {@code file} through the (already initialized) {@code sessionHandler}. */
+  public static Report replay(File file, SessionHandler sessionHandler) throws IOException {
+    Preconditions.checkNotNull(file);
+    Preconditions.checkNotNull(sessionHandler);
+
+    LatencyHistogram latency = new LatencyHistogram();
+    List<String> divergences = new ArrayList<>();
+    int commandCount = 0;
+    int divergenceCount = 0;
+    long totalNanos = 0;
+    // Recorded session id -> replayed session id.
+    Map<Long, Long> sessionIdMap = new HashMap<>();
+
+    InputStream stream = new BufferedInputStream(new FileInputStream(file));
+    try {
+      Command recorded;
+      while ((recorded = Command.parseDelimitedFrom(stream)) != null) {
+        Input.Builder input = recorded.getInput().toBuilder();
+        if (input.hasId() && input.getType() != CommandType.CREATE_SESSION) {
+          Long replayedId = sessionIdMap.get(input.getId());
+          if (replayedId == null) {
+            // The recording started in the middle of the session.
+            replayedId = createSession(sessionHandler);
+            sessionIdMap.put(input.getId(), replayedId);
+          }
+          input.setId(replayedId);
+        }
+
+        long startTime = System.nanoTime();
+        Output output = evaluate(sessionHandler, input.build());
+        long elapsed = System.nanoTime() - startTime;
+        latency.record(elapsed);
+        totalNanos += elapsed;
+        ++commandCount;
+
+        if (input.getType() == CommandType.CREATE_SESSION) {
+          sessionIdMap.put(recorded.getOutput().getId(), output.getId());
+        } else if (input.getType() == CommandType.DELETE_SESSION) {
+          sessionIdMap.remove(recorded.getInput().getId());
+        }
+
+        if (!withoutId(output).equals(withoutId(recorded.getOutput()))) {
+          ++divergenceCount;
+          if (divergences.size() < MAX_DESCRIBED_DIVERGENCES) {
+            divergences.add("#" + (commandCount - 1) + " " + describe(recorded.getInput()));
+          }
+        }
+      }
+    } finally {
+      stream.close();
+      for (long sessionId : sessionIdMap.values()) {
+        evaluate(
+            sessionHandler,
+            Input.newBuilder().setType(CommandType.DELETE_SESSION).setId(sessionId).build());
+      }
+    }
+    return new Report(commandCount, totalNanos, divergenceCount, latency, divergences);
+  }
+
+  private static long createSession(SessionHandler sessionHandler) {
+    return evaluate(
+            sessionHandler, Input.newBuilder().setType(CommandType.CREATE_SESSION).build())
+        .getId();
+  }
+
+  private static Output evaluate(SessionHandler sessionHandler, Input input) {
+    return sessionHandler
+        .evalCommand(
+            Command.newBuilder().setInput(input).setOutput(Output.getDefaultInstance()).build())
+        .getOutput();
+  }
+
+  private static Output withoutId(Output output) {
+    return output.toBuilder().clearId().build();
+  }
+
+  private static String describe(Input input) {
+    if (input.getType() == CommandType.SEND_COMMAND) {
+      return input.getType() + "/" + input.getCommand().getType();
+    }
+    if (input.hasKey()) {
+      return input.getType() + " key_code=" + input.getKey().getKeyCode();
+    }
+    return input.getType().toString();
+  }
+}
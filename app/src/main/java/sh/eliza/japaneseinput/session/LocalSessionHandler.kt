@@ -33,12 +33,10 @@ import com.google.android.apps.inputmethod.libs.mozc.session.MozcJNI
 import com.google.common.base.Preconditions
 import com.google.protobuf.InvalidProtocolBufferException
 import java.io.File
-import java.io.FileOutputStream
 import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Command
 import sh.eliza.japaneseinput.MozcLog
 
-private const val USER_PROFILE_DIRECTORY_NAME = ".mozc"
-private const val MOZC_DATA_NAME = "mozc.data"
+internal const val USER_PROFILE_DIRECTORY_NAME = ".mozc"
 
 /** Concrete SessionHandler. Calls JNI. */
 internal class LocalSessionHandler : SessionHandler {
@@ -55,16 +53,8 @@ internal class LocalSessionHandler : SessionHandler {
       }
     }
 
-    // Ensure a copy of the mozc data file exists.
-    val dataFile = File(context.cacheDir, MOZC_DATA_NAME)
-    if (!dataFile.exists()) {
-      context.assets.open(MOZC_DATA_NAME).use { input ->
-        FileOutputStream(dataFile).use { output -> input.copyTo(output) }
-      }
-    }
-
-    // Load the shared object.
-    MozcJNI.load(userProfileDirectory.absolutePath, dataFile.absolutePath)
+    // Load the shared object with the data, copied from the APK if necessary.
+    MozcDataLoader.load(context, userProfileDirectory.absolutePath)
   }
 
   override fun evalCommand(command: Command): Command {
@@ -0,0 +1,124 @@
+package sh.eliza.japaneseinput.session
+
+import android.content.Context
+import android.os.Process
+import com.google.android.apps.inputmethod.libs.mozc.session.MozcJNI
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.ReadableByteChannel
+import java.util.Locale
+import sh.eliza.japaneseinput.MozcLog
+
+private const val MOZC_DATA_NAME = "mozc.data"
+private const val COPY_DIRECTORY_NAME = "mozc_data"
+private const val TRANSFER_CHUNK_SIZE = 1L shl 20
+
+/**
+ * Loads the JNI library with mozc.data, copied into the cache directory as the native layer opens
+ * the data by path.
+ *
+ * The data is stored uncompressed in the APK (see `noCompress` in build.gradle.kts), so the copy is
+ * a plain transfer of the asset's region of the APK, without inflation. The copy is named after the
+ * time the package was last updated, and it appears under that name only after it is complete, so
+ * an existing copy is reused without reading the APK at all.
+ *
+ * This may run in the main process and in the `:replay` process at the same time, so each process
+ * writes its own temporary file and deletes only the files of other package updates.
+ *
+ * This blocks for a while on the first run after an update, so it must not be called on the UI
+ * thread.
+ */
+internal object MozcDataLoader {
+  fun load(context: Context, userProfileDirectoryPath: String) {
+    MozcJNI.load(userProfileDirectoryPath, ensureCopy(context).absolutePath)
+  }
+
+  /** @return the complete copy of the data, creating it if necessary. */
+  private fun ensureCopy(context: Context): File {
+    val directory = File(context.cacheDir, COPY_DIRECTORY_NAME)
+    val lastUpdateTime =
+      context.packageManager.getPackageInfo(context.packageName, 0).lastUpdateTime
+    val name = String.format(Locale.US, "mozc-%d.data", lastUpdateTime)
+    val file = File(directory, name)
+    if (file.exists()) {
+      return file
+    }
+
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw IOException("Failed to create directory: " + directory.absolutePath)
+    }
+    deleteStaleCopies(context, directory, name)
+    val startTime = System.nanoTime()
+    val temporaryFile =
+      File(directory, String.format(Locale.US, "%s.%d.tmp", name, Process.myPid()))
+    try {
+      FileOutputStream(temporaryFile).channel.use { output -> copyAsset(context, output) }
+    } catch (e: IOException) {
+      temporaryFile.delete()
+      throw e
+    }
+    if (!temporaryFile.renameTo(file)) {
+      temporaryFile.delete()
+      throw IOException("Failed to rename to " + file.absolutePath)
+    }
+    MozcLog.i("Copied $MOZC_DATA_NAME in ${(System.nanoTime() - startTime) / 1000000} ms")
+    return file
+  }
+
+  /**
+   * Deletes the copies of other package updates, including their temporary files. The ones named
+   * after [name] are kept, as another process may be writing or loading them.
+   */
+  private fun deleteStaleCopies(context: Context, directory: File, name: String) {
+    // The unversioned copy made by older versions in the cache directory.
+    File(context.cacheDir, MOZC_DATA_NAME).delete()
+    directory.listFiles()?.forEach {
+      if (it.name != name && !it.name.startsWith("$name.")) {
+        it.delete()
+      }
+    }
+  }
+
+  /** Copies the asset into [output] by [FileChannel.transferFrom], and returns its length. */
+  private fun copyAsset(context: Context, output: FileChannel): Long {
+    val assetFileDescriptor =
+      try {
+        context.assets.openFd(MOZC_DATA_NAME)
+      } catch (e: FileNotFoundException) {
+        // Compressed. Transfer from the inflating stream.
+        return Channels.newChannel(context.assets.open(MOZC_DATA_NAME)).use { input ->
+          transfer(input, output, Long.MAX_VALUE)
+        }
+      }
+    // Read through the stream of the descriptor, which covers only the asset's region of the APK.
+    // Positioning a channel of the APK's descriptor, or of a dup of it, which shares the file
+    // offset, would move the offset under the asset manager.
+    return assetFileDescriptor.use {
+      val length =
+        Channels.newChannel(it.createInputStream()).use { input ->
+          transfer(input, output, it.length)
+        }
+      if (length != it.length) {
+        throw IOException("The copy of $MOZC_DATA_NAME is truncated.")
+      }
+      length
+    }
+  }
+
+  private fun transfer(input: ReadableByteChannel, output: FileChannel, length: Long): Long {
+    var position = 0L
+    while (position < length) {
+      val transferred =
+        output.transferFrom(input, position, minOf(TRANSFER_CHUNK_SIZE, length - position))
+      if (transferred <= 0) {
+        break
+      }
+      position += transferred
+    }
+    return position
+  }
+}
@@ -37,8 +37,11 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
@@ -67,6 +70,9 @@ import sh.eliza.japaneseinput.MozcLog;
 import sh.eliza.japaneseinput.MozcUtil;
 import sh.eliza.japaneseinput.ViewManagerInterface.LayoutAdjustment;
 import sh.eliza.japaneseinput.preference.ClientSidePreference;
+import sh.eliza.japaneseinput.session.SessionExecutorMetrics.Lane;
+import sh.eliza.japaneseinput.session.SessionExecutorMetrics.Stage;
+import sh.eliza.japaneseinput.session.SessionExecutorMetrics.WarmUpPhase;
 
 /**
  * This class handles asynchronous and synchronous execution of command evaluation based on {@link
@@ -151,6 +157,13 @@ public class SessionExecutor {
     final Optional<EvaluationCallback> callback;
     final Optional<Handler> callbackHandler;
 
+    // System.nanoTime() when the evaluation finished.
+    long evaluatedTimeStamp;
+
+    // The editor which was current when this context was queued. Set only for the background lane,
+    // whose commands may be evaluated after switching to another editor.
+    Optional<SessionPool.Key> editor = Optional.absent();
+
     AsynchronousEvaluationContext(
         long timeStamp,
         Input.Builder inputBuilder,
@@ -167,6 +180,7 @@ public class SessionExecutor {
 
   private static class SynchronousEvaluationContext {
 
+    final long timeStamp = System.nanoTime();
     final Input input;
     volatile Optional<Command> outCommand = Optional.absent();
     final CountDownLatch evaluationSynchronizer;
@@ -194,13 +208,114 @@ public class SessionExecutor {
     }
   }
 
+  /**
+   * Sends messages to the worker thread, and keeps track of the number of pending evaluations in
+   * the interactive lane.
+   */
+  private static class InteractiveLane {
+
+    // The number of interactive evaluations which are sent but not handled yet.
+    private int interactiveDepth = 0;
+
+    synchronized void send(Handler handler, int what, Object obj) {
+      if (ExecutorMainCallback.isInteractiveEvaluation(what)) {
+        ++interactiveDepth;
+        SessionExecutorMetrics.getInstance().recordQueueDepth(Lane.INTERACTIVE, interactiveDepth);
+      }
+      handler.sendMessage(handler.obtainMessage(what, obj));
+    }
+
+    /** Called on the worker thread when an interactive evaluation is handled. */
+    synchronized void onInteractiveHandled() {
+      // Can be negative if clear() runs during the evaluation.
+      interactiveDepth = Math.max(interactiveDepth - 1, 0);
+    }
+
+    synchronized void clear() {
+      interactiveDepth = 0;
+    }
+  }
+
+  /**
+   * The background lane: commands which nobody waits for during typing, e.g. SYNC_DATA, RELOAD,
+   * usage stats and user dictionary edits.
+   *
+   * <p>The worker thread evaluates the head command only when no interactive evaluation has been
+   * handled for {@link ExecutorMainCallback#INTERACTIVE_QUIET_PERIOD_MILLIS}, one command per
+   * {@code RUN_BACKGROUND} message, so a key event arriving in the middle of a long queue waits for
+   * one command at most. Usually at most one {@code RUN_BACKGROUND} message is in the worker's
+   * queue at a time, and commands are evaluated in the incoming order.
+   *
+   * <p>While a synchronous command is queued, its caller is blocked, so the commands ahead of it
+   * are no longer deferred for the quiet period and the lane is flushed right away.
+   */
+  private static class BackgroundCommandQueue {
+
+    /** A command waiting in the background lane. */
+    static class BackgroundCommand {
+      final int what;
+      final Object context;
+      final long uptimeMillis = SystemClock.uptimeMillis();
+
+      BackgroundCommand(int what, Object context) {
+        this.what = what;
+        this.context = Preconditions.checkNotNull(context);
+      }
+    }
+
+    private final ArrayDeque<BackgroundCommand> queue = new ArrayDeque<>();
+    private int synchronousCount = 0;
+
+    synchronized void send(Handler handler, int what, Object context) {
+      queue.addLast(new BackgroundCommand(what, context));
+      SessionExecutorMetrics.getInstance().recordQueueDepth(Lane.BACKGROUND, queue.size());
+      boolean isSynchronous = what == ExecutorMainCallback.EVALUATE_SYNCHRONOUSLY;
+      if (isSynchronous) {
+        ++synchronousCount;
+      }
+      if (queue.size() == 1) {
+        handler.sendEmptyMessage(ExecutorMainCallback.RUN_BACKGROUND);
+      } else if (isSynchronous) {
+        // Replace the delayed retry of the head, if any, so that the lane is flushed now.
+        handler.removeMessages(ExecutorMainCallback.RUN_BACKGROUND);
+        handler.sendEmptyMessage(ExecutorMainCallback.RUN_BACKGROUND);
+      }
+    }
+
+    /** @return {@code true} if a caller is blocked on a command in the queue. */
+    synchronized boolean hasSynchronousCommand() {
+      return synchronousCount > 0;
+    }
+
+    synchronized Optional<BackgroundCommand> peek() {
+      return Optional.fromNullable(queue.peekFirst());
+    }
+
+    /**
+     * Removes the head command, which has been evaluated, and schedules the next one if any. The
+     * head is kept in the queue during its evaluation so that {@link #send} doesn't schedule
+     * another message.
+     */
+    synchronized void removeFirst(Handler handler) {
+      BackgroundCommand command = queue.pollFirst();
+      if (command != null && command.what == ExecutorMainCallback.EVALUATE_SYNCHRONOUSLY) {
+        --synchronousCount;
+      }
+      if (!queue.isEmpty()) {
+        // Not delayed, but still queued behind the interactive evaluations sent so far.
+        handler.sendEmptyMessage(ExecutorMainCallback.RUN_BACKGROUND);
+      }
+    }
+  }
+
   /**
    * A core implementation of evaluation executing process.
    *
    * <p>This class takes messages from the UI thread. By using {@link SessionHandler}, it evaluates
    * the {@link Input} in a message, and then returns the result with notifying the UI thread if
    * necessary. All evaluations should be done with this class in order to keep evaluation in the
-   * incoming order.
+   * incoming order. The only exception is the background lane (see {@link
+   * BackgroundCommandQueue}), whose commands may be evaluated after later interactive ones.
    */
   private static class ExecutorMainCallback implements Handler.Callback {
 
@@ -236,8 +351,48 @@ public class SessionExecutor {
     /** Just pass a message to callback. */
     static final int PASS_TO_CALLBACK = 6;
 
+    /** Starts or stops recording evaluated commands. */
+    static final int SET_RECORDING = 7;
+
+    /** Evaluates the head command of the background lane, or defers it. */
+    static final int RUN_BACKGROUND = 8;
+
+    /**
+     * Background commands are deferred until no interactive evaluation has been handled for this
+     * period, as the user is likely to type the next key soon.
+     */
+    static final long INTERACTIVE_QUIET_PERIOD_MILLIS = 300;
+
+    /** A background command is evaluated anyway after waiting for this period. */
+    static final long MAX_BACKGROUND_DEFERRAL_MILLIS = 10000;
+
+    /** Runs the next step of the warm-up. See {@link SessionExecutor#warmUp}. */
+    static final int WARM_UP = 9;
+
+    /** Switches the session to the one of the given editor. */
+    static final int SWITCH_EDITOR = 10;
+
+    /** Deletes all the recordings. */
+    static final int DELETE_RECORDINGS = 11;
+
+    /**
+     * Evaluates all the commands in the background lane right away, and then deletes all the
+     * sessions. Sent to the handler being replaced by {@link SessionExecutor#reset}.
+     */
+    static final int SHUT_DOWN = 12;
+
+    /** Romaji typed in the warm-up conversion. Each is converted and then reverted. */
+    private static final String[] WARM_UP_TEXTS = {"kyouha", "nihongowo", "nyuuryokusimasu"};
+
+    /** The inputs of the warm-up conversion, without session id. */
+    private static final List<Input> WARM_UP_INPUTS = createWarmUpInputs();
+
     private static final long INVALID_SESSION_ID = 0;
 
+    /** The editor of the sessions created before the first SWITCH_EDITOR. Compared by identity. */
+    private static final SessionPool.Key UNKNOWN_EDITOR =
+        new SessionPool.Key("", InputFieldType.NORMAL);
+
     // TODO(exv): ensure list is exhaustive
     /** A set of CommandType which don't need session id. */
     private static final Set<CommandType> SESSION_INDEPENDENT_COMMAND_TYPE_SET =
@@ -253,27 +408,71 @@ public class SessionExecutor {
                 CommandType.SEND_USER_DICTIONARY_COMMAND));
 
     private final SessionHandler sessionHandler;
+    private final InteractiveLane interactiveLane;
+    private final BackgroundCommandQueue backgroundCommandQueue;
+    private final SessionExecutorMetrics metrics = SessionExecutorMetrics.getInstance();
 
-    // Mozc session's ID.
-    // Set on CREATE_SESSION and will not be updated.
+    // Mozc session's ID, and the request sent to it so far.
+    // Both are of the current editor's entry in sessionPool.
     private long sessionId = INVALID_SESSION_ID;
     private Optional<Request.Builder> request = Optional.absent();
 
+    // Live sessions, including the current one.
+    private final SessionPool sessionPool = new SessionPool();
+    private SessionPool.Key currentEditor = UNKNOWN_EDITOR;
+
     // The logging for debugging is disabled by default.
     boolean isLogging = false;
 
-    private ExecutorMainCallback(SessionHandler sessionHandler) {
+    // Set on INITIALIZE_SESSION_HANDLER. Used to locate the recording directory.
+    private Optional<Context> context = Optional.absent();
+    private Optional<CommandRecorder> recorder = Optional.absent();
+
+    // SystemClock.uptimeMillis() when the last interactive evaluation was handled.
+    private long lastInteractiveUptimeMillis = 0;
+
+    // True if the user data may have been changed since the last SYNC_DATA.
+    private boolean isUserDataDirty = false;
+
+    // The state of the warm-up conversion.
+    private long warmUpSessionId = INVALID_SESSION_ID;
+    private int warmUpStep = 0;
+    private long warmUpNanos = 0;
+
+    private ExecutorMainCallback(
+        SessionHandler sessionHandler,
+        InteractiveLane interactiveLane,
+        BackgroundCommandQueue backgroundCommandQueue) {
       this.sessionHandler = Preconditions.checkNotNull(sessionHandler);
+      this.interactiveLane = Preconditions.checkNotNull(interactiveLane);
+      this.backgroundCommandQueue = Preconditions.checkNotNull(backgroundCommandQueue);
+    }
+
+    /**
+     * @return {@code true} if the message of {@code what} is an evaluation in the interactive
+     *     lane, i.e. one which {@link SessionExecutor#removePendingEvaluations} removes.
+     */
+    static boolean isInteractiveEvaluation(int what) {
+      return what == EVALUATE_ASYNCHRONOUSLY
+          || what == EVALUATE_KEYEVENT_ASYNCHRONOUSLY
+          || what == EVALUATE_SYNCHRONOUSLY
+          || what == UPDATE_REQUEST;
     }
 
     @Override
     public boolean handleMessage(Message message) {
       Preconditions.checkNotNull(message);
+      if (isInteractiveEvaluation(message.what)) {
+        interactiveLane.onInteractiveHandled();
+      }
 
       // Dispatch the message.
       switch (message.what) {
         case INITIALIZE_SESSION_HANDLER:
-          sessionHandler.initialize((Context) message.obj);
+          context = Optional.of((Context) message.obj);
+          long startTime = System.nanoTime();
+          sessionHandler.initialize(context.get());
+          metrics.recordWarmUpPhase(WarmUpPhase.INITIALIZE, System.nanoTime() - startTime);
           break;
         case DELETE_SESSION:
           deleteSession();
@@ -286,19 +485,109 @@ public class SessionExecutor {
           evaluateSynchronously((SynchronousEvaluationContext) message.obj);
           break;
         case UPDATE_REQUEST:
-          updateRequest((Input.Builder) message.obj);
+          // UPDATE_REQUEST has no context with a precise time stamp.
+          long queueWaitNanos = (SystemClock.uptimeMillis() - message.getWhen()) * 1000000L;
+          Input.Builder inputBuilder = (Input.Builder) message.obj;
+          updateRequest(inputBuilder);
+          metrics.record(inputBuilder, Stage.QUEUE_WAIT, queueWaitNanos);
           break;
         case PASS_TO_CALLBACK:
           passToCallBack((KeyEventCallbackContext) message.obj);
           break;
+        case SET_RECORDING:
+          setRecording((Boolean) message.obj);
+          break;
+        case RUN_BACKGROUND:
+          runBackground(message.getTarget());
+          break;
+        case WARM_UP:
+          warmUp(message.getTarget());
+          break;
+        case SWITCH_EDITOR:
+          switchEditor((SessionPool.Key) message.obj);
+          break;
+        case DELETE_RECORDINGS:
+          if (context.isPresent()) {
+            CommandRecorder.deleteRecordings(context.get());
+          }
+          break;
+        case SHUT_DOWN:
+          shutDown(message.getTarget());
+          break;
         default:
           // We don't process unknown messages.
           return false;
       }
 
+      if (isInteractiveEvaluation(message.what)) {
+        lastInteractiveUptimeMillis = SystemClock.uptimeMillis();
+      }
       return true;
     }
 
+    private static boolean hasInteractiveEvaluations(Handler sessionExecutorHandler) {
+      return sessionExecutorHandler.hasMessages(EVALUATE_ASYNCHRONOUSLY)
+          || sessionExecutorHandler.hasMessages(EVALUATE_KEYEVENT_ASYNCHRONOUSLY)
+          || sessionExecutorHandler.hasMessages(EVALUATE_SYNCHRONOUSLY)
+          || sessionExecutorHandler.hasMessages(UPDATE_REQUEST);
+    }
+
+    /**
+     * Evaluates the head command of the background lane if the interactive lane is quiet, or
+     * schedules another try otherwise.
+     */
+    private void runBackground(Handler sessionExecutorHandler) {
+      Optional<BackgroundCommandQueue.BackgroundCommand> command = backgroundCommandQueue.peek();
+      if (!command.isPresent()) {
+        return;
+      }
+      long now = SystemClock.uptimeMillis();
+      // A synchronous command has its caller blocked, so it, and the commands ahead of it, wait
+      // only for the pending interactive evaluations.
+      long quietRemainingMillis =
+          backgroundCommandQueue.hasSynchronousCommand()
+              ? 0
+              : lastInteractiveUptimeMillis + INTERACTIVE_QUIET_PERIOD_MILLIS - now;
+      if ((quietRemainingMillis > 0 || hasInteractiveEvaluations(sessionExecutorHandler))
+          && now - command.get().uptimeMillis < MAX_BACKGROUND_DEFERRAL_MILLIS) {
+        metrics.recordBackgroundDeferral();
+        // Without delay, the message is still queued behind the pending interactive evaluations.
+        sessionExecutorHandler.sendEmptyMessageDelayed(
+            RUN_BACKGROUND, Math.max(quietRemainingMillis, 0));
+        return;
+      }
+
+      evaluateBackgroundCommand(command.get(), sessionExecutorHandler);
+      backgroundCommandQueue.removeFirst(sessionExecutorHandler);
+    }
+
+    private void evaluateBackgroundCommand(
+        BackgroundCommandQueue.BackgroundCommand command, Handler sessionExecutorHandler) {
+      if (command.what == EVALUATE_SYNCHRONOUSLY) {
+        evaluateSynchronously((SynchronousEvaluationContext) command.context);
+      } else {
+        evaluateAsynchronously(
+            (AsynchronousEvaluationContext) command.context, sessionExecutorHandler);
+      }
+    }
+
+    /**
+     * Flushes the background lane without waiting for the quiet period, and deletes all the
+     * sessions, including the ones created by the flushed commands. Nothing is sent to this
+     * handler afterwards.
+     */
+    private void shutDown(Handler sessionExecutorHandler) {
+      for (Optional<BackgroundCommandQueue.BackgroundCommand> command =
+              backgroundCommandQueue.peek();
+          command.isPresent();
+          command = backgroundCommandQueue.peek()) {
+        evaluateBackgroundCommand(command.get(), sessionExecutorHandler);
+        backgroundCommandQueue.removeFirst(sessionExecutorHandler);
+      }
+      sessionExecutorHandler.removeMessages(RUN_BACKGROUND);
+      deleteSession();
+    }
+
     private Command evaluate(Input input) {
       Command inCommand =
           Command.newBuilder().setInput(input).setOutput(Output.getDefaultInstance()).build();
@@ -306,34 +595,238 @@ public class SessionExecutor {
       if (isLogging) {
         MozcCommandDebugger.inLog(inCommand);
       }
+      long startTime = System.nanoTime();
       Command outCommand = sessionHandler.evalCommand(inCommand);
+      long elapsedNanos = System.nanoTime() - startTime;
+      metrics.record(input, Stage.EVALUATION, elapsedNanos);
       if (isLogging) {
         MozcCommandDebugger.outLog(outCommand);
       }
+      if (recorder.isPresent()) {
+        recorder.get().record(input, outCommand.getOutput());
+      }
+      if (input.getType() == CommandType.SYNC_DATA) {
+        isUserDataDirty = false;
+        metrics.recordSyncDataFlush(elapsedNanos);
+      } else {
+        updateUserDataDirtiness(input, outCommand.getOutput());
+      }
       return outCommand;
     }
 
+    /** Marks the user data dirty if the evaluation may have changed it. */
+    private void updateUserDataDirtiness(Input input, Output output) {
+      if (isUserDataDirty) {
+        return;
+      }
+      switch (input.getType()) {
+        case CLEAR_USER_HISTORY:
+        case CLEAR_USER_PREDICTION:
+        case CLEAR_UNUSED_USER_PREDICTION:
+        case SEND_USER_DICTIONARY_COMMAND:
+          isUserDataDirty = true;
+          return;
+        case SEND_COMMAND:
+          if (input.getCommand().getType() == SessionCommand.CommandType.USAGE_STATS_EVENT) {
+            isUserDataDirty = true;
+            return;
+          }
+          break;
+        default:
+          break;
+      }
+      // A committed result is learned into the user history.
+      if (output.hasResult()) {
+        isUserDataDirty = true;
+      }
+    }
+
+    private void setRecording(boolean isRecording) {
+      if (recorder.isPresent()) {
+        recorder.get().close();
+        recorder = Optional.absent();
+      }
+      if (isRecording && context.isPresent()) {
+        recorder = CommandRecorder.create(context.get());
+        // Start the recording with CREATE_SESSION so that it can be replayed by itself.
+        deleteSession();
+      }
+    }
+
+    private static Input createSessionInput() {
+      return Input.newBuilder()
+          .setType(CommandType.CREATE_SESSION)
+          .setCapability(
+              Capability.newBuilder()
+                  .setTextDeletion(TextDeletionCapabilityType.DELETE_PRECEDING_TEXT))
+          .build();
+    }
+
+    private static List<Input> createWarmUpInputs() {
+      List<Input> inputs = new ArrayList<>();
+      for (String text : WARM_UP_TEXTS) {
+        for (int i = 0; i < text.length(); ++i) {
+          inputs.add(
+              Input.newBuilder()
+                  .setType(CommandType.SEND_KEY)
+                  .setKey(ProtoCommands.KeyEvent.newBuilder().setKeyCode(text.charAt(i)))
+                  .build());
+        }
+        // Revert rather than submit, so that nothing is learned.
+        for (SessionCommand.CommandType type :
+            new SessionCommand.CommandType[] {
+              SessionCommand.CommandType.CONVERT, SessionCommand.CommandType.REVERT
+            }) {
+          inputs.add(
+              Input.newBuilder()
+                  .setType(CommandType.SEND_COMMAND)
+                  .setCommand(SessionCommand.newBuilder().setType(type))
+                  .build());
+        }
+      }
+      return Collections.unmodifiableList(inputs);
+    }
+
+    /**
+     * Runs a step of the warm-up conversion in a throwaway session, and schedules the next step.
+     *
+     * <p>Each step is a message, so an interactive evaluation sent meanwhile waits for a single
+     * step at most. The remaining steps are abandoned once the user starts typing, as the typing
+     * faults in the dictionary pages anyway.
+     */
+    private void warmUp(Handler sessionExecutorHandler) {
+      long startTime = System.nanoTime();
+      if (warmUpSessionId == INVALID_SESSION_ID) {
+        // The first step. The user's session comes first.
+        ensureSession();
+        startTime = System.nanoTime();
+        warmUpSessionId = evaluate(createSessionInput()).getOutput().getId();
+        evaluate(
+            Input.newBuilder()
+                .setId(warmUpSessionId)
+                .setType(CommandType.SET_REQUEST)
+                .setRequest(request.get())
+                .build());
+      } else if (warmUpStep < WARM_UP_INPUTS.size()
+          && !hasInteractiveEvaluations(sessionExecutorHandler)) {
+        evaluate(WARM_UP_INPUTS.get(warmUpStep).toBuilder().setId(warmUpSessionId).build());
+        ++warmUpStep;
+      } else {
+        evaluate(
+            Input.newBuilder()
+                .setType(CommandType.DELETE_SESSION)
+                .setId(warmUpSessionId)
+                .build());
+        warmUpNanos += System.nanoTime() - startTime;
+        metrics.recordWarmUpPhase(WarmUpPhase.CONVERSION, warmUpNanos);
+        MozcLog.d(
+            "Warm-up finished after " + warmUpStep + "/" + WARM_UP_INPUTS.size() + " steps");
+        return;
+      }
+      warmUpNanos += System.nanoTime() - startTime;
+      sessionExecutorHandler.sendEmptyMessage(WARM_UP);
+    }
+
+    /**
+     * Makes the session of {@code editor} current, creating it if it isn't in the pool.
+     *
+     * <p>The request is shared by all the editors, as it reflects the keyboard rather than the
+     * editor. So a pooled session gets SET_REQUEST only if the request has been updated since it
+     * was used last, and a new one starts with the latest request.
+     */
+    private void switchEditor(SessionPool.Key editor) {
+      if (editor.equals(currentEditor) && sessionId != INVALID_SESSION_ID) {
+        return;
+      }
+      Optional<Request.Builder> latestRequest = request;
+      SessionPool.Key previousEditor = currentEditor;
+      currentEditor = editor;
+      if (previousEditor == UNKNOWN_EDITOR && sessionId != INVALID_SESSION_ID) {
+        // The session created before knowing the editor, e.g. by the warm-up. Adopt it.
+        sessionPool.put(editor, sessionPool.remove(UNKNOWN_EDITOR));
+        sendInputFieldType(editor.inputFieldType);
+        return;
+      }
+      SessionPool.Entry entry = sessionPool.get(editor);
+      if (entry == null) {
+        metrics.recordSessionPoolMiss();
+        sessionId = INVALID_SESSION_ID;
+        ensureSession(latestRequest);
+        sendInputFieldType(editor.inputFieldType);
+        return;
+      }
+
+      metrics.recordSessionPoolHit();
+      sessionId = entry.sessionId;
+      request = Optional.of(entry.request);
+      if (latestRequest.isPresent()
+          && !latestRequest.get().build().equals(entry.request.build())) {
+        entry.request.clear().mergeFrom(latestRequest.get().build());
+        evaluate(
+            Input.newBuilder()
+                .setId(sessionId)
+                .setType(CommandType.SET_REQUEST)
+                .setRequest(entry.request)
+                .build());
+      }
+    }
+
+    private void sendInputFieldType(InputFieldType inputFieldType) {
+      evaluate(
+          Input.newBuilder()
+              .setId(sessionId)
+              .setType(CommandType.SEND_COMMAND)
+              .setCommand(
+                  SessionCommand.newBuilder()
+                      .setType(SessionCommand.CommandType.SWITCH_INPUT_FIELD_TYPE))
+              .setContext(ProtoCommands.Context.newBuilder().setInputFieldType(inputFieldType))
+              .build());
+    }
+
+    /**
+     * @return the session id of {@code editor} if its session is still live, or the current
+     *     editor's one otherwise, which is created if necessary.
+     */
+    private long getSessionId(Optional<SessionPool.Key> editor) {
+      if (editor.isPresent() && !editor.get().equals(currentEditor)) {
+        SessionPool.Entry entry = sessionPool.get(editor.get());
+        if (entry != null) {
+          return entry.sessionId;
+        }
+      }
+      ensureSession();
+      return sessionId;
+    }
+
     private void ensureSession() {
+      ensureSession(Optional.absent());
+    }
+
+    /**
+     * Creates the current editor's session if there is none.
+     *
+     * @param initialRequest the request to start with. The default one is used if absent.
+     */
+    private void ensureSession(Optional<Request.Builder> initialRequest) {
       if (sessionId != INVALID_SESSION_ID) {
         return;
       }
 
       // Send CREATE_SESSION command and keep the returned sessionId.
-      Input input =
-          Input.newBuilder()
-              .setType(CommandType.CREATE_SESSION)
-              .setCapability(
-                  Capability.newBuilder()
-                      .setTextDeletion(TextDeletionCapabilityType.DELETE_PRECEDING_TEXT))
-              .build();
-      sessionId = evaluate(input).getOutput().getId();
+      long startTime = System.nanoTime();
+      sessionId = evaluate(createSessionInput()).getOutput().getId();
 
       // Just after session creation, we send the default "request" to the server,
       // with ignoring its result.
       // Set mobile dedicated fields, which will not be changed.
       // Other fields may be set when the input view is changed.
-      Request.Builder builder = Request.newBuilder();
-      MozcUtil.setSoftwareKeyboardRequest(builder);
+      Request.Builder builder;
+      if (initialRequest.isPresent()) {
+        builder = initialRequest.get().build().toBuilder();
+      } else {
+        builder = Request.newBuilder();
+        MozcUtil.setSoftwareKeyboardRequest(builder);
+      }
       request = Optional.of(builder);
       evaluate(
           Input.newBuilder()
@@ -341,19 +834,29 @@ public class SessionExecutor {
               .setType(CommandType.SET_REQUEST)
               .setRequest(request.get())
               .build());
+      metrics.recordWarmUpPhase(WarmUpPhase.SESSION, System.nanoTime() - startTime);
+
+      sessionPool.put(currentEditor, new SessionPool.Entry(sessionId, builder));
+      for (SessionPool.Entry evicted : sessionPool.takeEvictedEntries()) {
+        metrics.recordSessionPoolEviction();
+        deleteSession(evicted.sessionId);
+      }
     }
 
+    /** Deletes all the live sessions. */
     void deleteSession() {
-      if (sessionId == INVALID_SESSION_ID) {
-        return;
+      for (SessionPool.Entry entry : sessionPool.removeAll()) {
+        deleteSession(entry.sessionId);
       }
-
-      Input input = Input.newBuilder().setType(CommandType.DELETE_SESSION).setId(sessionId).build();
-      evaluate(input);
       sessionId = INVALID_SESSION_ID;
       request = Optional.absent();
     }
 
+    private void deleteSession(long id) {
+      Input input = Input.newBuilder().setType(CommandType.DELETE_SESSION).setId(id).build();
+      evaluate(input);
+    }
+
     /**
      * Returns {@code true} iff the given {@code output} is squashable by following output.
      *
@@ -397,6 +900,14 @@ public class SessionExecutor {
       // reason of less powerful devices.
       Input.Builder inputBuilder = context.inputBuilder;
       Optional<Handler> callbackHandler = context.callbackHandler;
+      metrics.record(inputBuilder, Stage.QUEUE_WAIT, System.nanoTime() - context.timeStamp);
+      if (inputBuilder.getType() == CommandType.SYNC_DATA
+          && !isUserDataDirty
+          && !callbackHandler.isPresent()) {
+        // Nothing to write. This also coalesces repeated SYNC_DATAs into the first one.
+        metrics.recordSyncDataSkip();
+        return;
+      }
       // TODO(exv): removed check to not squash EXPAND_SUGGESTION here. is that okay?
       if (callbackHandler.isPresent()) {
         // Do not squash by EXPAND_SUGGESTION request, because the result of EXPAND_SUGGESTION
@@ -418,10 +929,10 @@ public class SessionExecutor {
       // We set the session id to the input in asynchronous evaluation before the evaluation,
       // if necessary.
       if (isSessionIdRequired(inputBuilder)) {
-        ensureSession();
-        inputBuilder.setId(sessionId);
+        inputBuilder.setId(getSessionId(context.editor));
       }
       context.outCommand = Optional.of(evaluate(inputBuilder.build()));
+      context.evaluatedTimeStamp = System.nanoTime();
 
       // Invoke callback handler if necessary.
       if (callbackHandler.isPresent()) {
@@ -444,6 +955,7 @@ public class SessionExecutor {
 
     private void evaluateSynchronously(SynchronousEvaluationContext context) {
       Input input = context.input;
+      metrics.record(input, Stage.QUEUE_WAIT, System.nanoTime() - context.timeStamp);
       Preconditions.checkArgument(
           !isSessionIdRequired(input),
           "We expect only non-session-id-related input for synchronous evaluation: " + input);
@@ -502,6 +1014,11 @@ public class SessionExecutor {
         return;
       }
       AsynchronousEvaluationContext context = (AsynchronousEvaluationContext) message.obj;
+      SessionExecutorMetrics.getInstance()
+          .record(
+              context.inputBuilder,
+              Stage.DISPATCH,
+              System.nanoTime() - context.evaluatedTimeStamp);
       // Note that this method should be run on the UI thread, where removePendingEvaluations runs,
       // so we don't need to take a lock here.
       if (context.timeStamp - cancelTimeStamp > 0) {
@@ -514,6 +1031,14 @@ public class SessionExecutor {
   private Optional<Handler> handler = Optional.absent();
   private Optional<ExecutorMainCallback> mainCallback = Optional.absent();
   private final CallbackHandler callbackHandler;
+  private InteractiveLane interactiveLane = new InteractiveLane();
+  private BackgroundCommandQueue backgroundCommandQueue = new BackgroundCommandQueue();
+  private boolean isWarmUpRequested = false;
+
+  // The editor sent by the last switchEditor. Accessed only on the UI thread.
+  private SessionPool.Key currentEditor = ExecutorMainCallback.UNKNOWN_EDITOR;
+
+  private volatile Optional<Runnable> userDataWriteListener = Optional.absent();
 
   private SessionExecutor() {
     callbackHandler = new CallbackHandler(Looper.getMainLooper());
@@ -539,15 +1064,65 @@ public class SessionExecutor {
   public void reset(Context applicationContext) {
     Preconditions.checkNotNull(applicationContext);
     HandlerThread thread = getHandlerThread();
-    mainCallback = Optional.of(new ExecutorMainCallback(new LocalSessionHandler()));
+    if (handler.isPresent()) {
+      // Let the old handler close its recording, if any, flush its background lane including the
+      // user data it has written, and delete its sessions, as the new handler starts clean.
+      sendToWorker(ExecutorMainCallback.SET_RECORDING, false);
+      syncData();
+      sendToWorker(ExecutorMainCallback.SHUT_DOWN, null);
+    }
+    currentEditor = ExecutorMainCallback.UNKNOWN_EDITOR;
+    interactiveLane = new InteractiveLane();
+    backgroundCommandQueue = new BackgroundCommandQueue();
+    mainCallback =
+        Optional.of(
+            new ExecutorMainCallback(
+                new LocalSessionHandler(), interactiveLane, backgroundCommandQueue));
     handler = Optional.of(new Handler(thread.getLooper(), mainCallback.get()));
-    handler
-        .get()
-        .sendMessage(
-            handler
-                .get()
-                .obtainMessage(
-                    ExecutorMainCallback.INITIALIZE_SESSION_HANDLER, applicationContext));
+    sendToWorker(ExecutorMainCallback.INITIALIZE_SESSION_HANDLER, applicationContext);
+  }
+
+  private void sendToWorker(int what, Object obj) {
+    Preconditions.checkState(handler.isPresent());
+    interactiveLane.send(handler.get(), what, obj);
+  }
+
+  private void sendToBackgroundLane(int what, InputOrBuilder input, Object context) {
+    Preconditions.checkState(handler.isPresent());
+    backgroundCommandQueue.send(handler.get(), what, context);
+    Optional<Runnable> listener = userDataWriteListener;
+    if (input.getType() != CommandType.SYNC_DATA && listener.isPresent()) {
+      callbackHandler.post(listener.get());
+    }
+  }
+
+  /**
+   * Sets the listener which is run on the main thread whenever a command which may write the user
+   * data, e.g. a user dictionary edit or clearing the history, is sent to the background lane. It
+   * is not run for SYNC_DATA itself.
+   */
+  public void setUserDataWriteListener(Optional<Runnable> listener) {
+    userDataWriteListener = Preconditions.checkNotNull(listener);
+  }
+
+  /**
+   * @return {@code true} if the input can be deferred to the background lane, i.e. nobody is
+   *     waiting for its result during typing.
+   */
+  private static boolean isBackgroundCommand(InputOrBuilder input) {
+    switch (input.getType()) {
+      case SYNC_DATA:
+      case RELOAD:
+      case CLEAR_USER_HISTORY:
+      case CLEAR_USER_PREDICTION:
+      case CLEAR_UNUSED_USER_PREDICTION:
+      case SEND_USER_DICTIONARY_COMMAND:
+        return true;
+      case SEND_COMMAND:
+        return input.getCommand().getType() == SessionCommand.CommandType.USAGE_STATS_EVENT;
+      default:
+        return false;
+    }
   }
 
   /**
@@ -559,7 +1134,38 @@ public class SessionExecutor {
     }
   }
 
-  /** Remove pending evaluations from the pending queue. */
+  /**
+   * Warms up the engine on the worker thread, so that the first key event doesn't pay for the
+   * initialization: the session is created, and some dummy conversions fault in the dictionary
+   * pages. This returns immediately, and evaluations sent meanwhile are just queued. The durations
+   * of the phases are recorded in {@link SessionExecutorMetrics}.
+   *
+   * <p>Does nothing but on the first invocation in the process.
+   */
+  public void warmUp() {
+    if (isWarmUpRequested) {
+      return;
+    }
+    isWarmUpRequested = true;
+    sendToWorker(ExecutorMainCallback.WARM_UP, null);
+  }
+
+  /**
+   * Starts or stops recording all the evaluated commands into a file, which can be replayed by
+   * {@link CommandReplayer}. Stopping also deletes the recordings made so far.
+   */
+  public void setRecording(boolean isRecording) {
+    sendToWorker(ExecutorMainCallback.SET_RECORDING, isRecording);
+    if (!isRecording) {
+      sendToWorker(ExecutorMainCallback.DELETE_RECORDINGS, null);
+    }
+  }
+
+  /**
+   * Remove pending evaluations from the pending queue.
+   *
+   * <p>Commands in the background lane are kept, as they don't render anything.
+   */
   public void removePendingEvaluations() {
     callbackHandler.cancelTimeStamp = System.nanoTime();
     if (handler.isPresent()) {
@@ -568,13 +1174,13 @@ public class SessionExecutor {
       handler.get().removeMessages(ExecutorMainCallback.EVALUATE_SYNCHRONOUSLY);
       handler.get().removeMessages(ExecutorMainCallback.UPDATE_REQUEST);
     }
+    interactiveLane.clear();
     callbackHandler.removeMessages(CallbackHandler.UNSQUASHABLE_OUTPUT);
     callbackHandler.removeMessages(CallbackHandler.SQUASHABLE_OUTPUT);
   }
 
   public void deleteSession() {
-    Preconditions.checkState(handler.isPresent());
-    handler.get().sendMessage(handler.get().obtainMessage(ExecutorMainCallback.DELETE_SESSION));
+    sendToWorker(ExecutorMainCallback.DELETE_SESSION, null);
   }
 
   /**
@@ -600,11 +1206,20 @@ public class SessionExecutor {
             Preconditions.checkNotNull(triggeringKeyEvent),
             Preconditions.checkNotNull(callback),
             callback.isPresent() ? Optional.of(callbackHandler) : Optional.absent());
+    if (!triggeringKeyEvent.isPresent()
+        && !callback.isPresent()
+        && isBackgroundCommand(inputBuilder)) {
+      // The command may be deferred until the user has switched to another editor, so it is bound
+      // to the current one now.
+      context.editor = Optional.of(currentEditor);
+      sendToBackgroundLane(ExecutorMainCallback.EVALUATE_ASYNCHRONOUSLY, inputBuilder, context);
+      return;
+    }
     int type =
         (triggeringKeyEvent.isPresent())
             ? ExecutorMainCallback.EVALUATE_KEYEVENT_ASYNCHRONOUSLY
             : ExecutorMainCallback.EVALUATE_ASYNCHRONOUSLY;
-    handler.get().sendMessage(handler.get().obtainMessage(type, context));
+    sendToWorker(type, context);
   }
 
   /** Sends {@code SEND_KEY} command to the server asynchronously. */
@@ -772,6 +1387,20 @@ public class SessionExecutor {
     evaluateAsynchronously(inputBuilder, Optional.absent(), Optional.absent());
   }
 
+  /**
+   * Switches to the session of the given editor, reusing a live one if any. A new session gets
+   * {@code SWITCH_INPUT_FIELD_TYPE} as {@link #switchInputFieldType} does.
+   *
+   * @param packageName the package name of the editor's application
+   * @param inputFieldType the type of the editor
+   */
+  public void switchEditor(String packageName, InputFieldType inputFieldType) {
+    currentEditor =
+        new SessionPool.Key(
+            Preconditions.checkNotNull(packageName), Preconditions.checkNotNull(inputFieldType));
+    sendToWorker(ExecutorMainCallback.SWITCH_EDITOR, currentEditor);
+  }
+
   /** Sends {@code UNDO_OR_REWIND} command to the server asynchronously. */
   public void undoOrRewind(List<TouchEvent> touchEventList, EvaluationCallback callback) {
     Preconditions.checkNotNull(touchEventList);
@@ -882,6 +1511,10 @@ public class SessionExecutor {
     evaluateAsynchronously(inputBuilder, Optional.absent(), Optional.absent());
   }
 
+  /**
+   * Writes the user data to the storage in the background lane. This is skipped if nothing has been
+   * written since the last one. Usually scheduled by {@link SyncDataScheduler}.
+   */
   public void syncData() {
     Input.Builder inputBuilder = Input.newBuilder().setType(CommandType.SYNC_DATA);
     evaluateAsynchronously(inputBuilder, Optional.absent(), Optional.absent());
@@ -889,17 +1522,18 @@ public class SessionExecutor {
 
   /**
    * Evaluates the input on the JNI worker thread, and wait that the evaluation is done. This method
-   * blocks (typically <30ms).
+   * blocks (typically <30ms). A background command also waits for the pending interactive ones.
    */
   private Output evaluateSynchronously(Input input) {
     Preconditions.checkState(handler.isPresent());
     CountDownLatch evaluationSynchronizer = new CountDownLatch(1);
     SynchronousEvaluationContext context =
         new SynchronousEvaluationContext(input, evaluationSynchronizer);
-    handler
-        .get()
-        .sendMessage(
-            handler.get().obtainMessage(ExecutorMainCallback.EVALUATE_SYNCHRONOUSLY, context));
+    if (isBackgroundCommand(input)) {
+      sendToBackgroundLane(ExecutorMainCallback.EVALUATE_SYNCHRONOUSLY, input, context);
+    } else {
+      sendToWorker(ExecutorMainCallback.EVALUATE_SYNCHRONOUSLY, context);
+    }
 
     try {
       evaluationSynchronizer.await();
@@ -997,10 +1631,7 @@ public class SessionExecutor {
     Preconditions.checkState(handler.isPresent());
     Input.Builder inputBuilder =
         Input.newBuilder().setRequest(update).addAllTouchEvents(touchEventList);
-    handler
-        .get()
-        .sendMessage(
-            handler.get().obtainMessage(ExecutorMainCallback.UPDATE_REQUEST, inputBuilder));
+    sendToWorker(ExecutorMainCallback.UPDATE_REQUEST, inputBuilder);
   }
 
   public void sendKeyEvent(KeyEventInterface triggeringKeyEvent, EvaluationCallback callback) {
@@ -1009,9 +1640,7 @@ public class SessionExecutor {
     Preconditions.checkState(handler.isPresent());
     KeyEventCallbackContext context =
         new KeyEventCallbackContext(triggeringKeyEvent, callback, callbackHandler);
-    handler
-        .get()
-        .sendMessage(handler.get().obtainMessage(ExecutorMainCallback.PASS_TO_CALLBACK, context));
+    sendToWorker(ExecutorMainCallback.PASS_TO_CALLBACK, context);
   }
 
   public void sendUsageStatsEvent(UsageStatsEvent event) {
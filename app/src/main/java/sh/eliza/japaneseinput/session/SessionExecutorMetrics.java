@@ -0,0 +1,269 @@
+package sh.eliza.japaneseinput.session;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.CommandType;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.InputOrBuilder;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.SessionCommand;
+import sh.eliza.japaneseinput.util.LatencyHistogram;
+
+/**
+ * Latency histograms of {@link SessionExecutor}, per {@link CommandType} (and per {@link
+ * SessionCommand.CommandType} for {@code SEND_COMMAND}), queue depths per {@link Lane},
+ * session pool usage, SYNC_DATA flushes, and the durations of the {@link WarmUpPhase}s.
+ *
+ * <p>Histograms are created on the first record of each command type, and recording doesn't
+ * allocate after that.
+ */
+public class SessionExecutorMetrics {
+
+  /** The stages of an evaluation. */
+  public enum Stage {
+    /** Time spent waiting in the worker thread's queue. */
+    QUEUE_WAIT("queue"),
+    /** Time spent in {@link SessionHandler#evalCommand}. */
+    EVALUATION("eval"),
+    /** Delay before the main looper dispatches the result to the callback. */
+    DISPATCH("dispatch");
+
+    final String label;
+
+    Stage(String label) {
+      this.label = label;
+    }
+  }
+
+  /** The lanes of the worker thread. */
+  public enum Lane {
+    /** Commands which the user is waiting for, e.g. key events. */
+    INTERACTIVE("interactive"),
+    /** Commands which can be deferred until the user stops typing, e.g. SYNC_DATA. */
+    BACKGROUND("background");
+
+    final String label;
+
+    Lane(String label) {
+      this.label = label;
+    }
+  }
+
+  /** The phases of the warm-up, each of which is recorded only once per process. */
+  public enum WarmUpPhase {
+    /** Loading the JNI library and the dictionary data. */
+    INITIALIZE("initialize"),
+    /** The first CREATE_SESSION and SET_REQUEST. */
+    SESSION("session"),
+    /** Dummy conversions in a throwaway session, which fault in the dictionary pages. */
+    CONVERSION("conversion");
+
+    final String label;
+
+    WarmUpPhase(String label) {
+      this.label = label;
+    }
+  }
+
+  private static final SessionExecutorMetrics INSTANCE = new SessionExecutorMetrics();
+
+  private static final int COMMAND_TYPE_COUNT = CommandType.values().length;
+  private static final int SESSION_COMMAND_TYPE_COUNT =
+      SessionCommand.CommandType.values().length;
+
+  // Indexed by [command key][stage].
+  private final LatencyHistogram[][] histograms =
+      new LatencyHistogram[COMMAND_TYPE_COUNT + SESSION_COMMAND_TYPE_COUNT][];
+
+  // Indexed by lane. Depths are sampled when a command is enqueued, including the command itself.
+  private final long[] depthSampleCounts = new long[Lane.values().length];
+  private final long[] depthSums = new long[Lane.values().length];
+  private final int[] maxDepths = new int[Lane.values().length];
+  private long backgroundDeferralCount = 0;
+
+  private long sessionPoolHitCount = 0;
+  private long sessionPoolMissCount = 0;
+  private long sessionPoolEvictionCount = 0;
+
+  private long syncDataSkipCount = 0;
+  private long syncDataFlushCount = 0;
+  private long lastSyncDataFlushNanos = 0;
+  private long maxSyncDataFlushNanos = 0;
+
+  // Indexed by warm-up phase. Not cleared by reset(), as they are recorded only once.
+  private final boolean[] isWarmUpPhaseRecorded = new boolean[WarmUpPhase.values().length];
+  private final long[] warmUpPhaseNanos = new long[WarmUpPhase.values().length];
+
+  public static SessionExecutorMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  private static int keyOf(InputOrBuilder input) {
+    if (input.getType() == CommandType.SEND_COMMAND && input.hasCommand()) {
+      return COMMAND_TYPE_COUNT + input.getCommand().getType().ordinal();
+    }
+    return input.getType().ordinal();
+  }
+
+  private static String nameOf(int key) {
+    if (key < COMMAND_TYPE_COUNT) {
+      return CommandType.values()[key].name();
+    }
+    return "SEND_COMMAND/" + SessionCommand.CommandType.values()[key - COMMAND_TYPE_COUNT].name();
+  }
+
+  public void record(InputOrBuilder input, Stage stage, long nanos) {
+    int key = keyOf(input);
+    LatencyHistogram[] stages;
+    synchronized (histograms) {
+      stages = histograms[key];
+      if (stages == null) {
+        stages = new LatencyHistogram[Stage.values().length];
+        for (int i = 0; i < stages.length; ++i) {
+          stages[i] = new LatencyHistogram();
+        }
+        histograms[key] = stages;
+      }
+    }
+    stages[stage.ordinal()].record(nanos);
+  }
+
+  public synchronized void recordQueueDepth(Lane lane, int depth) {
+    int index = lane.ordinal();
+    ++depthSampleCounts[index];
+    depthSums[index] += depth;
+    maxDepths[index] = Math.max(maxDepths[index], depth);
+  }
+
+  /** Records that a background command is deferred because of interactive work. */
+  public synchronized void recordBackgroundDeferral() {
+    ++backgroundDeferralCount;
+  }
+
+  public synchronized void recordSessionPoolHit() {
+    ++sessionPoolHitCount;
+  }
+
+  public synchronized void recordSessionPoolMiss() {
+    ++sessionPoolMissCount;
+  }
+
+  public synchronized void recordSessionPoolEviction() {
+    ++sessionPoolEvictionCount;
+  }
+
+  /** Records that SYNC_DATA is skipped as nothing has been written since the last flush. */
+  public synchronized void recordSyncDataSkip() {
+    ++syncDataSkipCount;
+  }
+
+  /** Records the duration of a SYNC_DATA which has actually flushed the user data. */
+  public synchronized void recordSyncDataFlush(long nanos) {
+    ++syncDataFlushCount;
+    lastSyncDataFlushNanos = nanos;
+    maxSyncDataFlushNanos = Math.max(maxSyncDataFlushNanos, nanos);
+  }
+
+  /** Records the duration of the phase, unless it has been recorded already. */
+  public synchronized void recordWarmUpPhase(WarmUpPhase phase, long nanos) {
+    if (!isWarmUpPhaseRecorded[phase.ordinal()]) {
+      isWarmUpPhaseRecorded[phase.ordinal()] = true;
+      warmUpPhaseNanos[phase.ordinal()] = nanos;
+    }
+  }
+
+  public void reset() {
+    synchronized (this) {
+      for (int i = 0; i < depthSampleCounts.length; ++i) {
+        depthSampleCounts[i] = 0;
+        depthSums[i] = 0;
+        maxDepths[i] = 0;
+      }
+      backgroundDeferralCount = 0;
+      sessionPoolHitCount = 0;
+      sessionPoolMissCount = 0;
+      sessionPoolEvictionCount = 0;
+      syncDataSkipCount = 0;
+      syncDataFlushCount = 0;
+      lastSyncDataFlushNanos = 0;
+      maxSyncDataFlushNanos = 0;
+    }
+    synchronized (histograms) {
+      for (LatencyHistogram[] stages : histograms) {
+        if (stages != null) {
+          for (LatencyHistogram histogram : stages) {
+            histogram.reset();
+          }
+        }
+      }
+    }
+  }
+
+  /** Writes the queue depths, and all the non-empty histograms in microseconds. */
+  public void dump(PrintWriter writer) {
+    writer.println("SessionExecutor queue depth:");
+    synchronized (this) {
+      for (Lane lane : Lane.values()) {
+        int index = lane.ordinal();
+        writer.println(
+            String.format(
+                Locale.US,
+                "  %s: n=%d avg=%.1f max=%d",
+                lane.label,
+                depthSampleCounts[index],
+                depthSampleCounts[index] == 0
+                    ? 0.0
+                    : (double) depthSums[index] / depthSampleCounts[index],
+                maxDepths[index]));
+      }
+      writer.println("  background deferrals: " + backgroundDeferralCount);
+      writer.println(
+          "SessionExecutor session pool: hits="
+              + sessionPoolHitCount
+              + " misses="
+              + sessionPoolMissCount
+              + " evictions="
+              + sessionPoolEvictionCount);
+      writer.println(
+          String.format(
+              Locale.US,
+              "SessionExecutor sync: flushes=%d skipped=%d last=%.1fms max=%.1fms",
+              syncDataFlushCount,
+              syncDataSkipCount,
+              lastSyncDataFlushNanos / 1e6,
+              maxSyncDataFlushNanos / 1e6));
+
+      writer.print("SessionExecutor warm-up (ms):");
+      for (WarmUpPhase phase : WarmUpPhase.values()) {
+        writer.print(' ');
+        writer.print(phase.label);
+        writer.print('=');
+        writer.print(
+            isWarmUpPhaseRecorded[phase.ordinal()]
+                ? String.format(Locale.US, "%.1f", warmUpPhaseNanos[phase.ordinal()] / 1e6)
+                : "-");
+      }
+      writer.println();
+    }
+    writer.println("SessionExecutor latency (us):");
+    synchronized (histograms) {
+      for (int key = 0; key < histograms.length; ++key) {
+        LatencyHistogram[] stages = histograms[key];
+        if (stages == null) {
+          continue;
+        }
+        writer.print("  ");
+        writer.println(nameOf(key));
+        for (Stage stage : Stage.values()) {
+          LatencyHistogram histogram = stages[stage.ordinal()];
+          if (histogram.getCount() == 0) {
+            continue;
+          }
+          writer.print("    ");
+          writer.print(stage.label);
+          writer.print(": ");
+          histogram.dump(writer);
+          writer.println();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package sh.eliza.japaneseinput.session
+
+import android.content.Context
+import android.os.Debug
+import java.util.Locale
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Capability
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Capability.TextDeletionCapabilityType
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Command
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Input.CommandType
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.KeyEvent
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Output
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Request
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.SessionCommand
+import sh.eliza.japaneseinput.MozcUtil
+
+private const val DEFAULT_ITERATIONS = 20
+private const val WARM_UP_ITERATIONS = 2
+private const val TYPED_TEXT = "kyouhaiitenkidesune"
+
+/**
+ * Measures the per-command latency and allocations of [SessionHandler] implementations.
+ *
+ * Each handler types [TYPED_TEXT] key by key and reverts it (so nothing is learned), in its own
+ * session. This must not be run on the session worker thread nor the UI thread, as it blocks for a
+ * while.
+ */
+object SessionHandlerBenchmark {
+  /** Result of a single handler's run. */
+  class Result(
+    val name: String,
+    val commandCount: Int,
+    val nanosPerCommand: Double,
+    val objectsPerCommand: Double,
+    val bytesPerCommand: Double,
+  ) {
+    override fun toString(): String =
+      String.format(
+        Locale.US,
+        "%s: %d commands, %.1f us/command, %.1f objects/command, %.1f bytes/command",
+        name,
+        commandCount,
+        nanosPerCommand / 1000.0,
+        objectsPerCommand,
+        bytesPerCommand,
+      )
+  }
+
+  /** Runs the benchmark on the byte array transport of [LocalSessionHandler]. */
+  @JvmStatic
+  @JvmOverloads
+  fun run(context: Context, iterations: Int = DEFAULT_ITERATIONS): List<Result> {
+    val local = LocalSessionHandler()
+    local.initialize(context)
+    return listOf(run("byte[]", local, iterations))
+  }
+
+  @JvmStatic
+  @Suppress("deprecation")
+  fun run(name: String, handler: SessionHandler, iterations: Int): Result {
+    val sessionId =
+      evaluate(
+          handler,
+          Input.newBuilder()
+            .setType(CommandType.CREATE_SESSION)
+            .setCapability(
+              Capability.newBuilder()
+                .setTextDeletion(TextDeletionCapabilityType.DELETE_PRECEDING_TEXT)
+            )
+            .build(),
+        )
+        .output
+        .id
+    try {
+      val request = Request.newBuilder()
+      MozcUtil.setSoftwareKeyboardRequest(request)
+      evaluate(
+        handler,
+        Input.newBuilder()
+          .setId(sessionId)
+          .setType(CommandType.SET_REQUEST)
+          .setRequest(request)
+          .build(),
+      )
+      val inputs = createInputs(sessionId)
+
+      repeat(WARM_UP_ITERATIONS) { inputs.forEach { evaluate(handler, it) } }
+
+      Debug.resetThreadAllocCount()
+      Debug.startAllocCounting()
+      val start = System.nanoTime()
+      repeat(iterations) { inputs.forEach { evaluate(handler, it) } }
+      val elapsed = System.nanoTime() - start
+      Debug.stopAllocCounting()
+
+      val commandCount = iterations * inputs.size
+      return Result(
+        name,
+        commandCount,
+        elapsed.toDouble() / commandCount,
+        Debug.getThreadAllocCount().toDouble() / commandCount,
+        Debug.getThreadAllocSize().toDouble() / commandCount,
+      )
+    } finally {
+      evaluate(
+        handler,
+        Input.newBuilder().setType(CommandType.DELETE_SESSION).setId(sessionId).build(),
+      )
+    }
+  }
+
+  private fun createInputs(sessionId: Long): List<Input> {
+    val inputs = mutableListOf<Input>()
+    for (c in TYPED_TEXT) {
+      inputs.add(
+        Input.newBuilder()
+          .setId(sessionId)
+          .setType(CommandType.SEND_KEY)
+          .setKey(KeyEvent.newBuilder().setKeyCode(c.code))
+          .build()
+      )
+    }
+    inputs.add(
+      Input.newBuilder()
+        .setId(sessionId)
+        .setType(CommandType.SEND_COMMAND)
+        .setCommand(SessionCommand.newBuilder().setType(SessionCommand.CommandType.REVERT))
+        .build()
+    )
+    return inputs
+  }
+
+  private fun evaluate(handler: SessionHandler, input: Input): Command =
+    handler.evalCommand(
+      Command.newBuilder().setInput(input).setOutput(Output.getDefaultInstance()).build()
+    )
+}
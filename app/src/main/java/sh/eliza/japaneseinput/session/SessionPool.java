@@ -0,0 +1,103 @@
+package sh.eliza.japaneseinput.session;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Context.InputFieldType;
+import org.mozc.android.inputmethod.japanese.protobuf.ProtoCommands.Request;
+import sh.eliza.japaneseinput.util.LeastRecentlyUsedCacheMap;
+
+/**
+ * LRU pool of live Mozc sessions, one per editor, so that switching between editors reuses a
+ * session instead of creating one and sending the request again.
+ *
+ * <p>Not thread safe. Only the session worker thread touches this.
+ */
+class SessionPool {
+
+  /** The max number of live sessions. */
+  static final int MAX_SESSION_COUNT = 4;
+
+  /** Identifies an editor. */
+  static class Key {
+    final String packageName;
+    final InputFieldType inputFieldType;
+
+    Key(String packageName, InputFieldType inputFieldType) {
+      this.packageName = Preconditions.checkNotNull(packageName);
+      this.inputFieldType = Preconditions.checkNotNull(inputFieldType);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) object;
+      return packageName.equals(other.packageName) && inputFieldType == other.inputFieldType;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(packageName, inputFieldType);
+    }
+  }
+
+  /** A live session and the request sent to it so far. */
+  static class Entry {
+    final long sessionId;
+    final Request.Builder request;
+
+    Entry(long sessionId, Request.Builder request) {
+      this.sessionId = sessionId;
+      this.request = Preconditions.checkNotNull(request);
+    }
+  }
+
+  private final List<Entry> evictedEntries = new ArrayList<>();
+
+  private final LeastRecentlyUsedCacheMap<Key, Entry> entries =
+      new LeastRecentlyUsedCacheMap<Key, Entry>(MAX_SESSION_COUNT) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+          if (!super.removeEldestEntry(eldest)) {
+            return false;
+          }
+          evictedEntries.add(eldest.getValue());
+          return true;
+        }
+      };
+
+  /** @return the entry of the editor, marking it as the most recently used one. */
+  Entry get(Key key) {
+    return entries.get(Preconditions.checkNotNull(key));
+  }
+
+  /**
+   * Adds the entry as the most recently used one. The evicted entries, whose sessions the caller
+   * has to delete, are available from {@link #takeEvictedEntries()}.
+   */
+  void put(Key key, Entry entry) {
+    entries.put(Preconditions.checkNotNull(key), Preconditions.checkNotNull(entry));
+  }
+
+  /** @return the removed entry, or {@code null} if absent. */
+  Entry remove(Key key) {
+    return entries.remove(Preconditions.checkNotNull(key));
+  }
+
+  List<Entry> takeEvictedEntries() {
+    List<Entry> result = new ArrayList<>(evictedEntries);
+    evictedEntries.clear();
+    return result;
+  }
+
+  /** Removes all the entries, whose sessions the caller has to delete. */
+  List<Entry> removeAll() {
+    List<Entry> result = new ArrayList<>(entries.values());
+    entries.clear();
+    return result;
+  }
+}
@@ -0,0 +1,108 @@
+package sh.eliza.japaneseinput.session;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import com.google.common.base.Preconditions;
+
+/**
+ * Schedules SYNC_DATA, which writes the user history, the user dictionary and the learning data
+ * to the storage, so that the storage is not written while the user is typing.
+ *
+ * <p>SYNC_DATA is sent when the keyboard has been idle for the idle period after some user
+ * activity, including the user data edits sent to the background lane (see {@link
+ * SessionExecutor#setUserDataWriteListener}), or by {@link #flush()} when the window is hidden or
+ * memory runs short. Sends are
+ * coalesced on this side by the single pending timer, and on the worker thread, which skips
+ * SYNC_DATA while nothing has been written since the last one. Skips and flush durations are
+ * recorded in {@link SessionExecutorMetrics}.
+ *
+ * <p>All the methods must be called on the main thread.
+ */
+public class SyncDataScheduler {
+
+  /** The default idle period after the last user activity. */
+  public static final long DEFAULT_IDLE_MILLIS = 5L * 1000L;
+
+  /** SYNC_DATA is sent at least this long after the first activity, even if typing continues. */
+  static final long MAX_DEFERRAL_MILLIS = 15L * 60L * 1000L;
+
+  private static final int WHAT = 0;
+  private static final long NO_ACTIVITY = -1;
+
+  private final SessionExecutor sessionExecutor;
+  private final Handler handler =
+      new Handler(
+          Looper.getMainLooper(),
+          new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message message) {
+              onTimer();
+              return true;
+            }
+          });
+  private long idleMillis;
+
+  // SystemClock.uptimeMillis() of the first and the last activity since the last SYNC_DATA.
+  private long firstActivityUptimeMillis = NO_ACTIVITY;
+  private long lastActivityUptimeMillis = NO_ACTIVITY;
+
+  public SyncDataScheduler(SessionExecutor sessionExecutor, long idleMillis) {
+    this.sessionExecutor = Preconditions.checkNotNull(sessionExecutor);
+    setIdleMillis(idleMillis);
+  }
+
+  /** Sets the idle period. A pending timer is rescheduled for the new period. */
+  public void setIdleMillis(long idleMillis) {
+    Preconditions.checkArgument(idleMillis > 0);
+    this.idleMillis = idleMillis;
+    if (firstActivityUptimeMillis != NO_ACTIVITY) {
+      handler.removeMessages(WHAT);
+      scheduleTimer();
+    }
+  }
+
+  /**
+   * Notifies that the user did something which may write the user data, e.g. typed a key. This is
+   * called for every key, so it only updates the time stamps unless the timer is stopped.
+   */
+  public void onUserActivity() {
+    long now = SystemClock.uptimeMillis();
+    lastActivityUptimeMillis = now;
+    if (firstActivityUptimeMillis == NO_ACTIVITY) {
+      firstActivityUptimeMillis = now;
+      handler.sendEmptyMessageAtTime(WHAT, now + idleMillis);
+    }
+  }
+
+  private void onTimer() {
+    long now = SystemClock.uptimeMillis();
+    long idleDeadline = lastActivityUptimeMillis + idleMillis;
+    if (now < idleDeadline && now - firstActivityUptimeMillis < MAX_DEFERRAL_MILLIS) {
+      // The user is still typing.
+      scheduleTimer();
+      return;
+    }
+    flush();
+  }
+
+  private void scheduleTimer() {
+    handler.sendEmptyMessageAtTime(
+        WHAT,
+        Math.min(
+            lastActivityUptimeMillis + idleMillis,
+            firstActivityUptimeMillis + MAX_DEFERRAL_MILLIS));
+  }
+
+  /**
+   * Sends SYNC_DATA now, e.g. when the window is hidden or memory runs short. The worker thread
+   * skips it if nothing has been written since the last one.
+   */
+  public void flush() {
+    handler.removeMessages(WHAT);
+    firstActivityUptimeMillis = NO_ACTIVITY;
+    lastActivityUptimeMillis = NO_ACTIVITY;
+    sessionExecutor.syncData();
+  }
+}
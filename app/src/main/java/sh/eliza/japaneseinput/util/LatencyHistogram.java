@@ -0,0 +1,88 @@
+package sh.eliza.japaneseinput.util;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Fixed-size histogram of latencies with logarithmic buckets.
+ *
+ * <p>Bucket 0 holds latencies shorter than 1us, and bucket {@code i} holds ones in {@code [2^(i-1),
+ * 2^i)} us. The last bucket is open-ended (about 8s or longer). Recording never allocates, so this
+ * can be used on the typing path.
+ */
+public class LatencyHistogram {
+
+  static final int BUCKET_COUNT = 25;
+
+  private final long[] counts = new long[BUCKET_COUNT];
+  private long totalCount = 0;
+  private long totalNanos = 0;
+  private long maxNanos = 0;
+
+  private static int bucketOf(long nanos) {
+    long micros = nanos / 1000;
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    return Math.min(bucket, BUCKET_COUNT - 1);
+  }
+
+  /** @return the upper bound of the given bucket in nanoseconds. */
+  private static long bucketUpperBoundNanos(int bucket) {
+    return (1L << bucket) * 1000;
+  }
+
+  public synchronized void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    ++counts[bucketOf(nanos)];
+    ++totalCount;
+    totalNanos += nanos;
+    maxNanos = Math.max(maxNanos, nanos);
+  }
+
+  public synchronized long getCount() {
+    return totalCount;
+  }
+
+  /**
+   * @return the upper bound of the bucket which contains the given percentile, in nanoseconds. The
+   *     result never exceeds the max recorded value.
+   */
+  public synchronized long getPercentileNanos(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    long threshold = (long) Math.ceil(totalCount * percentile / 100.0);
+    long accumulated = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      accumulated += counts[i];
+      if (accumulated >= threshold) {
+        return Math.min(bucketUpperBoundNanos(i), maxNanos);
+      }
+    }
+    return maxNanos;
+  }
+
+  public synchronized void reset() {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      counts[i] = 0;
+    }
+    totalCount = 0;
+    totalNanos = 0;
+    maxNanos = 0;
+  }
+
+  /** Writes a one-line summary in microseconds. */
+  public synchronized void dump(PrintWriter writer) {
+    writer.print(
+        String.format(
+            Locale.US,
+            "n=%d avg=%.0f p50=%d p90=%d p99=%d max=%d",
+            totalCount,
+            totalCount == 0 ? 0.0 : totalNanos / 1000.0 / totalCount,
+            getPercentileNanos(50) / 1000,
+            getPercentileNanos(90) / 1000,
+            getPercentileNanos(99) / 1000,
+            maxNanos / 1000));
+  }
+}
@@ -0,0 +1,46 @@
+package sh.eliza.japaneseinput.util
+
+import java.io.PrintWriter
+import java.io.StringWriter
+import sh.eliza.japaneseinput.InputViewFrameMetrics
+import sh.eliza.japaneseinput.keyboard.KeyboardRenderingMetrics
+import sh.eliza.japaneseinput.session.SessionExecutorMetrics
+import sh.eliza.japaneseinput.vectorgraphic.BitmapCache
+import sh.eliza.japaneseinput.view.DecodedDrawableCache
+import sh.eliza.japaneseinput.view.IconAtlas
+
+/**
+ * Collects the in-memory performance metrics of the process into a text dump.
+ *
+ * The dump is shown on the developer preference screen and by `adb shell dumpsys activity service
+ * sh.eliza.japaneseinput/.MozcService`.
+ */
+object PerformanceDump {
+  @JvmStatic
+  fun dump(writer: PrintWriter) {
+    SessionExecutorMetrics.getInstance().dump(writer)
+    BitmapCache.getInstance().dump(writer)
+    DecodedDrawableCache.getInstance().dump(writer)
+    IconAtlas.dump(writer)
+    KeyboardRenderingMetrics.getInstance().dump(writer)
+    InputViewFrameMetrics.getInstance().dump(writer)
+  }
+
+  @JvmStatic
+  fun dumpToString(): String {
+    val stringWriter = StringWriter()
+    PrintWriter(stringWriter).use { dump(it) }
+    return stringWriter.toString()
+  }
+
+  /** Resets all the metrics. */
+  @JvmStatic
+  fun reset() {
+    SessionExecutorMetrics.getInstance().reset()
+    BitmapCache.getInstance().reset()
+    DecodedDrawableCache.getInstance().reset()
+    IconAtlas.reset()
+    KeyboardRenderingMetrics.getInstance().reset()
+    InputViewFrameMetrics.getInstance().reset()
+  }
+}
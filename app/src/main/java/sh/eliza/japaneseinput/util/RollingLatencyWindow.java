@@ -0,0 +1,80 @@
+package sh.eliza.japaneseinput.util;
+
+import com.google.common.base.Preconditions;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Latencies of the last {@code capacity} records.
+ *
+ * <p>Unlike {@link LatencyHistogram}, whose percentiles cover everything since the last reset, the
+ * percentiles follow the recent behavior, so a stutter is not diluted by a long history of smooth
+ * frames. They are exact, computed from a sorted copy of the window. Recording never allocates, so
+ * this can be used on the rendering path.
+ */
+public class RollingLatencyWindow {
+
+  private final long[] window;
+  private int nextIndex = 0;
+  private int size = 0;
+
+  public RollingLatencyWindow(int capacity) {
+    Preconditions.checkArgument(capacity > 0);
+    window = new long[capacity];
+  }
+
+  public synchronized void record(long nanos) {
+    window[nextIndex] = Math.max(0, nanos);
+    nextIndex = (nextIndex + 1) % window.length;
+    size = Math.min(size + 1, window.length);
+  }
+
+  /** @return the number of the latencies in the window. */
+  public synchronized int getSize() {
+    return size;
+  }
+
+  /** @return the given percentile of the latencies in the window, in nanoseconds. */
+  public long getPercentileNanos(double percentile) {
+    return percentileOf(getSortedLatencies(), percentile);
+  }
+
+  public synchronized void reset() {
+    nextIndex = 0;
+    size = 0;
+  }
+
+  private synchronized long[] getSortedLatencies() {
+    long[] latencies = Arrays.copyOf(window, size);
+    Arrays.sort(latencies);
+    return latencies;
+  }
+
+  private static long percentileOf(long[] sortedLatencies, double percentile) {
+    if (sortedLatencies.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(sortedLatencies.length * percentile / 100.0) - 1;
+    return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+  }
+
+  /** Writes a one-line summary in microseconds, in the same format as {@link LatencyHistogram}. */
+  public void dump(PrintWriter writer) {
+    long[] latencies = getSortedLatencies();
+    long totalNanos = 0;
+    for (long nanos : latencies) {
+      totalNanos += nanos;
+    }
+    writer.print(
+        String.format(
+            Locale.US,
+            "n=%d avg=%.0f p50=%d p90=%d p99=%d max=%d",
+            latencies.length,
+            latencies.length == 0 ? 0.0 : totalNanos / 1000.0 / latencies.length,
+            percentileOf(latencies, 50) / 1000,
+            percentileOf(latencies, 90) / 1000,
+            percentileOf(latencies, 99) / 1000,
+            latencies.length == 0 ? 0 : latencies[latencies.length - 1] / 1000));
+  }
+}
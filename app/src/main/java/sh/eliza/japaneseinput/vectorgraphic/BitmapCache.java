@@ -0,0 +1,205 @@
+package sh.eliza.japaneseinput.vectorgraphic;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.LruCache;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import sh.eliza.japaneseinput.vectorgraphic.BufferedDrawable.DecomposedBitmap;
+import sh.eliza.japaneseinput.vectorgraphic.BufferedDrawable.DecomposedBitmapMetadata;
+
+/**
+ * Process-wide cache of the bitmaps rendered by all the {@link BufferedDrawable}s.
+ *
+ * <p>The cache has a byte budget of 1/{@value #BUDGET_DIVISOR} of the memory class, and evicts the
+ * least recently drawn entries beyond it, so bitmaps of stale sizes, scales and skins don't live as
+ * long as their drawables. Evicted bitmaps are left to the garbage collector rather than reused,
+ * as display lists recorded before the eviction may still refer to them.
+ *
+ * <p>The scratch bitmaps into which drawables are rendered before the decomposition are never
+ * drawn on screen, so they are pooled up to 1/{@value #POOL_DIVISOR} of the budget, and reused by
+ * reconfiguring them instead of allocating a new one for every rendering.
+ */
+public final class BitmapCache {
+
+  /** Key of an entry, i.e., the rendering of a drawable for the metadata. */
+  static final class Key {
+
+    private final int ownerId;
+    private final DecomposedBitmapMetadata metadata;
+
+    Key(int ownerId, DecomposedBitmapMetadata metadata) {
+      this.ownerId = ownerId;
+      this.metadata = Preconditions.checkNotNull(metadata);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key rhs = (Key) o;
+      return ownerId == rhs.ownerId && metadata.equals(rhs.metadata);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(ownerId, metadata);
+    }
+  }
+
+  private static final int BUDGET_DIVISOR = 8;
+  private static final int POOL_DIVISOR = 4;
+
+  private static final BitmapCache INSTANCE = new BitmapCache();
+
+  private final LruCache<Key, Collection<DecomposedBitmap>> cache =
+      new LruCache<Key, Collection<DecomposedBitmap>>(
+          (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / BUDGET_DIVISOR)) {
+        @Override
+        protected int sizeOf(Key key, Collection<DecomposedBitmap> value) {
+          int byteCount = 0;
+          for (DecomposedBitmap decomposedBitmap : value) {
+            byteCount += decomposedBitmap.bitmap.getAllocationByteCount();
+          }
+          // Entries without any bitmap still take some memory.
+          return Math.max(1, byteCount);
+        }
+      };
+
+  // Guarded by this.
+  private final List<Bitmap> pool = new ArrayList<>();
+  private int pooledByteCount;
+  private int poolReuseCount;
+  // The counts of the cache at the last reset.
+  private int baseHitCount;
+  private int baseMissCount;
+  private int baseEvictionCount;
+
+  private BitmapCache() {}
+
+  public static BitmapCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Sets the budget based on {@code memoryClass}, i.e., {@code ActivityManager#getMemoryClass()} in
+   * megabytes. Until this is called, the budget is based on the max heap size.
+   */
+  public void setMemoryClass(int memoryClass) {
+    Preconditions.checkArgument(memoryClass > 0);
+    cache.resize((int) Math.min(Integer.MAX_VALUE, memoryClass * 1024L * 1024L / BUDGET_DIVISOR));
+  }
+
+  Collection<DecomposedBitmap> get(Key key) {
+    return cache.get(key);
+  }
+
+  void put(Key key, Collection<DecomposedBitmap> decomposedBitmaps) {
+    cache.put(key, decomposedBitmaps);
+  }
+
+  /** Returns a transparent mutable ARGB_8888 bitmap, reusing a pooled one if possible. */
+  Bitmap obtainScratchBitmap(int width, int height) {
+    int byteCount = width * height * 4;
+    Bitmap bitmap = null;
+    synchronized (this) {
+      // The smallest one large enough.
+      int index = -1;
+      for (int i = 0; i < pool.size(); ++i) {
+        int allocationByteCount = pool.get(i).getAllocationByteCount();
+        if (allocationByteCount >= byteCount
+            && (index < 0 || allocationByteCount < pool.get(index).getAllocationByteCount())) {
+          index = i;
+        }
+      }
+      if (index >= 0) {
+        bitmap = pool.remove(index);
+        pooledByteCount -= bitmap.getAllocationByteCount();
+        ++poolReuseCount;
+      }
+    }
+    if (bitmap == null) {
+      return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+    bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+    bitmap.eraseColor(Color.TRANSPARENT);
+    return bitmap;
+  }
+
+  /**
+   * Returns {@code bitmap}, obtained by {@link #obtainScratchBitmap}, to the pool. It must not be
+   * used by the caller any more.
+   */
+  void releaseScratchBitmap(Bitmap bitmap) {
+    synchronized (this) {
+      int byteCount = bitmap.getAllocationByteCount();
+      if (pooledByteCount + byteCount <= cache.maxSize() / POOL_DIVISOR) {
+        pool.add(bitmap);
+        pooledByteCount += byteCount;
+        return;
+      }
+    }
+    // Never drawn on screen, so it is safe to recycle.
+    bitmap.recycle();
+  }
+
+  /** Shrinks the cache according to {@code level} of {@code ComponentCallbacks2#onTrimMemory}. */
+  public void trimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      cache.evictAll();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      cache.trimToSize(cache.maxSize() / 2);
+    } else {
+      return;
+    }
+    synchronized (this) {
+      for (Bitmap bitmap : pool) {
+        bitmap.recycle();
+      }
+      pool.clear();
+      pooledByteCount = 0;
+    }
+  }
+
+  public void dump(PrintWriter writer) {
+    writer.println("BufferedDrawable bitmap cache:");
+    synchronized (this) {
+      writer.println(
+          String.format(
+              Locale.US,
+              "  size=%d/%d KiB entries=%d pooled=%d KiB",
+              cache.size() / 1024,
+              cache.maxSize() / 1024,
+              cache.snapshot().size(),
+              pooledByteCount / 1024));
+      writer.println(
+          String.format(
+              Locale.US,
+              "  hits=%d misses=%d evictions=%d pool reuses=%d",
+              cache.hitCount() - baseHitCount,
+              cache.missCount() - baseMissCount,
+              cache.evictionCount() - baseEvictionCount,
+              poolReuseCount));
+    }
+  }
+
+  public void reset() {
+    synchronized (this) {
+      baseHitCount = cache.hitCount();
+      baseMissCount = cache.missCount();
+      baseEvictionCount = cache.evictionCount();
+      poolReuseCount = 0;
+    }
+  }
+}
@@ -47,13 +47,12 @@ import android.util.SparseIntArray;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -73,7 +72,8 @@ import org.xmlpull.v1.XmlPullParserException;
  * </ol>
  *
  * However dumb buffering takes much memory. Therefore this class holds only the decomposed bitmap
- * blocks which has non-transparent pixels.
+ * blocks which has non-transparent pixels, and the blocks are held in the process-wide {@link
+ * BitmapCache} which bounds the memory of all the instances.
  *
  * <p>CAUTION: Skew and rotation is not supported. The {@code Matrix} of given {@code Canvas} should
  * have only transform and scale.
@@ -91,7 +91,7 @@ public class BufferedDrawable extends Drawable {
   private static final int COMPOSITION_LENGTH = 16;
 
   /** Metadata of decomposed bitmap collection. */
-  private static class DecomposedBitmapMetadata {
+  static class DecomposedBitmapMetadata {
 
     /** The width of bounds in screen pixels (non-scaled). */
     private final int width;
@@ -147,10 +147,10 @@ public class BufferedDrawable extends Drawable {
    * because they affect nothing. By decomposing bitmap into small part and filtering-out
    * transparent-pixel-only-part from memory, we can reduce memory footprint.
    */
-  private static class DecomposedBitmap {
+  static class DecomposedBitmap {
     private final int left;
     private final int top;
-    private final Bitmap bitmap;
+    final Bitmap bitmap;
 
     /**
      * @param left left position in the original bitmap in pixels
@@ -168,6 +168,9 @@ public class BufferedDrawable extends Drawable {
     this.baseDrawable = Preconditions.checkNotNull(baseDrawable);
   }
 
+  /** Source of the ids identifying the instances in {@link BitmapCache}. */
+  private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
   /**
    * Temporary {@code Canvas} for on-memory rendering.
    *
@@ -197,13 +200,12 @@ public class BufferedDrawable extends Drawable {
   private final Drawable baseDrawable;
 
   /**
-   * Backing decomposed {@code Bitmap} for on-memory rendering.
+   * The id of this instance in {@link BitmapCache}, which holds the backing decomposed {@code
+   * Bitmap} for on-memory rendering for each metadata.
    *
-   * <p>This is a kind of cache. Therefore if depending conditions (e.g., scale) are changed this
-   * should be invalidated.
+   * <p>An id is used rather than this instance so that the cache doesn't keep drawables alive.
    */
-  private final Map<DecomposedBitmapMetadata, Collection<DecomposedBitmap>>
-      metadataToBitmapCollection = Maps.newHashMap();
+  private final int id = NEXT_ID.getAndIncrement();
 
   private DecomposedBitmapMetadata createDecomposedBitmapMetadata(
       int width, int height, float[] matrixValues) {
@@ -247,17 +249,19 @@ public class BufferedDrawable extends Drawable {
   /**
    * Gets rendering result as DecomposedBitmap collection.
    *
-   * <p>If there is a DecomposedBitmap collection corresponding to given metadata, reuses it.
-   * Otherwise new one is created and returned.
+   * <p>If there is a DecomposedBitmap collection corresponding to given metadata in the cache,
+   * reuses it. Otherwise new one is created and returned.
    */
   private Collection<DecomposedBitmap> maybeCreateDecomposedBitmap(
       DecomposedBitmapMetadata metadata, float[] matrixValues) {
-    Collection<DecomposedBitmap> result = metadataToBitmapCollection.get(metadata);
+    BitmapCache cache = BitmapCache.getInstance();
+    BitmapCache.Key key = new BitmapCache.Key(id, metadata);
+    Collection<DecomposedBitmap> result = cache.get(key);
     if (result != null) {
       return result; // We have cached data.
     }
     result = createDecomposedBitmap(metadata, matrixValues);
-    metadataToBitmapCollection.put(metadata, result);
+    cache.put(key, result);
     return result;
   }
 
@@ -266,12 +270,12 @@ public class BufferedDrawable extends Drawable {
       DecomposedBitmapMetadata metadata, float[] matrixValues) {
     // Create bitmap with original (on screen) width and size with alignment.
     Bitmap bitmap =
-        Bitmap.createBitmap(
-            (int) Math.ceil(metadata.width * metadata.scaleX / COMPOSITION_LENGTH)
-                * COMPOSITION_LENGTH,
-            (int) Math.ceil(metadata.height * metadata.scaleY / COMPOSITION_LENGTH)
-                * COMPOSITION_LENGTH,
-            Bitmap.Config.ARGB_8888);
+        BitmapCache.getInstance()
+            .obtainScratchBitmap(
+                (int) Math.ceil(metadata.width * metadata.scaleX / COMPOSITION_LENGTH)
+                    * COMPOSITION_LENGTH,
+                (int) Math.ceil(metadata.height * metadata.scaleY / COMPOSITION_LENGTH)
+                    * COMPOSITION_LENGTH);
     // Draw the base Drawable on the bitmap through on-memory canvas.
     Canvas onMemoryCanvas = TEMPORARY_CANVAS.get();
     // Apply transformation and scale based on the canvas's matrix.
@@ -286,7 +290,7 @@ public class BufferedDrawable extends Drawable {
     // Release the bitmap from on-memory canvas for smaller memory footprint.
     onMemoryCanvas.setBitmap(null);
     // Decompose the bitmap into small parts.
-    // Passing bitmap might be recycled in the method if possible.
+    // Passing bitmap might be released to the pool in the method if possible.
     return decomposeBitmap(bitmap);
   }
 
@@ -348,7 +352,8 @@ public class BufferedDrawable extends Drawable {
    * <p>For rendering performance (reducing drawBitmap operation), horizontally and vertically
    * connected {@code DecomposedBitmap} are merged internally.
    *
-   * @param bitmap {@code Bitmap} to be decomposed. Note that this is recycled internally so the
+   * @param bitmap {@code Bitmap} to be decomposed, obtained by {@link
+   *     BitmapCache#obtainScratchBitmap}. Note that this is released to the pool internally so the
    *     caller side cannot use this after the invocation.
    */
   private Collection<DecomposedBitmap> decomposeBitmap(Bitmap bitmap) {
@@ -444,7 +449,7 @@ public class BufferedDrawable extends Drawable {
                 left, top, Bitmap.createBitmap(bitmap, left, top, right - left, bottom - top)));
       }
     }
-    bitmap.recycle();
+    BitmapCache.getInstance().releaseScratchBitmap(bitmap);
     result.trimToSize();
     return result;
   }
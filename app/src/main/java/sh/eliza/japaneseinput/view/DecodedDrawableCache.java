@@ -0,0 +1,301 @@
+package sh.eliza.japaneseinput.view;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import sh.eliza.japaneseinput.MozcLog;
+
+/**
+ * Process-wide cache of the drawables decoded by {@link MozcDrawableFactory} from the raw
+ * resources.
+ *
+ * <p>The drawables are strongly referenced, so a GC never makes the next frame parse the icons
+ * again. Instead, the cache is bounded by the total size of the decoded command streams, evicting
+ * the least recently used entries beyond {@value #MAX_BYTE_COUNT} bytes. An entry decoded without
+ * reading its stream, which parses the picture only when it is drawn, is resized by {@link
+ * #updateByteCount} once the picture is parsed.
+ *
+ * <p>Drawables can be decoded ahead of time on a small pool of decoder threads by {@link
+ * #prefetch}. As in {@code KeyboardTemplateCache}, each decode is a {@link FutureTask}, so a
+ * drawable requested while its decode is queued is decoded on the calling thread, and one
+ * requested while it is being decoded is waited for rather than decoded twice.
+ */
+public final class DecodedDrawableCache {
+
+  /** Key of an entry, i.e., a raw resource decoded for the paints of a skin on a density. */
+  static final class Key {
+
+    private final int resourceId;
+    private final int skinFingerprint;
+    private final int densityDpi;
+
+    Key(int resourceId, int skinFingerprint, int densityDpi) {
+      this.resourceId = resourceId;
+      this.skinFingerprint = skinFingerprint;
+      this.densityDpi = densityDpi;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key rhs = (Key) o;
+      return resourceId == rhs.resourceId
+          && skinFingerprint == rhs.skinFingerprint
+          && densityDpi == rhs.densityDpi;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(resourceId, skinFingerprint, densityDpi);
+    }
+  }
+
+  /** A decoded drawable and the size of the command stream it was decoded from. */
+  static final class Entry {
+
+    private final Drawable drawable;
+    private final int byteCount;
+
+    Entry(Drawable drawable, int byteCount) {
+      this.drawable = Preconditions.checkNotNull(drawable);
+      this.byteCount = byteCount;
+    }
+  }
+
+  /** Marks the decoder threads, so that the decodes on them are counted as background ones. */
+  private static final class DecoderThread extends Thread {
+    DecoderThread(Runnable runnable) {
+      super(runnable, "Drawable decoder thread");
+    }
+  }
+
+  private static final int MAX_BYTE_COUNT = 1024 * 1024;
+  private static final int DECODER_THREAD_COUNT = 2;
+
+  private static final DecodedDrawableCache INSTANCE = new DecodedDrawableCache();
+
+  private final ExecutorService decoderExecutor =
+      Executors.newFixedThreadPool(
+          DECODER_THREAD_COUNT,
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new DecoderThread(runnable);
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+
+  private final LruCache<Key, Entry> cache =
+      new LruCache<Key, Entry>(MAX_BYTE_COUNT) {
+        @Override
+        protected int sizeOf(Key key, Entry value) {
+          // Entries decoded without reading the stream still take some memory.
+          return Math.max(1, value.byteCount);
+        }
+      };
+
+  // The rest are guarded by this.
+  // The decodes which are queued or running.
+  private final Map<Key, FutureTask<Optional<Entry>>> pendingTasks = new HashMap<>();
+  // Counted by get() only, as prefetch() looks up the cache as well.
+  private int hitCount;
+  private int missCount;
+  private int foregroundDecodeCount;
+  private int backgroundDecodeCount;
+  private long foregroundDecodeNanos;
+  private long backgroundDecodeNanos;
+  private long maxForegroundDecodeNanos;
+  // The eviction count of the cache at the last reset.
+  private int baseEvictionCount;
+
+  private DecodedDrawableCache() {}
+
+  public static DecodedDrawableCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the drawable of {@code key}, decoding it by {@code decoder} on the calling thread
+   * unless it is cached or being decoded in background.
+   */
+  Optional<Drawable> get(Key key, Callable<Optional<Entry>> decoder) {
+    Entry entry = cache.get(key);
+    synchronized (this) {
+      if (entry != null) {
+        ++hitCount;
+        return Optional.of(entry.drawable);
+      }
+      ++missCount;
+    }
+    FutureTask<Optional<Entry>> task = getTask(key, decoder);
+    // No-op if the task has already been started by a decoder thread.
+    task.run();
+    complete(key, task);
+    // Rethrows the failure of the decode, if any.
+    Optional<Entry> result = Futures.getUnchecked(task);
+    return result.isPresent() ? Optional.of(result.get().drawable) : Optional.<Drawable>absent();
+  }
+
+  /**
+   * Updates the size of the cached entry of {@code key}, if any, to {@code byteCount}, e.g., when
+   * its drawable has parsed the command stream it was decoded without.
+   */
+  void updateByteCount(Key key, int byteCount) {
+    Entry entry = cache.get(key);
+    if (entry != null && entry.byteCount < byteCount) {
+      // Re-put, as the cache measures an entry only when it is put.
+      cache.put(key, new Entry(entry.drawable, byteCount));
+    }
+  }
+
+  /** Decodes the drawable of {@code key} on a decoder thread unless it is cached. */
+  void prefetch(final Key key, Callable<Optional<Entry>> decoder) {
+    if (cache.get(key) != null) {
+      return;
+    }
+    final FutureTask<Optional<Entry>> task;
+    synchronized (this) {
+      if (pendingTasks.containsKey(key)) {
+        return;
+      }
+      task = getTask(key, decoder);
+    }
+    decoderExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            // No-op if the task has already been run by a caller of get().
+            task.run();
+            complete(key, task);
+          }
+        });
+  }
+
+  private synchronized FutureTask<Optional<Entry>> getTask(
+      Key key, final Callable<Optional<Entry>> decoder) {
+    FutureTask<Optional<Entry>> task = pendingTasks.get(key);
+    if (task == null) {
+      task =
+          new FutureTask<>(
+              new Callable<Optional<Entry>>() {
+                @Override
+                public Optional<Entry> call() throws Exception {
+                  long startTime = System.nanoTime();
+                  Optional<Entry> result = decoder.call();
+                  onDecoded(System.nanoTime() - startTime);
+                  return result;
+                }
+              });
+      pendingTasks.put(key, task);
+    }
+    return task;
+  }
+
+  /** Moves the result of {@code task} to the cache, unless it has already been moved. */
+  private void complete(Key key, FutureTask<Optional<Entry>> task) {
+    synchronized (this) {
+      if (pendingTasks.get(key) != task) {
+        return;
+      }
+      pendingTasks.remove(key);
+    }
+    Optional<Entry> result;
+    try {
+      result = Futures.getUnchecked(task);
+    } catch (UncheckedExecutionException e) {
+      MozcLog.e("Failed to decode a drawable", e);
+      return;
+    }
+    if (result.isPresent()) {
+      cache.put(key, result.get());
+    }
+  }
+
+  private synchronized void onDecoded(long elapsedNanos) {
+    if (Thread.currentThread() instanceof DecoderThread) {
+      ++backgroundDecodeCount;
+      backgroundDecodeNanos += elapsedNanos;
+    } else {
+      ++foregroundDecodeCount;
+      foregroundDecodeNanos += elapsedNanos;
+      maxForegroundDecodeNanos = Math.max(maxForegroundDecodeNanos, elapsedNanos);
+    }
+  }
+
+  /** Shrinks the cache according to {@code level} of {@code ComponentCallbacks2#onTrimMemory}. */
+  public void trimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      cache.evictAll();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      cache.trimToSize(cache.maxSize() / 2);
+    }
+  }
+
+  public void dump(PrintWriter writer) {
+    writer.println("Decoded drawable cache:");
+    synchronized (this) {
+      writer.println(
+          String.format(
+              Locale.US,
+              "  size=%d/%d KiB entries=%d pending=%d",
+              cache.size() / 1024,
+              cache.maxSize() / 1024,
+              cache.snapshot().size(),
+              pendingTasks.size()));
+      writer.println(
+          String.format(
+              Locale.US,
+              "  hits=%d misses=%d evictions=%d",
+              hitCount,
+              missCount,
+              cache.evictionCount() - baseEvictionCount));
+      writer.println(
+          String.format(
+              Locale.US,
+              "  foreground decodes=%d total=%.2f ms max=%.2f ms",
+              foregroundDecodeCount,
+              foregroundDecodeNanos / 1e6,
+              maxForegroundDecodeNanos / 1e6));
+      writer.println(
+          String.format(
+              Locale.US,
+              "  background decodes=%d total=%.2f ms",
+              backgroundDecodeCount,
+              backgroundDecodeNanos / 1e6));
+    }
+  }
+
+  public void reset() {
+    synchronized (this) {
+      hitCount = 0;
+      missCount = 0;
+      baseEvictionCount = cache.evictionCount();
+      foregroundDecodeCount = 0;
+      backgroundDecodeCount = 0;
+      foregroundDecodeNanos = 0;
+      backgroundDecodeNanos = 0;
+      maxForegroundDecodeNanos = 0;
+    }
+  }
+}
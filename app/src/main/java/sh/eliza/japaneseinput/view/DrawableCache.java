@@ -77,6 +77,14 @@ public class DrawableCache {
     return drawable;
   }
 
+  /**
+   * Decodes the {@code Drawable}s of {@code resourceIds} for the current skin in background, so
+   * that {@link #getDrawable} doesn't need to parse them.
+   */
+  public void prefetch(Iterable<Integer> resourceIds) {
+    skin.prefetchDrawables(resources, resourceIds);
+  }
+
   /** Clears all {@code Drawable}s stored in this instance. */
   public void clear() {
     cacheMap.clear();
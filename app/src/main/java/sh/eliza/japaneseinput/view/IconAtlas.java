@@ -0,0 +1,517 @@
+package sh.eliza.japaneseinput.view;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.util.AtomicFile;
+import android.util.SparseArray;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import sh.eliza.japaneseinput.MozcLog;
+
+/**
+ * Persistent atlas of the picture resources rasterized by {@link IconAtlasDrawable}.
+ *
+ * <p>An atlas is a single {@value #SIZE}x{@value #SIZE} bitmap into which the pictures are
+ * rasterized at the pixel sizes they are drawn, packed in shelves. As the colors of the pictures
+ * come from the skin, an atlas is specific to the paints of a skin (see {@link
+ * Skin#getIconFingerprint()}) and to the screen density. Whenever icons are added, the atlas is
+ * written to the cache directory in background, so that the next process draws the keyboards
+ * without parsing nor rasterizing any picture. The files written before the last update of the
+ * package are discarded, as their resource ids may differ even if the version code doesn't.
+ *
+ * <p>Only the latest atlas is kept in memory, and it is released by {@link #trimMemory} as the
+ * other drawable caches are. It is allocated and read on the writer thread, so {@link #get} never
+ * blocks the UI thread, and the pictures are drawn as vectors until it is ready. Icons must be
+ * added on the UI thread.
+ */
+public final class IconAtlas {
+
+  static final int SIZE = 1024;
+
+  private static final int MAGIC = 0x4D5A4941; // "MZIA"
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String DIRECTORY_NAME = "icon_atlas";
+  private static final String FILE_SUFFIX = ".atlas";
+  private static final int MAX_FILE_COUNT = 4;
+
+  // Larger icons are left to BufferedDrawable, so that a few of them don't fill the atlas.
+  private static final int MAX_ICON_SIZE = 256;
+  // Transparent pixels between the icons, so that filtering never samples the neighbors.
+  private static final int PADDING = 1;
+  // Writes are delayed so that the icons of a keyboard are written at once.
+  private static final long SAVE_DELAY_MILLIS = 2000;
+
+  private static final ScheduledExecutorService writerExecutor =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "Icon atlas writer thread");
+              thread.setDaemon(true);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            }
+          });
+
+  // Guarded by IconAtlas.class.
+  private static Optional<File> directory = Optional.absent();
+  private static long lastUpdateTime;
+  private static Optional<IconAtlas> current = Optional.absent();
+  // The key of the atlas being read on the writer thread, if any.
+  private static Optional<Long> loadingKey = Optional.absent();
+
+  private final AtomicFile file;
+  private final int fingerprint;
+  private final int densityDpi;
+  private final Bitmap bitmap;
+  private final Canvas canvas;
+
+  // The rest are guarded by this.
+  private final SparseArray<Point> intrinsicSizes = new SparseArray<>();
+  private final Map<Long, Rect> regions = new HashMap<>();
+  // The used part of each shelf, from the left end.
+  private final List<Rect> shelves = new ArrayList<>();
+  private int usedHeight;
+  private boolean savePending;
+  private int hitCount;
+  private int addCount;
+  private int overflowCount;
+
+  private IconAtlas(File file, int fingerprint, int densityDpi, Bitmap bitmap) {
+    this.file = new AtomicFile(file);
+    this.fingerprint = fingerprint;
+    this.densityDpi = densityDpi;
+    this.bitmap = bitmap;
+    this.canvas = new Canvas(bitmap);
+  }
+
+  /**
+   * Enables the atlases, which are stored in {@code cacheDirectory}. Until this is called, {@link
+   * #get} returns absent.
+   *
+   * @param lastUpdateTime {@code PackageInfo#lastUpdateTime} of the app, which the stored atlases
+   *     must match
+   */
+  public static void initialize(File cacheDirectory, long lastUpdateTime) {
+    File directory = new File(Preconditions.checkNotNull(cacheDirectory), DIRECTORY_NAME);
+    synchronized (IconAtlas.class) {
+      IconAtlas.directory = Optional.of(directory);
+      IconAtlas.lastUpdateTime = lastUpdateTime;
+    }
+    writerExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            deleteStaleFiles(directory, getFilePrefix(lastUpdateTime));
+          }
+        });
+  }
+
+  /**
+   * Returns the atlas for {@code fingerprint} and {@code densityDpi} if it is ready. Otherwise
+   * returns absent, and starts reading it from the cache directory on the writer thread, unless it
+   * is being read already.
+   */
+  static Optional<IconAtlas> get(final int fingerprint, final int densityDpi) {
+    final File file;
+    final long key = getAtlasKey(fingerprint, densityDpi);
+    synchronized (IconAtlas.class) {
+      if (!directory.isPresent()) {
+        return Optional.absent();
+      }
+      if (current.isPresent()
+          && current.get().fingerprint == fingerprint
+          && current.get().densityDpi == densityDpi) {
+        return current;
+      }
+      if (loadingKey.isPresent() && loadingKey.get() == key) {
+        return Optional.absent();
+      }
+      loadingKey = Optional.of(key);
+      file =
+          new File(
+              directory.get(),
+              String.format(
+                  Locale.US,
+                  "%s%08x-%d%s",
+                  getFilePrefix(lastUpdateTime),
+                  fingerprint,
+                  densityDpi,
+                  FILE_SUFFIX));
+    }
+    writerExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            IconAtlas atlas =
+                new IconAtlas(
+                    file,
+                    fingerprint,
+                    densityDpi,
+                    Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888));
+            atlas.load();
+            synchronized (IconAtlas.class) {
+              // Discarded if another atlas has been requested in the meantime.
+              if (loadingKey.isPresent() && loadingKey.get() == key) {
+                current = Optional.of(atlas);
+                loadingKey = Optional.absent();
+              }
+            }
+          }
+        });
+    return Optional.absent();
+  }
+
+  Bitmap getBitmap() {
+    return bitmap;
+  }
+
+  /** Returns the intrinsic size of the picture of {@code resourceId}, if it has been recorded. */
+  synchronized Optional<Point> getIntrinsicSize(int resourceId) {
+    return Optional.fromNullable(intrinsicSizes.get(resourceId));
+  }
+
+  synchronized void putIntrinsicSize(int resourceId, int width, int height) {
+    intrinsicSizes.put(resourceId, new Point(width, height));
+  }
+
+  /** Returns the region of the rasterized picture of {@code resourceId}, if any. */
+  synchronized Optional<Rect> find(int resourceId, int width, int height) {
+    Rect region = regions.get(getRegionKey(resourceId, width, height));
+    if (region != null) {
+      ++hitCount;
+    }
+    return Optional.fromNullable(region);
+  }
+
+  /**
+   * Rasterizes {@code picture} of {@code resourceId} into a new region of {@code width} x {@code
+   * height} pixels, and returns it, or absent if the atlas has no room for it.
+   */
+  synchronized Optional<Rect> add(int resourceId, int width, int height, Picture picture) {
+    Preconditions.checkArgument(width > 0 && height > 0);
+    if (width > MAX_ICON_SIZE || height > MAX_ICON_SIZE) {
+      ++overflowCount;
+      return Optional.absent();
+    }
+    Optional<Rect> region = allocate(width, height);
+    if (!region.isPresent()) {
+      ++overflowCount;
+      return Optional.absent();
+    }
+
+    MozcPictureDrawable drawable = new MozcPictureDrawable(picture);
+    drawable.setBounds(region.get());
+    drawable.draw(canvas);
+    regions.put(getRegionKey(resourceId, width, height), region.get());
+    putIntrinsicSize(resourceId, picture.getWidth(), picture.getHeight());
+    ++addCount;
+    scheduleSave();
+    return region;
+  }
+
+  /** Finds a room for the region on the shelves, opening a new shelf if necessary. */
+  private Optional<Rect> allocate(int width, int height) {
+    int paddedWidth = width + PADDING;
+    int paddedHeight = height + PADDING;
+    for (Rect shelf : shelves) {
+      // Slightly taller shelves are fine, but much taller ones would waste the space.
+      if (shelf.height() >= paddedHeight
+          && shelf.height() <= paddedHeight + paddedHeight / 4
+          && shelf.right + paddedWidth <= SIZE) {
+        Rect region = new Rect(shelf.right, shelf.top, shelf.right + width, shelf.top + height);
+        shelf.right += paddedWidth;
+        return Optional.of(region);
+      }
+    }
+    if (usedHeight + paddedHeight > SIZE) {
+      return Optional.absent();
+    }
+    shelves.add(new Rect(0, usedHeight, paddedWidth, usedHeight + paddedHeight));
+    Rect region = new Rect(0, usedHeight, width, usedHeight + height);
+    usedHeight += paddedHeight;
+    return Optional.of(region);
+  }
+
+  private void scheduleSave() {
+    if (savePending) {
+      return;
+    }
+    savePending = true;
+    writerExecutor.schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            save();
+          }
+        },
+        SAVE_DELAY_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void save() {
+    byte[] header;
+    Bitmap snapshot;
+    synchronized (this) {
+      savePending = false;
+      try {
+        header = serializeHeader();
+      } catch (IOException e) {
+        // Never happens as written to memory.
+        throw new AssertionError(e);
+      }
+      snapshot = Bitmap.createBitmap(bitmap, 0, 0, SIZE, usedHeight);
+    }
+    ByteBuffer pixels = ByteBuffer.allocate(snapshot.getByteCount());
+    snapshot.copyPixelsToBuffer(pixels);
+    snapshot.recycle();
+
+    File parent = file.getBaseFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      MozcLog.e("Failed to create directory: " + parent.getAbsolutePath());
+      return;
+    }
+    FileOutputStream stream = null;
+    try {
+      stream = file.startWrite();
+      // The pixels are mostly transparent, so they are deflated well.
+      DeflaterOutputStream deflaterStream =
+          new DeflaterOutputStream(new BufferedOutputStream(stream));
+      deflaterStream.write(header);
+      deflaterStream.write(pixels.array(), 0, pixels.position());
+      deflaterStream.finish();
+      deflaterStream.flush();
+      file.finishWrite(stream);
+    } catch (IOException e) {
+      MozcLog.e("Failed to write the icon atlas.", e);
+      if (stream != null) {
+        file.failWrite(stream);
+      }
+    }
+  }
+
+  private byte[] serializeHeader() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream stream = new DataOutputStream(bytes);
+    stream.writeInt(MAGIC);
+    stream.writeInt(FORMAT_VERSION);
+    stream.writeInt(intrinsicSizes.size());
+    for (int i = 0; i < intrinsicSizes.size(); ++i) {
+      Point size = intrinsicSizes.valueAt(i);
+      stream.writeInt(intrinsicSizes.keyAt(i));
+      stream.writeShort(size.x);
+      stream.writeShort(size.y);
+    }
+    stream.writeInt(regions.size());
+    for (Map.Entry<Long, Rect> entry : regions.entrySet()) {
+      Rect region = entry.getValue();
+      stream.writeLong(entry.getKey());
+      stream.writeShort(region.left);
+      stream.writeShort(region.top);
+    }
+    stream.writeInt(shelves.size());
+    for (Rect shelf : shelves) {
+      stream.writeShort(shelf.top);
+      stream.writeShort(shelf.height());
+      stream.writeShort(shelf.width());
+    }
+    stream.flush();
+    return bytes.toByteArray();
+  }
+
+  /** Reads the stored atlas, leaving this empty if there is none or it is broken. */
+  private void load() {
+    long startTime = System.nanoTime();
+    try (DataInputStream stream =
+        new DataInputStream(
+            new InflaterInputStream(new BufferedInputStream(file.openRead())))) {
+      deserialize(stream);
+    } catch (FileNotFoundException e) {
+      // Nothing has been rasterized yet.
+      return;
+    } catch (IOException | IllegalArgumentException e) {
+      MozcLog.w("Discarding the broken icon atlas: " + e.getMessage());
+      intrinsicSizes.clear();
+      regions.clear();
+      shelves.clear();
+      usedHeight = 0;
+      bitmap.eraseColor(0);
+      return;
+    }
+    MozcLog.i(
+        String.format(
+            Locale.US,
+            "Read %d icons of the atlas in %d ms",
+            regions.size(),
+            (System.nanoTime() - startTime) / 1000000));
+  }
+
+  private void deserialize(DataInputStream stream) throws IOException {
+    if (stream.readInt() != MAGIC || stream.readInt() != FORMAT_VERSION) {
+      throw new IOException("Unknown format.");
+    }
+    int intrinsicSizeCount = stream.readInt();
+    for (int i = 0; i < intrinsicSizeCount; ++i) {
+      int resourceId = stream.readInt();
+      int width = stream.readUnsignedShort();
+      int height = stream.readUnsignedShort();
+      intrinsicSizes.put(resourceId, new Point(width, height));
+    }
+    int regionCount = stream.readInt();
+    for (int i = 0; i < regionCount; ++i) {
+      long key = stream.readLong();
+      int left = stream.readUnsignedShort();
+      int top = stream.readUnsignedShort();
+      int width = (int) (key >>> 16) & 0xFFFF;
+      int height = (int) key & 0xFFFF;
+      if (left + width > SIZE || top + height > SIZE) {
+        throw new IOException("Invalid region: " + key);
+      }
+      regions.put(key, new Rect(left, top, left + width, top + height));
+    }
+    int shelfCount = stream.readInt();
+    for (int i = 0; i < shelfCount; ++i) {
+      int top = stream.readUnsignedShort();
+      int height = stream.readUnsignedShort();
+      int width = stream.readUnsignedShort();
+      if (top != usedHeight || top + height > SIZE || width > SIZE) {
+        throw new IOException("Invalid shelf: " + top);
+      }
+      shelves.add(new Rect(0, top, width, top + height));
+      usedHeight += height;
+    }
+
+    if (usedHeight > 0) {
+      // copyPixelsFromBuffer fills the whole bitmap, so the buffer covers the unused part as well.
+      byte[] pixels = new byte[bitmap.getByteCount()];
+      stream.readFully(pixels, 0, bitmap.getRowBytes() * usedHeight);
+      bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+    }
+  }
+
+  /**
+   * Releases the atlas in memory according to {@code level} of {@code
+   * ComponentCallbacks2#onTrimMemory}, when {@link DecodedDrawableCache} drops the drawables
+   * referring to it. It is read again from the cache directory on the next {@link #get}.
+   */
+  public static void trimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      synchronized (IconAtlas.class) {
+        current = Optional.absent();
+        loadingKey = Optional.absent();
+      }
+    }
+  }
+
+  public static void dump(PrintWriter writer) {
+    Optional<IconAtlas> atlas;
+    synchronized (IconAtlas.class) {
+      atlas = current;
+    }
+    writer.println("Icon atlas:");
+    if (!atlas.isPresent()) {
+      writer.println("  (none)");
+      return;
+    }
+    synchronized (atlas.get()) {
+      writer.println(
+          String.format(
+              Locale.US,
+              "  fingerprint=%08x density=%d icons=%d used=%d/%d rows",
+              atlas.get().fingerprint,
+              atlas.get().densityDpi,
+              atlas.get().regions.size(),
+              atlas.get().usedHeight,
+              SIZE));
+      writer.println(
+          String.format(
+              Locale.US,
+              "  hits=%d rasterized=%d overflows=%d",
+              atlas.get().hitCount,
+              atlas.get().addCount,
+              atlas.get().overflowCount));
+    }
+  }
+
+  public static void reset() {
+    Optional<IconAtlas> atlas;
+    synchronized (IconAtlas.class) {
+      atlas = current;
+    }
+    if (atlas.isPresent()) {
+      synchronized (atlas.get()) {
+        atlas.get().hitCount = 0;
+        atlas.get().addCount = 0;
+        atlas.get().overflowCount = 0;
+      }
+    }
+  }
+
+  private static long getAtlasKey(int fingerprint, int densityDpi) {
+    return ((long) fingerprint << 32) | (densityDpi & 0xFFFFFFFFL);
+  }
+
+  private static long getRegionKey(int resourceId, int width, int height) {
+    return ((long) resourceId << 32) | (width << 16) | height;
+  }
+
+  private static String getFilePrefix(long lastUpdateTime) {
+    return lastUpdateTime + "-";
+  }
+
+  /** Deletes the files of other updates, and the least recently written ones beyond the limit. */
+  private static void deleteStaleFiles(File directory, String prefix) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(
+        files,
+        new Comparator<File>() {
+          @Override
+          public int compare(File lhs, File rhs) {
+            return Long.compare(rhs.lastModified(), lhs.lastModified());
+          }
+        });
+    int count = 0;
+    for (File file : files) {
+      String name = file.getName();
+      if (name.startsWith(prefix) && name.endsWith(FILE_SUFFIX) && ++count <= MAX_FILE_COUNT) {
+        continue;
+      }
+      if (!file.delete()) {
+        MozcLog.w("Failed to delete " + file.getAbsolutePath());
+      }
+    }
+  }
+}
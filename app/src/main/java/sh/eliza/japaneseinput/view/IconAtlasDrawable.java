@@ -0,0 +1,243 @@
+package sh.eliza.japaneseinput.view;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Picture;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import sh.eliza.japaneseinput.vectorgraphic.BufferedDrawable;
+
+/**
+ * A Drawable of a picture resource, which blits the picture rasterized for its size on screen from
+ * {@link IconAtlas}.
+ *
+ * <p>A size which is not in the atlas yet is rasterized into it on the first draw. If the atlas has
+ * no room for it, or the canvas is skewed or rotated, the picture is drawn through {@link
+ * BufferedDrawable} instead. The picture is parsed only when it has to be rasterized, so the icons
+ * rasterized by a previous process are drawn without parsing.
+ */
+final class IconAtlasDrawable extends Drawable {
+
+  /** Parses the picture of a resource. */
+  interface PictureLoader {
+    Optional<Picture> load(int resourceId);
+  }
+
+  /** The state shared by the drawables of a resource. */
+  private static final class State extends ConstantState {
+    private final IconAtlas atlas;
+    private final int resourceId;
+    private final int intrinsicWidth;
+    private final int intrinsicHeight;
+    private final PictureLoader loader;
+    private Optional<Picture> picture;
+    private boolean loaded;
+
+    State(
+        IconAtlas atlas,
+        int resourceId,
+        int intrinsicWidth,
+        int intrinsicHeight,
+        PictureLoader loader,
+        Optional<Picture> picture) {
+      this.atlas = Preconditions.checkNotNull(atlas);
+      this.resourceId = resourceId;
+      this.intrinsicWidth = intrinsicWidth;
+      this.intrinsicHeight = intrinsicHeight;
+      this.loader = Preconditions.checkNotNull(loader);
+      this.picture = Preconditions.checkNotNull(picture);
+      this.loaded = picture.isPresent();
+    }
+
+    Optional<Picture> getPicture() {
+      if (!loaded) {
+        picture = loader.load(resourceId);
+        loaded = true;
+      }
+      return picture;
+    }
+
+    @Override
+    public int getChangingConfigurations() {
+      return 0;
+    }
+
+    @Override
+    public Drawable newDrawable() {
+      return new IconAtlasDrawable(this);
+    }
+  }
+
+  private static final ThreadLocal<Matrix> TEMPORARY_MATRIX =
+      new ThreadLocal<Matrix>() {
+        @Override
+        protected Matrix initialValue() {
+          return new Matrix();
+        }
+      };
+
+  private final State state;
+  private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  private final float[] matrixValues = new float[9];
+  private final Rect destination = new Rect();
+  // Created on demand.
+  private Optional<BufferedDrawable> fallback = Optional.absent();
+
+  private IconAtlasDrawable(State state) {
+    this.state = Preconditions.checkNotNull(state);
+  }
+
+  /** Creates a drawable of the picture which is parsed by {@code loader} on demand. */
+  static IconAtlasDrawable create(
+      IconAtlas atlas,
+      int resourceId,
+      int intrinsicWidth,
+      int intrinsicHeight,
+      PictureLoader loader) {
+    return new IconAtlasDrawable(
+        new State(
+            atlas,
+            resourceId,
+            intrinsicWidth,
+            intrinsicHeight,
+            loader,
+            Optional.<Picture>absent()));
+  }
+
+  /** Creates a drawable of {@code picture}, which has been parsed already. */
+  static IconAtlasDrawable create(
+      IconAtlas atlas, int resourceId, Picture picture, PictureLoader loader) {
+    return new IconAtlasDrawable(
+        new State(
+            atlas,
+            resourceId,
+            picture.getWidth(),
+            picture.getHeight(),
+            loader,
+            Optional.of(picture)));
+  }
+
+  @Override
+  public void draw(Canvas canvas) {
+    Rect bounds = getBounds();
+    if (bounds.isEmpty()) {
+      return;
+    }
+    Matrix matrix = TEMPORARY_MATRIX.get();
+    canvas.getMatrix(matrix);
+    matrix.getValues(matrixValues);
+    float scaleX = matrixValues[Matrix.MSCALE_X];
+    float scaleY = matrixValues[Matrix.MSCALE_Y];
+    if (!matrix.isAffine()
+        || matrixValues[Matrix.MSKEW_X] != 0
+        || matrixValues[Matrix.MSKEW_Y] != 0
+        || scaleX <= 0
+        || scaleY <= 0) {
+      drawFallback(canvas);
+      return;
+    }
+
+    // The size in pixels on screen.
+    int width = Math.round(bounds.width() * scaleX);
+    int height = Math.round(bounds.height() * scaleY);
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+    Optional<Rect> region = state.atlas.find(state.resourceId, width, height);
+    if (!region.isPresent()) {
+      Optional<Picture> picture = state.getPicture();
+      if (!picture.isPresent()) {
+        return;
+      }
+      region = state.atlas.add(state.resourceId, width, height, picture.get());
+      if (!region.isPresent()) {
+        drawFallback(canvas);
+        return;
+      }
+    }
+
+    int saveCount = canvas.save();
+    try {
+      // Blit in the pixel coordinates, so that the region is neither shrunk nor stretched.
+      canvas.translate(bounds.left, bounds.top);
+      canvas.scale(1f / scaleX, 1f / scaleY);
+      destination.set(0, 0, width, height);
+      canvas.drawBitmap(state.atlas.getBitmap(), region.get(), destination, paint);
+    } finally {
+      canvas.restoreToCount(saveCount);
+    }
+  }
+
+  private void drawFallback(Canvas canvas) {
+    if (!fallback.isPresent()) {
+      Optional<Picture> picture = state.getPicture();
+      if (!picture.isPresent()) {
+        return;
+      }
+      BufferedDrawable drawable = new BufferedDrawable(new MozcPictureDrawable(picture.get()));
+      drawable.setAlpha(paint.getAlpha());
+      drawable.setColorFilter(paint.getColorFilter());
+      fallback = Optional.of(drawable);
+    }
+    fallback.get().setBounds(getBounds());
+    fallback.get().draw(canvas);
+  }
+
+  @Override
+  public void setAlpha(int alpha) {
+    paint.setAlpha(alpha);
+    if (fallback.isPresent()) {
+      fallback.get().setAlpha(alpha);
+    }
+  }
+
+  @Override
+  public int getAlpha() {
+    return paint.getAlpha();
+  }
+
+  @Override
+  public void setColorFilter(ColorFilter colorFilter) {
+    paint.setColorFilter(colorFilter);
+    if (fallback.isPresent()) {
+      fallback.get().setColorFilter(colorFilter);
+    }
+  }
+
+  @Override
+  public ColorFilter getColorFilter() {
+    return paint.getColorFilter();
+  }
+
+  @SuppressWarnings({"deprecation", "RedundantSuppression"})
+  @Override
+  public int getOpacity() {
+    return PixelFormat.TRANSLUCENT;
+  }
+
+  @Override
+  public int getIntrinsicWidth() {
+    return state.intrinsicWidth;
+  }
+
+  @Override
+  public int getIntrinsicHeight() {
+    return state.intrinsicHeight;
+  }
+
+  @Override
+  public ConstantState getConstantState() {
+    return state;
+  }
+
+  @Override
+  public Drawable mutate() {
+    // Mutation is not supported.
+    return this;
+  }
+}
@@ -41,6 +41,7 @@ import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.Path;
 import android.graphics.Picture;
+import android.graphics.Point;
 import android.graphics.RadialGradient;
 import android.graphics.RectF;
 import android.graphics.Shader;
@@ -52,10 +53,11 @@ import androidx.core.content.res.ResourcesCompat;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.io.CountingInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 import sh.eliza.japaneseinput.MozcLog;
 import sh.eliza.japaneseinput.MozcUtil;
 import sh.eliza.japaneseinput.vectorgraphic.BufferedDrawable;
@@ -67,8 +69,10 @@ import sh.eliza.japaneseinput.vectorgraphic.BufferedDrawable;
  * different display resolutions. For that purpose, we needed to have some vector format. {@code
  * PictureDrawable}'s serialization/deserialization seemed what we needed, but it turned out that
  * its binary format seems not compatible among various devices, unfortunately. So, we decided to
- * use our original format, and this class parses it. Also, for performance purpose, this class
- * caches the parsed drawable.
+ * use our original format, and this class parses it. Also, for performance purpose, the parsed
+ * drawables are cached in {@link DecodedDrawableCache}, and pictures are drawn through {@link
+ * IconAtlas} once the service has initialized it and it has been read, so that they are parsed
+ * and rasterized once across processes.
  */
 class MozcDrawableFactory {
 
@@ -136,14 +140,26 @@ class MozcDrawableFactory {
   private static final String FONT_PATH = "subset_font.otf";
 
   private final Resources resources;
-  private final WeakDrawableCache cacheMap = new WeakDrawableCache();
   private final Skin skin;
+  private final int skinFingerprint;
+  private final int densityDpi;
+  private final IconAtlasDrawable.PictureLoader pictureLoader =
+      new IconAtlasDrawable.PictureLoader() {
+        @Override
+        public Optional<Picture> load(int resourceId) {
+          return loadPicture(resourceId);
+        }
+      };
   private static volatile Optional<Typeface> typeface = Optional.absent();
 
   MozcDrawableFactory(Resources resources, Skin skin) {
     this.resources = Preconditions.checkNotNull(resources);
     this.skin = Preconditions.checkNotNull(skin);
     ensureTypeface(resources.getAssets());
+    this.skinFingerprint = skin.getIconFingerprint();
+    this.densityDpi = resources.getDisplayMetrics().densityDpi;
+    // Starts reading the atlas in background, if not yet.
+    IconAtlas.get(skinFingerprint, densityDpi);
   }
 
   Optional<Drawable> getDrawable(int resourceId) {
@@ -153,34 +169,123 @@ class MozcDrawableFactory {
           ResourcesCompat.getDrawable(resources, resourceId, /* theme= */ null));
     }
 
-    Integer key = resourceId;
-    Optional<Drawable> drawable = cacheMap.get(key);
-    if (!drawable.isPresent()) {
-      InputStream stream = resources.openRawResource(resourceId);
+    return DecodedDrawableCache.getInstance().get(getKey(resourceId), newDecoder(resourceId));
+  }
+
+  /**
+   * Decodes the drawables of {@code resourceIds} on the decoder threads, unless they are cached, so
+   * that {@link #getDrawable} doesn't parse them on the calling thread.
+   */
+  void prefetch(Iterable<Integer> resourceIds) {
+    DecodedDrawableCache cache = DecodedDrawableCache.getInstance();
+    for (int resourceId : resourceIds) {
+      if (resourceId != 0 && resources.getResourceTypeName(resourceId).equalsIgnoreCase("raw")) {
+        cache.prefetch(getKey(resourceId), newDecoder(resourceId));
+      }
+    }
+  }
+
+  private DecodedDrawableCache.Key getKey(int resourceId) {
+    return new DecodedDrawableCache.Key(resourceId, skinFingerprint, densityDpi);
+  }
+
+  private Callable<Optional<DecodedDrawableCache.Entry>> newDecoder(final int resourceId) {
+    return new Callable<Optional<DecodedDrawableCache.Entry>>() {
+      @Override
+      public Optional<DecodedDrawableCache.Entry> call() {
+        return loadDrawable(resourceId);
+      }
+    };
+  }
+
+  /** Decodes the drawable of {@code resourceId}. Called on any thread. */
+  private Optional<DecodedDrawableCache.Entry> loadDrawable(int resourceId) {
+    // Drawn as vectors while the atlas is being read.
+    Optional<IconAtlas> iconAtlas = IconAtlas.get(skinFingerprint, densityDpi);
+    if (iconAtlas.isPresent()) {
+      Optional<Point> intrinsicSize = iconAtlas.get().getIntrinsicSize(resourceId);
+      if (intrinsicSize.isPresent()) {
+        // Rasterized by a previous process, so parsing is deferred until a size which is not in
+        // the atlas is drawn.
+        return Optional.of(
+            new DecodedDrawableCache.Entry(
+                IconAtlasDrawable.create(
+                    iconAtlas.get(),
+                    resourceId,
+                    intrinsicSize.get().x,
+                    intrinsicSize.get().y,
+                    pictureLoader),
+                0));
+      }
+    }
+
+    CountingInputStream stream = new CountingInputStream(resources.openRawResource(resourceId));
+    try {
+      boolean success = false;
       try {
-        boolean success = false;
-        try {
-          drawable = createDrawable(new DataInputStream(stream), skin);
-          success = true;
-        } finally {
-          MozcUtil.close(stream, !success);
+        DataInputStream dataStream = new DataInputStream(stream);
+        byte tag = dataStream.readByte();
+        Optional<Drawable> drawable;
+        if (tag == DRAWABLE_PICTURE && iconAtlas.isPresent()) {
+          Picture picture = createPicture(dataStream, skin);
+          iconAtlas.get().putIntrinsicSize(resourceId, picture.getWidth(), picture.getHeight());
+          drawable =
+              Optional.<Drawable>of(
+                  IconAtlasDrawable.create(iconAtlas.get(), resourceId, picture, pictureLoader));
+        } else {
+          drawable = createDrawable(tag, dataStream, skin);
         }
-      } catch (IOException e) {
-        MozcLog.e("Failed to parse file", e);
+        success = true;
+        return drawable.isPresent()
+            ? Optional.of(new DecodedDrawableCache.Entry(drawable.get(), (int) stream.getCount()))
+            : Optional.<DecodedDrawableCache.Entry>absent();
+      } finally {
+        MozcUtil.close(stream, !success);
       }
+    } catch (IOException e) {
+      MozcLog.e("Failed to parse file", e);
+    }
+    return Optional.absent();
+  }
 
-      if (drawable.isPresent()) {
-        cacheMap.put(key, drawable.get());
+  /**
+   * Parses the picture of {@code resourceId}, which must not be a state list, and accounts for it
+   * in the cache.
+   */
+  private Optional<Picture> loadPicture(int resourceId) {
+    CountingInputStream stream = new CountingInputStream(resources.openRawResource(resourceId));
+    try {
+      boolean success = false;
+      try {
+        DataInputStream dataStream = new DataInputStream(stream);
+        byte tag = dataStream.readByte();
+        if (tag != DRAWABLE_PICTURE) {
+          MozcLog.e("Not a picture: " + resourceId);
+          success = true;
+          return Optional.absent();
+        }
+        Picture picture = createPicture(dataStream, skin);
+        success = true;
+        DecodedDrawableCache.getInstance()
+            .updateByteCount(getKey(resourceId), (int) stream.getCount());
+        return Optional.of(picture);
+      } finally {
+        MozcUtil.close(stream, !success);
       }
+    } catch (IOException e) {
+      MozcLog.e("Failed to parse file", e);
     }
-    return drawable;
+    return Optional.absent();
   }
 
   private static Optional<Drawable> createDrawable(DataInputStream stream, Skin skin)
       throws IOException {
     Preconditions.checkNotNull(stream);
+    return createDrawable(stream.readByte(), stream, skin);
+  }
 
-    byte tag = stream.readByte();
+  private static Optional<Drawable> createDrawable(byte tag, DataInputStream stream, Skin skin)
+      throws IOException {
     switch (tag) {
       case DRAWABLE_PICTURE:
         return Optional.of(createBufferedPictureDrawable(stream, skin));
@@ -194,6 +299,11 @@ class MozcDrawableFactory {
 
   private static Drawable createBufferedPictureDrawable(DataInputStream stream, Skin skin)
       throws IOException {
+    // H/W accelerated canvas doesn't support Picture so buffering is required.
+    return new BufferedDrawable(new MozcPictureDrawable(createPicture(stream, skin)));
+  }
+
+  private static Picture createPicture(DataInputStream stream, Skin skin) throws IOException {
     Preconditions.checkNotNull(stream);
     Preconditions.checkNotNull(skin);
     // The first eight bytes are width and height (four bytes for each).
@@ -423,8 +533,7 @@ class MozcDrawableFactory {
     }
 
     picture.endRecording();
-    // H/W accelerated canvas doesn't support Picture so buffering is required.
-    return new BufferedDrawable(new MozcPictureDrawable(picture));
+    return picture;
   }
 
   private void ensureTypeface(AssetManager assetManager) {
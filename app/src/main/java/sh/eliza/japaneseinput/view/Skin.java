@@ -34,6 +34,7 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.drawable.Drawable;
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 
@@ -312,11 +313,40 @@ public class Skin {
     }
   }
 
+  /**
+   * Returns a hash of the paints applied to the pictures, so that the rasterized pictures are
+   * shared by the skins which paint them identically.
+   */
+  int getIconFingerprint() {
+    Paint paint = new Paint();
+    int result = 1;
+    for (int category = 0;
+        category <= STYLE_CATEGORY_KEYBOARD_FOLDING_BUTTON_BACKGROUND_SCROLLED;
+        ++category) {
+      paint.reset();
+      apply(paint, category);
+      result =
+          31 * result
+              + Objects.hashCode(
+                  paint.getColor(),
+                  paint.getStyle(),
+                  paint.getStrokeWidth(),
+                  paint.getStrokeMiter());
+    }
+    return result;
+  }
+
   public Drawable getDrawable(Resources resources, int resourceId) {
     Preconditions.checkNotNull(resources);
     return getDrawableFactory(resources).getDrawable(resourceId).or(DummyDrawable.getInstance());
   }
 
+  /** Decodes the drawables of {@code resourceIds} in background, unless they are cached. */
+  public void prefetchDrawables(Resources resources, Iterable<Integer> resourceIds) {
+    Preconditions.checkNotNull(resources);
+    getDrawableFactory(resources).prefetch(Preconditions.checkNotNull(resourceIds));
+  }
+
   private MozcDrawableFactory getDrawableFactory(Resources resources) {
     if (!drawableFactory.isPresent()) {
       drawableFactory = Optional.of(new MozcDrawableFactory(resources, this));